@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Random;
+
+/** Synthetic API responses shared by the benchmarks. */
+final class Fixtures {
+
+  static final String ACCOUNT = "accounts/pub-1234567890123456";
+  static final String AD_CLIENT = ACCOUNT + "/adclients/ca-pub-1234567890123456";
+
+  private static final String[] METRICS = {"PAGE_VIEWS", "AD_REQUESTS", "AD_REQUESTS_COVERAGE",
+      "CLICKS", "AD_REQUESTS_CTR", "COST_PER_CLICK", "AD_REQUESTS_RPM", "ESTIMATED_EARNINGS"};
+  private static final String[] TYPES = {"METRIC_TALLY", "METRIC_TALLY", "METRIC_RATIO",
+      "METRIC_TALLY", "METRIC_RATIO", "METRIC_CURRENCY", "METRIC_CURRENCY", "METRIC_CURRENCY"};
+
+  /** A stream that discards everything written to it. */
+  static final OutputStream DISCARD = new OutputStream() {
+    @Override
+    public void write(int b) {}
+
+    @Override
+    public void write(byte[] b, int off, int len) {}
+  };
+
+  private Fixtures() {}
+
+  /**
+   * Builds the JSON of a report with a {@code DATE} and an {@code AD_UNIT_NAME} dimension and the
+   * metrics of the {@code GenerateReport} sample.
+   *
+   * @param rows the number of rows.
+   * @return the report, encoded as UTF-8.
+   */
+  static byte[] reportJson(int rows) {
+    Random random = new Random(rows);
+    LocalDate start = LocalDate.of(2021, 1, 1);
+    StringBuilder json = new StringBuilder(rows * 200);
+    json.append("{\"headers\":[{\"name\":\"DATE\",\"type\":\"DIMENSION\"},")
+        .append("{\"name\":\"AD_UNIT_NAME\",\"type\":\"DIMENSION\"}");
+    for (int i = 0; i < METRICS.length; i++) {
+      json.append(",{\"name\":\"").append(METRICS[i]).append("\",\"type\":\"").append(TYPES[i])
+          .append('"');
+      if (TYPES[i].equals("METRIC_CURRENCY")) {
+        json.append(",\"currencyCode\":\"USD\"");
+      }
+      json.append('}');
+    }
+    json.append("],\"rows\":[");
+    for (int row = 0; row < rows; row++) {
+      if (row > 0) {
+        json.append(',');
+      }
+      json.append("{\"cells\":[{\"value\":\"").append(start.plusDays(row / 50))
+          .append("\"},{\"value\":\"Ad unit ").append(row % 50).append("\"}");
+      for (int i = 0; i < METRICS.length; i++) {
+        json.append(",{\"value\":\"");
+        if (TYPES[i].equals("METRIC_TALLY")) {
+          json.append(random.nextInt(100000));
+        } else {
+          json.append(random.nextInt(100000) / 100.0);
+        }
+        json.append("\"}");
+      }
+      json.append("]}");
+    }
+    json.append("],\"totalMatchedRows\":\"").append(rows)
+        .append("\",\"startDate\":{\"year\":2021,\"month\":1,\"day\":1}")
+        .append(",\"endDate\":{\"year\":2021,\"month\":12,\"day\":31}}");
+    return json.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Builds a transport that serves {@code adunits.list} from memory, in the given number of pages.
+   * Page {@code i} has the page token {@code "i"}; the responses are built once, up front.
+   *
+   * @param pages the number of pages.
+   * @param pageSize the number of ad units on each page.
+   * @return the transport.
+   */
+  static MockHttpTransport adUnitsTransport(int pages, int pageSize) {
+    final byte[][] responses = new byte[pages][];
+    for (int page = 0; page < pages; page++) {
+      StringBuilder json = new StringBuilder("{\"adUnits\":[");
+      for (int i = 0; i < pageSize; i++) {
+        int id = page * pageSize + i;
+        if (i > 0) {
+          json.append(',');
+        }
+        json.append("{\"name\":\"").append(AD_CLIENT).append("/adunits/").append(id)
+            .append("\",\"displayName\":\"Ad unit ").append(id)
+            .append("\",\"state\":\"ACTIVE\",\"reportingDimensionId\":\"ca-pub-1:").append(id)
+            .append("\"}");
+      }
+      json.append(']');
+      if (page + 1 < pages) {
+        json.append(",\"nextPageToken\":\"").append(page + 1).append('"');
+      }
+      responses[page] = json.append('}').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    return new MockHttpTransport() {
+      @Override
+      public LowLevelHttpRequest buildRequest(String method, final String url) {
+        return new MockLowLevelHttpRequest(url) {
+          @Override
+          public LowLevelHttpResponse execute() {
+            Object token = new GenericUrl(url).getFirst("pageToken");
+            int page = token == null ? 0 : Integer.parseInt(token.toString());
+            return new MockLowLevelHttpResponse()
+                .setContentType(Json.MEDIA_TYPE)
+                .setContent(responses[page]);
+          }
+        };
+      }
+    };
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.ListAdUnitsResponse;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Lists every ad unit of an ad client against an in-process transport, with the sequential
+ * {@code nextPageToken} loop the {@code GetAll*} samples used to have and with {@link Paginator}.
+ * Without network latency this measures request building and response parsing.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PaginationBenchmark {
+
+  private static final int PAGE_SIZE = 50;
+
+  @Param({"1", "20"})
+  public int pages;
+
+  private Adsense adsense;
+
+  @Setup
+  public void setUp() {
+    adsense = new Adsense.Builder(Fixtures.adUnitsTransport(pages, PAGE_SIZE),
+        JacksonFactory.getDefaultInstance(), null)
+        .setApplicationName("AdSense-Benchmarks/2.0")
+        .build();
+  }
+
+  @Benchmark
+  public void sequentialLoop(Blackhole blackhole) throws IOException {
+    String pageToken = null;
+    do {
+      ListAdUnitsResponse response = adsense.accounts().adclients().adunits()
+          .list(Fixtures.AD_CLIENT)
+          .setPageSize(PAGE_SIZE)
+          .setPageToken(pageToken)
+          .execute();
+      for (AdUnit unit : response.getAdUnits()) {
+        blackhole.consume(unit.getName());
+      }
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null);
+  }
+
+  @Benchmark
+  public void paginator(Blackhole blackhole) {
+    Iterator<AdUnit> items = Paginator.SINGLE_PARENT.iterate(Fixtures.AD_CLIENT,
+        Paginator.adUnits(adsense, PAGE_SIZE));
+    while (items.hasNext()) {
+      blackhole.consume(items.next().getName());
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.model.Header;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Formats report rows in 25 character columns, with the per-cell {@code printf} loop the report
+ * samples used to have and with {@link ReportWriter}, and writes them as CSV. Output goes to a
+ * null stream, so only the formatting and the stream layers are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportFormattingBenchmark {
+
+  @Param({"100", "10000"})
+  public int rows;
+
+  private List<Header> headers;
+  private String[][] cells;
+  private PrintStream originalOut;
+
+  @Setup
+  public void setUp() {
+    headers = new ArrayList<Header>();
+    headers.add(new Header().setName("DATE").setType("DIMENSION"));
+    headers.add(new Header().setName("AD_UNIT_NAME").setType("DIMENSION"));
+    headers.add(new Header().setName("CLICKS").setType("METRIC_TALLY"));
+    headers.add(new Header().setName("ESTIMATED_EARNINGS").setType("METRIC_CURRENCY"));
+    cells = new String[rows][];
+    for (int row = 0; row < rows; row++) {
+      cells[row] = new String[] {"2021-03-" + (row % 28 + 1), "Ad unit " + row % 50,
+          Integer.toString(row * 7 % 1000), Double.toString(row % 1000 / 100.0)};
+    }
+    originalOut = System.out;
+    System.setOut(new PrintStream(Fixtures.DISCARD));
+  }
+
+  @TearDown
+  public void tearDown() {
+    System.setOut(originalOut);
+  }
+
+  @Benchmark
+  public void printf() {
+    for (Header header : headers) {
+      System.out.printf("%25s", header.getName());
+    }
+    System.out.println();
+    for (String[] row : cells) {
+      for (String cell : row) {
+        System.out.printf("%25s", cell);
+      }
+      System.out.println();
+    }
+  }
+
+  @Benchmark
+  public void fixedWidth() throws IOException {
+    write(ReportWriter.Format.FIXED_WIDTH);
+  }
+
+  @Benchmark
+  public void csv() throws IOException {
+    write(ReportWriter.Format.CSV);
+  }
+
+  private void write(ReportWriter.Format format) throws IOException {
+    ReportWriter writer = ReportWriter.create(format, Fixtures.DISCARD);
+    writer.headers(headers);
+    for (String[] row : cells) {
+      writer.row(row);
+    }
+    writer.finish();
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Parses a report response into a {@link ReportResult} with {@link JacksonFactory}, the way the
+ * samples originally did, and streams it through {@link ReportStreamReader}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReportParsingBenchmark {
+
+  @Param({"100", "10000", "100000"})
+  public int rows;
+
+  private JsonFactory jsonFactory;
+  private byte[] json;
+
+  @Setup
+  public void setUp() {
+    jsonFactory = JacksonFactory.getDefaultInstance();
+    json = Fixtures.reportJson(rows);
+  }
+
+  @Benchmark
+  public ReportResult jacksonFactory() throws IOException {
+    return jsonFactory.fromInputStream(new ByteArrayInputStream(json), StandardCharsets.UTF_8,
+        ReportResult.class);
+  }
+
+  @Benchmark
+  public ReportResult streaming(final Blackhole blackhole) throws IOException {
+    return ReportStreamReader.read(jsonFactory, new ByteArrayInputStream(json),
+        new ReportStreamReader.RowHandler() {
+          @Override
+          public void headers(List<Header> headers) {
+            blackhole.consume(headers);
+          }
+
+          @Override
+          public void row(String[] cells) {
+            blackhole.consume(cells);
+          }
+        });
+  }
+}
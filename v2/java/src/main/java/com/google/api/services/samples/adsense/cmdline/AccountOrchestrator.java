@@ -0,0 +1,410 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.Account;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the same jobs for many accounts in parallel, without any user interaction.
+ *
+ * <p>Every job of every account is a separate task. Tasks are handed to a fixed number of workers
+ * in round-robin order across accounts, and each account has a limit on its tasks in flight, so
+ * an account with a lot of work cannot hold up the others. Workers run on virtual threads when
+ * the JDK has them, so the worker count can be raised to thousands.
+ *
+ * <p>A failing task does not stop the run. If it fails with one of the account errors shown in
+ * {@link HandleAccountErrors}, the remaining tasks of that account are skipped; any other failure
+ * only affects the task itself. All outcomes are collected into one {@link Result}.
+ */
+public final class AccountOrchestrator {
+
+  /** The error reasons that mean nothing else will work for an account either. */
+  private static final Set<String> ACCOUNT_ERRORS = Collections.unmodifiableSet(
+      new HashSet<String>(Arrays.asList(
+          "noAdSenseAccount", "disapprovedAccount", "accountPendingReview")));
+
+  /**
+   * A unit of work for one account.
+   *
+   * @param <R> the type of the job's result.
+   */
+  public interface AccountJob<R> {
+
+    /**
+     * Runs the job.
+     *
+     * @param adsense the AdSense service object.
+     * @param account the resource name of the account.
+     * @return the result.
+     * @throws Exception if the job fails.
+     */
+    R run(Adsense adsense, String account) throws Exception;
+  }
+
+  /** The outcome of one job for one account. */
+  public static final class Outcome {
+    private final String account;
+    private final String job;
+    private final Object value;
+    private final Exception error;
+    private final long elapsedMillis;
+
+    Outcome(String account, String job, Object value, Exception error, long elapsedMillis) {
+      this.account = account;
+      this.job = job;
+      this.value = value;
+      this.error = error;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    /** @return the resource name of the account. */
+    public String getAccount() {
+      return account;
+    }
+
+    /** @return the name of the job. */
+    public String getJob() {
+      return job;
+    }
+
+    /** @return the result of the job, or {@code null} if it failed or was skipped. */
+    public Object getValue() {
+      return value;
+    }
+
+    /** @return the failure, or {@code null} if the job succeeded. */
+    public Exception getError() {
+      return error;
+    }
+
+    /** @return whether the job succeeded. */
+    public boolean isSuccess() {
+      return error == null;
+    }
+
+    /** @return how long the job ran. */
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  /** The outcomes of all jobs for all accounts. */
+  public static final class Result {
+    private final List<Outcome> outcomes;
+    private final Map<String, String> failedAccounts;
+
+    Result(List<Outcome> outcomes, Map<String, String> failedAccounts) {
+      this.outcomes = Collections.unmodifiableList(outcomes);
+      this.failedAccounts = Collections.unmodifiableMap(failedAccounts);
+    }
+
+    /** @return every outcome, in the order the jobs finished. */
+    public List<Outcome> getOutcomes() {
+      return outcomes;
+    }
+
+    /** @return the accounts that failed with an account error, and the reason of each. */
+    public Map<String, String> getFailedAccounts() {
+      return failedAccounts;
+    }
+
+    /** @return the results of a job for each account where it succeeded. */
+    public Map<String, Object> getValues(String job) {
+      Map<String, Object> values = new LinkedHashMap<String, Object>();
+      for (Outcome outcome : outcomes) {
+        if (outcome.job.equals(job) && outcome.isSuccess()) {
+          values.put(outcome.account, outcome.value);
+        }
+      }
+      return values;
+    }
+
+    /** @return the outcomes that failed or were skipped. */
+    public List<Outcome> getFailures() {
+      List<Outcome> failures = new ArrayList<Outcome>();
+      for (Outcome outcome : outcomes) {
+        if (!outcome.isSuccess()) {
+          failures.add(outcome);
+        }
+      }
+      return failures;
+    }
+  }
+
+  /** Thrown in place of running the jobs of an account that already failed. */
+  public static final class AccountSkippedException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    AccountSkippedException(String account, String reason) {
+      super(String.format("Skipped, account %s failed with %s", account, reason));
+    }
+  }
+
+  private final Map<String, AccountJob<?>> jobs;
+  private final int workers;
+  private final int maxTasksPerAccount;
+
+  private AccountOrchestrator(Builder builder) {
+    this.jobs = new LinkedHashMap<String, AccountJob<?>>(builder.jobs);
+    this.workers = builder.workers;
+    this.maxTasksPerAccount = builder.maxTasksPerAccount;
+  }
+
+  /**
+   * Runs the jobs for every account the user has access to.
+   *
+   * @param adsense the AdSense service object.
+   * @param maxPageSize the maximum page size used to list the accounts.
+   * @return the outcomes.
+   * @throws IOException if the accounts cannot be listed.
+   * @throws InterruptedException if interrupted while waiting for the jobs.
+   */
+  public Result runAll(Adsense adsense, int maxPageSize)
+      throws IOException, InterruptedException {
+    List<String> accounts = new ArrayList<String>();
+    for (Account account : Paginator.SINGLE_PARENT.iterate((String) null,
+        Paginator.accounts(adsense, maxPageSize)).toList()) {
+      accounts.add(account.getName());
+    }
+    return run(adsense, accounts);
+  }
+
+  /**
+   * Runs the jobs for the given accounts.
+   *
+   * @param adsense the AdSense service object.
+   * @param accounts the resource names of the accounts.
+   * @return the outcomes.
+   * @throws InterruptedException if interrupted while waiting for the jobs.
+   */
+  public Result run(final Adsense adsense, List<String> accounts) throws InterruptedException {
+    final FairQueue queue = new FairQueue(accounts, new ArrayList<String>(jobs.keySet()));
+    final List<Outcome> outcomes = Collections.synchronizedList(new ArrayList<Outcome>());
+    int workerCount = Math.min(workers, Math.max(1, queue.size()));
+    ExecutorService executor =
+        WorkerExecutors.newWorkerExecutor(workerCount, "adsense-orchestrator");
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        executor.execute(Tracer.wrap(new Runnable() {
+          @Override
+          public void run() {
+            Task task;
+            while ((task = queue.take()) != null) {
+              outcomes.add(runTask(adsense, task, queue));
+            }
+          }
+        }));
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        // Keep waiting; every task ends with an outcome.
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return new Result(new ArrayList<Outcome>(outcomes), queue.getFailedAccounts());
+  }
+
+  private Outcome runTask(Adsense adsense, Task task, FairQueue queue) {
+    long start = System.nanoTime();
+    long span = Tracer.begin(task.job, task.account);
+    try {
+      String reason = queue.getFailureReason(task.account);
+      if (reason != null) {
+        return new Outcome(task.account, task.job, null,
+            new AccountSkippedException(task.account, reason), 0);
+      }
+      Object value = jobs.get(task.job).run(adsense, task.account);
+      return new Outcome(task.account, task.job, value, null, elapsedMillis(start));
+    } catch (Exception e) {
+      String reason = accountErrorReason(e);
+      if (reason != null) {
+        queue.failAccount(task.account, reason);
+      }
+      return new Outcome(task.account, task.job, null, e, elapsedMillis(start));
+    } finally {
+      Tracer.end(span);
+      queue.done(task.account);
+    }
+  }
+
+  private static long elapsedMillis(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /** @return the account error reason of a failure, or {@code null} if it is not one. */
+  static String accountErrorReason(Exception e) {
+    if (!(e instanceof GoogleJsonResponseException)) {
+      return null;
+    }
+    GoogleJsonError details = ((GoogleJsonResponseException) e).getDetails();
+    if (details == null || details.getErrors() == null) {
+      return null;
+    }
+    for (GoogleJsonError.ErrorInfo error : details.getErrors()) {
+      if (ACCOUNT_ERRORS.contains(error.getReason())) {
+        return error.getReason();
+      }
+    }
+    return null;
+  }
+
+  /** One job for one account. */
+  private static final class Task {
+    final String account;
+    final String job;
+
+    Task(String account, String job) {
+      this.account = account;
+      this.job = job;
+    }
+  }
+
+  /**
+   * Hands out tasks round-robin across accounts, keeping each account under its limit of tasks
+   * in flight.
+   */
+  private final class FairQueue {
+    private final List<String> accounts;
+    private final Map<String, Deque<Task>> pending = new LinkedHashMap<String, Deque<Task>>();
+    private final Map<String, Integer> inFlight = new LinkedHashMap<String, Integer>();
+    private final Map<String, String> failedAccounts = new LinkedHashMap<String, String>();
+    private int remaining;
+    private int cursor;
+
+    FairQueue(List<String> accounts, List<String> jobNames) {
+      this.accounts = new ArrayList<String>(new LinkedHashSet<String>(accounts));
+      for (String account : this.accounts) {
+        Deque<Task> tasks = new ArrayDeque<Task>();
+        for (String job : jobNames) {
+          tasks.add(new Task(account, job));
+        }
+        pending.put(account, tasks);
+        inFlight.put(account, 0);
+        remaining += tasks.size();
+      }
+    }
+
+    synchronized int size() {
+      return remaining;
+    }
+
+    /** @return the next task, waiting if needed, or {@code null} once every task is handed out. */
+    synchronized Task take() {
+      while (remaining > 0) {
+        for (int i = 0; i < accounts.size(); i++) {
+          String account = accounts.get((cursor + i) % accounts.size());
+          Deque<Task> tasks = pending.get(account);
+          if (!tasks.isEmpty() && inFlight.get(account) < maxTasksPerAccount) {
+            cursor = (cursor + i + 1) % accounts.size();
+            inFlight.put(account, inFlight.get(account) + 1);
+            remaining--;
+            return tasks.poll();
+          }
+        }
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      return null;
+    }
+
+    synchronized void done(String account) {
+      inFlight.put(account, inFlight.get(account) - 1);
+      notifyAll();
+    }
+
+    synchronized void failAccount(String account, String reason) {
+      if (!failedAccounts.containsKey(account)) {
+        failedAccounts.put(account, reason);
+      }
+    }
+
+    synchronized String getFailureReason(String account) {
+      return failedAccounts.get(account);
+    }
+
+    synchronized Map<String, String> getFailedAccounts() {
+      return new LinkedHashMap<String, String>(failedAccounts);
+    }
+  }
+
+  /** Builder for {@link AccountOrchestrator}; the jobs added make up the job spec. */
+  public static final class Builder {
+    private final Map<String, AccountJob<?>> jobs = new LinkedHashMap<String, AccountJob<?>>();
+    private int workers = 16;
+    private int maxTasksPerAccount = 1;
+
+    /**
+     * Adds a job to run for every account.
+     *
+     * @param name the name of the job, used to find its results.
+     * @param job the job.
+     * @return this builder.
+     */
+    public Builder addJob(String name, AccountJob<?> job) {
+      if (jobs.put(name, job) != null) {
+        throw new IllegalArgumentException("Duplicate job " + name);
+      }
+      return this;
+    }
+
+    /** Sets the number of tasks run at the same time, across all accounts. */
+    public Builder setWorkers(int workers) {
+      if (workers < 1) {
+        throw new IllegalArgumentException("There must be at least one worker");
+      }
+      this.workers = workers;
+      return this;
+    }
+
+    /** Sets the number of tasks of a single account run at the same time. */
+    public Builder setMaxTasksPerAccount(int maxTasksPerAccount) {
+      if (maxTasksPerAccount < 1) {
+        throw new IllegalArgumentException("Accounts must be allowed at least one task");
+      }
+      this.maxTasksPerAccount = maxTasksPerAccount;
+      return this;
+    }
+
+    /** @return the new orchestrator. */
+    public AccountOrchestrator build() {
+      if (jobs.isEmpty()) {
+        throw new IllegalStateException("No jobs were added");
+      }
+      return new AccountOrchestrator(this);
+    }
+  }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.Account;
+import com.google.api.services.adsense.v2.model.ListChildAccountsResponse;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fetches the full sub-account tree of an account, listing the children of sibling accounts
+ * concurrently.
+ *
+ * <p>At most {@code maxConcurrentRequests} accounts.listChildAccounts calls are in flight at any
+ * time. All result pages are followed, and the tree is returned as {@link Node} objects rather
+ * than printed while it is walked. The crawler only talks to the {@link Adsense} object it is
+ * given, so it can be pointed at any {@code HttpTransport}, including a
+ * {@code MockHttpTransport}.
+ */
+public class AccountTreeCrawler {
+
+  /** An account in the tree, together with its direct children. */
+  public static final class Node {
+    private final Account account;
+    private volatile List<Node> children = Collections.emptyList();
+
+    Node(Account account) {
+      this.account = account;
+    }
+
+    /** @return the account held by this node. */
+    public Account getAccount() {
+      return account;
+    }
+
+    /** @return the direct children of this account, in the order the API returned them. */
+    public List<Node> getChildren() {
+      return children;
+    }
+
+    /** @return the number of accounts in the subtree rooted at this node, including itself. */
+    public int size() {
+      int size = 1;
+      for (Node child : children) {
+        size += child.size();
+      }
+      return size;
+    }
+  }
+
+  private final Adsense adsense;
+  private final int maxConcurrentRequests;
+  private final int maxPageSize;
+
+  /**
+   * Creates a new crawler.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param maxConcurrentRequests the maximum number of requests in flight at any time.
+   * @param maxPageSize the maximum page size to retrieve.
+   */
+  public AccountTreeCrawler(Adsense adsense, int maxConcurrentRequests, int maxPageSize) {
+    if (maxConcurrentRequests < 1) {
+      throw new IllegalArgumentException("maxConcurrentRequests must be at least 1");
+    }
+    this.adsense = adsense;
+    this.maxConcurrentRequests = maxConcurrentRequests;
+    this.maxPageSize = maxPageSize;
+  }
+
+  /**
+   * Fetches the account and its full tree of sub-accounts.
+   *
+   * @param accountId the ID for the root account of the tree.
+   * @return the root node of the tree.
+   * @throws Exception if any of the requests fail; the crawl stops at the first failure.
+   */
+  public Node crawl(String accountId) throws Exception {
+    Account account = adsense.accounts().get(accountId).execute();
+    return crawl(account);
+  }
+
+  /**
+   * Fetches the full tree of sub-accounts under an already retrieved account.
+   *
+   * @param account the root account of the tree.
+   * @return the root node of the tree.
+   * @throws Exception if any of the requests fail; the crawl stops at the first failure.
+   */
+  public Node crawl(Account account) throws Exception {
+    Node root = new Node(account);
+    ExecutorService executor = Executors.newFixedThreadPool(maxConcurrentRequests);
+    long span = Tracer.begin("crawl", account.getName());
+    try {
+      new Crawl(executor).run(root);
+    } finally {
+      Tracer.end(span);
+      executor.shutdownNow();
+    }
+    return root;
+  }
+
+  /**
+   * Lists every page of child accounts for a parent account.
+   *
+   * @param parentName the resource name of the parent account.
+   * @return the child accounts.
+   */
+  private List<Account> listChildAccounts(String parentName) throws Exception {
+    List<Account> allAccounts = new ArrayList<Account>();
+    String pageToken = null;
+    do {
+      ListChildAccountsResponse response;
+      long span = Tracer.begin("page", parentName);
+      try {
+        response = adsense.accounts()
+            .listChildAccounts(parentName)
+            .setPageSize(maxPageSize)
+            .setPageToken(pageToken)
+            .execute();
+      } finally {
+        Tracer.end(span);
+      }
+      if (response.getAccounts() != null) {
+        allAccounts.addAll(response.getAccounts());
+      }
+      pageToken = response.getNextPageToken();
+    } while (pageToken != null);
+    return allAccounts;
+  }
+
+  /** The state of a single crawl: outstanding tasks and the first failure, if any. */
+  private final class Crawl {
+    private final ExecutorService executor;
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    Crawl(ExecutorService executor) {
+      this.executor = executor;
+    }
+
+    void run(Node root) throws Exception {
+      submit(root);
+      done.await();
+      if (failure.get() != null) {
+        throw failure.get();
+      }
+    }
+
+    private void submit(final Node node) {
+      pending.incrementAndGet();
+      try {
+        executor.execute(Tracer.wrap(new Runnable() {
+          @Override
+          public void run() {
+            expand(node);
+          }
+        }));
+      } catch (RejectedExecutionException e) {
+        // Only happens once the executor has been shut down after a failure.
+        finish();
+      }
+    }
+
+    private void expand(Node node) {
+      long span = Tracer.begin("listChildAccounts", node.getAccount().getName());
+      try {
+        if (failure.get() == null) {
+          List<Account> subAccounts = listChildAccounts(node.getAccount().getName());
+          List<Node> children = new ArrayList<Node>(subAccounts.size());
+          for (Account subAccount : subAccounts) {
+            children.add(new Node(subAccount));
+          }
+          node.children = Collections.unmodifiableList(children);
+          for (Node child : children) {
+            submit(child);
+          }
+        }
+      } catch (Exception e) {
+        if (failure.compareAndSet(null, e)) {
+          done.countDown();
+        }
+      } finally {
+        Tracer.end(span);
+        finish();
+      }
+    }
+
+    private void finish() {
+      if (pending.decrementAndGet() == 0) {
+        done.countDown();
+      }
+    }
+  }
+}
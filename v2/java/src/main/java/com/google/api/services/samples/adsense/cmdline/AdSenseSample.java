@@ -19,9 +19,6 @@ import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInsta
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
-import com.google.api.client.http.HttpTransport;
-import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.store.DataStoreFactory;
@@ -33,11 +30,15 @@ import com.google.api.services.adsense.v2.model.AdClient;
 import com.google.api.services.adsense.v2.model.AdUnit;
 import com.google.api.services.adsense.v2.model.CustomChannel;
 import com.google.api.services.adsense.v2.model.SavedReport;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.time.ZoneId;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A sample application that runs multiple requests against the AdSense Management API v2. These
@@ -56,6 +57,20 @@ import java.util.Scanner;
  * <li>Running a saved report for an account</li>
  * <li>Listing all alerts for an account</li>
  * </ul>
+ *
+ * <p>Run it with {@code --all-accounts} to skip the account prompt and instead run a summary of
+ * every account the user has access to, or with {@code --all-saved-reports} to run every saved
+ * report of every account into CSV files, skipping those that did not change. Add
+ * {@code --export=<file>} to write the ad client report to a columnar file instead of printing it,
+ * {@code --rates=<file>} to also show its earnings in every currency of a table of daily
+ * exchange rates, converted with {@link CurrencyConverter}, and {@code --sync-report} to keep a
+ * local copy of its daily clicks and earnings up to date with {@link IncrementalReportSync}.
+ *
+ * <p>Set the {@code adsense.trace} system property to a file name to write a trace of the run that
+ * chrome://tracing or Perfetto can open, and set {@code adsense.emulator} to {@code true} to run
+ * against an in-process {@link AdsenseEmulator} instead of the real API, without authorizing.
+ * Set {@code adsense.stats} to {@code true} to print the throttling and latency statistics of
+ * the run at its end.
  */
 public class AdSenseSample {
 
@@ -66,8 +81,8 @@ public class AdSenseSample {
   private static final String APPLICATION_NAME = "";
 
   /** Directory to store user credentials. */
-  private static final java.io.File DATA_STORE_DIR =
-      new java.io.File(System.getProperty("user.home"), ".store/adsense_management_sample");
+  private static final File DATA_STORE_DIR =
+      new File(System.getProperty("user.home"), ".store/adsense_management_sample");
 
   /**
    * Global instance of the {@link DataStoreFactory}. The best practice is to make it a single
@@ -81,8 +96,53 @@ public class AdSenseSample {
   // Request parameters.
   private static final int MAX_LIST_PAGE_SIZE = 50;
 
-  /** Global instance of the HTTP transport. */
-  private static HttpTransport httpTransport;
+  /** How long listed inventory is shown again without asking the API. */
+  private static final long INVENTORY_CACHE_TTL_MINUTES = 60;
+
+  /**
+   * Global instance of the {@link InventoryCache}, which keeps the listed ad clients, ad units and
+   * channels in the data store directory, so that repeated runs do not list them again.
+   */
+  private static InventoryCache inventoryCache;
+
+  /** How long reports that include today are shown again without asking the API. */
+  private static final long REPORT_CACHE_TTL_MINUTES = 15;
+
+  /** The maximum total size of the report responses kept in memory. */
+  private static final long REPORT_CACHE_MEMORY_BYTES = 16 * 1024 * 1024;
+
+  /**
+   * Global instance of the {@link ReportCache}, which keeps report responses in memory and in the
+   * data store directory, so that the same report is not run twice.
+   */
+  private static ReportCache reportCache;
+
+  /**
+   * Global instance of the {@link AdsenseClientFactory}, which owns the single HTTP transport
+   * shared by the authorization flow and all AdSense service objects.
+   */
+  private static AdsenseClientFactory clientFactory;
+
+  /**
+   * Global instance of the {@link RequestThrottler}, which rate limits and retries every request
+   * made by the samples.
+   */
+  private static RequestThrottler throttler;
+
+  /**
+   * Global instance of the {@link RequestMetrics}, which records the latency and size of every
+   * request made by the samples, per API method.
+   */
+  private static RequestMetrics metrics;
+
+  /** The file to write a trace of the run to, or {@code null} to run without tracing. */
+  private static final String TRACE_FILE = System.getProperty("adsense.trace");
+
+  /** Whether to run against an {@link AdsenseEmulator} instead of the real API. */
+  private static final boolean USE_EMULATOR = Boolean.getBoolean("adsense.emulator");
+
+  /** Whether to print the statistics of the throttler and of the request metrics at the end. */
+  private static final boolean PRINT_STATS = Boolean.getBoolean("adsense.stats");
 
   /** Authorizes the installed application to access user's protected data. */
   private static Credential authorize() throws Exception {
@@ -98,7 +158,7 @@ public class AdSenseSample {
     }
     // set up authorization code flow
     GoogleAuthorizationCodeFlow flow = new GoogleAuthorizationCodeFlow.Builder(
-        httpTransport, JSON_FACTORY, clientSecrets,
+        clientFactory.getHttpTransport(), JSON_FACTORY, clientSecrets,
         Collections.singleton(AdsenseScopes.ADSENSE_READONLY)).setDataStoreFactory(
         dataStoreFactory).build();
     // authorize
@@ -112,15 +172,16 @@ public class AdSenseSample {
    * @throws Exception
    */
   private static Adsense initializeAdsense() throws Exception {
+    if (USE_EMULATOR) {
+      // The emulator does not check credentials.
+      return clientFactory.newAdsense(null);
+    }
+
     // Authorization.
     Credential credential = authorize();
 
     // Set up AdSense Management API client.
-    Adsense adsense = new Adsense.Builder(
-        new NetHttpTransport(), JSON_FACTORY, credential).setApplicationName(APPLICATION_NAME)
-        .build();
-
-    return adsense;
+    return clientFactory.newAdsense(credential);
   }
 
   /**
@@ -129,31 +190,69 @@ public class AdSenseSample {
    * @param args command-line arguments.
    */
   public static void main(String[] args) {
+    if (TRACE_FILE != null) {
+      Tracer.enable(Tracer.DEFAULT_CAPACITY);
+    }
     try {
-      httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+      throttler = new RequestThrottler.Builder().build();
+      // The endpoints are only published through JMX when the statistics are asked for.
+      metrics = new RequestMetrics(PRINT_STATS);
+      AdsenseClientFactory.Builder factoryBuilder = new AdsenseClientFactory.Builder(JSON_FACTORY);
+      if (USE_EMULATOR) {
+        factoryBuilder.setHttpTransport(new AdsenseEmulator.Builder()
+            .setAccounts(3)
+            .setChildAccounts(2, 2)
+            // The samples below use adClients.get(6), so accounts need at least seven.
+            .setAdClients(7)
+            .build());
+      }
+      clientFactory = factoryBuilder
+          .setApplicationName(APPLICATION_NAME)
+          .addRequestInitializer(throttler)
+          .setRequestMetrics(metrics)
+          .build();
       dataStoreFactory = new FileDataStoreFactory(DATA_STORE_DIR);
+      inventoryCache = new InventoryCache(dataStoreFactory, JSON_FACTORY,
+          INVENTORY_CACHE_TTL_MINUTES, TimeUnit.MINUTES);
+      reportCache = new ReportCache(JSON_FACTORY, ZoneId.systemDefault(),
+          REPORT_CACHE_TTL_MINUTES, TimeUnit.MINUTES, REPORT_CACHE_MEMORY_BYTES,
+          new File(DATA_STORE_DIR, "reports"));
       Adsense adsense = initializeAdsense();
 
+      if (Arrays.asList(args).contains("--all-accounts")) {
+        RunAllAccounts.run(adsense, MAX_LIST_PAGE_SIZE);
+        printStats();
+        return;
+      }
+
+      if (Arrays.asList(args).contains("--all-saved-reports")) {
+        RunAllSavedReports.run(adsense, MAX_LIST_PAGE_SIZE,
+            new File(DATA_STORE_DIR, "saved_reports"));
+        printStats();
+        return;
+      }
+
       List<Account> accounts = GetAllAccounts.run(adsense, MAX_LIST_PAGE_SIZE);
       if ((accounts != null) && !accounts.isEmpty()) {
         // Get an example account ID, so we can run the following sample.
         String chosenAccount = chooseAccount(accounts);
         GetAccountTree.run(adsense, chosenAccount);
-        List<AdClient> adClients = GetAllAdClients.run(adsense, chosenAccount, MAX_LIST_PAGE_SIZE);
+        List<AdClient> adClients =
+            GetAllAdClients.run(adsense, inventoryCache, chosenAccount, MAX_LIST_PAGE_SIZE);
 
         if ((adClients != null) && !adClients.isEmpty()) {
           // Get an ad client ID, so we can run the rest of the samples.
           String exampleAdClientId = adClients.get(6).getName();
 
-          List<AdUnit> units =
-              GetAllAdUnits.run(adsense, exampleAdClientId, MAX_LIST_PAGE_SIZE);
+          List<AdUnit> units = GetAllAdUnits.run(adsense, inventoryCache, exampleAdClientId,
+              MAX_LIST_PAGE_SIZE);
           if ((units != null) && !units.isEmpty()) {
             // Get an example ad unit ID, so we can run the following sample.
             String exampleAdUnitId = units.get(0).getName();
             GetAllCustomChannelsForAdUnit.run(adsense, exampleAdUnitId, MAX_LIST_PAGE_SIZE);
           }
 
-          List<CustomChannel> channels = GetAllCustomChannels.run(adsense,
+          List<CustomChannel> channels = GetAllCustomChannels.run(adsense, inventoryCache,
               exampleAdClientId, MAX_LIST_PAGE_SIZE);
           if ((channels != null) && !channels.isEmpty()) {
             // Get an example custom channel ID, so we can run the following sample.
@@ -161,8 +260,20 @@ public class AdSenseSample {
             GetAllAdUnitsForCustomChannel.run(adsense, exampleCustomChannelId, MAX_LIST_PAGE_SIZE);
           }
 
-          GetAllUrlChannels.run(adsense, exampleAdClientId, MAX_LIST_PAGE_SIZE);
-          GenerateReport.run(adsense, chosenAccount, exampleAdClientId);
+          GetAllUrlChannels.run(adsense, inventoryCache, exampleAdClientId, MAX_LIST_PAGE_SIZE);
+          String exportFile = option(args, "export");
+          GenerateReport.run(adsense, reportCache, chosenAccount, exampleAdClientId,
+              exportFile != null ? new File(exportFile) : null);
+          String ratesFile = option(args, "rates");
+          if (ratesFile != null) {
+            // The report was just run, so the cache answers it without another request.
+            GenerateReport.runInCurrencies(adsense, reportCache, chosenAccount, exampleAdClientId,
+                new File(ratesFile));
+          }
+          if (Arrays.asList(args).contains("--sync-report")) {
+            GenerateReport.runSync(adsense, chosenAccount, exampleAdClientId,
+                new File(DATA_STORE_DIR, "report_sync"));
+          }
         } else {
           System.out.println("No ad clients found, unable to run remaining methods.");
         }
@@ -178,10 +289,58 @@ public class AdSenseSample {
 
         GetAllAlerts.run(adsense, chosenAccount);
       }
+      printStats();
     } catch (IOException e) {
       System.err.println(e.getMessage());
     } catch (Throwable t) {
       t.printStackTrace();
+    } finally {
+      shutdown();
+      if (TRACE_FILE != null) {
+        exportTrace();
+      }
+    }
+  }
+
+  /** @return the value of a {@code --name=value} argument, or {@code null} if it is not given. */
+  private static String option(String[] args, String name) {
+    String prefix = "--" + name + "=";
+    for (String arg : args) {
+      if (arg.startsWith(prefix)) {
+        return arg.substring(prefix.length());
+      }
+    }
+    return null;
+  }
+
+  /** Prints the statistics of the throttler and of the request metrics, if asked to. */
+  private static void printStats() {
+    if (PRINT_STATS) {
+      System.out.println(throttler);
+      System.out.println(reportCache);
+      metrics.dump(System.out);
+    }
+  }
+
+  /** Closes the HTTP transport shared by the samples, if it was created. */
+  private static void shutdown() {
+    if (clientFactory == null) {
+      return;
+    }
+    try {
+      clientFactory.shutdown();
+    } catch (IOException e) {
+      System.err.println("Could not shut down the HTTP transport: " + e.getMessage());
+    }
+  }
+
+  /** Writes the spans recorded during the run to {@link #TRACE_FILE}. */
+  private static void exportTrace() {
+    try {
+      int spans = Tracer.export(new File(TRACE_FILE));
+      System.out.printf("Wrote %d spans to %s\n", spans, TRACE_FILE);
+    } catch (IOException e) {
+      System.err.println("Could not write trace: " + e.getMessage());
     }
   }
 
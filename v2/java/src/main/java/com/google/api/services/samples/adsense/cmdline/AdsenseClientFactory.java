@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+
+/**
+ * Builds {@link Adsense} service objects that all share a single {@link HttpTransport}.
+ *
+ * <p>A factory is immutable once built and may be shared by any number of threads. Every service
+ * object it creates runs its requests through the same transport, so connections (and their TLS
+ * sessions) are reused across threads and across accounts instead of being set up per client.
+ *
+ * <p>By default the factory uses a trusted {@code NetHttpTransport}; call
+ * {@link Builder#setPooledTransport(boolean)} to use a pooled Apache HTTP client instead, which
+ * honours the connection pool settings of the builder, or {@link Builder#setHttpTransport} to
+ * supply any other transport, such as an {@link AdsenseEmulator}.
+ */
+public final class AdsenseClientFactory {
+
+  private final HttpTransport httpTransport;
+  private final JsonFactory jsonFactory;
+  private final String applicationName;
+  private final int connectTimeoutMillis;
+  private final int readTimeoutMillis;
+  private final List<HttpRequestInitializer> requestInitializers;
+
+  private AdsenseClientFactory(Builder builder, HttpTransport httpTransport) {
+    this.httpTransport = httpTransport;
+    this.jsonFactory = builder.jsonFactory;
+    this.applicationName = builder.applicationName;
+    this.connectTimeoutMillis = builder.connectTimeoutMillis;
+    this.readTimeoutMillis = builder.readTimeoutMillis;
+    List<HttpRequestInitializer> requestInitializers =
+        new ArrayList<HttpRequestInitializer>(builder.requestInitializers);
+    if (builder.requestMetrics != null) {
+      requestInitializers.add(builder.requestMetrics);
+    }
+    this.requestInitializers = Collections.unmodifiableList(requestInitializers);
+  }
+
+  /** @return the transport shared by all service objects built by this factory. */
+  public HttpTransport getHttpTransport() {
+    return httpTransport;
+  }
+
+  /** @return the JSON factory shared by all service objects built by this factory. */
+  public JsonFactory getJsonFactory() {
+    return jsonFactory;
+  }
+
+  /**
+   * Creates a new AdSense service object on the shared transport.
+   *
+   * @param credential the initializer that authorizes requests, usually a {@code Credential}.
+   * @return an AdSense service object.
+   */
+  public Adsense newAdsense(HttpRequestInitializer credential) {
+    return new Adsense.Builder(httpTransport, jsonFactory, newRequestInitializer(credential))
+        .setApplicationName(applicationName)
+        .build();
+  }
+
+  /**
+   * Returns the initializer chain applied to every request: the default timeouts first, then the
+   * credential, then any initializers added to the builder, in the order they were added, and
+   * finally the request metrics, if any.
+   *
+   * @param credential the initializer that authorizes requests, or {@code null}.
+   * @return the chained initializer.
+   */
+  public HttpRequestInitializer newRequestInitializer(final HttpRequestInitializer credential) {
+    return new HttpRequestInitializer() {
+      @Override
+      public void initialize(HttpRequest request) throws IOException {
+        request.setConnectTimeout(connectTimeoutMillis);
+        request.setReadTimeout(readTimeoutMillis);
+        if (credential != null) {
+          credential.initialize(request);
+        }
+        for (HttpRequestInitializer initializer : requestInitializers) {
+          initializer.initialize(request);
+        }
+      }
+    };
+  }
+
+  /**
+   * Releases the connections held by the shared transport. Service objects built by this factory
+   * must not be used afterwards.
+   *
+   * @throws IOException if the transport fails to shut down.
+   */
+  public void shutdown() throws IOException {
+    httpTransport.shutdown();
+  }
+
+  /** Builder for {@link AdsenseClientFactory}. */
+  public static final class Builder {
+    private final JsonFactory jsonFactory;
+    private String applicationName;
+    private boolean pooledTransport;
+    private HttpTransport httpTransport;
+    private int maxConnections = 200;
+    private int maxConnectionsPerRoute = 20;
+    private long idleConnectionTimeoutMillis = TimeUnit.SECONDS.toMillis(30);
+    private int connectTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(20);
+    private int readTimeoutMillis = (int) TimeUnit.SECONDS.toMillis(60);
+    private final List<HttpRequestInitializer> requestInitializers =
+        new ArrayList<HttpRequestInitializer>();
+    private RequestMetrics requestMetrics;
+
+    /** @param jsonFactory the JSON factory to be used by all service objects. */
+    public Builder(JsonFactory jsonFactory) {
+      this.jsonFactory = jsonFactory;
+    }
+
+    /** Sets the application name sent with every request. */
+    public Builder setApplicationName(String applicationName) {
+      this.applicationName = applicationName;
+      return this;
+    }
+
+    /**
+     * Selects a pooled Apache HTTP client instead of the default {@code NetHttpTransport}.
+     * The connection pool settings below only apply to the pooled transport.
+     */
+    public Builder setPooledTransport(boolean pooledTransport) {
+      this.pooledTransport = pooledTransport;
+      return this;
+    }
+
+    /**
+     * Uses the given transport, for example an {@link AdsenseEmulator}, instead of building one.
+     * The pooled transport settings are then ignored.
+     */
+    public Builder setHttpTransport(HttpTransport httpTransport) {
+      this.httpTransport = httpTransport;
+      return this;
+    }
+
+    /** Sets the maximum number of pooled connections across all hosts. */
+    public Builder setMaxConnections(int maxConnections) {
+      this.maxConnections = maxConnections;
+      return this;
+    }
+
+    /** Sets the maximum number of pooled connections to a single host. */
+    public Builder setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+      this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+      return this;
+    }
+
+    /**
+     * Sets how long a pooled connection may stay idle before it is closed. Zero disables idle
+     * eviction.
+     */
+    public Builder setIdleConnectionTimeout(long timeout, TimeUnit unit) {
+      this.idleConnectionTimeoutMillis = unit.toMillis(timeout);
+      return this;
+    }
+
+    /** Sets the connect timeout applied to every request. Zero means no timeout. */
+    public Builder setConnectTimeout(long timeout, TimeUnit unit) {
+      this.connectTimeoutMillis = (int) unit.toMillis(timeout);
+      return this;
+    }
+
+    /** Sets the read timeout applied to every request. Zero means no timeout. */
+    public Builder setReadTimeout(long timeout, TimeUnit unit) {
+      this.readTimeoutMillis = (int) unit.toMillis(timeout);
+      return this;
+    }
+
+    /** Adds an initializer that is run on every request, after the credential. */
+    public Builder addRequestInitializer(HttpRequestInitializer initializer) {
+      requestInitializers.add(initializer);
+      return this;
+    }
+
+    /**
+     * Records every request with the given metrics. They run after every other initializer,
+     * whatever the order of the calls.
+     */
+    public Builder setRequestMetrics(RequestMetrics requestMetrics) {
+      this.requestMetrics = requestMetrics;
+      return this;
+    }
+
+    /**
+     * Builds the factory and its shared transport.
+     *
+     * @return the new factory.
+     * @throws GeneralSecurityException if the trusted transport cannot be created.
+     * @throws IOException if the trusted transport cannot be created.
+     */
+    public AdsenseClientFactory build() throws GeneralSecurityException, IOException {
+      HttpTransport httpTransport = this.httpTransport;
+      if (httpTransport == null) {
+        if (pooledTransport) {
+          httpTransport = new ApacheHttpTransport(newPooledHttpClient());
+        } else {
+          httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+        }
+      }
+      return new AdsenseClientFactory(this, httpTransport);
+    }
+
+    private HttpClient newPooledHttpClient() {
+      HttpClientBuilder clientBuilder =
+          ApacheHttpTransport.newDefaultHttpClientBuilder()
+              .setMaxConnTotal(maxConnections)
+              .setMaxConnPerRoute(maxConnectionsPerRoute);
+      if (idleConnectionTimeoutMillis > 0) {
+        clientBuilder.evictExpiredConnections()
+            .evictIdleConnections(idleConnectionTimeoutMillis, TimeUnit.MILLISECONDS);
+      }
+      return clientBuilder.build();
+    }
+  }
+}
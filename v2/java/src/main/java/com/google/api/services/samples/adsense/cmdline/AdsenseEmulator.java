@@ -0,0 +1,913 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.json.Json;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An in-process fake of the parts of the AdSense Management API v2 that the samples use, for
+ * trying them out and load testing them without an account or quota.
+ *
+ * <p>Pass it as the transport of an {@link AdsenseClientFactory}, and build service objects
+ * without a credential:
+ *
+ * <pre>
+ * AdsenseEmulator emulator = new AdsenseEmulator.Builder().setAccounts(100).build();
+ * Adsense adsense = new AdsenseClientFactory.Builder(jsonFactory)
+ *     .setHttpTransport(emulator)
+ *     .build()
+ *     .newAdsense(null);
+ * </pre>
+ *
+ * <p>Inventories are never stored: every account, ad client, ad unit, channel, alert and saved
+ * report is derived from its position, so they can be as large as needed. Accounts are named
+ * {@code accounts/pub-0000000000000000} and so on, and child accounts append {@code -<n>} to
+ * their parent's ID. Ad unit {@code n} of an ad client is in custom channel
+ * {@code n % customChannels}. Reports hold synthetic, repeatable values and are streamed as
+ * they are read, so a report of millions of rows does not need to fit in memory.
+ *
+ * <p>Every response can be delayed, and a share of requests can be failed with given HTTP status
+ * codes. Requests for accounts added with {@link Builder#addAccountError} always fail with that
+ * reason, as accounts that are disapproved or have no AdSense account do. Batch requests are
+ * answered part by part.
+ */
+public final class AdsenseEmulator extends MockHttpTransport {
+
+  private static final String API_PREFIX = "/v2/";
+  private static final String BATCH_PATH = "/batch";
+  private static final String ACCOUNT_PREFIX = "pub-";
+
+  private static final String ACCOUNT = "accounts/([^/:]+)";
+  private static final String AD_CLIENT = ACCOUNT + "/adclients/([^/:]+)";
+  private static final Pattern LIST_ACCOUNTS = Pattern.compile("accounts");
+  private static final Pattern GET_ACCOUNT = Pattern.compile(ACCOUNT);
+  private static final Pattern LIST_CHILD_ACCOUNTS = Pattern.compile(ACCOUNT
+      + ":listChildAccounts");
+  private static final Pattern LIST_AD_CLIENTS = Pattern.compile(ACCOUNT + "/adclients");
+  private static final Pattern LIST_AD_UNITS = Pattern.compile(AD_CLIENT + "/adunits");
+  private static final Pattern GET_AD_UNIT = Pattern.compile(AD_CLIENT + "/adunits/([^/:]+)");
+  private static final Pattern LIST_LINKED_CUSTOM_CHANNELS = Pattern.compile(AD_CLIENT
+      + "/adunits/([^/:]+):listLinkedCustomChannels");
+  private static final Pattern LIST_CUSTOM_CHANNELS = Pattern.compile(AD_CLIENT
+      + "/customchannels");
+  private static final Pattern LIST_LINKED_AD_UNITS = Pattern.compile(AD_CLIENT
+      + "/customchannels/([^/:]+):listLinkedAdUnits");
+  private static final Pattern LIST_URL_CHANNELS = Pattern.compile(AD_CLIENT + "/urlchannels");
+  private static final Pattern LIST_ALERTS = Pattern.compile(ACCOUNT + "/alerts");
+  private static final Pattern GENERATE_REPORT = Pattern.compile(ACCOUNT + "/reports:generate");
+  private static final Pattern LIST_SAVED_REPORTS = Pattern.compile(ACCOUNT + "/reports/saved");
+  private static final Pattern GENERATE_SAVED_REPORT = Pattern.compile(ACCOUNT
+      + "/reports/([^/:]+)/saved:generate");
+  private static final Pattern BATCH_REQUEST_LINE = Pattern.compile(
+      "^(GET|POST) (\\S+) HTTP/1\\.1\\r?$", Pattern.MULTILINE);
+
+  private static final List<String> SAVED_REPORT_DIMENSIONS = Arrays.asList("DATE");
+  private static final List<String> SAVED_REPORT_METRICS = Arrays.asList(
+      "ESTIMATED_EARNINGS", "PAGE_VIEWS", "CLICKS", "AD_REQUESTS_CTR");
+
+  private final long seed;
+  private final int accounts;
+  private final int childAccounts;
+  private final int childDepth;
+  private final int adClients;
+  private final int adUnits;
+  private final int customChannels;
+  private final int urlChannels;
+  private final int alerts;
+  private final int savedReports;
+  private final int reportRows;
+  private final int maxPageSize;
+  private final long latencyNanos;
+  private final long jitterNanos;
+  private final int[] errorStatuses;
+  private final double[] errorRates;
+  private final Map<String, String> accountErrors;
+  private final LocalDate today;
+  private final Random random;
+  private final AtomicLong requestCount = new AtomicLong();
+  private final AtomicLong errorCount = new AtomicLong();
+
+  private AdsenseEmulator(Builder builder) {
+    this.seed = builder.seed;
+    this.accounts = builder.accounts;
+    this.childAccounts = builder.childAccounts;
+    this.childDepth = builder.childDepth;
+    this.adClients = builder.adClients;
+    this.adUnits = builder.adUnits;
+    this.customChannels = builder.customChannels;
+    this.urlChannels = builder.urlChannels;
+    this.alerts = builder.alerts;
+    this.savedReports = builder.savedReports;
+    this.reportRows = builder.reportRows;
+    this.maxPageSize = builder.maxPageSize;
+    this.latencyNanos = builder.latencyNanos;
+    this.jitterNanos = builder.jitterNanos;
+    this.errorStatuses = new int[builder.errorRates.size()];
+    this.errorRates = new double[builder.errorRates.size()];
+    int i = 0;
+    for (Map.Entry<Integer, Double> error : builder.errorRates.entrySet()) {
+      errorStatuses[i] = error.getKey();
+      errorRates[i++] = error.getValue();
+    }
+    this.accountErrors = new HashMap<String, String>(builder.accountErrors);
+    this.today = builder.today;
+    this.random = new Random(builder.seed);
+  }
+
+  /** @return the number of requests served, counting each part of a batch. */
+  public long getRequestCount() {
+    return requestCount.get();
+  }
+
+  /** @return the number of requests answered with an error. */
+  public long getErrorCount() {
+    return errorCount.get();
+  }
+
+  /**
+   * @param index the position of a top-level account.
+   * @return the resource name of the account.
+   */
+  public static String accountName(int index) {
+    return String.format("accounts/" + ACCOUNT_PREFIX + "%016d", index);
+  }
+
+  @Override
+  public LowLevelHttpRequest buildRequest(final String method, final String url) {
+    return new MockLowLevelHttpRequest(url) {
+      @Override
+      public LowLevelHttpResponse execute() throws IOException {
+        delay();
+        GenericUrl parsed = new GenericUrl(url);
+        if (parsed.getRawPath().startsWith(BATCH_PATH)) {
+          return batch(getContentAsString());
+        }
+        Response response = serve(method, parsed);
+        return new MockLowLevelHttpResponse()
+            .setStatusCode(response.status)
+            .setContentType(Json.MEDIA_TYPE)
+            .setContent(response.content);
+      }
+    };
+  }
+
+  /** A status code and a body, which is only produced as it is read. */
+  private static final class Response {
+    final int status;
+    final InputStream content;
+
+    Response(int status, InputStream content) {
+      this.status = status;
+      this.content = content;
+    }
+
+    Response(int status, String json) {
+      this(status, new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)));
+    }
+  }
+
+  private void delay() throws IOException {
+    long nanos = latencyNanos;
+    if (jitterNanos > 0) {
+      synchronized (random) {
+        nanos += (long) (random.nextDouble() * jitterNanos);
+      }
+    }
+    if (nanos > 0) {
+      try {
+        TimeUnit.NANOSECONDS.sleep(nanos);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while emulating latency");
+      }
+    }
+  }
+
+  /** Answers one API request, possibly with an injected error. */
+  private Response serve(String method, GenericUrl url) {
+    requestCount.incrementAndGet();
+    String path = url.getRawPath();
+    if (!path.startsWith(API_PREFIX)) {
+      return error(404, "notFound", "Unknown path " + path);
+    }
+    path = path.substring(API_PREFIX.length());
+    int status = injectedError();
+    if (status != 0) {
+      return error(status, reason(status), "Injected error");
+    }
+    Matcher account = GET_ACCOUNT.matcher(path);
+    if (account.lookingAt()) {
+      String accountId = account.group(1);
+      if (!accountExists(accountId)) {
+        return error(404, "notFound", "Account not found: " + accountId);
+      }
+      String accountError = accountErrors.get("accounts/" + accountId);
+      if (accountError != null) {
+        return error(403, accountError, "Account error: " + accountError);
+      }
+    }
+    try {
+      return route(method, path, url);
+    } catch (NumberFormatException e) {
+      return error(404, "notFound", "Resource not found: " + path);
+    } catch (IllegalArgumentException e) {
+      return error(400, "badRequest", e.getMessage());
+    }
+  }
+
+  private Response route(String method, String path, final GenericUrl url) {
+    Matcher m;
+    if (LIST_ACCOUNTS.matcher(path).matches()) {
+      return page("accounts", accounts, url, i -> accountJson(accountName(i)));
+    } else if ((m = GET_ACCOUNT.matcher(path)).matches()) {
+      return new Response(200, accountJson("accounts/" + m.group(1)));
+    } else if ((m = LIST_CHILD_ACCOUNTS.matcher(path)).matches()) {
+      final String parent = "accounts/" + m.group(1);
+      int count = depth(m.group(1)) < childDepth ? childAccounts : 0;
+      return page("accounts", count, url, i -> accountJson(parent + "-" + i));
+    } else if ((m = LIST_AD_CLIENTS.matcher(path)).matches()) {
+      final String accountId = m.group(1);
+      return page("adClients", adClients, url, i -> "{\"name\":" + quote("accounts/" + accountId
+          + "/adclients/" + adClientId(accountId, i)) + ",\"productCode\":\"AFC\""
+          + ",\"reportingDimensionId\":" + quote(adClientId(accountId, i))
+          + ",\"state\":\"READY\"}");
+    } else if ((m = LIST_AD_UNITS.matcher(path)).matches()) {
+      final String parent = adClient(m);
+      return page("adUnits", adUnits, url, i -> adUnitJson(parent, i));
+    } else if ((m = GET_AD_UNIT.matcher(path)).matches()) {
+      return new Response(200, adUnitJson(adClient(m), index(m.group(3), adUnits)));
+    } else if ((m = LIST_LINKED_CUSTOM_CHANNELS.matcher(path)).matches()) {
+      String parent = adClient(m);
+      int adUnit = index(m.group(3), adUnits);
+      int channels = customChannels > 0 ? 1 : 0;
+      int channel = customChannels > 0 ? adUnit % customChannels : 0;
+      return page("customChannels", channels, url, i -> customChannelJson(parent, channel));
+    } else if ((m = LIST_CUSTOM_CHANNELS.matcher(path)).matches()) {
+      final String parent = adClient(m);
+      return page("customChannels", customChannels, url, i -> customChannelJson(parent, i));
+    } else if ((m = LIST_LINKED_AD_UNITS.matcher(path)).matches()) {
+      final String parent = adClient(m);
+      final int channel = index(m.group(3), customChannels);
+      int count = (adUnits - channel + customChannels - 1) / customChannels;
+      return page("adUnits", count, url, i -> adUnitJson(parent, channel + i * customChannels));
+    } else if ((m = LIST_URL_CHANNELS.matcher(path)).matches()) {
+      final String parent = adClient(m);
+      return page("urlChannels", urlChannels, url, i -> "{\"name\":" + quote(parent
+          + "/urlchannels/" + i) + ",\"uriPattern\":" + quote("example" + i + ".com")
+          + ",\"reportingDimensionId\":" + quote(Integer.toString(i)) + "}");
+    } else if ((m = LIST_ALERTS.matcher(path)).matches()) {
+      final String parent = "accounts/" + m.group(1);
+      StringBuilder json = new StringBuilder("{\"alerts\":[");
+      for (int i = 0; i < alerts; i++) {
+        json.append(i > 0 ? "," : "").append("{\"name\":").append(quote(parent + "/alerts/" + i))
+            .append(",\"message\":").append(quote("Emulated alert " + i))
+            .append(",\"severity\":\"WARNING\",\"type\":\"EMULATED\"}");
+      }
+      return new Response(200, json.append("]}").toString());
+    } else if ((m = GENERATE_REPORT.matcher(path)).matches()) {
+      return report("accounts/" + m.group(1), strings(url.getAll("dimensions")),
+          strings(url.getAll("metrics")), url);
+    } else if ((m = LIST_SAVED_REPORTS.matcher(path)).matches()) {
+      final String parent = "accounts/" + m.group(1);
+      return page("savedReports", savedReports, url, i -> "{\"name\":"
+          + quote(parent + "/reports/" + i) + ",\"title\":" + quote("Saved report " + i) + "}");
+    } else if ((m = GENERATE_SAVED_REPORT.matcher(path)).matches()) {
+      index(m.group(2), savedReports);
+      return report("accounts/" + m.group(1) + "/reports/" + m.group(2),
+          SAVED_REPORT_DIMENSIONS, SAVED_REPORT_METRICS, url);
+    }
+    return error(404, "notFound", "Unknown method " + method + " " + path);
+  }
+
+  /** @return the HTTP status of an injected error, or 0 to answer normally. */
+  private int injectedError() {
+    if (errorRates.length == 0) {
+      return 0;
+    }
+    double draw;
+    synchronized (random) {
+      draw = random.nextDouble();
+    }
+    for (int i = 0; i < errorRates.length; i++) {
+      if (draw < errorRates[i]) {
+        return errorStatuses[i];
+      }
+      draw -= errorRates[i];
+    }
+    return 0;
+  }
+
+  private Response error(int status, String reason, String message) {
+    errorCount.incrementAndGet();
+    String grpcStatus;
+    switch (status) {
+      case 400:
+        grpcStatus = "INVALID_ARGUMENT";
+        break;
+      case 403:
+        grpcStatus = "PERMISSION_DENIED";
+        break;
+      case 404:
+        grpcStatus = "NOT_FOUND";
+        break;
+      case 429:
+        grpcStatus = "RESOURCE_EXHAUSTED";
+        break;
+      case 503:
+        grpcStatus = "UNAVAILABLE";
+        break;
+      default:
+        grpcStatus = "INTERNAL";
+    }
+    return new Response(status, "{\"error\":{\"code\":" + status + ",\"message\":"
+        + quote(message) + ",\"errors\":[{\"message\":" + quote(message)
+        + ",\"domain\":\"global\",\"reason\":" + quote(reason) + "}],\"status\":\""
+        + grpcStatus + "\"}}");
+  }
+
+  private static String reason(int status) {
+    switch (status) {
+      case 403:
+        return "forbidden";
+      case 429:
+        return "rateLimitExceeded";
+      default:
+        return status >= 500 ? "backendError" : "badRequest";
+    }
+  }
+
+  /** Answers one page of a list, paged by offset. */
+  private Response page(String field, int total, GenericUrl url, IntFunction<String> item) {
+    Object size = url.getFirst("pageSize");
+    Object token = url.getFirst("pageToken");
+    int pageSize = size == null ? maxPageSize : Integer.parseInt(size.toString());
+    if (pageSize <= 0 || pageSize > maxPageSize) {
+      pageSize = maxPageSize;
+    }
+    int offset;
+    try {
+      offset = token == null || token.toString().isEmpty() ? 0 : Integer.parseInt(token.toString());
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Invalid page token");
+    }
+    int end = (int) Math.min(total, (long) offset + pageSize);
+    StringBuilder json = new StringBuilder("{\"").append(field).append("\":[");
+    for (int i = offset; i < end; i++) {
+      json.append(i > offset ? "," : "").append(item.apply(i));
+    }
+    json.append(']');
+    if (end < total) {
+      json.append(",\"nextPageToken\":\"").append(end).append('"');
+    }
+    return new Response(200, json.append('}').toString());
+  }
+
+  private String accountJson(String name) {
+    return "{\"name\":" + quote(name) + ",\"displayName\":" + quote("Emulated " + name
+        .substring("accounts/".length())) + ",\"state\":\"READY\",\"premium\":false"
+        + ",\"createTime\":\"2020-01-01T00:00:00Z\"}";
+  }
+
+  private static String adUnitJson(String adClient, int index) {
+    return "{\"name\":" + quote(adClient + "/adunits/" + index) + ",\"displayName\":"
+        + quote("Ad unit " + index) + ",\"state\":\"ACTIVE\",\"reportingDimensionId\":"
+        + quote(adClient.substring(adClient.lastIndexOf('/') + 1) + ":" + index) + "}";
+  }
+
+  private static String customChannelJson(String adClient, int index) {
+    return "{\"name\":" + quote(adClient + "/customchannels/" + index) + ",\"displayName\":"
+        + quote("Custom channel " + index) + ",\"reportingDimensionId\":"
+        + quote(adClient.substring(adClient.lastIndexOf('/') + 1) + ":" + index) + "}";
+  }
+
+  private static String adClientId(String accountId, int index) {
+    return "ca-" + accountId + "-" + index;
+  }
+
+  /** @return the resource name of the ad client matched by a pattern, after checking it. */
+  private String adClient(Matcher m) {
+    String accountId = m.group(1);
+    String adClientId = m.group(2);
+    String prefix = "ca-" + accountId + "-";
+    if (!adClientId.startsWith(prefix)) {
+      throw new NumberFormatException(adClientId);
+    }
+    index(adClientId.substring(prefix.length()), adClients);
+    return "accounts/" + accountId + "/adclients/" + adClientId;
+  }
+
+  /** @return the position in an ID, which must be below {@code count}. */
+  private static int index(String id, int count) {
+    int index = Integer.parseInt(id);
+    if (index < 0 || index >= count) {
+      throw new NumberFormatException(id);
+    }
+    return index;
+  }
+
+  private boolean accountExists(String accountId) {
+    if (!accountId.startsWith(ACCOUNT_PREFIX)) {
+      return false;
+    }
+    String[] parts = accountId.substring(ACCOUNT_PREFIX.length()).split("-", -1);
+    try {
+      if (Long.parseLong(parts[0]) >= accounts || parts.length - 1 > childDepth) {
+        return false;
+      }
+      for (int i = 1; i < parts.length; i++) {
+        if (Integer.parseInt(parts[i]) >= childAccounts) {
+          return false;
+        }
+      }
+    } catch (NumberFormatException e) {
+      return false;
+    }
+    return true;
+  }
+
+  private static int depth(String accountId) {
+    int depth = 0;
+    for (int i = ACCOUNT_PREFIX.length(); i < accountId.length(); i++) {
+      if (accountId.charAt(i) == '-') {
+        depth++;
+      }
+    }
+    return depth;
+  }
+
+  private Response report(String name, List<String> dimensions, List<String> metrics,
+      GenericUrl url) {
+    if (metrics.isEmpty()) {
+      throw new IllegalArgumentException("At least one metric is required");
+    }
+    LocalDate[] range = dateRange(url);
+    int rows = dimensions.isEmpty() ? 0 : reportRows;
+    Object limit = url.getFirst("limit");
+    if (limit != null) {
+      rows = Math.min(rows, Integer.parseInt(limit.toString()));
+    }
+    return new Response(200, new ReportContent(seed ^ name.hashCode(), dimensions, metrics,
+        range[0], range[1], rows));
+  }
+
+  /** @return the first and last day of the requested range. */
+  private LocalDate[] dateRange(GenericUrl url) {
+    Object dateRange = url.getFirst("dateRange");
+    String range = dateRange == null ? "LAST_7_DAYS" : dateRange.toString();
+    switch (range) {
+      case "TODAY":
+        return new LocalDate[] {today, today};
+      case "YESTERDAY":
+        return new LocalDate[] {today.minusDays(1), today.minusDays(1)};
+      case "LAST_7_DAYS":
+        return new LocalDate[] {today.minusDays(7), today.minusDays(1)};
+      case "LAST_30_DAYS":
+        return new LocalDate[] {today.minusDays(30), today.minusDays(1)};
+      case "MONTH_TO_DATE":
+        return new LocalDate[] {today.withDayOfMonth(1), today};
+      case "YEAR_TO_DATE":
+        return new LocalDate[] {today.withDayOfYear(1), today};
+      case "CUSTOM":
+        LocalDate start = date(url, "startDate");
+        LocalDate end = date(url, "endDate");
+        if (end.isBefore(start)) {
+          throw new IllegalArgumentException("The end date is before the start date");
+        }
+        return new LocalDate[] {start, end};
+      default:
+        throw new IllegalArgumentException("Unsupported date range " + range);
+    }
+  }
+
+  private static LocalDate date(GenericUrl url, String prefix) {
+    Object year = url.getFirst(prefix + ".year");
+    Object month = url.getFirst(prefix + ".month");
+    Object day = url.getFirst(prefix + ".day");
+    if (year == null || month == null || day == null) {
+      throw new IllegalArgumentException("Missing " + prefix);
+    }
+    return LocalDate.of(Integer.parseInt(year.toString()), Integer.parseInt(month.toString()),
+        Integer.parseInt(day.toString()));
+  }
+
+  private static List<String> strings(Collection<Object> values) {
+    List<String> strings = new ArrayList<String>();
+    if (values != null) {
+      for (Object value : values) {
+        strings.add(value.toString());
+      }
+    }
+    return strings;
+  }
+
+  static String quote(String value) {
+    StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if (c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  /** Answers every part of a batch request, in order, in one multipart response. */
+  private LowLevelHttpResponse batch(String body) {
+    String boundary = "batch_" + Long.toHexString(seed) + "_" + requestCount.get();
+    StringBuilder response = new StringBuilder();
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Matcher line = BATCH_REQUEST_LINE.matcher(body);
+    int part = 0;
+    while (line.find()) {
+      Response answer = serve(line.group(1), new GenericUrl(line.group(2)));
+      response.setLength(0);
+      response.append("--").append(boundary).append("\r\n")
+          .append("Content-Type: application/http\r\n")
+          .append("Content-ID: <response-").append(++part).append(">\r\n\r\n")
+          .append("HTTP/1.1 ").append(answer.status).append(answer.status == 200 ? " OK" : " Error")
+          .append("\r\nContent-Type: application/json; charset=UTF-8\r\n\r\n");
+      write(out, response);
+      try {
+        byte[] buffer = new byte[8192];
+        for (int n; (n = answer.content.read(buffer)) > 0; ) {
+          out.write(buffer, 0, n);
+        }
+      } catch (IOException e) {
+        throw new IllegalStateException(e);
+      }
+      response.setLength(0);
+      write(out, response.append("\r\n"));
+    }
+    response.setLength(0);
+    write(out, response.append("--").append(boundary).append("--\r\n"));
+    return new MockLowLevelHttpResponse()
+        .setContentType("multipart/mixed; boundary=" + boundary)
+        .setContent(out.toByteArray());
+  }
+
+  private static void write(ByteArrayOutputStream out, CharSequence text) {
+    byte[] bytes = text.toString().getBytes(StandardCharsets.UTF_8);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /**
+   * The JSON of a synthetic report, generated a few hundred rows at a time as it is read.
+   * The values of a row only depend on the report, the row number and the seed.
+   */
+  private static final class ReportContent extends InputStream {
+    private static final int ROWS_PER_CHUNK = 256;
+
+    private final long seed;
+    private final List<String> dimensions;
+    private final List<String> metrics;
+    private final char[] types;
+    private final LocalDate start;
+    private final LocalDate end;
+    private final int days;
+    private final int rows;
+    private final long[] totals;
+    private final StringBuilder text = new StringBuilder();
+    private byte[] chunk = new byte[0];
+    private int position;
+    private int row = -1;
+    private boolean finished;
+
+    ReportContent(long seed, List<String> dimensions, List<String> metrics, LocalDate start,
+        LocalDate end, int rows) {
+      this.seed = seed;
+      this.dimensions = dimensions;
+      this.metrics = metrics;
+      this.start = start;
+      this.end = end;
+      this.days = (int) ChronoUnit.DAYS.between(start, end) + 1;
+      this.rows = rows;
+      this.totals = new long[metrics.size()];
+      this.types = new char[metrics.size()];
+      for (int i = 0; i < types.length; i++) {
+        String metric = metrics.get(i);
+        types[i] = ReportMetrics.isMonetary(metric) ? 'C'
+            : ReportMetrics.isAdditive(metric) ? 'T' : 'R';
+      }
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (!ensure()) {
+        return -1;
+      }
+      return chunk[position++] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) {
+        return 0;
+      }
+      if (!ensure()) {
+        return -1;
+      }
+      int n = Math.min(length, chunk.length - position);
+      System.arraycopy(chunk, position, buffer, offset, n);
+      position += n;
+      return n;
+    }
+
+    private boolean ensure() {
+      while (position == chunk.length) {
+        if (finished) {
+          return false;
+        }
+        text.setLength(0);
+        if (row < 0) {
+          writeHeaders();
+          row = 0;
+        }
+        for (int i = 0; i < ROWS_PER_CHUNK && row < rows; i++, row++) {
+          text.append(row > 0 ? "," : "");
+          writeRow(row);
+        }
+        if (row == rows) {
+          writeEnd();
+          finished = true;
+        }
+        chunk = text.toString().getBytes(StandardCharsets.UTF_8);
+        position = 0;
+      }
+      return true;
+    }
+
+    private void writeHeaders() {
+      text.append("{\"headers\":[");
+      for (int i = 0; i < dimensions.size(); i++) {
+        text.append(i > 0 ? "," : "").append("{\"name\":").append(quote(dimensions.get(i)))
+            .append(",\"type\":\"DIMENSION\"}");
+      }
+      for (int i = 0; i < metrics.size(); i++) {
+        text.append(i > 0 || !dimensions.isEmpty() ? "," : "").append("{\"name\":")
+            .append(quote(metrics.get(i))).append(",\"type\":\"")
+            .append(types[i] == 'C' ? "METRIC_CURRENCY\",\"currencyCode\":\"USD\""
+                : types[i] == 'T' ? "METRIC_TALLY\"" : "METRIC_RATIO\"")
+            .append('}');
+      }
+      text.append("],\"rows\":[");
+    }
+
+    private void writeRow(int row) {
+      SplittableRandom values = new SplittableRandom(seed * 31 + row);
+      text.append("{\"cells\":[");
+      boolean hasDate = dimensions.contains("DATE");
+      int group = hasDate ? row / days : row;
+      for (int i = 0; i < dimensions.size(); i++) {
+        String dimension = dimensions.get(i);
+        text.append(i > 0 ? "," : "").append("{\"value\":\"");
+        if (dimension.equals("DATE")) {
+          text.append(start.plusDays(row % days));
+        } else {
+          text.append(dimension).append(' ').append(group);
+        }
+        text.append("\"}");
+      }
+      for (int i = 0; i < metrics.size(); i++) {
+        long value;
+        if (types[i] == 'R') {
+          value = values.nextInt(10000);
+          totals[i] += value;
+        } else {
+          value = values.nextInt(types[i] == 'C' ? 1000000 : 100000);
+          totals[i] += value;
+        }
+        text.append(i > 0 || !dimensions.isEmpty() ? "," : "").append("{\"value\":\"");
+        appendValue(types[i], value);
+        text.append("\"}");
+      }
+      text.append("]}");
+    }
+
+    private void writeEnd() {
+      text.append("],\"totals\":{\"cells\":[");
+      for (int i = 0; i < dimensions.size(); i++) {
+        text.append(i > 0 ? "," : "").append("{}");
+      }
+      for (int i = 0; i < metrics.size(); i++) {
+        text.append(i > 0 || !dimensions.isEmpty() ? "," : "").append("{\"value\":\"");
+        // Ratios total to their mean.
+        appendValue(types[i], types[i] == 'R' && rows > 0 ? totals[i] / rows : totals[i]);
+        text.append("\"}");
+      }
+      text.append("]},\"totalMatchedRows\":\"").append(rows).append('"');
+      appendDate("startDate", start);
+      appendDate("endDate", end);
+      text.append('}');
+    }
+
+    private void appendValue(char type, long value) {
+      if (type == 'T') {
+        text.append(value);
+      } else if (type == 'C') {
+        text.append(value / 100).append('.').append(value % 100 / 10).append(value % 10);
+      } else {
+        text.append("0.").append(value / 1000).append(value / 100 % 10).append(value / 10 % 10)
+            .append(value % 10);
+      }
+    }
+
+    private void appendDate(String field, LocalDate date) {
+      text.append(",\"").append(field).append("\":{\"year\":").append(date.getYear())
+          .append(",\"month\":").append(date.getMonthValue()).append(",\"day\":")
+          .append(date.getDayOfMonth()).append('}');
+    }
+  }
+
+  /** Builder for {@link AdsenseEmulator}. */
+  public static final class Builder {
+    private long seed = 1;
+    private int accounts = 1;
+    private int childAccounts;
+    private int childDepth;
+    private int adClients = 1;
+    private int adUnits = 10;
+    private int customChannels = 2;
+    private int urlChannels = 2;
+    private int alerts = 1;
+    private int savedReports = 2;
+    private int reportRows = 100;
+    private int maxPageSize = 10000;
+    private long latencyNanos;
+    private long jitterNanos;
+    private final Map<Integer, Double> errorRates = new LinkedHashMap<Integer, Double>();
+    private final Map<String, String> accountErrors = new HashMap<String, String>();
+    private LocalDate today = LocalDate.now();
+
+    /** Sets the seed of the report values and of the injected latency and errors. */
+    public Builder setSeed(long seed) {
+      this.seed = seed;
+      return this;
+    }
+
+    /** Sets the number of accounts listed by accounts.list. Defaults to 1. */
+    public Builder setAccounts(int accounts) {
+      this.accounts = accounts;
+      return this;
+    }
+
+    /**
+     * Sets the shape of the sub-account tree under each account. Defaults to no sub-accounts.
+     *
+     * @param childAccounts the number of direct children of each account in the tree.
+     * @param depth the number of levels below the top-level accounts.
+     * @return this builder.
+     */
+    public Builder setChildAccounts(int childAccounts, int depth) {
+      this.childAccounts = childAccounts;
+      this.childDepth = depth;
+      return this;
+    }
+
+    /** Sets the number of ad clients of each account. Defaults to 1. */
+    public Builder setAdClients(int adClients) {
+      this.adClients = adClients;
+      return this;
+    }
+
+    /** Sets the number of ad units of each ad client. Defaults to 10. */
+    public Builder setAdUnits(int adUnits) {
+      this.adUnits = adUnits;
+      return this;
+    }
+
+    /** Sets the number of custom channels of each ad client. Defaults to 2. */
+    public Builder setCustomChannels(int customChannels) {
+      this.customChannels = customChannels;
+      return this;
+    }
+
+    /** Sets the number of URL channels of each ad client. Defaults to 2. */
+    public Builder setUrlChannels(int urlChannels) {
+      this.urlChannels = urlChannels;
+      return this;
+    }
+
+    /** Sets the number of alerts of each account. Defaults to 1. */
+    public Builder setAlerts(int alerts) {
+      this.alerts = alerts;
+      return this;
+    }
+
+    /** Sets the number of saved reports of each account. Defaults to 2. */
+    public Builder setSavedReports(int savedReports) {
+      this.savedReports = savedReports;
+      return this;
+    }
+
+    /**
+     * Sets the number of rows of every report with at least one dimension, before the request's
+     * own limit. Defaults to 100.
+     */
+    public Builder setReportRows(int reportRows) {
+      this.reportRows = reportRows;
+      return this;
+    }
+
+    /** Sets the largest page returned by list methods. Defaults to 10000. */
+    public Builder setMaxPageSize(int maxPageSize) {
+      if (maxPageSize < 1) {
+        throw new IllegalArgumentException("maxPageSize must be at least 1");
+      }
+      this.maxPageSize = maxPageSize;
+      return this;
+    }
+
+    /**
+     * Delays every response. Defaults to no delay.
+     *
+     * @param latency the minimum delay.
+     * @param jitter the largest random delay added to it.
+     * @param unit the unit of both delays.
+     * @return this builder.
+     */
+    public Builder setLatency(long latency, long jitter, TimeUnit unit) {
+      this.latencyNanos = unit.toNanos(latency);
+      this.jitterNanos = unit.toNanos(jitter);
+      return this;
+    }
+
+    /**
+     * Fails a share of requests with an HTTP status, for example 429 or 503.
+     *
+     * @param status the HTTP status.
+     * @param rate the share of requests, between 0 and 1, on top of the other error rates.
+     * @return this builder.
+     */
+    public Builder addErrorRate(int status, double rate) {
+      errorRates.put(status, rate);
+      return this;
+    }
+
+    /**
+     * Fails every request for an account with a 403 and the given reason.
+     *
+     * @param accountName the resource name of the account.
+     * @param reason the error reason, for example {@code "disapprovedAccount"}.
+     * @return this builder.
+     */
+    public Builder addAccountError(String accountName, String reason) {
+      accountErrors.put(accountName, reason);
+      return this;
+    }
+
+    /** Sets the day that relative date ranges are computed from. Defaults to today. */
+    public Builder setToday(LocalDate today) {
+      this.today = today;
+      return this;
+    }
+
+    /** @return the new emulator. */
+    public AdsenseEmulator build() {
+      return new AdsenseEmulator(this);
+    }
+  }
+}
@@ -0,0 +1,331 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.AdsenseRequest;
+import com.google.api.services.adsense.v2.model.AdClient;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.ListAdUnitsResponse;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Runs AdSense requests asynchronously, returning {@link CompletableFuture}s.
+ *
+ * <p>Requests run on the executor given to the constructor or, by default, on virtual threads
+ * where the JDK has them and on a bounded pool of platform threads otherwise. Cancelling a future
+ * interrupts the request if it is running, which stops any rate limiter or backoff wait at once,
+ * and {@link #withDeadline} fails a future that takes too long in the same way.
+ *
+ * <p>Futures fail with the {@link IOException} of the request, wrapped in a
+ * {@link CompletionException} by {@link CompletableFuture#join()}; {@link #await} unwraps it.
+ */
+public final class AsyncAdsense implements Closeable {
+
+  /** The size of the default pool when virtual threads are not available. */
+  public static final int DEFAULT_MAX_THREADS = 16;
+
+  private static final ScheduledExecutorService DEADLINES =
+      Executors.newSingleThreadScheduledExecutor(
+          WorkerExecutors.daemonThreadFactory("adsense-async-deadline"));
+
+  private final Adsense adsense;
+  private final Executor executor;
+  private final ExecutorService ownedExecutor;
+
+  /**
+   * Creates an instance that runs requests on virtual threads, or on a pool of
+   * {@link #DEFAULT_MAX_THREADS} platform threads.
+   *
+   * @param adsense the AdSense service object.
+   */
+  public AsyncAdsense(Adsense adsense) {
+    this.adsense = adsense;
+    this.ownedExecutor = WorkerExecutors.newWorkerExecutor(DEFAULT_MAX_THREADS, "adsense-async");
+    this.executor = ownedExecutor;
+  }
+
+  /**
+   * Creates an instance that runs requests on the given executor.
+   *
+   * @param adsense the AdSense service object.
+   * @param executor the executor; it is not shut down by {@link #close()}.
+   */
+  public AsyncAdsense(Adsense adsense, Executor executor) {
+    this.adsense = adsense;
+    this.executor = executor;
+    this.ownedExecutor = null;
+  }
+
+  /** @return the AdSense service object, for building requests. */
+  public Adsense getAdsense() {
+    return adsense;
+  }
+
+  /**
+   * Executes a request asynchronously.
+   *
+   * @param request the request.
+   * @return the response.
+   */
+  public <T> CompletableFuture<T> execute(final AdsenseRequest<T> request) {
+    return call(new Callable<T>() {
+      @Override
+      public T call() throws IOException {
+        return request.execute();
+      }
+    });
+  }
+
+  /**
+   * Runs any blocking work asynchronously, with the same cancellation as {@link #execute}.
+   *
+   * @param work the work.
+   * @return its result.
+   */
+  public <T> CompletableFuture<T> call(final Callable<T> work) {
+    final CompletableFuture<T> future = new CompletableFuture<T>();
+    final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+    future.whenComplete((result, error) -> {
+      if (future.isCancelled() || error instanceof TimeoutException) {
+        // Only interrupt while the task runs, so the interrupt cannot hit a later task.
+        synchronized (runner) {
+          Thread thread = runner.get();
+          if (thread != null) {
+            thread.interrupt();
+          }
+        }
+      }
+    });
+    executor.execute(Tracer.wrap(new Runnable() {
+      @Override
+      public void run() {
+        if (future.isDone()) {
+          return;
+        }
+        runner.set(Thread.currentThread());
+        try {
+          future.complete(work.call());
+        } catch (Throwable t) {
+          future.completeExceptionally(t);
+        } finally {
+          synchronized (runner) {
+            runner.set(null);
+          }
+          // Clear an interrupt meant for this task, so that it does not leak into the next one.
+          Thread.interrupted();
+        }
+      }
+    }));
+    return future;
+  }
+
+  /**
+   * Lists one page of ad units.
+   *
+   * @param adClientId the resource name of the ad client.
+   * @param pageSize the maximum page size.
+   * @param pageToken the page token, or {@code null} for the first page.
+   * @return the page.
+   * @throws IOException if the request cannot be built.
+   */
+  public CompletableFuture<ListAdUnitsResponse> listAdUnits(String adClientId, int pageSize,
+      String pageToken) throws IOException {
+    return execute(adsense.accounts().adclients().adunits().list(adClientId)
+        .setPageSize(pageSize)
+        .setPageToken(pageToken));
+  }
+
+  /**
+   * Runs a report.
+   *
+   * @param request the report request.
+   * @return the report.
+   */
+  public CompletableFuture<ReportResult> generateReport(Adsense.Accounts.Reports.Generate request) {
+    return execute(request);
+  }
+
+  /**
+   * Lists every page of a parent, one request after the other, as a single asynchronous task.
+   *
+   * @param parent the resource name of the parent.
+   * @param request the request that fetches each page, see {@link Paginator}.
+   * @return all items.
+   */
+  public <T> CompletableFuture<List<T>> listAll(final String parent,
+      final Paginator.PageRequest<T> request) {
+    return call(new Callable<List<T>>() {
+      @Override
+      public List<T> call() throws IOException {
+        List<T> items = new ArrayList<T>();
+        String pageToken = null;
+        do {
+          Paginator.Page<T> page = request.fetch(parent, pageToken);
+          if (page.getItems() != null) {
+            items.addAll(page.getItems());
+          }
+          pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        return items;
+      }
+    });
+  }
+
+  /**
+   * Lists the ad units of every ad client of an account: the ad clients first, then the ad units
+   * of all ad clients at the same time.
+   *
+   * @param accountId the resource name of the account.
+   * @param pageSize the maximum page size.
+   * @return the ad units of each ad client, in the order the ad clients were listed.
+   */
+  public CompletableFuture<Map<String, List<AdUnit>>> listAdUnitsByAdClient(String accountId,
+      final int pageSize) {
+    return listAll(accountId, Paginator.adClients(adsense, pageSize))
+        .thenCompose(adClients -> {
+          List<String> names = new ArrayList<String>();
+          for (AdClient adClient : adClients) {
+            names.add(adClient.getName());
+          }
+          return fanOut(names, name -> listAll(name, Paginator.adUnits(adsense, pageSize)));
+        });
+  }
+
+  /**
+   * Starts one asynchronous call per key and collects the results. If any call fails, or the
+   * returned future is cancelled, the calls still running are cancelled.
+   *
+   * @param keys the keys, for example parent resource names.
+   * @param call starts the call for a key.
+   * @return the result of each key, in the order of the keys.
+   */
+  public static <K, T> CompletableFuture<Map<K, T>> fanOut(List<K> keys,
+      Function<? super K, CompletableFuture<T>> call) {
+    final Map<K, CompletableFuture<T>> futures = new LinkedHashMap<K, CompletableFuture<T>>();
+    for (K key : keys) {
+      futures.put(key, call.apply(key));
+    }
+    final CompletableFuture<Map<K, T>> all = new CompletableFuture<Map<K, T>>();
+    CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+        .whenComplete((ignored, error) -> {
+          if (error != null) {
+            all.completeExceptionally(unwrap(error));
+            return;
+          }
+          Map<K, T> results = new LinkedHashMap<K, T>();
+          for (Map.Entry<K, CompletableFuture<T>> entry : futures.entrySet()) {
+            results.put(entry.getKey(), entry.getValue().join());
+          }
+          all.complete(results);
+        });
+    for (CompletableFuture<T> future : futures.values()) {
+      future.whenComplete((result, error) -> {
+        if (error != null) {
+          all.completeExceptionally(unwrap(error));
+        }
+      });
+    }
+    all.whenComplete((result, error) -> {
+      if (error != null) {
+        for (CompletableFuture<T> future : futures.values()) {
+          future.cancel(true);
+        }
+      }
+    });
+    return all;
+  }
+
+  /**
+   * Fails a future with a {@link TimeoutException} if it is not done in time. A call started by
+   * this class is then interrupted.
+   *
+   * @param future the future.
+   * @param timeout the time allowed.
+   * @param unit the unit of {@code timeout}.
+   * @return the same future.
+   */
+  public static <T> CompletableFuture<T> withDeadline(final CompletableFuture<T> future,
+      long timeout, TimeUnit unit) {
+    final ScheduledFuture<?> deadline = DEADLINES.schedule(() -> {
+      future.completeExceptionally(new TimeoutException("Deadline exceeded"));
+    }, timeout, unit);
+    future.whenComplete((result, error) -> deadline.cancel(false));
+    return future;
+  }
+
+  /**
+   * Waits for a future, rethrowing the failure of the call.
+   *
+   * @param future the future.
+   * @return its result.
+   * @throws IOException if the call failed with an {@link IOException}, or timed out.
+   * @throws InterruptedException if interrupted while waiting.
+   */
+  public static <T> T await(CompletableFuture<T> future) throws IOException, InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = unwrap(e.getCause());
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      } else if (cause instanceof TimeoutException) {
+        throw new IOException(cause.getMessage(), cause);
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } catch (CancellationException e) {
+      throw new IOException("Cancelled", e);
+    }
+  }
+
+  /** Shuts down the default executor, if this instance created it. */
+  @Override
+  public void close() {
+    if (ownedExecutor != null) {
+      ownedExecutor.shutdown();
+    }
+  }
+
+  private static Throwable unwrap(Throwable error) {
+    while (error instanceof CompletionException && error.getCause() != null) {
+      error = error.getCause();
+    }
+    return error;
+  }
+}
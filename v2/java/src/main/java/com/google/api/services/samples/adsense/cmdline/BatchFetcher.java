@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.GoogleJsonErrorContainer;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.AdsenseRequest;
+import com.google.api.services.adsense.v2.model.Account;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.CustomChannel;
+import com.google.api.services.adsense.v2.model.ListLinkedAdUnitsResponse;
+import com.google.api.services.adsense.v2.model.ListLinkedCustomChannelsResponse;
+import com.google.api.services.samples.adsense.cmdline.Paginator.Page;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs many small requests, one per parent, as a few multipart batch requests.
+ *
+ * <p>Up to {@code batchSize} calls share one HTTP round trip. A parent whose response has another
+ * page is queued again with its page token, so all pages of all parents are fetched in as few
+ * rounds as possible. Calls that fail with {@code 429} or a {@code 5xx} status are retried, on
+ * their own, in a later round; calls that fail for any other reason are reported as failures
+ * without affecting the rest of the batch.
+ *
+ * <p>The calls inside a batch are built without the request initializers of the service object:
+ * the batch request itself carries the credential, which the server applies to every part, and a
+ * {@link RequestThrottler} charges the batch for all of its parts at once. Retries of single calls
+ * are left to this class, so that they never hold up the rest of their batch.
+ *
+ * <p>The static factory methods build {@link BatchCall}s for
+ * {@code adunits.listLinkedCustomChannels}, {@code customchannels.listLinkedAdUnits} and
+ * {@code accounts.get}.
+ */
+public final class BatchFetcher {
+
+  /** The largest number of calls the server accepts in one batch request. */
+  public static final int MAX_BATCH_SIZE = 1000;
+
+  /**
+   * A call that can be queued in a batch, one per parent and page.
+   *
+   * @param <R> the type of the response.
+   * @param <T> the type of the items in the response.
+   */
+  public interface BatchCall<R, T> {
+
+    /**
+     * Builds the request for one page of a parent.
+     *
+     * @param parent the resource name of the parent.
+     * @param pageToken the token of the page, or {@code null} for the first page.
+     * @return the request.
+     * @throws IOException if the request cannot be built.
+     */
+    AdsenseRequest<R> build(String parent, String pageToken) throws IOException;
+
+    /** @return the items and next page token held by a response. */
+    Page<T> toPage(R response);
+  }
+
+  /**
+   * Receives the results of a {@link #fetch} call, on the calling thread.
+   *
+   * @param <T> the type of the items fetched.
+   */
+  public interface Callback<T> {
+
+    /** Called once for each page of a parent, in page order. */
+    void onItems(String parent, List<T> items) throws IOException;
+
+    /** Called once for a parent whose call failed for good. */
+    void onFailure(String parent, GoogleJsonError error) throws IOException;
+  }
+
+  /**
+   * The items fetched for each parent, and the errors of the parents that failed.
+   *
+   * @param <T> the type of the items fetched.
+   */
+  public static final class Result<T> {
+    private final Map<String, List<T>> items = new LinkedHashMap<String, List<T>>();
+    private final Map<String, GoogleJsonError> failures =
+        new LinkedHashMap<String, GoogleJsonError>();
+
+    /** @return the items of each parent that succeeded, in the order the parents were given. */
+    public Map<String, List<T>> getItems() {
+      return items;
+    }
+
+    /** @return the error of each parent that failed. */
+    public Map<String, GoogleJsonError> getFailures() {
+      return failures;
+    }
+  }
+
+  /** Carries a failure of the caller's callback out of {@link BatchRequest#execute}. */
+  private static final class CallbackException extends IOException {
+    CallbackException(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /** One call waiting to be sent. */
+  private static final class Pending {
+    final String parent;
+    final String pageToken;
+    int attempts;
+    boolean answered;
+
+    Pending(String parent, String pageToken) {
+      this.parent = parent;
+      this.pageToken = pageToken;
+    }
+  }
+
+  private final Adsense adsense;
+  private final HttpRequestFactory partFactory;
+  private final int batchSize;
+  private final int maxAttempts;
+  private final Sleeper sleeper;
+
+  private int batchCount;
+  private int retryCount;
+
+  /**
+   * Creates a new batch fetcher.
+   *
+   * @param adsense the AdSense service object used to create batches.
+   * @param batchSize the maximum number of calls in one batch, at most {@link #MAX_BATCH_SIZE}.
+   * @param maxAttempts the number of times a call is sent before it is reported as failed.
+   */
+  public BatchFetcher(Adsense adsense, int batchSize, int maxAttempts) {
+    this(adsense, batchSize, maxAttempts, Sleeper.DEFAULT);
+  }
+
+  BatchFetcher(Adsense adsense, int batchSize, int maxAttempts, Sleeper sleeper) {
+    if (batchSize < 1 || batchSize > MAX_BATCH_SIZE) {
+      throw new IllegalArgumentException("Batch size must be between 1 and " + MAX_BATCH_SIZE);
+    }
+    if (maxAttempts < 1) {
+      throw new IllegalArgumentException("There must be at least one attempt");
+    }
+    this.adsense = adsense;
+    this.partFactory = adsense.getRequestFactory().getTransport().createRequestFactory();
+    this.batchSize = batchSize;
+    this.maxAttempts = maxAttempts;
+    this.sleeper = sleeper;
+  }
+
+  /**
+   * Fetches all pages of all parents, handing each page and each failure to a callback.
+   *
+   * @param parents the resource names of the parents.
+   * @param call the call to make for each parent.
+   * @param callback the callback that receives the results.
+   * @throws IOException if a batch cannot be sent after all attempts, or the callback fails.
+   */
+  public <R, T> void fetch(Collection<String> parents, final BatchCall<R, T> call,
+      final Callback<T> callback) throws IOException {
+    final Deque<Pending> pending = new ArrayDeque<Pending>();
+    for (String parent : parents) {
+      pending.add(new Pending(parent, null));
+    }
+    final List<Pending> retries = new ArrayList<Pending>();
+    BackOff backOff = newBackOff();
+
+    while (!pending.isEmpty()) {
+      List<Pending> round = new ArrayList<Pending>();
+      BatchRequest batch = adsense.batch();
+      while (!pending.isEmpty() && round.size() < batchSize) {
+        final Pending item = pending.poll();
+        item.attempts++;
+        item.answered = false;
+        round.add(item);
+        AdsenseRequest<R> request = call.build(item.parent, item.pageToken);
+        batch.queue(buildPart(request), request.getResponseClass(),
+            GoogleJsonErrorContainer.class, new JsonBatchCallback<R>() {
+              @Override
+              public void onSuccess(R response, HttpHeaders responseHeaders) throws IOException {
+                item.answered = true;
+                Page<T> page = call.toPage(response);
+                if (page.getNextPageToken() != null) {
+                  pending.add(new Pending(item.parent, page.getNextPageToken()));
+                }
+                try {
+                  callback.onItems(item.parent, page.getItems());
+                } catch (IOException e) {
+                  throw new CallbackException(e);
+                }
+              }
+
+              @Override
+              public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders)
+                  throws IOException {
+                item.answered = true;
+                if (isRetriable(error.getCode()) && item.attempts < maxAttempts) {
+                  retries.add(item);
+                  return;
+                }
+                try {
+                  callback.onFailure(item.parent, error);
+                } catch (IOException e) {
+                  throw new CallbackException(e);
+                }
+              }
+            });
+      }
+
+      try {
+        batch.execute();
+        batchCount++;
+      } catch (CallbackException e) {
+        throw (IOException) e.getCause();
+      } catch (IOException e) {
+        // The rest of the batch was lost, so only the calls that got no answer are retried.
+        for (Pending item : round) {
+          if (!item.answered) {
+            if (item.attempts >= maxAttempts) {
+              throw e;
+            }
+            retries.add(item);
+          }
+        }
+      }
+
+      if (!retries.isEmpty()) {
+        retryCount += retries.size();
+        pending.addAll(retries);
+        retries.clear();
+        sleep(backOff);
+      }
+    }
+  }
+
+  /**
+   * Fetches all pages of all parents and collects the results.
+   *
+   * @param parents the resource names of the parents.
+   * @param call the call to make for each parent.
+   * @return the items and failures of each parent.
+   * @throws IOException if a batch cannot be sent after all attempts.
+   */
+  public <R, T> Result<T> fetchAll(Collection<String> parents, BatchCall<R, T> call)
+      throws IOException {
+    final Result<T> result = new Result<T>();
+    for (String parent : parents) {
+      result.items.put(parent, new ArrayList<T>());
+    }
+    fetch(parents, call, new Callback<T>() {
+      @Override
+      public void onItems(String parent, List<T> items) {
+        if (items != null) {
+          result.items.get(parent).addAll(items);
+        }
+      }
+
+      @Override
+      public void onFailure(String parent, GoogleJsonError error) {
+        result.items.remove(parent);
+        result.failures.put(parent, error);
+      }
+    });
+    return result;
+  }
+
+  /** @return the number of batch requests sent successfully. */
+  public int getBatchCount() {
+    return batchCount;
+  }
+
+  /** @return the number of calls that were sent again. */
+  public int getRetryCount() {
+    return retryCount;
+  }
+
+  /**
+   * Builds one part of a batch from a request, with the service object's parser but without its
+   * initializers.
+   */
+  private HttpRequest buildPart(AdsenseRequest<?> request) throws IOException {
+    HttpRequest part = partFactory.buildRequest(request.getRequestMethod(),
+        request.buildHttpRequestUrl(), request.getHttpContent());
+    part.setParser(adsense.getObjectParser());
+    return part;
+  }
+
+  private static boolean isRetriable(int code) {
+    return code == 429 || code / 100 == 5;
+  }
+
+  private static BackOff newBackOff() {
+    return new ExponentialBackOff.Builder()
+        .setInitialIntervalMillis(500)
+        .setMaxIntervalMillis(30000)
+        .setRandomizationFactor(0.5)
+        .build();
+  }
+
+  private void sleep(BackOff backOff) throws IOException {
+    long millis = backOff.nextBackOffMillis();
+    if (millis == BackOff.STOP) {
+      return;
+    }
+    try {
+      sleeper.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while backing off");
+    }
+  }
+
+  /**
+   * Lists the custom channels linked to each ad unit.
+   *
+   * @param adsense the AdSense service object.
+   * @param pageSize the maximum number of custom channels per page.
+   * @return the call, for parents that are ad unit names.
+   */
+  public static BatchCall<ListLinkedCustomChannelsResponse, CustomChannel> linkedCustomChannels(
+      final Adsense adsense, final int pageSize) {
+    return new BatchCall<ListLinkedCustomChannelsResponse, CustomChannel>() {
+      @Override
+      public AdsenseRequest<ListLinkedCustomChannelsResponse> build(String parent,
+          String pageToken) throws IOException {
+        return adsense.accounts().adclients().adunits().listLinkedCustomChannels(parent)
+            .setPageSize(pageSize)
+            .setPageToken(pageToken);
+      }
+
+      @Override
+      public Page<CustomChannel> toPage(ListLinkedCustomChannelsResponse response) {
+        return new Page<CustomChannel>(response.getCustomChannels(), response.getNextPageToken());
+      }
+    };
+  }
+
+  /**
+   * Lists the ad units linked to each custom channel.
+   *
+   * @param adsense the AdSense service object.
+   * @param pageSize the maximum number of ad units per page.
+   * @return the call, for parents that are custom channel names.
+   */
+  public static BatchCall<ListLinkedAdUnitsResponse, AdUnit> linkedAdUnits(final Adsense adsense,
+      final int pageSize) {
+    return new BatchCall<ListLinkedAdUnitsResponse, AdUnit>() {
+      @Override
+      public AdsenseRequest<ListLinkedAdUnitsResponse> build(String parent, String pageToken)
+          throws IOException {
+        return adsense.accounts().adclients().customchannels().listLinkedAdUnits(parent)
+            .setPageSize(pageSize)
+            .setPageToken(pageToken);
+      }
+
+      @Override
+      public Page<AdUnit> toPage(ListLinkedAdUnitsResponse response) {
+        return new Page<AdUnit>(response.getAdUnits(), response.getNextPageToken());
+      }
+    };
+  }
+
+  /**
+   * Gets each account.
+   *
+   * @param adsense the AdSense service object.
+   * @return the call, for parents that are account names.
+   */
+  public static BatchCall<Account, Account> accounts(final Adsense adsense) {
+    return new BatchCall<Account, Account>() {
+      @Override
+      public AdsenseRequest<Account> build(String parent, String pageToken) throws IOException {
+        return adsense.accounts().get(parent);
+      }
+
+      @Override
+      public Page<Account> toPage(Account response) {
+        return new Page<Account>(Collections.singletonList(response), null);
+      }
+    };
+  }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.model.Header;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads files written by {@link ColumnarReportWriter}, one row group at a time.
+ */
+public final class ColumnarReportReader {
+
+  private ColumnarReportReader() {}
+
+  /**
+   * Replays a columnar file as report rows.
+   *
+   * @param file the file to read.
+   * @param handler the handler that receives headers and rows; currency metrics are given back as
+   *     plain decimals without trailing zeros.
+   * @return the number of rows read.
+   * @throws IOException if the file cannot be read or is not a columnar report.
+   */
+  public static long read(File file, ReportStreamReader.RowHandler handler) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      long size = channel.size();
+      int magicLength = ColumnarReportWriter.MAGIC.length;
+      ByteBuffer tail = readFully(channel, size - 4 - magicLength, 4 + magicLength);
+      int footerLength = tail.getInt();
+      byte[] magic = new byte[magicLength];
+      tail.get(magic);
+      if (!Arrays.equals(magic, ColumnarReportWriter.MAGIC)) {
+        throw new IOException("Not a columnar report: " + file);
+      }
+
+      ByteBuffer footer = readFully(channel, size - 4 - magicLength - footerLength, footerLength);
+      if (footer.get() != ColumnarReportWriter.VERSION) {
+        throw new IOException("Unsupported columnar report version");
+      }
+      int columns = footer.getInt();
+      List<Header> headers = new ArrayList<Header>(columns);
+      byte[] types = new byte[columns];
+      int[] scales = new int[columns];
+      for (int i = 0; i < columns; i++) {
+        Header header = new Header().setName(getString(footer)).setType(getString(footer));
+        types[i] = footer.get();
+        String currencyCode = getString(footer);
+        if (!currencyCode.isEmpty()) {
+          header.setCurrencyCode(currencyCode);
+        }
+        scales[i] = footer.get();
+        headers.add(header);
+      }
+      int rowGroups = footer.getInt();
+      long[] offsets = new long[rowGroups + 1];
+      int[] rowCounts = new int[rowGroups];
+      for (int g = 0; g < rowGroups; g++) {
+        offsets[g] = footer.getLong();
+        rowCounts[g] = footer.getInt();
+      }
+      offsets[rowGroups] = size - 4 - magicLength - footerLength;
+
+      handler.headers(Collections.unmodifiableList(headers));
+      String[] cells = new String[columns];
+      String[][] values = new String[columns][];
+      long total = 0;
+      for (int g = 0; g < rowGroups; g++) {
+        ByteBuffer chunk = readFully(channel, offsets[g], (int) (offsets[g + 1] - offsets[g]));
+        int rows = rowCounts[g];
+        for (int i = 0; i < columns; i++) {
+          values[i] = readColumn(chunk, types[i], scales[i], rows);
+        }
+        for (int r = 0; r < rows; r++) {
+          for (int i = 0; i < columns; i++) {
+            cells[i] = values[i][r];
+          }
+          handler.row(cells);
+        }
+        total += rows;
+      }
+      return total;
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static String[] readColumn(ByteBuffer chunk, byte type, int scale, int rows)
+      throws IOException {
+    long[] nulls = null;
+    if (chunk.get() != 0) {
+      nulls = new long[(rows + 63) / 64];
+      for (int w = 0; w < nulls.length; w++) {
+        nulls[w] = chunk.getLong();
+      }
+    }
+    String[] values = new String[rows];
+    switch (type) {
+      case ColumnarReportWriter.INT64:
+        for (int r = 0; r < rows; r++) {
+          values[r] = Long.toString(chunk.getLong());
+        }
+        break;
+      case ColumnarReportWriter.DECIMAL:
+        for (int r = 0; r < rows; r++) {
+          BigDecimal value = BigDecimal.valueOf(chunk.getLong(), scale).stripTrailingZeros();
+          values[r] = value.signum() == 0 ? "0" : value.toPlainString();
+        }
+        break;
+      case ColumnarReportWriter.DOUBLE:
+        for (int r = 0; r < rows; r++) {
+          values[r] = Double.toString(chunk.getDouble());
+        }
+        break;
+      case ColumnarReportWriter.STRING:
+        String[] dictionary = new String[chunk.getInt()];
+        for (int d = 0; d < dictionary.length; d++) {
+          dictionary[d] = getString(chunk);
+        }
+        int width = chunk.get();
+        for (int r = 0; r < rows; r++) {
+          int code = width == 1 ? chunk.get() & 0xff
+              : width == 2 ? chunk.getShort() & 0xffff : chunk.getInt();
+          values[r] = dictionary[code];
+        }
+        break;
+      default:
+        throw new IOException("Unknown column type " + type);
+    }
+    if (nulls != null) {
+      for (int r = 0; r < rows; r++) {
+        if ((nulls[r >> 6] & 1L << r) != 0) {
+          values[r] = null;
+        }
+      }
+    }
+    return values;
+  }
+
+  private static String getString(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.getInt()];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  private static ByteBuffer readFully(FileChannel channel, long offset, int length)
+      throws IOException {
+    byte[] bytes = new byte[length];
+    ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    while (buffer.hasRemaining()) {
+      if (channel.read(buffer, offset + buffer.position()) < 0) {
+        throw new IOException("Unexpected end of columnar report");
+      }
+    }
+    return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+}
@@ -0,0 +1,416 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.model.Header;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes streamed report rows to a columnar file, in row groups of bounded size.
+ *
+ * <p>Each header becomes a typed column: dimensions are dictionary-encoded strings, tallies and
+ * milliseconds are 64-bit integers, currency metrics are decimals stored as 64-bit integers in
+ * millionths of their currency (which is recorded with the column), and other metrics are
+ * doubles. Rows are buffered in primitive arrays until the row group is full, or its dictionaries
+ * grow too large, and the row group is then written out, so memory use does not depend on the
+ * size of the report.
+ *
+ * <p>The layout follows Parquet: all integers are little-endian.
+ *
+ * <pre>
+ * file       := MAGIC rowGroup* footer int32(footerLength) MAGIC
+ * rowGroup   := columnChunk* (one per column)
+ * chunk      := byte(hasNulls) [int64 bitmap words if hasNulls] values
+ * values     := int64 * rows                                  (INT64, DECIMAL)
+ *             | float64 * rows                                (DOUBLE)
+ *             | int32(size) (int32(length) utf8)* size        (STRING, the dictionary)
+ *               byte(codeWidth) code * rows                   (codes 1, 2 or 4 bytes wide)
+ * footer     := byte(version) int32(columns) column* int32(rowGroups) (int64(offset) int32(rows))*
+ * column     := string(name) string(headerType) byte(type) string(currencyCode) byte(scale)
+ * string     := int32(length) utf8
+ * </pre>
+ *
+ * <p>Use {@link ColumnarReportReader} to read the files back.
+ */
+public final class ColumnarReportWriter implements ReportStreamReader.RowHandler, Closeable {
+
+  /** The magic bytes at both ends of the file. */
+  static final byte[] MAGIC = {'A', 'S', 'C', 'R'};
+  static final int VERSION = 1;
+
+  /** Column types. */
+  static final byte INT64 = 1;
+  static final byte DOUBLE = 2;
+  static final byte DECIMAL = 3;
+  static final byte STRING = 4;
+
+  /** The number of decimal places kept for currency metrics. */
+  static final int DECIMAL_SCALE = 6;
+
+  private static final int BUFFER_SIZE = 1 << 20;
+  private static final long MAX_DICTIONARY_BYTES = 64L << 20;
+
+  private final FileChannel channel;
+  private final int rowGroupRows;
+  private final ByteBuffer buffer =
+      ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+  private long position;
+
+  private List<Header> headers;
+  private byte[] types;
+  private long[][] longs;
+  private double[][] doubles;
+  private int[][] codes;
+  private List<List<byte[]>> dictionaries;
+  private List<Map<String, Integer>> dictionaryIndexes;
+  private long[][] nulls;
+  private long dictionaryBytes;
+  private int rows;
+
+  private final List<long[]> rowGroups = new ArrayList<long[]>();
+  private long totalRows;
+
+  /**
+   * Creates a file, replacing any previous contents.
+   *
+   * @param file the file to write.
+   * @param rowGroupRows the maximum number of rows buffered before a row group is written.
+   * @throws IOException if the file cannot be created.
+   */
+  public ColumnarReportWriter(File file, int rowGroupRows) throws IOException {
+    if (rowGroupRows < 1) {
+      throw new IllegalArgumentException("Row groups must hold at least one row");
+    }
+    this.rowGroupRows = rowGroupRows;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+    buffer.put(MAGIC);
+    position = MAGIC.length;
+  }
+
+  /** @return the type of the column that stores a header type. */
+  static byte columnType(String headerType) {
+    if ("DIMENSION".equals(headerType)) {
+      return STRING;
+    } else if ("METRIC_TALLY".equals(headerType) || "METRIC_MILLISECONDS".equals(headerType)) {
+      return INT64;
+    } else if ("METRIC_CURRENCY".equals(headerType)) {
+      return DECIMAL;
+    }
+    return DOUBLE;
+  }
+
+  @Override
+  public void headers(List<Header> headers) {
+    int columns = headers.size();
+    this.headers = headers;
+    types = new byte[columns];
+    longs = new long[columns][];
+    doubles = new double[columns][];
+    codes = new int[columns][];
+    nulls = new long[columns][(rowGroupRows + 63) / 64];
+    dictionaries = new ArrayList<List<byte[]>>();
+    dictionaryIndexes = new ArrayList<Map<String, Integer>>();
+    for (int i = 0; i < columns; i++) {
+      types[i] = columnType(headers.get(i).getType());
+      switch (types[i]) {
+        case INT64:
+        case DECIMAL:
+          longs[i] = new long[rowGroupRows];
+          break;
+        case DOUBLE:
+          doubles[i] = new double[rowGroupRows];
+          break;
+        default:
+          codes[i] = new int[rowGroupRows];
+      }
+      dictionaries.add(types[i] == STRING ? new ArrayList<byte[]>() : null);
+      dictionaryIndexes.add(types[i] == STRING ? new HashMap<String, Integer>() : null);
+    }
+  }
+
+  @Override
+  public void row(String[] cells) throws IOException {
+    for (int i = 0; i < types.length; i++) {
+      String value = cells[i];
+      if (value == null) {
+        nulls[i][rows >> 6] |= 1L << rows;
+        continue;
+      }
+      switch (types[i]) {
+        case INT64:
+          longs[i][rows] = Long.parseLong(value);
+          break;
+        case DECIMAL:
+          longs[i][rows] = parseDecimal(value);
+          break;
+        case DOUBLE:
+          doubles[i][rows] = Double.parseDouble(value);
+          break;
+        default:
+          codes[i][rows] = encode(i, value);
+      }
+    }
+    totalRows++;
+    if (++rows == rowGroupRows || dictionaryBytes >= MAX_DICTIONARY_BYTES) {
+      writeRowGroup();
+    }
+  }
+
+  /** @return the number of rows written. */
+  public long getRowCount() {
+    return totalRows;
+  }
+
+  /**
+   * Writes the last row group and the footer, and closes the file.
+   *
+   * @throws IOException if the file cannot be written.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      if (rows > 0) {
+        writeRowGroup();
+      }
+      long footerStart = position;
+      ensure(5);
+      buffer.put((byte) VERSION);
+      int columns = headers == null ? 0 : headers.size();
+      buffer.putInt(columns);
+      position += 5;
+      for (int i = 0; i < columns; i++) {
+        Header header = headers.get(i);
+        putString(header.getName());
+        putString(header.getType());
+        ensure(1);
+        buffer.put(types[i]);
+        position++;
+        putString(header.getCurrencyCode() != null ? header.getCurrencyCode() : "");
+        ensure(1);
+        buffer.put((byte) (types[i] == DECIMAL ? DECIMAL_SCALE : 0));
+        position++;
+      }
+      ensure(4);
+      buffer.putInt(rowGroups.size());
+      position += 4;
+      for (long[] rowGroup : rowGroups) {
+        ensure(12);
+        buffer.putLong(rowGroup[0]).putInt((int) rowGroup[1]);
+        position += 12;
+      }
+      ensure(8);
+      buffer.putInt((int) (position - footerStart));
+      buffer.put(MAGIC);
+      position += 8;
+      drain();
+    } finally {
+      channel.close();
+    }
+  }
+
+  private int encode(int column, String value) {
+    Map<String, Integer> index = dictionaryIndexes.get(column);
+    Integer code = index.get(value);
+    if (code == null) {
+      List<byte[]> dictionary = dictionaries.get(column);
+      code = dictionary.size();
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      dictionary.add(bytes);
+      index.put(value, code);
+      // Count the map entry as well as the bytes, roughly.
+      dictionaryBytes += bytes.length + 2L * value.length() + 64;
+    }
+    return code;
+  }
+
+  private void writeRowGroup() throws IOException {
+    rowGroups.add(new long[] {position, rows});
+    for (int i = 0; i < types.length; i++) {
+      int words = (rows + 63) / 64;
+      boolean hasNulls = false;
+      for (int w = 0; w < words && !hasNulls; w++) {
+        hasNulls = nulls[i][w] != 0;
+      }
+      ensure(1);
+      buffer.put((byte) (hasNulls ? 1 : 0));
+      position++;
+      if (hasNulls) {
+        putLongs(nulls[i], words);
+      }
+      switch (types[i]) {
+        case INT64:
+        case DECIMAL:
+          putLongs(longs[i], rows);
+          break;
+        case DOUBLE:
+          for (int r = 0; r < rows; r++) {
+            ensure(8);
+            buffer.putDouble(doubles[i][r]);
+          }
+          position += 8L * rows;
+          break;
+        default:
+          putDictionary(i);
+      }
+      Arrays.fill(nulls[i], 0, words, 0L);
+    }
+    rows = 0;
+    dictionaryBytes = 0;
+  }
+
+  private void putDictionary(int column) throws IOException {
+    List<byte[]> dictionary = dictionaries.get(column);
+    ensure(4);
+    buffer.putInt(dictionary.size());
+    position += 4;
+    for (byte[] value : dictionary) {
+      ensure(4);
+      buffer.putInt(value.length);
+      position += 4;
+      putBytes(value);
+    }
+    int width = dictionary.size() <= 0x100 ? 1 : dictionary.size() <= 0x10000 ? 2 : 4;
+    ensure(1);
+    buffer.put((byte) width);
+    position++;
+    int[] values = codes[column];
+    for (int r = 0; r < rows; r++) {
+      ensure(4);
+      if (width == 1) {
+        buffer.put((byte) values[r]);
+      } else if (width == 2) {
+        buffer.putShort((short) values[r]);
+      } else {
+        buffer.putInt(values[r]);
+      }
+    }
+    position += (long) width * rows;
+    dictionary.clear();
+    dictionaryIndexes.get(column).clear();
+  }
+
+  private void putLongs(long[] values, int count) throws IOException {
+    for (int r = 0; r < count; r++) {
+      ensure(8);
+      buffer.putLong(values[r]);
+    }
+    position += 8L * count;
+  }
+
+  private void putString(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    ensure(4);
+    buffer.putInt(bytes.length);
+    position += 4;
+    putBytes(bytes);
+  }
+
+  private void putBytes(byte[] bytes) throws IOException {
+    int offset = 0;
+    while (offset < bytes.length) {
+      ensure(1);
+      int n = Math.min(buffer.remaining(), bytes.length - offset);
+      buffer.put(bytes, offset, n);
+      offset += n;
+    }
+    position += bytes.length;
+  }
+
+  private void ensure(int bytes) throws IOException {
+    if (buffer.remaining() < bytes) {
+      drain();
+    }
+  }
+
+  private void drain() throws IOException {
+    // Buffer methods are called through Buffer, as ByteBuffer only overrides them since Java 9.
+    ((Buffer) buffer).flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    ((Buffer) buffer).clear();
+  }
+
+  /**
+   * Parses a decimal string into millionths, rounding half up. Plain decimals are parsed without
+   * allocating; anything else, such as exponents, goes through {@link BigDecimal}.
+   */
+  static long parseDecimal(String value) {
+    int length = value.length();
+    int i = 0;
+    boolean negative = false;
+    if (length > 0 && (value.charAt(0) == '-' || value.charAt(0) == '+')) {
+      negative = value.charAt(0) == '-';
+      i++;
+    }
+    long unscaled = 0;
+    int digits = 0;
+    int fraction = -1;
+    boolean roundUp = false;
+    for (; i < length; i++) {
+      char c = value.charAt(i);
+      if (c == '.' && fraction < 0) {
+        fraction = 0;
+      } else if (c >= '0' && c <= '9') {
+        if (fraction >= DECIMAL_SCALE) {
+          if (fraction++ == DECIMAL_SCALE) {
+            roundUp = c >= '5';
+          }
+          continue;
+        }
+        if (++digits > 18 - DECIMAL_SCALE + (fraction < 0 ? 0 : fraction)) {
+          return slowParseDecimal(value);
+        }
+        unscaled = unscaled * 10 + (c - '0');
+        if (fraction >= 0) {
+          fraction++;
+        }
+      } else {
+        return slowParseDecimal(value);
+      }
+    }
+    if (digits == 0) {
+      return slowParseDecimal(value);
+    }
+    for (int f = Math.max(fraction, 0); f < DECIMAL_SCALE; f++) {
+      unscaled *= 10;
+    }
+    if (roundUp) {
+      unscaled++;
+    }
+    return negative ? -unscaled : unscaled;
+  }
+
+  private static long slowParseDecimal(String value) {
+    return new BigDecimal(value).setScale(DECIMAL_SCALE, RoundingMode.HALF_UP).unscaledValue()
+        .longValueExact();
+  }
+}
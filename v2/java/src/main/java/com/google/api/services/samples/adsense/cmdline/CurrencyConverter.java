@@ -0,0 +1,466 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Converts the monetary columns of a report from the account currency into other currencies,
+ * using a table of daily exchange rates, so that one report call serves every currency.
+ *
+ * <p>A report is fetched once without a currency code into a {@link ReportTable} that has a
+ * {@code DATE} dimension, and {@link #convert} then scales each monetary column
+ * ({@code ESTIMATED_EARNINGS}, {@code COST_PER_CLICK}, {@code AD_REQUESTS_RPM} and the others that
+ * {@link ReportMetrics#isMonetary} knows) by the rate of the row's day. The conversion works on
+ * the table's primitive columns: one pass looks up a rate per row, and one tight multiplication
+ * loop per column applies it.
+ *
+ * <p>Rates are given as units of the target currency per unit of the source currency. Days
+ * without a rate, such as weekends, use the latest earlier rate, up to a maximum age.
+ *
+ * <p>{@link #verify} cross-checks a few converted days against the API, which applies its own
+ * rates, so small differences are expected and allowed for.
+ */
+public final class CurrencyConverter {
+
+  private static final String DATE = "DATE";
+
+  private final String sourceCurrency;
+  private final Map<String, TreeMap<LocalDate, Double>> rates;
+  private final int maxRateAgeDays;
+
+  private CurrencyConverter(Builder builder) {
+    this.sourceCurrency = builder.sourceCurrency;
+    Map<String, TreeMap<LocalDate, Double>> rates =
+        new HashMap<String, TreeMap<LocalDate, Double>>();
+    for (Map.Entry<String, TreeMap<LocalDate, Double>> entry : builder.rates.entrySet()) {
+      rates.put(entry.getKey(), new TreeMap<LocalDate, Double>(entry.getValue()));
+    }
+    this.rates = rates;
+    this.maxRateAgeDays = builder.maxRateAgeDays;
+  }
+
+  /** @return the currency that reports are converted from. */
+  public String getSourceCurrency() {
+    return sourceCurrency;
+  }
+
+  /** @return the currencies that reports can be converted into, in alphabetical order. */
+  public List<String> getCurrencies() {
+    return new ArrayList<String>(new TreeSet<String>(rates.keySet()));
+  }
+
+  /**
+   * Looks up the rate of a day.
+   *
+   * @param currency the target currency.
+   * @param day the day.
+   * @return the units of {@code currency} per unit of the source currency.
+   * @throws IllegalArgumentException if there is no rate recent enough.
+   */
+  public double getRate(String currency, LocalDate day) {
+    if (currency.equals(sourceCurrency)) {
+      return 1;
+    }
+    TreeMap<LocalDate, Double> daily = rates.get(currency);
+    Map.Entry<LocalDate, Double> rate = daily != null ? daily.floorEntry(day) : null;
+    if (rate == null || rate.getKey().plusDays(maxRateAgeDays).isBefore(day)) {
+      throw new IllegalArgumentException("No " + sourceCurrency + " to " + currency
+          + " rate for " + day);
+    }
+    return rate.getValue();
+  }
+
+  /**
+   * Converts the monetary columns of a report.
+   *
+   * @param table the report in the source currency, with a {@code DATE} dimension.
+   * @param currency the target currency.
+   * @return a converted copy of the table; the headers of converted columns carry the target
+   *     currency.
+   * @throws IllegalArgumentException if the table has no {@code DATE} dimension, is in another
+   *     currency, or a day has no rate.
+   */
+  public ReportTable convert(ReportTable table, String currency) {
+    int dateColumn = table.columnIndex(DATE);
+    if (dateColumn < 0 || !table.isDimension(dateColumn)) {
+      throw new IllegalArgumentException("Converting a report needs a DATE dimension");
+    }
+    List<Integer> monetary = monetaryColumns(table);
+    for (int column : monetary) {
+      String code = table.getHeaders().get(column).getCurrencyCode();
+      if (code != null && !code.equals(sourceCurrency)) {
+        throw new IllegalArgumentException("The report is in " + code + ", not "
+            + sourceCurrency);
+      }
+    }
+
+    // One rate per distinct day, then one per row.
+    double[] rateByDay = new double[table.getDictionarySize(dateColumn)];
+    for (int code = 0; code < rateByDay.length; code++) {
+      rateByDay[code] = getRate(currency, LocalDate.parse(table.decode(dateColumn, code)));
+    }
+    int rows = table.getRowCount();
+    int[] days = table.codeValues(dateColumn);
+    double[] factors = new double[rows];
+    for (int r = 0; r < rows; r++) {
+      factors[r] = rateByDay[days[r]];
+    }
+
+    ReportTable converted = table.copy();
+    for (int column : monetary) {
+      double[] values = converted.doubleValues(column);
+      for (int r = 0; r < rows; r++) {
+        values[r] *= factors[r];
+      }
+      converted.getHeaders().get(column).setCurrencyCode(currency);
+    }
+    return converted;
+  }
+
+  /**
+   * Converts a report into several currencies.
+   *
+   * @param table the report in the source currency, with a {@code DATE} dimension.
+   * @param currencies the target currencies.
+   * @return the converted tables, by currency, in the order of {@code currencies}.
+   */
+  public Map<String, ReportTable> convertAll(ReportTable table, List<String> currencies) {
+    Map<String, ReportTable> converted = new LinkedHashMap<String, ReportTable>();
+    for (String currency : currencies) {
+      converted.put(currency, convert(table, currency));
+    }
+    return converted;
+  }
+
+  /**
+   * Cross-checks converted reports against the API. A few days of the report are picked at
+   * random, and the report of each picked day is requested again in each currency, all in
+   * parallel. Every monetary value of those days is then compared.
+   *
+   * @param async runs the verification requests.
+   * @param request the request the table was fetched with.
+   * @param converted the converted tables, by currency, as returned by {@link #convertAll}.
+   * @param sampleDays the number of days to check.
+   * @param tolerance the relative difference allowed, for example {@code 0.01}; one cent more is
+   *     always allowed, for the API's rounding.
+   * @return the outcome of the check.
+   * @throws IOException if a verification request fails.
+   * @throws InterruptedException if interrupted while waiting for the requests.
+   */
+  public Verification verify(AsyncAdsense async, Generate request,
+      Map<String, ReportTable> converted, int sampleDays, double tolerance)
+      throws IOException, InterruptedException {
+    if (converted.isEmpty()) {
+      return new Verification(0, Collections.<Mismatch>emptyList());
+    }
+    ReportTable any = converted.values().iterator().next();
+    int dateColumn = any.columnIndex(DATE);
+    List<LocalDate> days = sampleDays(any, dateColumn, sampleDays);
+
+    final List<String> currencies = new ArrayList<String>(converted.keySet());
+    final List<Generate> checks = new ArrayList<Generate>();
+    List<Integer> keys = new ArrayList<Integer>();
+    for (String currency : currencies) {
+      for (LocalDate day : days) {
+        keys.add(checks.size());
+        checks.add(dayRequest(async, request, day, currency));
+      }
+    }
+    Map<Integer, ReportResult> results = AsyncAdsense.await(
+        AsyncAdsense.fanOut(keys, key -> async.generateReport(checks.get(key))));
+
+    long checked = 0;
+    List<Mismatch> mismatches = new ArrayList<Mismatch>();
+    for (int c = 0; c < currencies.size(); c++) {
+      String currency = currencies.get(c);
+      ReportTable local = converted.get(currency);
+      Map<String, Integer> localRows = rowsByKey(local);
+      List<Integer> monetary = monetaryColumns(local);
+      for (int d = 0; d < days.size(); d++) {
+        ReportTable remote = ReportTable.from(results.get(c * days.size() + d));
+        for (int r = 0; r < remote.getRowCount(); r++) {
+          String key = rowKey(remote, local, r);
+          Integer localRow = localRows.get(key);
+          for (int column : monetary) {
+            String metric = local.getHeaders().get(column).getName();
+            int remoteColumn = remote.columnIndex(metric);
+            if (remoteColumn < 0) {
+              continue;
+            }
+            double expected = remote.getDouble(remoteColumn, r);
+            double actual = localRow != null ? local.getDouble(column, localRow) : 0;
+            checked++;
+            if (Math.abs(expected - actual) > tolerance * Math.abs(expected) + 0.01) {
+              mismatches.add(new Mismatch(currency, days.get(d), key, metric, expected, actual));
+            }
+          }
+        }
+      }
+    }
+    return new Verification(checked, mismatches);
+  }
+
+  private static List<LocalDate> sampleDays(ReportTable table, int dateColumn, int count) {
+    List<LocalDate> days = new ArrayList<LocalDate>();
+    for (int code = 0; code < table.getDictionarySize(dateColumn); code++) {
+      days.add(LocalDate.parse(table.decode(dateColumn, code)));
+    }
+    // A partial Fisher-Yates shuffle picks the sample.
+    SplittableRandom random = new SplittableRandom();
+    int size = Math.min(count, days.size());
+    for (int i = 0; i < size; i++) {
+      Collections.swap(days, i, i + random.nextInt(days.size() - i));
+    }
+    List<LocalDate> sample = new ArrayList<LocalDate>(days.subList(0, size));
+    Collections.sort(sample);
+    return sample;
+  }
+
+  /** Builds the request of one day of the report, in another currency. */
+  private static Generate dayRequest(AsyncAdsense async, Generate request, LocalDate day,
+      String currency) throws IOException {
+    Generate check = async.getAdsense().accounts().reports().generate(request.getAccount());
+    check.setDateRange("CUSTOM");
+    check.setStartDateYear(day.getYear()).setStartDateMonth(day.getMonthValue())
+        .setStartDateDay(day.getDayOfMonth());
+    check.setEndDateYear(day.getYear()).setEndDateMonth(day.getMonthValue())
+        .setEndDateDay(day.getDayOfMonth());
+    check.setDimensions(request.getDimensions());
+    check.setMetrics(request.getMetrics());
+    check.setFilters(request.getFilters());
+    check.setReportingTimeZone(request.getReportingTimeZone());
+    check.setCurrencyCode(currency);
+    return check;
+  }
+
+  private static List<Integer> monetaryColumns(ReportTable table) {
+    List<Integer> columns = new ArrayList<Integer>();
+    for (int i = 0; i < table.getColumnCount(); i++) {
+      Header header = table.getHeaders().get(i);
+      if (!table.isDimension(i) && (ReportMetrics.isMonetary(header.getName())
+          || "METRIC_CURRENCY".equals(header.getType()))) {
+        columns.add(i);
+      }
+    }
+    return columns;
+  }
+
+  private static Map<String, Integer> rowsByKey(ReportTable table) {
+    Map<String, Integer> rows = new HashMap<String, Integer>();
+    for (int r = 0; r < table.getRowCount(); r++) {
+      rows.put(rowKey(table, table, r), r);
+    }
+    return rows;
+  }
+
+  /** @return the dimension values of a row, in the column order of {@code layout}. */
+  private static String rowKey(ReportTable table, ReportTable layout, int row) {
+    StringBuilder key = new StringBuilder();
+    for (int i = 0; i < layout.getColumnCount(); i++) {
+      if (layout.isDimension(i)) {
+        int column = table.columnIndex(layout.getHeaders().get(i).getName());
+        key.append(column >= 0 ? table.getString(column, row) : null).append('\t');
+      }
+    }
+    return key.toString();
+  }
+
+  /** The outcome of {@link #verify}. */
+  public static final class Verification {
+    private final long checkedCount;
+    private final List<Mismatch> mismatches;
+
+    private Verification(long checkedCount, List<Mismatch> mismatches) {
+      this.checkedCount = checkedCount;
+      this.mismatches = Collections.unmodifiableList(mismatches);
+    }
+
+    /** @return the number of values compared. */
+    public long getCheckedCount() {
+      return checkedCount;
+    }
+
+    /** @return the values that differ by more than the tolerance. */
+    public List<Mismatch> getMismatches() {
+      return mismatches;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("Checked %d converted values, %d mismatches", checkedCount,
+          mismatches.size());
+    }
+  }
+
+  /** A converted value that differs from the API's. */
+  public static final class Mismatch {
+    private final String currency;
+    private final LocalDate day;
+    private final String dimensionValues;
+    private final String metric;
+    private final double expected;
+    private final double actual;
+
+    private Mismatch(String currency, LocalDate day, String dimensionValues, String metric,
+        double expected, double actual) {
+      this.currency = currency;
+      this.day = day;
+      this.dimensionValues = dimensionValues;
+      this.metric = metric;
+      this.expected = expected;
+      this.actual = actual;
+    }
+
+    /** @return the target currency. */
+    public String getCurrency() {
+      return currency;
+    }
+
+    /** @return the day of the row. */
+    public LocalDate getDay() {
+      return day;
+    }
+
+    /** @return the dimension values of the row, separated by tabs. */
+    public String getDimensionValues() {
+      return dimensionValues;
+    }
+
+    /** @return the metric. */
+    public String getMetric() {
+      return metric;
+    }
+
+    /** @return the value reported by the API. */
+    public double getExpected() {
+      return expected;
+    }
+
+    /** @return the converted value. */
+    public double getActual() {
+      return actual;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%s %s [%s] %s: API %.4f, converted %.4f", currency, day,
+          dimensionValues.trim().replace('\t', ','), metric, expected, actual);
+    }
+  }
+
+  /** Builder for {@link CurrencyConverter}. */
+  public static final class Builder {
+    private final String sourceCurrency;
+    private final Map<String, TreeMap<LocalDate, Double>> rates =
+        new HashMap<String, TreeMap<LocalDate, Double>>();
+    private int maxRateAgeDays = 7;
+
+    /**
+     * Creates a builder.
+     *
+     * @param sourceCurrency the currency of the reports to convert, usually the account's.
+     */
+    public Builder(String sourceCurrency) {
+      this.sourceCurrency = sourceCurrency;
+    }
+
+    /**
+     * Adds a daily rate.
+     *
+     * @param day the day the rate applies to.
+     * @param currency the target currency.
+     * @param rate the units of {@code currency} per unit of the source currency.
+     */
+    public Builder addRate(LocalDate day, String currency, double rate) {
+      if (!(rate > 0) || Double.isInfinite(rate)) {
+        throw new IllegalArgumentException("Exchange rates must be positive");
+      }
+      TreeMap<LocalDate, Double> daily = rates.get(currency);
+      if (daily == null) {
+        daily = new TreeMap<LocalDate, Double>();
+        rates.put(currency, daily);
+      }
+      daily.put(day, rate);
+      return this;
+    }
+
+    /**
+     * Adds the rates of a file with one {@code date,currency,rate} line per rate, for example
+     * {@code 2021-03-01,EUR,0.8312}. Empty lines and lines starting with {@code #} are skipped.
+     *
+     * @throws IOException if the file cannot be read or a line is malformed.
+     */
+    public Builder addRates(File file) throws IOException {
+      BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+      try {
+        String line;
+        int number = 0;
+        while ((line = reader.readLine()) != null) {
+          number++;
+          line = line.trim();
+          if (line.isEmpty() || line.startsWith("#")) {
+            continue;
+          }
+          String[] fields = line.split(",");
+          try {
+            if (fields.length != 3) {
+              throw new IllegalArgumentException("expected date,currency,rate");
+            }
+            addRate(LocalDate.parse(fields[0].trim()), fields[1].trim(),
+                Double.parseDouble(fields[2].trim()));
+          } catch (IllegalArgumentException | DateTimeParseException e) {
+            throw new IOException(file + ":" + number + ": " + e.getMessage(), e);
+          }
+        }
+      } finally {
+        reader.close();
+      }
+      return this;
+    }
+
+    /** Sets how many days an earlier rate may be used for. Defaults to 7. */
+    public Builder setMaxRateAgeDays(int maxRateAgeDays) {
+      if (maxRateAgeDays < 0) {
+        throw new IllegalArgumentException("The maximum rate age cannot be negative");
+      }
+      this.maxRateAgeDays = maxRateAgeDays;
+      return this;
+    }
+
+    /** @return the new converter. */
+    public CurrencyConverter build() {
+      return new CurrencyConverter(this);
+    }
+  }
+}
@@ -16,12 +16,10 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
-import com.google.api.services.adsense.v2.model.Cell;
-import com.google.api.services.adsense.v2.model.Header;
-import com.google.api.services.adsense.v2.model.ReportResult;
-import com.google.api.services.adsense.v2.model.Row;
+import java.io.File;
+import java.time.LocalDate;
 import java.util.Arrays;
-import java.util.List;
+import java.util.Map;
 
 /**
  * This example retrieves a report, using a filter for a specified ad client.
@@ -30,6 +28,13 @@ import java.util.List;
  *
  */
 public class GenerateReport {
+
+  /** The number of rows buffered per row group of an exported report. */
+  private static final int EXPORT_ROW_GROUP_ROWS = 65536;
+
+  /** The number of years of history fetched by the first sync. */
+  private static final int SYNC_HISTORY_YEARS = 3;
+
   /**
    * Runs this sample.
    * @param adsense AdSense service object on which to run the requests.
@@ -38,10 +43,166 @@ public class GenerateReport {
    * @throws Exception
    */
   public static void run(Adsense adsense, String accountId, String adClientId) throws Exception {
+    run(adsense, accountId, adClientId, null);
+  }
+
+  /**
+   * Runs this sample, printing the report or exporting it to a columnar file.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param accountId the ID for the account to be used.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param exportFile the file to export the rows to, readable with {@link ColumnarReportReader},
+   *     or {@code null} to print them.
+   * @throws Exception
+   */
+  public static void run(Adsense adsense, String accountId, String adClientId, File exportFile)
+      throws Exception {
+    run(adsense, null, accountId, adClientId, exportFile);
+  }
+
+  /**
+   * Runs this sample through a report cache, printing the report or exporting it to a columnar
+   * file.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param cache the cache that answers repeated reports, or {@code null} to always run them.
+   * @param accountId the ID for the account to be used.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param exportFile the file to export the rows to, readable with {@link ColumnarReportReader},
+   *     or {@code null} to print them.
+   * @throws Exception
+   */
+  public static void run(Adsense adsense, ReportCache cache, String accountId, String adClientId,
+      File exportFile) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Running report for ad client %s\n", adClientId);
     System.out.println("=================================================================");
 
+    Generate request = newRequest(adsense, accountId, adClientId);
+
+    if (exportFile != null) {
+      // Rows are written to the file as they are parsed, one bounded row group at a time.
+      ColumnarReportWriter writer = new ColumnarReportWriter(exportFile, EXPORT_ROW_GROUP_ROWS);
+      boolean exported = false;
+      try {
+        execute(cache, request, writer);
+        exported = true;
+      } finally {
+        writer.close();
+        if (!exported) {
+          // Do not leave a partial report that looks complete.
+          exportFile.delete();
+        }
+      }
+      System.out.printf("Exported %d rows to %s\n\n", writer.getRowCount(), exportFile);
+      return;
+    }
+
+    // Run report.
+    // Rows are printed as they are parsed, so the full report is never held in memory.
+    ReportWriter writer = ReportWriter.create(ReportWriter.Format.FIXED_WIDTH, System.out);
+    execute(cache, request, writer);
+    writer.finish();
+  }
+
+  /**
+   * Runs the report of this sample once and shows its estimated earnings in every currency of a
+   * table of daily exchange rates, converted locally rather than with one report per currency.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param accountId the ID for the account to be used.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param ratesFile the rates, one {@code date,currency,rate} line per day and currency, in units
+   *     of the currency per unit of the account currency.
+   * @throws Exception
+   */
+  public static void runInCurrencies(Adsense adsense, String accountId, String adClientId,
+      File ratesFile) throws Exception {
+    runInCurrencies(adsense, null, accountId, adClientId, ratesFile);
+  }
+
+  /**
+   * Shows the estimated earnings of the report of this sample in every currency of a table of
+   * daily exchange rates, taking the report from a cache if {@link #run} already ran it.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param cache the cache that answers repeated reports, or {@code null} to always run them.
+   * @param accountId the ID for the account to be used.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param ratesFile the rates, one {@code date,currency,rate} line per day and currency, in units
+   *     of the currency per unit of the account currency.
+   * @throws Exception
+   */
+  public static void runInCurrencies(Adsense adsense, ReportCache cache, String accountId,
+      String adClientId, File ratesFile) throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Converting the report for ad client %s\n", adClientId);
+    System.out.println("=================================================================");
+
+    ReportTable table = new ReportTable();
+    execute(cache, newRequest(adsense, accountId, adClientId), table);
+    int earnings = table.columnIndex("ESTIMATED_EARNINGS");
+    if (earnings < 0) {
+      // An empty report may come back without headers.
+      System.out.println("No estimated earnings found, unable to convert the report.");
+      System.out.println();
+      return;
+    }
+    String accountCurrency = table.getHeaders().get(earnings).getCurrencyCode();
+    System.out.printf("Estimated earnings: %.2f %s\n", table.sum(earnings), accountCurrency);
+
+    CurrencyConverter converter = new CurrencyConverter.Builder(accountCurrency)
+        .addRates(ratesFile)
+        .build();
+    Map<String, ReportTable> converted = converter.convertAll(table, converter.getCurrencies());
+    for (Map.Entry<String, ReportTable> entry : converted.entrySet()) {
+      System.out.printf("Estimated earnings: %.2f %s\n", entry.getValue().sum(earnings),
+          entry.getKey());
+    }
+
+    System.out.println();
+  }
+
+  /**
+   * Keeps a local, day-partitioned copy of the clicks and earnings of an ad client up to date,
+   * fetching only the days that can still change, and prints its last week.
+   * @param adsense AdSense service object on which to run the requests.
+   * @param accountId the ID for the account to be used.
+   * @param adClientId the ad client ID on which to run the report.
+   * @param storeDirectory the directory of the local copy, kept between runs.
+   * @throws Exception
+   */
+  public static void runSync(Adsense adsense, String accountId, String adClientId,
+      File storeDirectory) throws Exception {
+    System.out.println("=================================================================");
+    System.out.printf("Syncing the report for ad client %s\n", adClientId);
+    System.out.println("=================================================================");
+
+    // The first run backfills the last SYNC_HISTORY_YEARS years, one month per request.
+    LocalDate today = LocalDate.now();
+    IncrementalReportSync sync = new IncrementalReportSync.Builder(storeDirectory, accountId,
+        today.minusYears(SYNC_HISTORY_YEARS))
+        .setMetrics(Arrays.asList("CLICKS", "ESTIMATED_EARNINGS"))
+        .setFilters(Arrays.asList("AD_CLIENT_ID==" + escapeFilterParameter(adClientId)))
+        .build();
+    int days = sync.sync(adsense, today);
+    System.out.printf("Fetched %d days; days up to %s are final.\n", days, sync.getWatermark());
+
+    ReportWriter writer = ReportWriter.create(ReportWriter.Format.FIXED_WIDTH, System.out);
+    sync.read(today.minusDays(6), today, writer);
+    writer.finish();
+  }
+
+  /** Runs a report through the cache, if there is one, streaming its rows to a handler. */
+  private static void execute(ReportCache cache, Generate request,
+      ReportStreamReader.RowHandler handler) throws Exception {
+    if (cache != null) {
+      cache.execute(request, handler);
+    } else {
+      ReportStreamReader.execute(request, handler);
+    }
+  }
+
+  /** @return the request of the report run by this sample. */
+  private static Generate newRequest(Adsense adsense, String accountId, String adClientId)
+      throws Exception {
     Generate request = adsense.accounts().reports().generate(accountId);
 
     // Specify the startDate and endDate for the report.
@@ -59,32 +220,7 @@ public class GenerateReport {
 
     // Sort by ascending date.
     request.setOrderBy(Arrays.asList("+DATE"));
-
-    // Run report.
-    ReportResult response = request.execute();
-    List<Row> rows = response.getRows();
-
-    if (rows != null && !rows.isEmpty()) {
-      // Display headers.
-      for (Header header : response.getHeaders()) {
-        System.out.printf("%25s", header.getName());
-      }
-      System.out.println();
-
-      // Display results.
-      for (Row row : rows) {
-        for (Cell cell : row.getCells()) {
-          System.out.printf("%25s", cell.getValue());
-        }
-        System.out.println();
-        }
-
-      System.out.println();
-    } else {
-      System.out.println("No rows returned.");
-    }
-
-    System.out.println();
+    return request;
   }
 
   /**
@@ -16,11 +16,6 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Saved.Generate;
-import com.google.api.services.adsense.v2.model.Cell;
-import com.google.api.services.adsense.v2.model.Header;
-import com.google.api.services.adsense.v2.model.ReportResult;
-import com.google.api.services.adsense.v2.model.Row;
-import java.util.List;
 
 /**
  * This example retrieves a saved report for the default account.
@@ -47,29 +42,9 @@ public class GenerateSavedReport {
     request.setDateRange("LAST_7_DAYS");
 
     // Run saved report.
-    ReportResult response = request.execute();
-    List<Row> rows = response.getRows();
-
-    if (rows != null && !rows.isEmpty()) {
-      // Display headers.
-      for (Header header : response.getHeaders()) {
-        System.out.printf("%25s", header.getName());
-      }
-      System.out.println();
-
-      // Display results.
-      for (Row row : rows) {
-        for (Cell cell : row.getCells()) {
-          System.out.printf("%25s", cell.getValue());
-        }
-        System.out.println();
-        }
-
-      System.out.println();
-    } else {
-      System.out.println("No rows returned.");
-    }
-
-    System.out.println();
+    // Rows are printed as they are parsed, so the full report is never held in memory.
+    ReportWriter writer = ReportWriter.create(ReportWriter.Format.FIXED_WIDTH, System.out);
+    ReportStreamReader.execute(request, writer);
+    writer.finish();
   }
 }
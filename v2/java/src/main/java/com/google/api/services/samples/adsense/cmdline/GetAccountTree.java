@@ -15,9 +15,6 @@
 package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
-import com.google.api.services.adsense.v2.model.Account;
-import com.google.api.services.adsense.v2.model.ListChildAccountsResponse;
-import java.util.List;
 
 /**
 *
@@ -29,27 +26,26 @@ import java.util.List;
 */
 public class GetAccountTree {
 
+  /** Maximum number of listChildAccounts requests to run at the same time. */
+  private static final int MAX_CONCURRENT_REQUESTS = 8;
+
+  /** Maximum page size to retrieve for each listChildAccounts request. */
+  private static final int MAX_LIST_PAGE_SIZE = 50;
+
   /**
-   * Auxiliary method to recursively fetch child accounts, displaying them in a tree.
-   * @param parentAccount the account to be print a sub-tree for.
+   * Auxiliary method to recursively display an already fetched tree of accounts.
+   * @param node the node to be print a sub-tree for.
    * @param level the depth at which the top account exists in the tree.
    */
-  private static void displayTree(Adsense adsense, Account parentAccount, int level)
-      throws Exception {
+  private static void displayTree(AccountTreeCrawler.Node node, int level) {
     for (int i = 0; i < level; i++) {
       System.out.print("  ");
     }
     System.out.printf("Account with ID \"%s\" and name \"%s\" was found.\n",
-        parentAccount.getName(), parentAccount.getDisplayName());
+        node.getAccount().getName(), node.getAccount().getDisplayName());
 
-    ListChildAccountsResponse response = adsense.accounts()
-        .listChildAccounts(parentAccount.getName()).execute();
-    List<Account> subAccounts = response.getAccounts();
-
-    if (subAccounts != null && !subAccounts.isEmpty()) {
-      for (Account subAccount : subAccounts) {
-        displayTree(adsense, subAccount, level + 1);
-      }
+    for (AccountTreeCrawler.Node child : node.getChildren()) {
+      displayTree(child, level + 1);
     }
   }
 
@@ -65,10 +61,18 @@ public class GetAccountTree {
     System.out.printf("Displaying AdSense account tree for %s\n", accountId);
     System.out.println("=================================================================");
 
-    // Retrieve account.
-    Account account = adsense.accounts().get(accountId).execute();
+    // Retrieve the account and all of its sub-accounts.
+    AccountTreeCrawler crawler =
+        new AccountTreeCrawler(adsense, MAX_CONCURRENT_REQUESTS, MAX_LIST_PAGE_SIZE);
+    AccountTreeCrawler.Node root;
+    long span = Tracer.begin("GetAccountTree", accountId);
+    try {
+      root = crawler.crawl(accountId);
+    } finally {
+      Tracer.end(span);
+    }
 
-    displayTree(adsense, account, 0);
+    displayTree(root, 0);
 
     System.out.println();
   }
@@ -16,8 +16,8 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.model.Account;
-import com.google.api.services.adsense.v2.model.ListAccountsResponse;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -42,30 +42,20 @@ public class GetAllAccounts {
     System.out.println("Listing all AdSense accounts");
     System.out.println("=================================================================");
 
-    List<Account> allAccounts = new ArrayList<Account>();
     // Retrieve account list in pages and display data as we receive it.
-    String pageToken = null;
-    do {
-      ListAccountsResponse response = null;
-      response = adsense.accounts().list()
-          .setPageSize(maxPageSize)
-          .setPageToken(pageToken)
-          .execute();
-
-      List<Account> accounts = response.getAccounts();
-
-      if (accounts != null && !accounts.isEmpty()) {
-        allAccounts.addAll(accounts);
-        for (Account account : accounts) {
-          System.out.printf("Account with ID \"%s\" and name \"%s\" was found.\n",
-              account.getName(), account.getDisplayName());
-        }
-      } else {
-        System.out.println("No accounts found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    List<Account> allAccounts = new ArrayList<Account>();
+    // Accounts have no parent resource.
+    Iterator<Account> items =
+        Paginator.SINGLE_PARENT.iterate((String) null, Paginator.accounts(adsense, maxPageSize));
+    while (items.hasNext()) {
+      Account account = items.next();
+      allAccounts.add(account);
+      System.out.printf("Account with ID \"%s\" and name \"%s\" was found.\n",
+          account.getName(), account.getDisplayName());
+    }
+    if (allAccounts.isEmpty()) {
+      System.out.println("No accounts found.");
+    }
 
     System.out.println();
 
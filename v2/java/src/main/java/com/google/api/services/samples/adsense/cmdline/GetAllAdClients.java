@@ -16,8 +16,8 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.model.AdClient;
-import com.google.api.services.adsense.v2.model.ListAdClientsResponse;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -39,38 +39,46 @@ public class GetAllAdClients {
    */
   public static List<AdClient> run(Adsense adsense, String accountId, int maxPageSize)
       throws Exception {
+    return run(adsense, null, accountId, maxPageSize);
+  }
+
+  /**
+   * Runs this sample, reading the ad clients from an inventory cache when one is given.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param cache the inventory cache to read the ad clients from, or {@code null} to always list
+   *     them.
+   * @param accountId the ID for the account to be used.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @throws Exception
+   */
+  public static List<AdClient> run(Adsense adsense, InventoryCache cache, String accountId,
+      int maxPageSize) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Listing all ad clients for account %s\n", accountId);
     System.out.println("=================================================================");
 
-    // Retrieve ad client list in pages and display data as we receive it.
+    // A fresh listing in the inventory cache is displayed without any request.
+    // Otherwise, retrieve ad client list in pages and display data as we receive it.
     List<AdClient> allAdClients = new ArrayList<AdClient>();
-    String pageToken = null;
-    do {
-      ListAdClientsResponse response = adsense.accounts().adclients().list(accountId)
-          .setPageSize(maxPageSize)
-          .setPageToken(pageToken)
-          .execute();
-      List<AdClient> adClients = response.getAdClients();
-
-      if (adClients != null && !adClients.isEmpty()) {
-        allAdClients.addAll(adClients);
-        for (AdClient adClient : adClients) {
-          System.out.printf("Ad client for product \"%s\" with ID \"%s\" was found.\n",
-              adClient.getProductCode(), adClient.getName());
-          boolean supportsReporting = true;
-          if (adClient.getReportingDimensionId() == null
-              || adClient.getReportingDimensionId().isEmpty()) {
-            supportsReporting = false;
-          }
-          System.out.printf("\tSupports reporting: %s\n", supportsReporting ? "No" : "Yes");
-        }
-      } else {
-        System.out.println("No ad clients found.");
+    Iterator<AdClient> items = cache != null
+        ? cache.getAdClients(adsense, accountId, maxPageSize).iterator()
+        : Paginator.SINGLE_PARENT.iterate(accountId, Paginator.adClients(adsense, maxPageSize));
+    while (items.hasNext()) {
+      AdClient adClient = items.next();
+      allAdClients.add(adClient);
+      System.out.printf("Ad client for product \"%s\" with ID \"%s\" was found.\n",
+          adClient.getProductCode(), adClient.getName());
+      boolean supportsReporting = true;
+      if (adClient.getReportingDimensionId() == null
+          || adClient.getReportingDimensionId().isEmpty()) {
+        supportsReporting = false;
       }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+      System.out.printf("\tSupports reporting: %s\n", supportsReporting ? "No" : "Yes");
+    }
+    if (allAdClients.isEmpty()) {
+      System.out.println("No ad clients found.");
+    }
 
     System.out.println();
 
@@ -16,8 +16,8 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.model.AdUnit;
-import com.google.api.services.adsense.v2.model.ListAdUnitsResponse;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -40,33 +40,41 @@ public class GetAllAdUnits {
    */
   public static List<AdUnit> run(Adsense adsense, String adClientId, int maxPageSize)
       throws Exception {
+    return run(adsense, null, adClientId, maxPageSize);
+  }
+
+  /**
+   * Runs this sample, reading the ad units from an inventory cache when one is given.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param cache the inventory cache to read the ad units from, or {@code null} to always list
+   *     them.
+   * @param adClientId the ID for the ad client to be used.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @return the retrieved ad units.
+   * @throws Exception
+   */
+  public static List<AdUnit> run(Adsense adsense, InventoryCache cache, String adClientId,
+      int maxPageSize) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Listing all ad units for ad client %s\n", adClientId);
     System.out.println("=================================================================");
 
-    // Retrieve ad unit list in pages and display data as we receive it.
-    String pageToken = null;
+    // A fresh listing in the inventory cache is displayed without any request.
+    // Otherwise, retrieve ad unit list in pages and display data as we receive it.
     List<AdUnit> allAdUnits = new ArrayList<AdUnit>();
-    do {
-      ListAdUnitsResponse response = adsense.accounts().adclients().adunits()
-          .list(adClientId)
-          .setPageSize(maxPageSize)
-          .setPageToken(pageToken)
-          .execute();
-      List<AdUnit> adUnits = response.getAdUnits();
-
-      if (adUnits != null && !adUnits.isEmpty()) {
-        allAdUnits.addAll(adUnits);
-        for (AdUnit unit : adUnits) {
-          System.out.printf("Ad unit with id \"%s\", name \"%s\" and status \"%s\" was found.\n",
-              unit.getName(), unit.getDisplayName(), unit.getState());
-        }
-      } else {
-        System.out.println("No ad units found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    Iterator<AdUnit> items = cache != null
+        ? cache.getAdUnits(adsense, adClientId, maxPageSize).iterator()
+        : Paginator.SINGLE_PARENT.iterate(adClientId, Paginator.adUnits(adsense, maxPageSize));
+    while (items.hasNext()) {
+      AdUnit unit = items.next();
+      allAdUnits.add(unit);
+      System.out.printf("Ad unit with id \"%s\", name \"%s\" and status \"%s\" was found.\n",
+          unit.getName(), unit.getDisplayName(), unit.getState());
+    }
+    if (allAdUnits.isEmpty()) {
+      System.out.println("No ad units found.");
+    }
 
     System.out.println();
 
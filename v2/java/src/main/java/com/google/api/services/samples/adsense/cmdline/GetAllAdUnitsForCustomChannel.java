@@ -16,8 +16,7 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.model.AdUnit;
-import com.google.api.services.adsense.v2.model.ListLinkedAdUnitsResponse;
-import java.util.List;
+import java.util.Iterator;
 
 /**
 *
@@ -43,26 +42,18 @@ public class GetAllAdUnitsForCustomChannel {
     System.out.println("=================================================================");
 
     // Retrieve ad unit list in pages and display data as we receive it.
-    String pageToken = null;
-    do {
-      ListLinkedAdUnitsResponse response =
-          adsense.accounts().adclients().customchannels().listLinkedAdUnits(customChannelId)
-              .setPageSize(maxPageSize)
-              .setPageToken(pageToken)
-              .execute();
-      List<AdUnit> adUnits = response.getAdUnits();
-
-      if (adUnits != null && !adUnits.isEmpty()) {
-        for (AdUnit unit : adUnits) {
-          System.out.printf("Ad unit with id \"%s\", name \"%s\" and status \"%s\" was found.\n",
-              unit.getName(), unit.getDisplayName(), unit.getState());
-        }
-      } else {
-        System.out.println("No ad units found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    boolean found = false;
+    Iterator<AdUnit> items = Paginator.SINGLE_PARENT.iterate(customChannelId,
+        Paginator.linkedAdUnits(adsense, maxPageSize));
+    while (items.hasNext()) {
+      AdUnit unit = items.next();
+      found = true;
+      System.out.printf("Ad unit with id \"%s\", name \"%s\" and status \"%s\" was found.\n",
+          unit.getName(), unit.getDisplayName(), unit.getState());
+    }
+    if (!found) {
+      System.out.println("No ad units found.");
+    }
 
     System.out.println();
   }
@@ -16,8 +16,8 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.model.CustomChannel;
-import com.google.api.services.adsense.v2.model.ListCustomChannelsResponse;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -38,35 +38,44 @@ public class GetAllCustomChannels {
    * @return the retrieved custom channels.
    * @throws Exception
    */
-  public static List<CustomChannel> run(Adsense adsense, String adClientId,
+  public static List<CustomChannel> run(Adsense adsense, String adClientId, int maxPageSize)
+      throws Exception {
+    return run(adsense, null, adClientId, maxPageSize);
+  }
+
+  /**
+   * Runs this sample, reading the custom channels from an inventory cache when one is given.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param cache the inventory cache to read the custom channels from, or {@code null} to always
+   *     list them.
+   * @param adClientId the ID for the ad client to be used.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @return the retrieved custom channels.
+   * @throws Exception
+   */
+  public static List<CustomChannel> run(Adsense adsense, InventoryCache cache, String adClientId,
       int maxPageSize) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Listing all custom channels for ad client %s\n", adClientId);
     System.out.println("=================================================================");
 
-    // Retrieve custom channel list in pages and display the data as we receive it.
-    String pageToken = null;
+    // A fresh listing in the inventory cache is displayed without any request.
+    // Otherwise, retrieve custom channel list in pages and display the data as we receive it.
     List<CustomChannel> allCustomChannels = new ArrayList<CustomChannel>();
-    do {
-      ListCustomChannelsResponse response = adsense.accounts().adclients().customchannels()
-          .list(adClientId)
-          .setPageSize(maxPageSize)
-          .setPageToken(pageToken)
-          .execute();
-      List<CustomChannel> customChannels = response.getCustomChannels();
-
-      if (customChannels != null && !customChannels.isEmpty()) {
-        allCustomChannels.addAll(customChannels);
-        for (CustomChannel channel : customChannels) {
-          System.out.printf("Custom channel with id \"%s\" and name \"%s\" was found.\n",
-              channel.getName(), channel.getDisplayName());
-        }
-      } else {
-        System.out.println("No custom channels found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    Iterator<CustomChannel> items = cache != null
+        ? cache.getCustomChannels(adsense, adClientId, maxPageSize).iterator()
+        : Paginator.SINGLE_PARENT.iterate(adClientId,
+            Paginator.customChannels(adsense, maxPageSize));
+    while (items.hasNext()) {
+      CustomChannel channel = items.next();
+      allCustomChannels.add(channel);
+      System.out.printf("Custom channel with id \"%s\" and name \"%s\" was found.\n",
+          channel.getName(), channel.getDisplayName());
+    }
+    if (allCustomChannels.isEmpty()) {
+      System.out.println("No custom channels found.");
+    }
 
     System.out.println();
     return allCustomChannels;
@@ -16,8 +16,7 @@ package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
 import com.google.api.services.adsense.v2.model.CustomChannel;
-import com.google.api.services.adsense.v2.model.ListLinkedCustomChannelsResponse;
-import java.util.List;
+import java.util.Iterator;
 
 /**
 *
@@ -42,26 +41,18 @@ public class GetAllCustomChannelsForAdUnit {
     System.out.println("=================================================================");
 
     // Retrieve custom channel list in pages and display the data as we receive it.
-    String pageToken = null;
-    do {
-      ListLinkedCustomChannelsResponse response =
-          adsense.accounts().adclients().adunits().listLinkedCustomChannels(adUnitId)
-              .setPageSize(maxPageSize)
-              .setPageToken(pageToken)
-              .execute();
-      List<CustomChannel> customChannels = response.getCustomChannels();
-
-      if (customChannels != null && !customChannels.isEmpty()) {
-        for (CustomChannel channel : customChannels) {
-          System.out.printf("Custom channel with code \"%s\" and name \"%s\" was found.\n",
-              channel.getName(), channel.getDisplayName());
-        }
-      } else {
-        System.out.println("No custom channels found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    boolean found = false;
+    Iterator<CustomChannel> items = Paginator.SINGLE_PARENT.iterate(adUnitId,
+        Paginator.linkedCustomChannels(adsense, maxPageSize));
+    while (items.hasNext()) {
+      CustomChannel channel = items.next();
+      found = true;
+      System.out.printf("Custom channel with code \"%s\" and name \"%s\" was found.\n",
+          channel.getName(), channel.getDisplayName());
+    }
+    if (!found) {
+      System.out.println("No custom channels found.");
+    }
 
     System.out.println();
   }
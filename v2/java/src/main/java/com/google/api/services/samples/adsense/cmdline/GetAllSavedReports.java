@@ -15,9 +15,9 @@
 package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
-import com.google.api.services.adsense.v2.model.ListSavedReportsResponse;
 import com.google.api.services.adsense.v2.model.SavedReport;
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 
 /**
@@ -45,27 +45,18 @@ public class GetAllSavedReports {
     System.out.println("=================================================================");
 
     // Retrieve saved report list in pages and display the data as we receive it.
-    String pageToken = null;
     List<SavedReport> allSavedReports = new ArrayList<SavedReport>();
-    do {
-      ListSavedReportsResponse response = adsense.accounts().reports().saved().list(accountId)
-          .setPageSize(maxPageSize)
-          .setPageToken(pageToken)
-          .execute();
-      List<SavedReport> savedReports = response.getSavedReports();
-
-      if (savedReports != null && !savedReports.isEmpty()) {
-        allSavedReports.addAll(savedReports);
-        for (SavedReport savedReport : savedReports) {
-          System.out.printf("Saved report with id \"%s\" and name \"%s\" was found.\n",
-              savedReport.getName(), savedReport.getTitle());
-        }
-      } else {
-        System.out.println("No saved reports found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    Iterator<SavedReport> items =
+        Paginator.SINGLE_PARENT.iterate(accountId, Paginator.savedReports(adsense, maxPageSize));
+    while (items.hasNext()) {
+      SavedReport savedReport = items.next();
+      allSavedReports.add(savedReport);
+      System.out.printf("Saved report with id \"%s\" and name \"%s\" was found.\n",
+          savedReport.getName(), savedReport.getTitle());
+    }
+    if (allSavedReports.isEmpty()) {
+      System.out.println("No saved reports found.");
+    }
 
     System.out.println();
 
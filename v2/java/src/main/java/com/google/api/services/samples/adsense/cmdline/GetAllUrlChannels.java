@@ -15,9 +15,8 @@
 package com.google.api.services.samples.adsense.cmdline;
 
 import com.google.api.services.adsense.v2.Adsense;
-import com.google.api.services.adsense.v2.model.ListUrlChannelsResponse;
 import com.google.api.services.adsense.v2.model.UrlChannel;
-import java.util.List;
+import java.util.Iterator;
 
 /**
 *
@@ -37,31 +36,40 @@ public class GetAllUrlChannels {
    * @throws Exception
    */
   public static void run(Adsense adsense, String adClientId, int maxPageSize) throws Exception {
+    run(adsense, null, adClientId, maxPageSize);
+  }
+
+  /**
+   * Runs this sample, reading the URL channels from an inventory cache when one is given.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param cache the inventory cache to read the URL channels from, or {@code null} to always
+   *     list them.
+   * @param adClientId the ID for the ad client to be used.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @throws Exception
+   */
+  public static void run(Adsense adsense, InventoryCache cache, String adClientId,
+      int maxPageSize) throws Exception {
     System.out.println("=================================================================");
     System.out.printf("Listing all URL channels for ad client %s\n", adClientId);
     System.out.println("=================================================================");
 
-    // Retrieve URL channel list in pages and display the data as we receive it.
-    String pageToken = null;
-    do {
-      ListUrlChannelsResponse response = adsense.accounts().adclients().urlchannels()
-          .list(adClientId)
-          .setPageSize(maxPageSize)
-          .setPageToken(pageToken)
-          .execute();
-      List<UrlChannel> urlChannels = response.getUrlChannels();
-
-      if (urlChannels != null && !urlChannels.isEmpty()) {
-        for (UrlChannel channel : urlChannels) {
-          System.out.printf("URL channel with URI pattern \"%s\" was found.\n",
-              channel.getUriPattern());
-        }
-      } else {
-        System.out.println("No URL channels found.");
-      }
-
-      pageToken = response.getNextPageToken();
-    } while (pageToken != null);
+    // A fresh listing in the inventory cache is displayed without any request.
+    // Otherwise, retrieve URL channel list in pages and display the data as we receive it.
+    boolean found = false;
+    Iterator<UrlChannel> items = cache != null
+        ? cache.getUrlChannels(adsense, adClientId, maxPageSize).iterator()
+        : Paginator.SINGLE_PARENT.iterate(adClientId, Paginator.urlChannels(adsense, maxPageSize));
+    while (items.hasNext()) {
+      UrlChannel channel = items.next();
+      found = true;
+      System.out.printf("URL channel with URI pattern \"%s\" was found.\n",
+          channel.getUriPattern());
+    }
+    if (!found) {
+      System.out.println("No URL channels found.");
+    }
 
     System.out.println();
   }
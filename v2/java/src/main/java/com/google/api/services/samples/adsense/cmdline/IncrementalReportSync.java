@@ -0,0 +1,417 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a local, day-partitioned copy of a report up to date by fetching only the days that can
+ * still change.
+ *
+ * <p>A sync is defined by an account, its dimensions, metrics and filters. Its rows are stored
+ * under the store directory as one tab-separated file per day, next to a watermark file that
+ * records the last day considered final. Each run fetches the days after the watermark up to
+ * today, in one {@code CUSTOM} range request per calendar month, replaces the files of those days,
+ * and then moves the watermark up to the start of the re-check window. Days inside the window are
+ * fetched again on the next run, which picks up late-settling earnings. A first run, which may
+ * backfill years of history, therefore never asks for more than a month at a time, and a month
+ * whose response holds fewer rows than the report matched fails the run rather than storing a
+ * truncated copy.
+ *
+ * <p>{@code DATE} is always the first dimension of the stored rows.
+ */
+public final class IncrementalReportSync {
+
+  private static final String WATERMARK_FILE = "watermark";
+  private static final String SPEC_FILE = "spec";
+  private static final String DAY_FILE_SUFFIX = ".tsv";
+
+  private final String accountId;
+  private final List<String> dimensions;
+  private final List<String> metrics;
+  private final List<String> filters;
+  private final LocalDate initialStartDate;
+  private final int recheckDays;
+  private final File directory;
+
+  private IncrementalReportSync(Builder builder) {
+    this.accountId = builder.accountId;
+    List<String> dimensions = new ArrayList<String>();
+    dimensions.add("DATE");
+    for (String dimension : builder.dimensions) {
+      if (!"DATE".equals(dimension)) {
+        dimensions.add(dimension);
+      }
+    }
+    this.dimensions = Collections.unmodifiableList(dimensions);
+    this.metrics = Collections.unmodifiableList(new ArrayList<String>(builder.metrics));
+    List<String> filters = new ArrayList<String>(builder.filters);
+    Collections.sort(filters);
+    this.filters = Collections.unmodifiableList(filters);
+    this.initialStartDate = builder.initialStartDate;
+    this.recheckDays = builder.recheckDays;
+    this.directory = new File(builder.storeDirectory, syncKey());
+  }
+
+  /** @return the directory that holds the watermark and the day files of this sync. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * @return the last day whose rows are considered final, or {@code null} if nothing has been
+   *     synced yet.
+   * @throws IOException if the watermark cannot be read.
+   */
+  public LocalDate getWatermark() throws IOException {
+    File file = new File(directory, WATERMARK_FILE);
+    if (!file.isFile()) {
+      return null;
+    }
+    return LocalDate.parse(
+        new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8).trim());
+  }
+
+  /**
+   * Fetches every day after the watermark up to and including {@code today}, a calendar month per
+   * request, and merges them into the local store.
+   *
+   * @param adsense AdSense service object on which to run the request.
+   * @param today the current date in the account's reporting time zone.
+   * @return the number of days fetched, zero if the store was already up to date.
+   * @throws IOException if a request fails or is truncated, or the store cannot be written.
+   */
+  public int sync(Adsense adsense, LocalDate today) throws IOException {
+    LocalDate watermark = getWatermark();
+    LocalDate start = watermark != null ? watermark.plusDays(1) : initialStartDate;
+    if (start.isAfter(today)) {
+      return 0;
+    }
+    Files.createDirectories(directory.toPath());
+    writeSpec();
+
+    // Rows are written to temporary day files first, and only moved into place once every
+    // response has been read, so a failed run leaves the store untouched.
+    DayWriter writer = new DayWriter();
+    boolean complete = false;
+    try {
+      for (LocalDate from = start; !from.isAfter(today);
+          from = from.withDayOfMonth(1).plusMonths(1)) {
+        LocalDate to = from.withDayOfMonth(from.lengthOfMonth());
+        if (to.isAfter(today)) {
+          to = today;
+        }
+        writer.rowCount = 0;
+        ReportResult result = ReportStreamReader.execute(newRequest(adsense, from, to), writer);
+        Long matched = result.getTotalMatchedRows();
+        if (matched != null && matched > writer.rowCount) {
+          throw new IOException(String.format("The report from %s to %s matched %d rows but only "
+              + "returned %d.", from, to, matched, writer.rowCount));
+        }
+      }
+      complete = true;
+    } finally {
+      writer.close();
+      if (!complete) {
+        for (File temporary : writer.temporaryFiles.values()) {
+          Files.deleteIfExists(temporary.toPath());
+        }
+      }
+    }
+
+    int days = 0;
+    for (LocalDate day = start; !day.isAfter(today); day = day.plusDays(1)) {
+      File temporary = writer.temporaryFiles.get(day.toString());
+      if (temporary == null) {
+        // No rows for this day; store an empty day so it still counts as synced.
+        temporary = writer.newTemporaryFile();
+        writeLines(temporary, Collections.singletonList(writer.headerLine));
+      }
+      Files.move(temporary.toPath(), dayFile(day).toPath(), StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      days++;
+    }
+
+    LocalDate finalized = today.minusDays(recheckDays + 1);
+    if (watermark == null || finalized.isAfter(watermark)) {
+      LocalDate newWatermark = finalized.isBefore(start) ? start.minusDays(1) : finalized;
+      writeLines(new File(directory, WATERMARK_FILE),
+          Collections.singletonList(newWatermark.toString()));
+    }
+    return days;
+  }
+
+  private Generate newRequest(Adsense adsense, LocalDate from, LocalDate to) throws IOException {
+    Generate request = adsense.accounts().reports().generate(accountId);
+    request.setDateRange("CUSTOM");
+    request.setStartDateYear(from.getYear()).setStartDateMonth(from.getMonthValue())
+        .setStartDateDay(from.getDayOfMonth());
+    request.setEndDateYear(to.getYear()).setEndDateMonth(to.getMonthValue())
+        .setEndDateDay(to.getDayOfMonth());
+    request.setDimensions(dimensions);
+    request.setMetrics(metrics);
+    if (!filters.isEmpty()) {
+      request.setFilters(filters);
+    }
+    request.setOrderBy(Arrays.asList("+DATE"));
+    return request;
+  }
+
+  /**
+   * Reads the stored rows of a range of days, in date order. Days that were never synced are
+   * skipped.
+   *
+   * @param from the first day to read.
+   * @param to the last day to read, inclusive.
+   * @param handler the handler that receives the headers and the rows.
+   * @throws IOException if the store cannot be read.
+   */
+  public void read(LocalDate from, LocalDate to, ReportStreamReader.RowHandler handler)
+      throws IOException {
+    boolean headersSent = false;
+    for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+      File file = dayFile(day);
+      if (!file.isFile()) {
+        continue;
+      }
+      BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8);
+      try {
+        String headerLine = reader.readLine();
+        if (headerLine == null || headerLine.isEmpty()) {
+          continue;
+        }
+        String[] cells = new String[headerLine.split("\t", -1).length];
+        if (!headersSent) {
+          handler.headers(parseHeaders(headerLine));
+          headersSent = true;
+        }
+        String line;
+        while ((line = reader.readLine()) != null) {
+          String[] fields = line.split("\t", -1);
+          for (int i = 0; i < cells.length; i++) {
+            cells[i] = unescape(fields[i]);
+          }
+          handler.row(cells);
+        }
+      } finally {
+        reader.close();
+      }
+    }
+    if (!headersSent) {
+      handler.headers(Collections.<Header>emptyList());
+    }
+  }
+
+  private File dayFile(LocalDate day) {
+    return new File(directory, day + DAY_FILE_SUFFIX);
+  }
+
+  /** Identifies this sync by a digest of its account, dimensions, metrics and filters. */
+  private String syncKey() {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-256");
+      byte[] hash = digest.digest(describe().getBytes(StandardCharsets.UTF_8));
+      StringBuilder key = new StringBuilder();
+      for (int i = 0; i < 8; i++) {
+        key.append(String.format("%02x", hash[i]));
+      }
+      return key.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private String describe() {
+    return "account=" + accountId + "\ndimensions=" + dimensions + "\nmetrics=" + metrics
+        + "\nfilters=" + filters + "\n";
+  }
+
+  private void writeSpec() throws IOException {
+    File file = new File(directory, SPEC_FILE);
+    if (!file.isFile()) {
+      writeLines(file, Collections.singletonList(describe()));
+    }
+  }
+
+  private static void writeLines(File file, List<String> lines) throws IOException {
+    Files.write(file.toPath(), lines, StandardCharsets.UTF_8);
+  }
+
+  /** Header lines hold "NAME:TYPE" entries separated by tabs. */
+  private static List<Header> parseHeaders(String headerLine) {
+    List<Header> headers = new ArrayList<Header>();
+    for (String field : headerLine.split("\t", -1)) {
+      int colon = field.lastIndexOf(':');
+      headers.add(new Header().setName(field.substring(0, colon))
+          .setType(field.substring(colon + 1)));
+    }
+    return headers;
+  }
+
+  private static String escape(String value) {
+    if (value == null) {
+      return "";
+    }
+    return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+  }
+
+  private static String unescape(String value) {
+    if (value.indexOf('\\') < 0) {
+      return value;
+    }
+    StringBuilder result = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '\\' && i + 1 < value.length()) {
+        char next = value.charAt(++i);
+        result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  /** Splits the streamed rows into one temporary file per day. */
+  private final class DayWriter implements ReportStreamReader.RowHandler {
+    final Map<String, File> temporaryFiles = new LinkedHashMap<String, File>();
+    String headerLine = "";
+    long rowCount;
+    private String currentDay;
+    private Writer currentWriter;
+
+    @Override
+    public void headers(List<Header> headers) {
+      StringBuilder line = new StringBuilder();
+      for (Header header : headers) {
+        if (line.length() > 0) {
+          line.append('\t');
+        }
+        line.append(header.getName()).append(':').append(header.getType());
+      }
+      headerLine = line.toString();
+    }
+
+    @Override
+    public void row(String[] cells) throws IOException {
+      rowCount++;
+      String day = cells[0];
+      if (!day.equals(currentDay)) {
+        close();
+        File file = temporaryFiles.get(day);
+        if (file != null) {
+          throw new IOException("Report rows for " + day + " are not contiguous.");
+        }
+        file = newTemporaryFile();
+        temporaryFiles.put(day, file);
+        currentDay = day;
+        currentWriter = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8);
+        currentWriter.write(headerLine);
+        currentWriter.write('\n');
+      }
+      for (int i = 0; i < cells.length; i++) {
+        if (i > 0) {
+          currentWriter.write('\t');
+        }
+        currentWriter.write(escape(cells[i]));
+      }
+      currentWriter.write('\n');
+    }
+
+    File newTemporaryFile() throws IOException {
+      return File.createTempFile("day", ".tmp", directory);
+    }
+
+    void close() throws IOException {
+      if (currentWriter != null) {
+        currentWriter.close();
+        currentWriter = null;
+      }
+    }
+  }
+
+  /** Builder for {@link IncrementalReportSync}. */
+  public static final class Builder {
+    private final File storeDirectory;
+    private final String accountId;
+    private List<String> dimensions = Collections.emptyList();
+    private List<String> metrics = Collections.emptyList();
+    private List<String> filters = Collections.emptyList();
+    private LocalDate initialStartDate;
+    private int recheckDays = 3;
+
+    /**
+     * @param storeDirectory the root directory of the local store, shared by all syncs.
+     * @param accountId the ID for the account to be used.
+     * @param initialStartDate the first day to fetch when nothing has been synced yet.
+     */
+    public Builder(File storeDirectory, String accountId, LocalDate initialStartDate) {
+      this.storeDirectory = storeDirectory;
+      this.accountId = accountId;
+      this.initialStartDate = initialStartDate;
+    }
+
+    /** Sets the dimensions, besides {@code DATE}, of the stored rows. */
+    public Builder setDimensions(List<String> dimensions) {
+      this.dimensions = dimensions;
+      return this;
+    }
+
+    /** Sets the metrics of the stored rows. */
+    public Builder setMetrics(List<String> metrics) {
+      this.metrics = metrics;
+      return this;
+    }
+
+    /** Sets the report filters, for example from {@link GenerateReport#escapeFilterParameter}. */
+    public Builder setFilters(List<String> filters) {
+      this.filters = filters;
+      return this;
+    }
+
+    /** Sets how many days before today are fetched again on every run. Defaults to 3. */
+    public Builder setRecheckDays(int recheckDays) {
+      this.recheckDays = recheckDays;
+      return this;
+    }
+
+    /** @return the new sync. */
+    public IncrementalReportSync build() {
+      if (metrics.isEmpty()) {
+        throw new IllegalStateException("At least one metric is required");
+      }
+      return new IncrementalReportSync(this);
+    }
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.util.store.DataStore;
+import com.google.api.client.util.store.DataStoreFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.AdsenseRequest;
+import com.google.api.services.adsense.v2.model.AdClient;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.CustomChannel;
+import com.google.api.services.adsense.v2.model.ListAdClientsResponse;
+import com.google.api.services.adsense.v2.model.ListAdUnitsResponse;
+import com.google.api.services.adsense.v2.model.ListCustomChannelsResponse;
+import com.google.api.services.adsense.v2.model.ListUrlChannelsResponse;
+import com.google.api.services.adsense.v2.model.UrlChannel;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent cache of account inventory: ad clients, ad units, custom channels and URL
+ * channels.
+ *
+ * <p>Listings are stored in a {@link DataStore} of the given {@link DataStoreFactory}, normally
+ * the same {@code FileDataStoreFactory} that holds the user credentials, keyed by the resource
+ * name of the parent and the collection listed. A listing younger than the TTL is returned
+ * without any API call. An older listing is fetched again; if it was a single page and the server
+ * returned an ETag for it, the request is made conditional with {@code If-None-Match} and a
+ * {@code 304 Not Modified} answer just renews the cached copy.
+ */
+public final class InventoryCache {
+
+  /** ID of the data store that holds the cached listings. */
+  public static final String DATA_STORE_ID = "InventoryCache";
+
+  /** A cached listing. Items are kept as JSON so that they survive serialization. */
+  private static final class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    final ArrayList<String> items;
+    final String etag;
+    final int pageCount;
+    final long fetchedAtMillis;
+
+    Entry(ArrayList<String> items, String etag, int pageCount, long fetchedAtMillis) {
+      this.items = items;
+      this.etag = etag;
+      this.pageCount = pageCount;
+      this.fetchedAtMillis = fetchedAtMillis;
+    }
+  }
+
+  /**
+   * Builds the requests of a paginated listing and extracts their results.
+   *
+   * @param <R> the list response type.
+   * @param <T> the type of the items listed.
+   */
+  private interface Listing<R, T> {
+    AdsenseRequest<R> request(String pageToken) throws IOException;
+
+    Paginator.Page<T> page(R response);
+  }
+
+  /** The inventory of one account, as returned by {@link #getInventory}. */
+  public static final class Inventory {
+    private final List<AdClient> adClients;
+    private final Map<String, List<AdUnit>> adUnits = new LinkedHashMap<String, List<AdUnit>>();
+    private final Map<String, List<CustomChannel>> customChannels =
+        new LinkedHashMap<String, List<CustomChannel>>();
+    private final Map<String, List<UrlChannel>> urlChannels =
+        new LinkedHashMap<String, List<UrlChannel>>();
+
+    Inventory(List<AdClient> adClients) {
+      this.adClients = adClients;
+    }
+
+    /** @return the ad clients of the account. */
+    public List<AdClient> getAdClients() {
+      return adClients;
+    }
+
+    /** @return the ad units of each ad client, keyed by ad client name. */
+    public Map<String, List<AdUnit>> getAdUnits() {
+      return adUnits;
+    }
+
+    /** @return the custom channels of each ad client, keyed by ad client name. */
+    public Map<String, List<CustomChannel>> getCustomChannels() {
+      return customChannels;
+    }
+
+    /** @return the URL channels of each ad client, keyed by ad client name. */
+    public Map<String, List<UrlChannel>> getUrlChannels() {
+      return urlChannels;
+    }
+  }
+
+  private final DataStore<Entry> dataStore;
+  private final JsonFactory jsonFactory;
+  private final long ttlMillis;
+
+  /**
+   * Creates a new cache.
+   *
+   * @param dataStoreFactory the factory of the data store that holds the cached listings.
+   * @param jsonFactory the JSON factory used to store and restore items.
+   * @param ttl how long a listing is used without asking the server.
+   * @param unit the unit of {@code ttl}.
+   * @throws IOException if the data store cannot be opened.
+   */
+  public InventoryCache(DataStoreFactory dataStoreFactory, JsonFactory jsonFactory, long ttl,
+      TimeUnit unit) throws IOException {
+    this.dataStore = dataStoreFactory.getDataStore(DATA_STORE_ID);
+    this.jsonFactory = jsonFactory;
+    this.ttlMillis = unit.toMillis(ttl);
+  }
+
+  /**
+   * Returns the whole inventory of an account. With a warm cache no API calls are made.
+   *
+   * @param adsense AdSense service object on which to run any requests.
+   * @param accountId the ID for the account to be used.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @return the inventory.
+   * @throws IOException if a request fails.
+   */
+  public Inventory getInventory(Adsense adsense, String accountId, int maxPageSize)
+      throws IOException {
+    Inventory inventory = new Inventory(getAdClients(adsense, accountId, maxPageSize));
+    for (AdClient adClient : inventory.getAdClients()) {
+      String adClientId = adClient.getName();
+      inventory.adUnits.put(adClientId, getAdUnits(adsense, adClientId, maxPageSize));
+      inventory.customChannels.put(adClientId,
+          getCustomChannels(adsense, adClientId, maxPageSize));
+      inventory.urlChannels.put(adClientId, getUrlChannels(adsense, adClientId, maxPageSize));
+    }
+    return inventory;
+  }
+
+  /** Returns the ad clients of an account. */
+  public List<AdClient> getAdClients(final Adsense adsense, final String accountId,
+      final int maxPageSize) throws IOException {
+    return get(accountId + "/adclients", AdClient.class,
+        new Listing<ListAdClientsResponse, AdClient>() {
+          @Override
+          public AdsenseRequest<ListAdClientsResponse> request(String pageToken)
+              throws IOException {
+            return adsense.accounts().adclients().list(accountId)
+                .setPageSize(maxPageSize)
+                .setPageToken(pageToken);
+          }
+
+          @Override
+          public Paginator.Page<AdClient> page(ListAdClientsResponse response) {
+            return new Paginator.Page<AdClient>(
+                response.getAdClients(), response.getNextPageToken());
+          }
+        });
+  }
+
+  /** Returns the ad units of an ad client. */
+  public List<AdUnit> getAdUnits(final Adsense adsense, final String adClientId,
+      final int maxPageSize) throws IOException {
+    return get(adClientId + "/adunits", AdUnit.class,
+        new Listing<ListAdUnitsResponse, AdUnit>() {
+          @Override
+          public AdsenseRequest<ListAdUnitsResponse> request(String pageToken)
+              throws IOException {
+            return adsense.accounts().adclients().adunits().list(adClientId)
+                .setPageSize(maxPageSize)
+                .setPageToken(pageToken);
+          }
+
+          @Override
+          public Paginator.Page<AdUnit> page(ListAdUnitsResponse response) {
+            return new Paginator.Page<AdUnit>(response.getAdUnits(), response.getNextPageToken());
+          }
+        });
+  }
+
+  /** Returns the custom channels of an ad client. */
+  public List<CustomChannel> getCustomChannels(final Adsense adsense, final String adClientId,
+      final int maxPageSize) throws IOException {
+    return get(adClientId + "/customchannels", CustomChannel.class,
+        new Listing<ListCustomChannelsResponse, CustomChannel>() {
+          @Override
+          public AdsenseRequest<ListCustomChannelsResponse> request(String pageToken)
+              throws IOException {
+            return adsense.accounts().adclients().customchannels().list(adClientId)
+                .setPageSize(maxPageSize)
+                .setPageToken(pageToken);
+          }
+
+          @Override
+          public Paginator.Page<CustomChannel> page(ListCustomChannelsResponse response) {
+            return new Paginator.Page<CustomChannel>(
+                response.getCustomChannels(), response.getNextPageToken());
+          }
+        });
+  }
+
+  /** Returns the URL channels of an ad client. */
+  public List<UrlChannel> getUrlChannels(final Adsense adsense, final String adClientId,
+      final int maxPageSize) throws IOException {
+    return get(adClientId + "/urlchannels", UrlChannel.class,
+        new Listing<ListUrlChannelsResponse, UrlChannel>() {
+          @Override
+          public AdsenseRequest<ListUrlChannelsResponse> request(String pageToken)
+              throws IOException {
+            return adsense.accounts().adclients().urlchannels().list(adClientId)
+                .setPageSize(maxPageSize)
+                .setPageToken(pageToken);
+          }
+
+          @Override
+          public Paginator.Page<UrlChannel> page(ListUrlChannelsResponse response) {
+            return new Paginator.Page<UrlChannel>(
+                response.getUrlChannels(), response.getNextPageToken());
+          }
+        });
+  }
+
+  /**
+   * Drops a cached listing, so that it is fetched again on its next use.
+   *
+   * @param key the parent resource name followed by the collection, for example
+   *     {@code "accounts/pub-1234/adclients/ca-pub-1234/adunits"}.
+   */
+  public void invalidate(String key) throws IOException {
+    dataStore.delete(key);
+  }
+
+  /** Drops all cached listings. */
+  public void clear() throws IOException {
+    dataStore.clear();
+  }
+
+  private <R, T> List<T> get(String key, Class<T> itemClass, Listing<R, T> listing)
+      throws IOException {
+    Entry entry = dataStore.get(key);
+    long now = System.currentTimeMillis();
+    if (entry != null && now - entry.fetchedAtMillis < ttlMillis) {
+      return restore(entry, itemClass);
+    }
+
+    ArrayList<String> items = new ArrayList<String>();
+    List<T> result = new ArrayList<T>();
+    String etag = null;
+    int pageCount = 0;
+    String pageToken = null;
+    do {
+      AdsenseRequest<R> request = listing.request(pageToken);
+      boolean conditional = pageCount == 0 && entry != null && entry.etag != null
+          && entry.pageCount == 1;
+      if (conditional) {
+        request.getRequestHeaders().setIfNoneMatch(entry.etag);
+      }
+      R response;
+      try {
+        response = request.execute();
+      } catch (HttpResponseException e) {
+        if (conditional && e.getStatusCode() == HttpStatusCodes.STATUS_CODE_NOT_MODIFIED) {
+          dataStore.set(key, new Entry(entry.items, entry.etag, entry.pageCount, now));
+          return restore(entry, itemClass);
+        }
+        throw e;
+      }
+      if (pageCount == 0 && request.getLastResponseHeaders() != null) {
+        etag = request.getLastResponseHeaders().getETag();
+      }
+      Paginator.Page<T> page = listing.page(response);
+      for (T item : page.getItems()) {
+        items.add(jsonFactory.toString(item));
+        result.add(item);
+      }
+      pageCount++;
+      pageToken = page.getNextPageToken();
+    } while (pageToken != null);
+
+    dataStore.set(key, new Entry(items, etag, pageCount, now));
+    return Collections.unmodifiableList(result);
+  }
+
+  private <T> List<T> restore(Entry entry, Class<T> itemClass) throws IOException {
+    List<T> result = new ArrayList<T>(entry.items.size());
+    for (String item : entry.items) {
+      result.add(jsonFactory.fromString(item, itemClass));
+    }
+    return Collections.unmodifiableList(result);
+  }
+}
@@ -0,0 +1,427 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.CustomChannel;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory index of which ad units are in which custom channels, for one ad client.
+ *
+ * <p>Ad units and custom channels are numbered with dense ordinals, in the order of their resource
+ * names. Links are stored in compressed sparse row form in both directions: the neighbours of
+ * ordinal {@code i} are {@code targets[offsets[i]]} to {@code targets[offsets[i + 1] - 1]}, sorted,
+ * so lookups cost no allocation and set operations are linear merges.
+ *
+ * <p>Build an index once with {@link #build}, then {@link #save} it and {@link #load} it again
+ * instead of calling {@code listLinkedCustomChannels} for every ad unit.
+ */
+public final class LinkGraph {
+
+  private static final int MAGIC = 0x41534c47;
+  private static final int VERSION = 1;
+
+  private final String adClientId;
+  private final String[] adUnits;
+  private final String[] customChannels;
+  private final int[] unitOffsets;
+  private final int[] unitChannels;
+  private final int[] channelOffsets;
+  private final int[] channelUnits;
+
+  /**
+   * Creates an index from its links.
+   *
+   * @param adUnits the ad unit names, sorted and unique.
+   * @param customChannels the custom channel names, sorted and unique.
+   * @param unitOffsets the row offsets of each ad unit, with one extra entry at the end.
+   * @param unitChannels the custom channel ordinals of each ad unit, sorted within each row.
+   */
+  private LinkGraph(String adClientId, String[] adUnits, String[] customChannels,
+      int[] unitOffsets, int[] unitChannels) {
+    this.adClientId = adClientId;
+    this.adUnits = adUnits;
+    this.customChannels = customChannels;
+    this.unitOffsets = unitOffsets;
+    this.unitChannels = unitChannels;
+
+    // Transpose the rows: count, prefix sum, then fill in ad unit order so rows stay sorted.
+    channelOffsets = new int[customChannels.length + 1];
+    for (int channel : unitChannels) {
+      channelOffsets[channel + 1]++;
+    }
+    for (int i = 0; i < customChannels.length; i++) {
+      channelOffsets[i + 1] += channelOffsets[i];
+    }
+    channelUnits = new int[unitChannels.length];
+    int[] next = Arrays.copyOf(channelOffsets, customChannels.length);
+    for (int unit = 0; unit < adUnits.length; unit++) {
+      for (int i = unitOffsets[unit]; i < unitOffsets[unit + 1]; i++) {
+        channelUnits[next[unitChannels[i]]++] = unit;
+      }
+    }
+  }
+
+  /**
+   * Builds the index of an ad client, fetching the custom channels of all its ad units in batches.
+   *
+   * @param adsense the AdSense service object.
+   * @param adClientId the resource name of the ad client.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @param fetcher the batch fetcher used for the per-ad-unit calls.
+   * @return the index.
+   * @throws IOException if a request fails, or the links of an ad unit cannot be fetched.
+   */
+  public static LinkGraph build(Adsense adsense, String adClientId, int maxPageSize,
+      BatchFetcher fetcher) throws IOException {
+    List<String> unitNames = new ArrayList<String>();
+    for (AdUnit unit : Paginator.SINGLE_PARENT.iterate(adClientId,
+        Paginator.adUnits(adsense, maxPageSize)).toList()) {
+      unitNames.add(unit.getName());
+    }
+    List<String> channelNames = new ArrayList<String>();
+    for (CustomChannel channel : Paginator.SINGLE_PARENT.iterate(adClientId,
+        Paginator.customChannels(adsense, maxPageSize)).toList()) {
+      channelNames.add(channel.getName());
+    }
+
+    BatchFetcher.Result<CustomChannel> links =
+        fetcher.fetchAll(unitNames, BatchFetcher.linkedCustomChannels(adsense, maxPageSize));
+    if (!links.getFailures().isEmpty()) {
+      Map.Entry<String, GoogleJsonError> failure =
+          links.getFailures().entrySet().iterator().next();
+      throw new IOException(String.format("Unable to list the custom channels of %s: %s",
+          failure.getKey(), failure.getValue().getMessage()));
+    }
+
+    String[] adUnits = sortedUnique(unitNames);
+    String[] customChannels = sortedUnique(channelNames);
+    int[] unitOffsets = new int[adUnits.length + 1];
+    int[] unitChannels = new int[16];
+    int edges = 0;
+    for (int unit = 0; unit < adUnits.length; unit++) {
+      List<CustomChannel> linked = links.getItems().get(adUnits[unit]);
+      int start = edges;
+      for (CustomChannel channel : linked) {
+        int ordinal = Arrays.binarySearch(customChannels, channel.getName());
+        if (ordinal < 0) {
+          // Created after the custom channels were listed; it is not part of this index.
+          continue;
+        }
+        if (edges == unitChannels.length) {
+          unitChannels = Arrays.copyOf(unitChannels, edges * 2);
+        }
+        unitChannels[edges++] = ordinal;
+      }
+      Arrays.sort(unitChannels, start, edges);
+      edges = start + dedupe(unitChannels, start, edges);
+      unitOffsets[unit + 1] = edges;
+    }
+    return new LinkGraph(adClientId, adUnits, customChannels, unitOffsets,
+        Arrays.copyOf(unitChannels, edges));
+  }
+
+  /** @return the resource name of the ad client. */
+  public String getAdClientId() {
+    return adClientId;
+  }
+
+  /** @return the number of ad units. */
+  public int getAdUnitCount() {
+    return adUnits.length;
+  }
+
+  /** @return the number of custom channels. */
+  public int getCustomChannelCount() {
+    return customChannels.length;
+  }
+
+  /** @return the number of links. */
+  public int getLinkCount() {
+    return unitChannels.length;
+  }
+
+  /** @return the ordinal of an ad unit, or {@code -1} if it is not in the index. */
+  public int adUnitOrdinal(String adUnitName) {
+    return Math.max(-1, Arrays.binarySearch(adUnits, adUnitName));
+  }
+
+  /** @return the ordinal of a custom channel, or {@code -1} if it is not in the index. */
+  public int customChannelOrdinal(String customChannelName) {
+    return Math.max(-1, Arrays.binarySearch(customChannels, customChannelName));
+  }
+
+  /** @return the resource name of an ad unit. */
+  public String getAdUnitName(int adUnit) {
+    return adUnits[adUnit];
+  }
+
+  /** @return the resource name of a custom channel. */
+  public String getCustomChannelName(int customChannel) {
+    return customChannels[customChannel];
+  }
+
+  /** @return whether an ad unit is in a custom channel. */
+  public boolean isLinked(int adUnit, int customChannel) {
+    return Arrays.binarySearch(unitChannels, unitOffsets[adUnit], unitOffsets[adUnit + 1],
+        customChannel) >= 0;
+  }
+
+  /** @return the number of custom channels an ad unit is in. */
+  public int getCustomChannelCount(int adUnit) {
+    return unitOffsets[adUnit + 1] - unitOffsets[adUnit];
+  }
+
+  /** @return the number of ad units in a custom channel. */
+  public int getAdUnitCount(int customChannel) {
+    return channelOffsets[customChannel + 1] - channelOffsets[customChannel];
+  }
+
+  /** @return the ordinals of the custom channels an ad unit is in, sorted. */
+  public int[] customChannelsOf(int adUnit) {
+    return Arrays.copyOfRange(unitChannels, unitOffsets[adUnit], unitOffsets[adUnit + 1]);
+  }
+
+  /** @return the ordinals of the ad units in a custom channel, sorted. */
+  public int[] adUnitsOf(int customChannel) {
+    return Arrays.copyOfRange(channelUnits, channelOffsets[customChannel],
+        channelOffsets[customChannel + 1]);
+  }
+
+  /** @return the ordinals of the ad units that are in every one of the custom channels. */
+  public int[] adUnitsInAll(int... customChannels) {
+    return intersect(channelOffsets, channelUnits, customChannels);
+  }
+
+  /** @return the ordinals of the ad units that are in any of the custom channels. */
+  public int[] adUnitsInAny(int... customChannels) {
+    return union(channelOffsets, channelUnits, customChannels, adUnits.length);
+  }
+
+  /** @return the ordinals of the custom channels that contain every one of the ad units. */
+  public int[] customChannelsOfAll(int... adUnits) {
+    return intersect(unitOffsets, unitChannels, adUnits);
+  }
+
+  /** @return the ordinals of the custom channels that contain any of the ad units. */
+  public int[] customChannelsOfAny(int... adUnits) {
+    return union(unitOffsets, unitChannels, adUnits, customChannels.length);
+  }
+
+  /** Intersects rows, starting from the shortest one so the result shrinks as fast as possible. */
+  private static int[] intersect(int[] offsets, int[] targets, int[] rows) {
+    if (rows.length == 0) {
+      return new int[0];
+    }
+    int shortest = rows[0];
+    for (int row : rows) {
+      if (offsets[row + 1] - offsets[row] < offsets[shortest + 1] - offsets[shortest]) {
+        shortest = row;
+      }
+    }
+    int[] result = Arrays.copyOfRange(targets, offsets[shortest], offsets[shortest + 1]);
+    int size = result.length;
+    for (int row : rows) {
+      if (row == shortest) {
+        continue;
+      }
+      int kept = 0;
+      int j = offsets[row];
+      int end = offsets[row + 1];
+      for (int i = 0; i < size && j < end; ) {
+        if (result[i] < targets[j]) {
+          i++;
+        } else if (result[i] > targets[j]) {
+          j++;
+        } else {
+          result[kept++] = result[i++];
+          j++;
+        }
+      }
+      size = kept;
+    }
+    return Arrays.copyOf(result, size);
+  }
+
+  /** Unites rows by marking their targets, which keeps the result sorted without merging. */
+  private static int[] union(int[] offsets, int[] targets, int[] rows, int targetCount) {
+    boolean[] marked = new boolean[targetCount];
+    int size = 0;
+    for (int row : rows) {
+      for (int i = offsets[row]; i < offsets[row + 1]; i++) {
+        if (!marked[targets[i]]) {
+          marked[targets[i]] = true;
+          size++;
+        }
+      }
+    }
+    int[] result = new int[size];
+    for (int target = 0, next = 0; next < size; target++) {
+      if (marked[target]) {
+        result[next++] = target;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Writes the index in a compact binary form. Names are front coded, and each ad unit's custom
+   * channel ordinals are written as variable-length deltas; the reverse direction is rebuilt when
+   * the index is loaded.
+   *
+   * @param out the stream to write to; it is flushed but not closed.
+   * @throws IOException if the stream cannot be written.
+   */
+  public void save(OutputStream out) throws IOException {
+    DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+    data.writeInt(MAGIC);
+    data.writeByte(VERSION);
+    data.writeUTF(adClientId);
+    writeNames(data, adUnits);
+    writeNames(data, customChannels);
+    for (int unit = 0; unit < adUnits.length; unit++) {
+      writeVarInt(data, unitOffsets[unit + 1] - unitOffsets[unit]);
+      int previous = -1;
+      for (int i = unitOffsets[unit]; i < unitOffsets[unit + 1]; i++) {
+        writeVarInt(data, unitChannels[i] - previous - 1);
+        previous = unitChannels[i];
+      }
+    }
+    data.flush();
+  }
+
+  /**
+   * Reads an index written by {@link #save}.
+   *
+   * @param in the stream to read from; it is not closed.
+   * @return the index.
+   * @throws IOException if the stream cannot be read or does not hold an index.
+   */
+  public static LinkGraph load(InputStream in) throws IOException {
+    DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+    if (data.readInt() != MAGIC || data.readByte() != VERSION) {
+      throw new IOException("Not a link graph, or an unsupported version");
+    }
+    String adClientId = data.readUTF();
+    String[] adUnits = readNames(data);
+    String[] customChannels = readNames(data);
+    int[] unitOffsets = new int[adUnits.length + 1];
+    int[] unitChannels = new int[16];
+    int edges = 0;
+    for (int unit = 0; unit < adUnits.length; unit++) {
+      int degree = readVarInt(data);
+      if (edges + degree > unitChannels.length) {
+        unitChannels = Arrays.copyOf(unitChannels, Math.max(edges + degree, edges * 2));
+      }
+      int previous = -1;
+      for (int i = 0; i < degree; i++) {
+        previous += readVarInt(data) + 1;
+        if (previous >= customChannels.length) {
+          throw new IOException("Custom channel ordinal out of range");
+        }
+        unitChannels[edges++] = previous;
+      }
+      unitOffsets[unit + 1] = edges;
+    }
+    return new LinkGraph(adClientId, adUnits, customChannels, unitOffsets,
+        Arrays.copyOf(unitChannels, edges));
+  }
+
+  private static String[] sortedUnique(List<String> names) {
+    List<String> sorted = new ArrayList<String>(names);
+    Collections.sort(sorted);
+    int size = 0;
+    for (String name : sorted) {
+      if (size == 0 || !name.equals(sorted.get(size - 1))) {
+        sorted.set(size++, name);
+      }
+    }
+    return sorted.subList(0, size).toArray(new String[size]);
+  }
+
+  /** Removes adjacent duplicates from a sorted range, returning the new length of the range. */
+  private static int dedupe(int[] values, int start, int end) {
+    int size = 0;
+    for (int i = start; i < end; i++) {
+      if (size == 0 || values[i] != values[start + size - 1]) {
+        values[start + size++] = values[i];
+      }
+    }
+    return size;
+  }
+
+  private static void writeNames(DataOutputStream data, String[] names) throws IOException {
+    writeVarInt(data, names.length);
+    String previous = "";
+    for (String name : names) {
+      int prefix = 0;
+      int max = Math.min(previous.length(), name.length());
+      while (prefix < max && previous.charAt(prefix) == name.charAt(prefix)) {
+        prefix++;
+      }
+      writeVarInt(data, prefix);
+      data.writeUTF(name.substring(prefix));
+      previous = name;
+    }
+  }
+
+  private static String[] readNames(DataInputStream data) throws IOException {
+    String[] names = new String[readVarInt(data)];
+    String previous = "";
+    for (int i = 0; i < names.length; i++) {
+      int prefix = readVarInt(data);
+      if (prefix > previous.length()) {
+        throw new IOException("Corrupt name prefix");
+      }
+      names[i] = previous.substring(0, prefix) + data.readUTF();
+      previous = names[i];
+    }
+    return names;
+  }
+
+  private static void writeVarInt(DataOutputStream data, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      data.writeByte((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    data.writeByte(value);
+  }
+
+  private static int readVarInt(DataInputStream data) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = data.readUnsignedByte();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed variable-length integer");
+  }
+}
@@ -0,0 +1,446 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.Account;
+import com.google.api.services.adsense.v2.model.AdClient;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.CustomChannel;
+import com.google.api.services.adsense.v2.model.ListAccountsResponse;
+import com.google.api.services.adsense.v2.model.ListAdClientsResponse;
+import com.google.api.services.adsense.v2.model.ListAdUnitsResponse;
+import com.google.api.services.adsense.v2.model.ListChildAccountsResponse;
+import com.google.api.services.adsense.v2.model.ListCustomChannelsResponse;
+import com.google.api.services.adsense.v2.model.ListLinkedAdUnitsResponse;
+import com.google.api.services.adsense.v2.model.ListLinkedCustomChannelsResponse;
+import com.google.api.services.adsense.v2.model.ListSavedReportsResponse;
+import com.google.api.services.adsense.v2.model.ListUrlChannelsResponse;
+import com.google.api.services.adsense.v2.model.SavedReport;
+import com.google.api.services.adsense.v2.model.UrlChannel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Runs paginated list requests, following {@code nextPageToken} for one or many parent resources.
+ *
+ * <p>When there are several parents, each is listed on a background thread, with up to
+ * {@code maxConcurrentParents} parents being listed at the same time. Pages are handed over
+ * through a bounded queue, so the next page of a parent is already being fetched and parsed while
+ * the caller is still working through the current one. A single parent is listed on the calling
+ * thread, one page at a time, without starting any threads. Items are returned lazily through an
+ * {@link Iterator} or a {@link Stream}; items of one parent keep their order, but items of
+ * different parents are interleaved.
+ *
+ * <p>The static factory methods build {@link PageRequest}s for the list calls used by the
+ * {@code GetAll*} samples.
+ */
+public final class Paginator {
+
+  /**
+   * Fetches a single page of items.
+   *
+   * @param <T> the type of the items listed.
+   */
+  public interface PageRequest<T> {
+
+    /**
+     * Fetches a page.
+     *
+     * @param parent the resource name of the parent whose children are listed.
+     * @param pageToken the token returned with the previous page, or {@code null} for the first.
+     * @return the page.
+     */
+    Page<T> fetch(String parent, String pageToken) throws IOException;
+  }
+
+  /**
+   * One page of a list response.
+   *
+   * @param <T> the type of the items listed.
+   */
+  public static final class Page<T> {
+    private final List<T> items;
+    private final String nextPageToken;
+
+    /**
+     * @param items the items on this page, or {@code null} if there are none.
+     * @param nextPageToken the token of the next page, or {@code null} if this is the last one.
+     */
+    public Page(List<T> items, String nextPageToken) {
+      this.items = items != null ? items : Collections.<T>emptyList();
+      this.nextPageToken = nextPageToken;
+    }
+
+    /** @return the items on this page. */
+    public List<T> getItems() {
+      return items;
+    }
+
+    /** @return the token of the next page, or {@code null} if this is the last one. */
+    public String getNextPageToken() {
+      return nextPageToken;
+    }
+  }
+
+  /** A paginator for listing a single parent on the calling thread. */
+  public static final Paginator SINGLE_PARENT = new Paginator(1, 1);
+
+  private final int maxConcurrentParents;
+  private final int maxQueuedPages;
+
+  /**
+   * Creates a new paginator.
+   *
+   * @param maxConcurrentParents the maximum number of parents listed at the same time.
+   * @param maxQueuedPages the maximum number of fetched pages waiting to be consumed.
+   */
+  public Paginator(int maxConcurrentParents, int maxQueuedPages) {
+    if (maxConcurrentParents < 1 || maxQueuedPages < 1) {
+      throw new IllegalArgumentException("Concurrency and queue size must be at least 1");
+    }
+    this.maxConcurrentParents = maxConcurrentParents;
+    this.maxQueuedPages = maxQueuedPages;
+  }
+
+  /**
+   * Lists all items of a single parent.
+   *
+   * @param parent the resource name of the parent.
+   * @param request the request that fetches each page.
+   * @return an iterator over all items; close it if it is abandoned before the end.
+   */
+  public <T> PageIterator<T> iterate(String parent, PageRequest<T> request) {
+    return iterate(Collections.singletonList(parent), request);
+  }
+
+  /**
+   * Lists all items of many parents concurrently.
+   *
+   * @param parents the resource names of the parents.
+   * @param request the request that fetches each page.
+   * @return an iterator over all items; close it if it is abandoned before the end.
+   */
+  public <T> PageIterator<T> iterate(List<String> parents, PageRequest<T> request) {
+    return new PageIterator<T>(parents, request);
+  }
+
+  /**
+   * Lists all items of many parents concurrently, as a stream. Closing the stream stops any
+   * outstanding requests.
+   *
+   * @param parents the resource names of the parents.
+   * @param request the request that fetches each page.
+   * @return a sequential stream over all items.
+   */
+  public <T> Stream<T> stream(List<String> parents, PageRequest<T> request) {
+    final PageIterator<T> iterator = iterate(parents, request);
+    return StreamSupport.stream(
+        Spliterators.spliteratorUnknownSize(iterator, Spliterator.ORDERED), false)
+        .onClose(iterator::close);
+  }
+
+  /**
+   * An iterator over the items of one or more paginated listings. Errors raised by the requests
+   * are rethrown from {@link #hasNext()}, wrapped in an {@link UncheckedIOException} if needed.
+   *
+   * @param <T> the type of the items listed.
+   */
+  public final class PageIterator<T> implements Iterator<T>, AutoCloseable {
+    private final BlockingQueue<Object> queue;
+    private final ExecutorService executor;
+    private final PageRequest<T> request;
+    private int remainingParents;
+    private Iterator<T> current = Collections.<T>emptyList().iterator();
+
+    // Only used when a single parent is listed on the calling thread.
+    private String parent;
+    private String pageToken;
+    private boolean done;
+
+    PageIterator(List<String> parents, final PageRequest<T> request) {
+      this.request = request;
+      remainingParents = parents.size();
+      if (parents.size() == 1) {
+        queue = null;
+        executor = null;
+        parent = parents.get(0);
+        return;
+      }
+      queue = new ArrayBlockingQueue<Object>(maxQueuedPages);
+      // Daemon threads, so that an iterator abandoned without being closed cannot keep the JVM
+      // alive while its producers wait for queue space.
+      executor = Executors.newFixedThreadPool(
+          Math.max(1, Math.min(maxConcurrentParents, parents.size())), runnable -> {
+            Thread thread = new Thread(runnable, "adsense-paginator");
+            thread.setDaemon(true);
+            return thread;
+          });
+      for (final String parent : parents) {
+        executor.execute(Tracer.wrap(() -> listParent(parent, request)));
+      }
+      executor.shutdown();
+    }
+
+    private void listParent(String parent, PageRequest<T> request) {
+      long list = Tracer.begin("list", parent);
+      try {
+        String pageToken = null;
+        do {
+          long span = Tracer.begin("page", parent);
+          Page<T> page;
+          try {
+            page = request.fetch(parent, pageToken);
+          } finally {
+            Tracer.end(span);
+          }
+          queue.put(page);
+          pageToken = page.getNextPageToken();
+        } while (pageToken != null);
+        queue.put(Done.INSTANCE);
+      } catch (InterruptedException e) {
+        // The iterator was closed; nobody is waiting for more pages.
+        Thread.currentThread().interrupt();
+      } catch (Throwable e) {
+        // Errors are handed over too, or the caller would wait for this parent forever.
+        try {
+          queue.put(e);
+        } catch (InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+        }
+      } finally {
+        Tracer.end(list);
+      }
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean hasNext() {
+      while (!current.hasNext()) {
+        if (remainingParents == 0) {
+          return false;
+        }
+        Object next = executor != null ? takePage() : fetchPage();
+        if (next == Done.INSTANCE) {
+          remainingParents--;
+        } else if (next instanceof Throwable) {
+          close();
+          if (next instanceof IOException) {
+            throw new UncheckedIOException((IOException) next);
+          }
+          if (next instanceof Error) {
+            throw (Error) next;
+          }
+          throw next instanceof RuntimeException
+              ? (RuntimeException) next : new RuntimeException((Throwable) next);
+        } else {
+          current = ((Page<T>) next).getItems().iterator();
+        }
+      }
+      return true;
+    }
+
+    /** @return the next page handed over by the producers, or what ended one of them. */
+    private Object takePage() {
+      try {
+        return queue.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        close();
+        throw new UncheckedIOException(new InterruptedIOException("Listing interrupted"));
+      }
+    }
+
+    /** @return the next page of the single parent, fetched on the calling thread. */
+    private Object fetchPage() {
+      if (done) {
+        return Done.INSTANCE;
+      }
+      long span = Tracer.begin("page", parent);
+      try {
+        Page<T> page = request.fetch(parent, pageToken);
+        pageToken = page.getNextPageToken();
+        // Some listings, such as accounts.list, have no parent, so completion has its own flag.
+        done = pageToken == null;
+        return page;
+      } catch (IOException | RuntimeException e) {
+        return e;
+      } finally {
+        Tracer.end(span);
+      }
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return current.next();
+    }
+
+    /**
+     * Drains the remaining items into a list.
+     *
+     * @return the remaining items.
+     * @throws IOException if any request fails.
+     */
+    public List<T> toList() throws IOException {
+      List<T> items = new ArrayList<T>();
+      try {
+        while (hasNext()) {
+          items.add(current.next());
+        }
+      } catch (UncheckedIOException e) {
+        throw e.getCause();
+      }
+      return items;
+    }
+
+    /** Stops all outstanding requests. */
+    @Override
+    public void close() {
+      remainingParents = 0;
+      current = Collections.<T>emptyList().iterator();
+      done = true;
+      if (executor != null) {
+        executor.shutdownNow();
+      }
+    }
+  }
+
+  /** Marks the end of the pages of one parent. */
+  private enum Done {
+    INSTANCE
+  }
+
+  /** Lists the accounts of the logged in user; the parent is ignored. */
+  public static PageRequest<Account> accounts(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListAccountsResponse response = adsense.accounts().list()
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<Account>(response.getAccounts(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the direct child accounts of an account. */
+  public static PageRequest<Account> childAccounts(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListChildAccountsResponse response = adsense.accounts().listChildAccounts(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<Account>(response.getAccounts(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the ad clients of an account. */
+  public static PageRequest<AdClient> adClients(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListAdClientsResponse response = adsense.accounts().adclients().list(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<AdClient>(response.getAdClients(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the ad units of an ad client. */
+  public static PageRequest<AdUnit> adUnits(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListAdUnitsResponse response = adsense.accounts().adclients().adunits().list(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<AdUnit>(response.getAdUnits(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the custom channels of an ad client. */
+  public static PageRequest<CustomChannel> customChannels(final Adsense adsense,
+      final int pageSize) {
+    return (parent, pageToken) -> {
+      ListCustomChannelsResponse response = adsense.accounts().adclients().customchannels()
+          .list(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<CustomChannel>(response.getCustomChannels(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the URL channels of an ad client. */
+  public static PageRequest<UrlChannel> urlChannels(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListUrlChannelsResponse response = adsense.accounts().adclients().urlchannels()
+          .list(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<UrlChannel>(response.getUrlChannels(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the saved reports of an account. */
+  public static PageRequest<SavedReport> savedReports(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListSavedReportsResponse response = adsense.accounts().reports().saved().list(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<SavedReport>(response.getSavedReports(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the custom channels an ad unit has been added to. */
+  public static PageRequest<CustomChannel> linkedCustomChannels(final Adsense adsense,
+      final int pageSize) {
+    return (parent, pageToken) -> {
+      ListLinkedCustomChannelsResponse response = adsense.accounts().adclients().adunits()
+          .listLinkedCustomChannels(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<CustomChannel>(response.getCustomChannels(), response.getNextPageToken());
+    };
+  }
+
+  /** Lists the ad units in a custom channel. */
+  public static PageRequest<AdUnit> linkedAdUnits(final Adsense adsense, final int pageSize) {
+    return (parent, pageToken) -> {
+      ListLinkedAdUnitsResponse response = adsense.accounts().adclients().customchannels()
+          .listLinkedAdUnits(parent)
+          .setPageSize(pageSize)
+          .setPageToken(pageToken)
+          .execute();
+      return new Page<AdUnit>(response.getAdUnits(), response.getNextPageToken());
+    };
+  }
+}
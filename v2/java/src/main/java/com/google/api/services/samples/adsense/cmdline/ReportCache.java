@@ -0,0 +1,370 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache in front of {@link Generate} requests.
+ *
+ * <p>Responses are cached as their raw JSON, keyed by a canonical form of the request: account,
+ * date range, metrics, dimensions, filters (in any order), orderBy, currency, language, time zone
+ * and limit. A {@code CUSTOM} range that ended before today is final and is cached indefinitely.
+ * Any range that includes today, and any relative range such as {@code LAST_7_DAYS}, is cached
+ * for the short TTL only.
+ *
+ * <p>There are two tiers: an in-memory LRU tier bounded by the total size of the cached
+ * responses, and an optional on-disk tier that survives restarts. Concurrent misses on the same
+ * key share a single request: the first caller runs it, and the others wait for its response.
+ */
+public final class ReportCache {
+
+  private final JsonFactory jsonFactory;
+  private final ZoneId zoneId;
+  private final long shortTtlMillis;
+  private final long maxMemoryBytes;
+  private final File diskDirectory;
+
+  private final LinkedHashMap<String, CachedReport> memory =
+      new LinkedHashMap<String, CachedReport>(16, 0.75f, true);
+  private long memoryBytes;
+
+  /** The requests being sent to the API, by key, so that concurrent misses can share them. */
+  private final ConcurrentMap<String, FutureTask<byte[]>> inFlight =
+      new ConcurrentHashMap<String, FutureTask<byte[]>>();
+
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong diskHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  /** A cached response and the time it stops being valid. */
+  private static final class CachedReport {
+    final byte[] json;
+    final long expiresAtMillis;
+
+    CachedReport(byte[] json, long expiresAtMillis) {
+      this.json = json;
+      this.expiresAtMillis = expiresAtMillis;
+    }
+
+    boolean isExpired(long now) {
+      return now >= expiresAtMillis;
+    }
+  }
+
+  /**
+   * Creates a new cache.
+   *
+   * @param jsonFactory the JSON factory used to parse cached responses.
+   * @param zoneId the time zone that decides what "today" is, normally the reporting time zone.
+   * @param shortTtl how long reports that include today are cached.
+   * @param unit the unit of {@code shortTtl}.
+   * @param maxMemoryBytes the maximum total size of the responses kept in memory.
+   * @param diskDirectory the directory of the on-disk tier, or {@code null} to disable it.
+   * @throws IOException if the directory cannot be created.
+   */
+  public ReportCache(JsonFactory jsonFactory, ZoneId zoneId, long shortTtl, TimeUnit unit,
+      long maxMemoryBytes, File diskDirectory) throws IOException {
+    this.jsonFactory = jsonFactory;
+    this.zoneId = zoneId;
+    this.shortTtlMillis = unit.toMillis(shortTtl);
+    this.maxMemoryBytes = maxMemoryBytes;
+    this.diskDirectory = diskDirectory;
+    if (diskDirectory != null) {
+      Files.createDirectories(diskDirectory.toPath());
+    }
+  }
+
+  /**
+   * Runs a report, or returns the cached copy of an identical one.
+   *
+   * @param request the report request.
+   * @return the report.
+   * @throws IOException if the request fails.
+   */
+  public ReportResult execute(Generate request) throws IOException {
+    return jsonFactory.fromInputStream(
+        new ByteArrayInputStream(getJson(request)), StandardCharsets.UTF_8, ReportResult.class);
+  }
+
+  /**
+   * Runs a report, or reads the cached copy of an identical one, streaming its rows to a handler.
+   *
+   * @param request the report request.
+   * @param handler the handler that receives headers and rows.
+   * @return the rest of the report, without rows; see {@link ReportStreamReader}.
+   * @throws IOException if the request fails.
+   */
+  public ReportResult execute(Generate request, ReportStreamReader.RowHandler handler)
+      throws IOException {
+    return ReportStreamReader.read(jsonFactory, new ByteArrayInputStream(getJson(request)),
+        handler);
+  }
+
+  /** @return the number of requests answered from memory. */
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  /** @return the number of requests answered from disk. */
+  public long getDiskHits() {
+    return diskHits.get();
+  }
+
+  /** @return the number of requests that had to be sent to the API. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** @return the total size of the responses held in memory. */
+  public synchronized long getMemoryBytes() {
+    return memoryBytes;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("ReportCache{memoryHits=%d, diskHits=%d, misses=%d, memoryBytes=%d}",
+        getMemoryHits(), getDiskHits(), getMisses(), getMemoryBytes());
+  }
+
+  private byte[] getJson(Generate request) throws IOException {
+    String key = canonicalKey(request);
+    long now = System.currentTimeMillis();
+
+    CachedReport cached = getFromMemory(key, now);
+    if (cached != null) {
+      memoryHits.incrementAndGet();
+      return cached.json;
+    }
+    cached = getFromDisk(key, now);
+    if (cached != null) {
+      diskHits.incrementAndGet();
+      putInMemory(key, cached);
+      return cached.json;
+    }
+
+    FutureTask<byte[]> task = new FutureTask<byte[]>(() -> fetch(key, request, now));
+    FutureTask<byte[]> running = inFlight.putIfAbsent(key, task);
+    if (running == null) {
+      try {
+        task.run();
+      } finally {
+        inFlight.remove(key, task);
+      }
+      running = task;
+    }
+    try {
+      return running.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted waiting for a report");
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw cause instanceof RuntimeException
+          ? (RuntimeException) cause : new RuntimeException(cause);
+    }
+  }
+
+  /** Sends a request to the API and caches its response, once per key at a time. */
+  private byte[] fetch(String key, Generate request, long now) throws IOException {
+    // Another caller may have cached the key between our lookup and this request starting.
+    CachedReport cached = getFromMemory(key, now);
+    if (cached != null) {
+      memoryHits.incrementAndGet();
+      return cached.json;
+    }
+    misses.incrementAndGet();
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    InputStream content = request.executeAsInputStream();
+    try {
+      byte[] buffer = new byte[8192];
+      for (int read; (read = content.read(buffer)) != -1; ) {
+        json.write(buffer, 0, read);
+      }
+    } finally {
+      content.close();
+    }
+    cached = new CachedReport(json.toByteArray(), expiresAtMillis(request, now));
+    putInMemory(key, cached);
+    putOnDisk(key, cached);
+    return cached.json;
+  }
+
+  private long expiresAtMillis(Generate request, long now) {
+    if ("CUSTOM".equals(request.getDateRange()) && request.getEndDateYear() != null) {
+      LocalDate endDate = LocalDate.of(request.getEndDateYear(), request.getEndDateMonth(),
+          request.getEndDateDay());
+      if (endDate.isBefore(LocalDate.now(zoneId))) {
+        return Long.MAX_VALUE;
+      }
+    }
+    return now + shortTtlMillis;
+  }
+
+  /**
+   * Returns the canonical cache key of a request. Filters are sorted, since they are combined
+   * with AND; metrics, dimensions and orderBy keep their order, since it shapes the response.
+   * Relative date ranges are pinned to today's date.
+   */
+  String canonicalKey(Generate request) {
+    StringBuilder key = new StringBuilder();
+    key.append("account=").append(request.getAccount());
+    String dateRange = request.getDateRange() != null ? request.getDateRange() : "CUSTOM";
+    key.append(";dateRange=").append(dateRange);
+    if ("CUSTOM".equals(dateRange)) {
+      key.append(";start=").append(request.getStartDateYear()).append('-')
+          .append(request.getStartDateMonth()).append('-').append(request.getStartDateDay());
+      key.append(";end=").append(request.getEndDateYear()).append('-')
+          .append(request.getEndDateMonth()).append('-').append(request.getEndDateDay());
+    } else {
+      key.append(";asOf=").append(LocalDate.now(zoneId));
+    }
+    key.append(";metrics=").append(join(request.getMetrics(), false));
+    key.append(";dimensions=").append(join(request.getDimensions(), false));
+    key.append(";filters=").append(join(request.getFilters(), true));
+    key.append(";orderBy=").append(join(request.getOrderBy(), false));
+    key.append(";currency=").append(request.getCurrencyCode());
+    key.append(";language=").append(request.getLanguageCode());
+    key.append(";timeZone=").append(request.getReportingTimeZone());
+    key.append(";limit=").append(request.getLimit());
+    return key.toString();
+  }
+
+  private static String join(List<String> values, boolean sort) {
+    if (values == null) {
+      return "";
+    }
+    List<String> copy = new ArrayList<String>(values);
+    if (sort) {
+      Collections.sort(copy);
+    }
+    StringBuilder joined = new StringBuilder();
+    for (String value : copy) {
+      if (joined.length() > 0) {
+        joined.append(',');
+      }
+      // Values may contain commas of their own (escaped filters), so length-prefix them.
+      joined.append(value.length()).append(':').append(value);
+    }
+    return joined.toString();
+  }
+
+  private synchronized CachedReport getFromMemory(String key, long now) {
+    CachedReport cached = memory.get(key);
+    if (cached != null && cached.isExpired(now)) {
+      memory.remove(key);
+      memoryBytes -= cached.json.length;
+      return null;
+    }
+    return cached;
+  }
+
+  private synchronized void putInMemory(String key, CachedReport cached) {
+    if (cached.json.length > maxMemoryBytes) {
+      return;
+    }
+    CachedReport previous = memory.put(key, cached);
+    if (previous != null) {
+      memoryBytes -= previous.json.length;
+    }
+    memoryBytes += cached.json.length;
+    Iterator<Map.Entry<String, CachedReport>> eldest = memory.entrySet().iterator();
+    while (memoryBytes > maxMemoryBytes && eldest.hasNext()) {
+      memoryBytes -= eldest.next().getValue().json.length;
+      eldest.remove();
+    }
+  }
+
+  private CachedReport getFromDisk(String key, long now) throws IOException {
+    if (diskDirectory == null) {
+      return null;
+    }
+    File file = diskFile(key);
+    if (!file.isFile()) {
+      return null;
+    }
+    ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+    long expiresAtMillis = bytes.getLong();
+    if (now >= expiresAtMillis) {
+      Files.deleteIfExists(file.toPath());
+      return null;
+    }
+    byte[] json = new byte[bytes.remaining()];
+    bytes.get(json);
+    return new CachedReport(json, expiresAtMillis);
+  }
+
+  private void putOnDisk(String key, CachedReport cached) throws IOException {
+    if (diskDirectory == null) {
+      return;
+    }
+    ByteBuffer bytes = ByteBuffer.allocate(8 + cached.json.length);
+    bytes.putLong(cached.expiresAtMillis).put(cached.json);
+    // Write to a temporary file first, so that readers never see a partial entry.
+    File file = diskFile(key);
+    File temporary = File.createTempFile("report", ".tmp", diskDirectory);
+    Files.write(temporary.toPath(), bytes.array());
+    Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private File diskFile(String key) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256")
+          .digest(key.getBytes(StandardCharsets.UTF_8));
+      StringBuilder name = new StringBuilder();
+      for (byte b : digest) {
+        name.append(String.format("%02x", b));
+      }
+      return new File(diskDirectory, name.append(".json").toString());
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+}
@@ -0,0 +1,665 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.AdsenseRequest;
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the rows that changed between two snapshots of the same report, for example two daily
+ * runs of a saved report in which late earnings adjustments show up.
+ *
+ * <p>Rows are keyed by their dimension cells. The older snapshot is loaded into a hash table and
+ * the newer one is streamed past it, so each snapshot is read exactly once. A row whose metrics
+ * moved by more than the threshold is reported as changed; rows found in only one snapshot are
+ * reported as added or removed.
+ *
+ * <p>When the older snapshot holds more rows than the memory limit, both snapshots are split by
+ * key hash into partition files in a temporary directory, and the partitions are joined one
+ * pair at a time. Each partition must then fit in memory on its own.
+ *
+ * <p>Metric columns are matched by name; metrics found in only one snapshot are ignored. Missing
+ * metric cells count as zero.
+ */
+public final class ReportDiff {
+
+  /** Produces the rows of a report snapshot. */
+  public interface ReportSource {
+
+    /**
+     * Streams the headers and rows of the snapshot.
+     *
+     * @param handler the handler that receives headers and rows.
+     */
+    void read(ReportStreamReader.RowHandler handler) throws IOException;
+  }
+
+  /** Receives the differences, in no particular order. */
+  public interface ChangeHandler {
+
+    /**
+     * Called once per row that was added, removed or changed.
+     *
+     * @param change the difference.
+     */
+    void change(Change change) throws IOException;
+  }
+
+  /** What happened to a row. */
+  public enum Kind {
+    ADDED, REMOVED, CHANGED
+  }
+
+  /** The difference for one dimension key. */
+  public static final class Change {
+    private final Kind kind;
+    private final List<String> dimensions;
+    private final List<String> metrics;
+    private final String[] key;
+    private final String[] before;
+    private final String[] after;
+    private final boolean[] changed;
+
+    Change(Kind kind, List<String> dimensions, List<String> metrics, String[] key,
+        String[] before, String[] after, boolean[] changed) {
+      this.kind = kind;
+      this.dimensions = dimensions;
+      this.metrics = metrics;
+      this.key = key;
+      this.before = before;
+      this.after = after;
+      this.changed = changed;
+    }
+
+    /** @return whether the row was added, removed or changed. */
+    public Kind getKind() {
+      return kind;
+    }
+
+    /** @return the dimension values of the row, in the order of {@link #getDimensionNames()}. */
+    public List<String> getDimensionValues() {
+      return Collections.unmodifiableList(Arrays.asList(key));
+    }
+
+    /** @return the dimension names. */
+    public List<String> getDimensionNames() {
+      return dimensions;
+    }
+
+    /** @return the names of the compared metrics. */
+    public List<String> getMetricNames() {
+      return metrics;
+    }
+
+    /** @return the metric value in the older snapshot; zero if the row was added. */
+    public BigDecimal getBefore(int metric) {
+      return before != null ? decimal(before[metric]) : BigDecimal.ZERO;
+    }
+
+    /** @return the metric value in the newer snapshot; zero if the row was removed. */
+    public BigDecimal getAfter(int metric) {
+      return after != null ? decimal(after[metric]) : BigDecimal.ZERO;
+    }
+
+    /** @return the newer minus the older metric value. */
+    public BigDecimal getDelta(int metric) {
+      return getAfter(metric).subtract(getBefore(metric));
+    }
+
+    /** @return whether the metric moved by more than its threshold. */
+    public boolean isChanged(int metric) {
+      return changed == null || changed[metric];
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder text = new StringBuilder().append(kind).append(' ')
+          .append(Arrays.toString(key));
+      for (int i = 0; i < metrics.size(); i++) {
+        if (isChanged(i)) {
+          text.append(' ').append(metrics.get(i)).append(' ').append(getBefore(i).toPlainString())
+              .append(" -> ").append(getAfter(i).toPlainString());
+        }
+      }
+      return text.toString();
+    }
+  }
+
+  /** Counts of the rows compared. */
+  public static final class Summary {
+    long beforeRows;
+    long afterRows;
+    long added;
+    long removed;
+    long changed;
+    int partitions = 1;
+
+    /** @return the number of rows in the older snapshot. */
+    public long getBeforeRows() {
+      return beforeRows;
+    }
+
+    /** @return the number of rows in the newer snapshot. */
+    public long getAfterRows() {
+      return afterRows;
+    }
+
+    /** @return the number of rows only in the newer snapshot. */
+    public long getAdded() {
+      return added;
+    }
+
+    /** @return the number of rows only in the older snapshot. */
+    public long getRemoved() {
+      return removed;
+    }
+
+    /** @return the number of rows with a metric that moved by more than its threshold. */
+    public long getChanged() {
+      return changed;
+    }
+
+    /** @return the number of partitions joined; 1 if nothing was spilled to disk. */
+    public int getPartitions() {
+      return partitions;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d rows before, %d after: %d added, %d removed, %d changed"
+          + " (%d partitions)", beforeRows, afterRows, added, removed, changed, partitions);
+    }
+  }
+
+  private final Map<String, BigDecimal> thresholds;
+  private final BigDecimal defaultThreshold;
+  private final int maxRowsInMemory;
+  private final int partitionCount;
+  private final File spillDirectory;
+
+  private ReportDiff(Builder builder) {
+    this.thresholds = new HashMap<String, BigDecimal>(builder.thresholds);
+    this.defaultThreshold = builder.defaultThreshold;
+    this.maxRowsInMemory = builder.maxRowsInMemory;
+    this.partitionCount = builder.partitionCount;
+    this.spillDirectory = builder.spillDirectory;
+  }
+
+  /**
+   * Compares two snapshots.
+   *
+   * @param before the older snapshot.
+   * @param after the newer snapshot.
+   * @param handler the handler that receives the differences.
+   * @return the counts of rows compared.
+   * @throws IOException if a snapshot cannot be read, a partition file cannot be written, or the
+   *     snapshots do not have the same dimensions.
+   */
+  public Summary diff(ReportSource before, ReportSource after, ChangeHandler handler)
+      throws IOException {
+    Join join = new Join(handler);
+    try {
+      before.read(join.beforeSide);
+      after.read(join.afterSide);
+      join.finish();
+    } finally {
+      // A failed source or handler must not leave partition files behind.
+      join.deletePartitions();
+    }
+    return join.summary;
+  }
+
+  /** @return a source that replays an already parsed report. */
+  public static ReportSource fromResult(final ReportResult report) {
+    return handler -> {
+      List<Header> headers = report.getHeaders() != null ? report.getHeaders()
+          : Collections.<Header>emptyList();
+      handler.headers(headers);
+      if (report.getRows() != null) {
+        String[] cells = new String[headers.size()];
+        for (Row row : report.getRows()) {
+          List<Cell> rowCells = row.getCells();
+          for (int i = 0; i < cells.length; i++) {
+            cells[i] = rowCells.get(i).getValue();
+          }
+          handler.row(cells);
+        }
+      }
+    };
+  }
+
+  /** @return a source that reads a file written by {@link ColumnarReportWriter}. */
+  public static ReportSource fromColumnarFile(final File file) {
+    return handler -> ColumnarReportReader.read(file, handler);
+  }
+
+  /** @return a source that runs a report request and streams its response. */
+  public static ReportSource fromRequest(final AdsenseRequest<ReportResult> request) {
+    return handler -> ReportStreamReader.execute(request, handler);
+  }
+
+  /** A dimension key, with its hash computed once. */
+  private static final class Key {
+    final String[] cells;
+    final int hash;
+
+    Key(String[] cells) {
+      this.cells = cells;
+      this.hash = Arrays.hashCode(cells);
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof Key && ((Key) other).hash == hash
+          && Arrays.equals(((Key) other).cells, cells);
+    }
+  }
+
+  /** The state of one comparison. */
+  private final class Join {
+    final ChangeHandler handler;
+    final Summary summary = new Summary();
+    final Map<Key, String[]> table = new HashMap<Key, String[]>();
+    List<String> dimensionNames;
+    List<String> metricNames;
+    BigDecimal[] metricThresholds;
+    int[] beforeDimensions;
+    int[] beforeMetrics;
+    int[] afterDimensions;
+    int[] afterMetrics;
+    File directory;
+    DataOutputStream[] beforePartitions;
+    DataOutputStream[] afterPartitions;
+
+    Join(ChangeHandler handler) {
+      this.handler = handler;
+    }
+
+    final ReportStreamReader.RowHandler beforeSide = new ReportStreamReader.RowHandler() {
+      @Override
+      public void headers(List<Header> headers) {
+        List<String> dimensions = new ArrayList<String>();
+        List<String> metrics = new ArrayList<String>();
+        for (Header header : headers) {
+          if ("DIMENSION".equals(header.getType())) {
+            dimensions.add(header.getName());
+          } else {
+            metrics.add(header.getName());
+          }
+        }
+        dimensionNames = Collections.unmodifiableList(dimensions);
+        metricNames = metrics;
+        beforeDimensions = indexes(headers, dimensions);
+      }
+
+      @Override
+      public void row(String[] cells) throws IOException {
+        summary.beforeRows++;
+        String[] key = pick(cells, beforeDimensions);
+        // Metrics are matched by name once both headers are known; keep every metric for now.
+        String[] metrics = new String[cells.length - key.length];
+        int m = 0;
+        for (int i = 0, d = 0; i < cells.length; i++) {
+          if (d < beforeDimensions.length && beforeDimensions[d] == i) {
+            d++;
+          } else {
+            metrics[m++] = cells[i];
+          }
+        }
+        if (beforePartitions != null) {
+          spill(beforePartitions, new Key(key), metrics);
+          return;
+        }
+        table.put(new Key(key), metrics);
+        if (table.size() > maxRowsInMemory) {
+          startSpilling();
+        }
+      }
+    };
+
+    final ReportStreamReader.RowHandler afterSide = new ReportStreamReader.RowHandler() {
+      @Override
+      public void headers(List<Header> headers) throws IOException {
+        List<String> dimensions = new ArrayList<String>();
+        List<String> common = new ArrayList<String>();
+        for (Header header : headers) {
+          if ("DIMENSION".equals(header.getType())) {
+            dimensions.add(header.getName());
+          } else if (metricNames.contains(header.getName())) {
+            common.add(header.getName());
+          }
+        }
+        if (!dimensions.equals(dimensionNames)) {
+          throw new IOException("Snapshots have different dimensions: " + dimensionNames
+              + " and " + dimensions);
+        }
+        afterDimensions = indexes(headers, dimensions);
+        afterMetrics = indexes(headers, common);
+        // Positions of the common metrics among the metrics stored for the older snapshot.
+        beforeMetrics = new int[common.size()];
+        metricThresholds = new BigDecimal[common.size()];
+        for (int i = 0; i < beforeMetrics.length; i++) {
+          beforeMetrics[i] = metricNames.indexOf(common.get(i));
+          BigDecimal threshold = thresholds.get(common.get(i));
+          metricThresholds[i] = threshold != null ? threshold : defaultThreshold;
+        }
+        metricNames = Collections.unmodifiableList(common);
+      }
+
+      @Override
+      public void row(String[] cells) throws IOException {
+        summary.afterRows++;
+        Key key = new Key(pick(cells, afterDimensions));
+        String[] metrics = pick(cells, afterMetrics);
+        if (afterPartitions != null) {
+          spill(afterPartitions, key, metrics);
+        } else {
+          match(key, metrics);
+        }
+      }
+    };
+
+    /** Joins one row of the newer snapshot against the table. */
+    void match(Key key, String[] after) throws IOException {
+      String[] stored = table.remove(key);
+      if (stored == null) {
+        summary.added++;
+        handler.change(new Change(Kind.ADDED, dimensionNames, metricNames, key.cells, null,
+            after, null));
+        return;
+      }
+      String[] before = pick(stored, beforeMetrics);
+      boolean[] changed = null;
+      for (int i = 0; i < after.length; i++) {
+        if (after[i] == null ? before[i] == null : after[i].equals(before[i])) {
+          continue;
+        }
+        BigDecimal delta = decimal(after[i]).subtract(decimal(before[i])).abs();
+        if (delta.compareTo(metricThresholds[i]) > 0) {
+          if (changed == null) {
+            changed = new boolean[after.length];
+          }
+          changed[i] = true;
+        }
+      }
+      if (changed != null) {
+        summary.changed++;
+        handler.change(new Change(Kind.CHANGED, dimensionNames, metricNames, key.cells, before,
+            after, changed));
+      }
+    }
+
+    /** Reports the rows left in the table, which were not in the newer snapshot. */
+    void drainRemoved() throws IOException {
+      for (Map.Entry<Key, String[]> entry : table.entrySet()) {
+        summary.removed++;
+        handler.change(new Change(Kind.REMOVED, dimensionNames, metricNames,
+            entry.getKey().cells, pick(entry.getValue(), beforeMetrics), null, null));
+      }
+      table.clear();
+    }
+
+    void finish() throws IOException {
+      if (metricNames == null || beforeMetrics == null) {
+        throw new IOException("A snapshot has no headers");
+      }
+      if (beforePartitions == null) {
+        drainRemoved();
+        return;
+      }
+      for (int p = 0; p < partitionCount; p++) {
+        beforePartitions[p].close();
+        afterPartitions[p].close();
+      }
+      for (int p = 0; p < partitionCount; p++) {
+        readPartition(partitionFile("before", p), true);
+        readPartition(partitionFile("after", p), false);
+        drainRemoved();
+      }
+    }
+
+    /** Closes the partition files, if any were opened, and deletes them with their directory. */
+    void deletePartitions() {
+      if (directory == null) {
+        return;
+      }
+      closeQuietly(beforePartitions);
+      closeQuietly(afterPartitions);
+      File[] files = directory.listFiles();
+      if (files != null) {
+        for (File file : files) {
+          file.delete();
+        }
+      }
+      directory.delete();
+      directory = null;
+    }
+
+    /** Moves the table into partition files, and sends every later row to them as well. */
+    void startSpilling() throws IOException {
+      directory = Files.createTempDirectory(
+          spillDirectory != null ? spillDirectory.toPath()
+              : new File(System.getProperty("java.io.tmpdir")).toPath(),
+          "adsense-diff").toFile();
+      beforePartitions = new DataOutputStream[partitionCount];
+      afterPartitions = new DataOutputStream[partitionCount];
+      for (int p = 0; p < partitionCount; p++) {
+        beforePartitions[p] = open(partitionFile("before", p));
+        afterPartitions[p] = open(partitionFile("after", p));
+      }
+      summary.partitions = partitionCount;
+      for (Map.Entry<Key, String[]> entry : table.entrySet()) {
+        spill(beforePartitions, entry.getKey(), entry.getValue());
+      }
+      table.clear();
+    }
+
+    void readPartition(File file, boolean before) throws IOException {
+      DataInputStream in = new DataInputStream(
+          new BufferedInputStream(new FileInputStream(file), 1 << 16));
+      try {
+        while (true) {
+          String[] key;
+          try {
+            key = readCells(in);
+          } catch (EOFException e) {
+            return;
+          }
+          String[] metrics = readCells(in);
+          if (before) {
+            table.put(new Key(key), metrics);
+          } else {
+            match(new Key(key), metrics);
+          }
+        }
+      } finally {
+        in.close();
+      }
+    }
+
+    File partitionFile(String side, int partition) {
+      return new File(directory, side + "-" + partition);
+    }
+
+    void spill(DataOutputStream[] partitions, Key key, String[] metrics) throws IOException {
+      DataOutputStream out = partitions[(key.hash & Integer.MAX_VALUE) % partitionCount];
+      writeCells(out, key.cells);
+      writeCells(out, metrics);
+    }
+  }
+
+  private static void closeQuietly(DataOutputStream[] partitions) {
+    if (partitions == null) {
+      return;
+    }
+    for (DataOutputStream partition : partitions) {
+      if (partition != null) {
+        try {
+          partition.close();
+        } catch (IOException e) {
+          // The file is deleted anyway.
+        }
+      }
+    }
+  }
+
+  private static DataOutputStream open(File file) throws IOException {
+    return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+  }
+
+  private static void writeCells(DataOutputStream out, String[] cells) throws IOException {
+    out.writeShort(cells.length);
+    for (String cell : cells) {
+      out.writeBoolean(cell != null);
+      if (cell != null) {
+        out.writeUTF(cell);
+      }
+    }
+  }
+
+  private static String[] readCells(DataInputStream in) throws IOException {
+    String[] cells = new String[in.readUnsignedShort()];
+    for (int i = 0; i < cells.length; i++) {
+      cells[i] = in.readBoolean() ? in.readUTF() : null;
+    }
+    return cells;
+  }
+
+  private static int[] indexes(List<Header> headers, List<String> names) {
+    int[] indexes = new int[names.size()];
+    for (int i = 0, n = 0; i < headers.size() && n < indexes.length; i++) {
+      if (headers.get(i).getName().equals(names.get(n))) {
+        indexes[n++] = i;
+      }
+    }
+    return indexes;
+  }
+
+  private static String[] pick(String[] cells, int[] indexes) {
+    String[] picked = new String[indexes.length];
+    for (int i = 0; i < indexes.length; i++) {
+      picked[i] = cells[indexes[i]];
+    }
+    return picked;
+  }
+
+  private static BigDecimal decimal(String value) {
+    return value == null || value.isEmpty() ? BigDecimal.ZERO : new BigDecimal(value);
+  }
+
+  /** Builder for {@link ReportDiff}. */
+  public static final class Builder {
+    private final Map<String, BigDecimal> thresholds = new HashMap<String, BigDecimal>();
+    private BigDecimal defaultThreshold = BigDecimal.ZERO;
+    private int maxRowsInMemory = 1000000;
+    private int partitionCount = 64;
+    private File spillDirectory;
+
+    /**
+     * Sets the smallest change that is reported for metrics without their own threshold.
+     * Defaults to zero, which reports any change.
+     *
+     * @param threshold the absolute change a metric must exceed.
+     * @return this builder.
+     */
+    public Builder setDefaultThreshold(BigDecimal threshold) {
+      this.defaultThreshold = threshold;
+      return this;
+    }
+
+    /**
+     * Sets the smallest change that is reported for one metric.
+     *
+     * @param metric the metric, for example {@code "ESTIMATED_EARNINGS"}.
+     * @param threshold the absolute change the metric must exceed.
+     * @return this builder.
+     */
+    public Builder setThreshold(String metric, BigDecimal threshold) {
+      thresholds.put(metric, threshold);
+      return this;
+    }
+
+    /**
+     * Sets how many rows of the older snapshot are held in memory before both snapshots are
+     * partitioned to disk. Defaults to one million.
+     *
+     * @param maxRowsInMemory the row limit.
+     * @return this builder.
+     */
+    public Builder setMaxRowsInMemory(int maxRowsInMemory) {
+      if (maxRowsInMemory < 1) {
+        throw new IllegalArgumentException("maxRowsInMemory must be at least 1");
+      }
+      this.maxRowsInMemory = maxRowsInMemory;
+      return this;
+    }
+
+    /**
+     * Sets the number of partitions used when spilling to disk. Defaults to 64.
+     *
+     * @param partitionCount the number of partitions.
+     * @return this builder.
+     */
+    public Builder setPartitionCount(int partitionCount) {
+      if (partitionCount < 1) {
+        throw new IllegalArgumentException("partitionCount must be at least 1");
+      }
+      this.partitionCount = partitionCount;
+      return this;
+    }
+
+    /**
+     * Sets the directory under which partition files are written. Defaults to the system
+     * temporary directory.
+     *
+     * @param spillDirectory the directory.
+     * @return this builder.
+     */
+    public Builder setSpillDirectory(File spillDirectory) {
+      this.spillDirectory = spillDirectory;
+      return this;
+    }
+
+    /** @return the new report diff. */
+    public ReportDiff build() {
+      return new ReportDiff(this);
+    }
+  }
+}
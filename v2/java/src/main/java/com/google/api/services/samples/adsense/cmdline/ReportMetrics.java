@@ -0,0 +1,124 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * What the samples know about how AdSense report metrics combine.
+ *
+ * <p>Additive metrics, such as {@code CLICKS} or {@code ESTIMATED_EARNINGS}, can be summed across
+ * rows. Ratio metrics, such as {@code AD_REQUESTS_CTR}, cannot; some of them can be recomputed
+ * from the sums of an additive numerator and denominator, and the rest (for example the Active
+ * View metrics) cannot be combined at all.
+ */
+public final class ReportMetrics {
+
+  private static final Set<String> ADDITIVE = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("PAGE_VIEWS", "AD_REQUESTS", "MATCHED_AD_REQUESTS", "TOTAL_IMPRESSIONS",
+          "IMPRESSIONS", "INDIVIDUAL_AD_IMPRESSIONS", "CLICKS", "ESTIMATED_EARNINGS",
+          "TOTAL_EARNINGS", "FUNNEL_REQUESTS", "FUNNEL_IMPRESSIONS", "FUNNEL_CLICKS",
+          "WEBSEARCH_RESULT_PAGES")));
+
+  private static final Set<String> MONETARY = Collections.unmodifiableSet(new HashSet<String>(
+      Arrays.asList("ESTIMATED_EARNINGS", "TOTAL_EARNINGS", "COST_PER_CLICK", "PAGE_VIEWS_RPM",
+          "AD_REQUESTS_RPM", "MATCHED_AD_REQUESTS_RPM", "IMPRESSIONS_RPM", "FUNNEL_RPM")));
+
+  private static final Map<String, Ratio> RATIOS = new HashMap<String, Ratio>();
+
+  static {
+    addRatio("AD_REQUESTS_CTR", "CLICKS", "AD_REQUESTS", 1);
+    addRatio("AD_REQUESTS_COVERAGE", "MATCHED_AD_REQUESTS", "AD_REQUESTS", 1);
+    addRatio("AD_REQUESTS_RPM", "ESTIMATED_EARNINGS", "AD_REQUESTS", 1000);
+    addRatio("COST_PER_CLICK", "ESTIMATED_EARNINGS", "CLICKS", 1);
+    addRatio("PAGE_VIEWS_CTR", "CLICKS", "PAGE_VIEWS", 1);
+    addRatio("PAGE_VIEWS_RPM", "ESTIMATED_EARNINGS", "PAGE_VIEWS", 1000);
+    addRatio("IMPRESSIONS_CTR", "CLICKS", "IMPRESSIONS", 1);
+    addRatio("IMPRESSIONS_RPM", "ESTIMATED_EARNINGS", "IMPRESSIONS", 1000);
+    addRatio("MATCHED_AD_REQUESTS_CTR", "CLICKS", "MATCHED_AD_REQUESTS", 1);
+    addRatio("MATCHED_AD_REQUESTS_RPM", "ESTIMATED_EARNINGS", "MATCHED_AD_REQUESTS", 1000);
+    addRatio("ADS_PER_IMPRESSION", "INDIVIDUAL_AD_IMPRESSIONS", "IMPRESSIONS", 1);
+    addRatio("FUNNEL_RPM", "ESTIMATED_EARNINGS", "FUNNEL_REQUESTS", 1000);
+  }
+
+  /** A ratio metric defined as {@code scale * numerator / denominator}. */
+  public static final class Ratio {
+    private final String numerator;
+    private final String denominator;
+    private final BigDecimal scale;
+
+    private Ratio(String numerator, String denominator, int scale) {
+      this.numerator = numerator;
+      this.denominator = denominator;
+      this.scale = BigDecimal.valueOf(scale);
+    }
+
+    /** @return the additive metric in the numerator. */
+    public String getNumerator() {
+      return numerator;
+    }
+
+    /** @return the additive metric in the denominator. */
+    public String getDenominator() {
+      return denominator;
+    }
+
+    /** @return the ratio, or zero if the denominator is zero. */
+    public BigDecimal compute(BigDecimal numeratorValue, BigDecimal denominatorValue) {
+      if (denominatorValue.signum() == 0) {
+        return BigDecimal.ZERO;
+      }
+      return numeratorValue.multiply(scale).divide(denominatorValue, MathContext.DECIMAL64);
+    }
+
+    /** @return the ratio, or zero if the denominator is zero. */
+    public double compute(double numeratorValue, double denominatorValue) {
+      return denominatorValue == 0 ? 0 : scale.doubleValue() * numeratorValue / denominatorValue;
+    }
+  }
+
+  private ReportMetrics() {}
+
+  private static void addRatio(String metric, String numerator, String denominator, int scale) {
+    RATIOS.put(metric, new Ratio(numerator, denominator, scale));
+  }
+
+  /** @return whether the metric can be summed across rows. */
+  public static boolean isAdditive(String metric) {
+    return ADDITIVE.contains(metric);
+  }
+
+  /** @return the definition of a recomputable ratio metric, or {@code null}. */
+  public static Ratio getRatio(String metric) {
+    return RATIOS.get(metric);
+  }
+
+  /** @return whether rows holding this metric can be combined into one. */
+  public static boolean isCombinable(String metric) {
+    return isAdditive(metric) || RATIOS.containsKey(metric);
+  }
+
+  /** @return whether the metric is an amount of money, in the report currency. */
+  public static boolean isMonetary(String metric) {
+    return MONETARY.contains(metric);
+  }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Date;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits a large {@link Generate} request into smaller ones, runs them concurrently and merges
+ * their results.
+ *
+ * <p>A {@code CUSTOM} date range is split into shards of at most {@code shardDays} days. If ad
+ * client IDs are given, each date shard is further split by an {@code AD_CLIENT_ID} filter per ad
+ * client. The shards run on a pool of at most {@code maxConcurrentShards} threads.
+ *
+ * <p>When the sharded dimension ({@code DATE} or {@code AD_CLIENT_ID}) is not one of the report
+ * dimensions, different shards can return rows with the same dimension values, and those rows
+ * are combined: additive metrics are summed and ratio metrics are recomputed from their
+ * numerator and denominator, which are requested from the API even if the caller did not ask for
+ * them. Requests with metrics that cannot be combined this way are refused. The merged rows are
+ * sorted according to the request's orderBy, and its limit is applied after the merge.
+ */
+public final class ReportPlanner {
+
+  private final int shardDays;
+  private final int maxConcurrentShards;
+  private final List<String> adClientIds;
+
+  /**
+   * Creates a planner that shards by date only.
+   *
+   * @param shardDays the maximum number of days per shard.
+   * @param maxConcurrentShards the maximum number of shards run at the same time.
+   */
+  public ReportPlanner(int shardDays, int maxConcurrentShards) {
+    this(shardDays, maxConcurrentShards, Collections.<String>emptyList());
+  }
+
+  /**
+   * Creates a planner that shards by date and by ad client.
+   *
+   * @param shardDays the maximum number of days per shard.
+   * @param maxConcurrentShards the maximum number of shards run at the same time.
+   * @param adClientIds the ad clients to shard by; each gets its own {@code AD_CLIENT_ID} filter.
+   */
+  public ReportPlanner(int shardDays, int maxConcurrentShards, List<String> adClientIds) {
+    if (shardDays < 1 || maxConcurrentShards < 1) {
+      throw new IllegalArgumentException("shardDays and maxConcurrentShards must be at least 1");
+    }
+    this.shardDays = shardDays;
+    this.maxConcurrentShards = maxConcurrentShards;
+    this.adClientIds = new ArrayList<String>(adClientIds);
+  }
+
+  /** One shard of a sharded request. */
+  private static final class Shard {
+    final LocalDate startDate;
+    final LocalDate endDate;
+    final String adClientId;
+
+    Shard(LocalDate startDate, LocalDate endDate, String adClientId) {
+      this.startDate = startDate;
+      this.endDate = endDate;
+      this.adClientId = adClientId;
+    }
+  }
+
+  /** The rows of one shard. */
+  private static final class ShardResult implements ReportStreamReader.RowHandler {
+    List<Header> headers;
+    final List<String[]> rows = new ArrayList<String[]>();
+    List<String> warnings;
+
+    @Override
+    public void headers(List<Header> headers) {
+      this.headers = headers;
+    }
+
+    @Override
+    public void row(String[] cells) {
+      rows.add(cells.clone());
+    }
+  }
+
+  /**
+   * Runs a report as a set of shards and merges the results.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param request the report request; its date range must be {@code CUSTOM}, and must not end
+   *     before it starts.
+   * @return the merged report. Averages are not computed; totals are computed if every metric
+   *     can be combined.
+   * @throws IOException if any shard fails.
+   * @throws IllegalArgumentException if the request cannot be sharded.
+   */
+  public ReportResult execute(final Adsense adsense, final Generate request) throws IOException {
+    final List<Shard> shards = plan(request);
+    List<String> dimensions = nonNull(request.getDimensions());
+    List<String> metrics = nonNull(request.getMetrics());
+
+    int dateShards = shards.size() / Math.max(1, adClientIds.size());
+    boolean mayOverlap = (adClientIds.size() > 1 && !dimensions.contains("AD_CLIENT_ID"))
+        || (dateShards > 1 && !dimensions.contains("DATE"));
+    boolean combinable = true;
+    for (String metric : metrics) {
+      if (!ReportMetrics.isCombinable(metric)) {
+        combinable = false;
+        if (mayOverlap) {
+          throw new IllegalArgumentException(metric + " cannot be combined across shards; add "
+              + "the sharded dimension to the report or remove the metric.");
+        }
+      }
+    }
+
+    // Ask for the components of every ratio, so that ratios (and totals) can be recomputed.
+    Set<String> shardMetrics = new LinkedHashSet<String>(metrics);
+    if (combinable) {
+      for (String metric : metrics) {
+        ReportMetrics.Ratio ratio = ReportMetrics.getRatio(metric);
+        if (ratio != null) {
+          shardMetrics.add(ratio.getNumerator());
+          shardMetrics.add(ratio.getDenominator());
+        }
+      }
+    }
+    final List<String> shardMetricList = new ArrayList<String>(shardMetrics);
+
+    ExecutorService executor =
+        Executors.newFixedThreadPool(Math.min(maxConcurrentShards, shards.size()));
+    List<ShardResult> results = new ArrayList<ShardResult>();
+    try {
+      List<Future<ShardResult>> futures = new ArrayList<Future<ShardResult>>();
+      for (final Shard shard : shards) {
+        futures.add(executor.submit(() -> runShard(adsense, request, shard, shardMetricList)));
+      }
+      for (Future<ShardResult> future : futures) {
+        results.add(future.get());
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for report shards");
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException("Report shard failed", e.getCause());
+    } finally {
+      executor.shutdownNow();
+    }
+
+    return merge(request, dimensions.size(), metrics, results, combinable);
+  }
+
+  private List<Shard> plan(Generate request) {
+    if (!"CUSTOM".equals(request.getDateRange())) {
+      throw new IllegalArgumentException("Only CUSTOM date ranges can be sharded");
+    }
+    LocalDate startDate = LocalDate.of(request.getStartDateYear(), request.getStartDateMonth(),
+        request.getStartDateDay());
+    LocalDate endDate = LocalDate.of(request.getEndDateYear(), request.getEndDateMonth(),
+        request.getEndDateDay());
+    if (endDate.isBefore(startDate)) {
+      throw new IllegalArgumentException("The report ends on " + endDate + ", before its start on "
+          + startDate);
+    }
+    List<String> adClients = adClientIds.isEmpty()
+        ? Collections.<String>singletonList(null) : adClientIds;
+
+    List<Shard> shards = new ArrayList<Shard>();
+    for (LocalDate start = startDate; !start.isAfter(endDate);
+        start = start.plusDays(shardDays)) {
+      LocalDate end = start.plusDays(shardDays - 1);
+      if (end.isAfter(endDate)) {
+        end = endDate;
+      }
+      for (String adClientId : adClients) {
+        shards.add(new Shard(start, end, adClientId));
+      }
+    }
+    return shards;
+  }
+
+  private static ShardResult runShard(Adsense adsense, Generate template, Shard shard,
+      List<String> metrics) throws IOException {
+    Generate request = adsense.accounts().reports().generate(template.getAccount());
+    request.setDateRange("CUSTOM");
+    request.setStartDateYear(shard.startDate.getYear())
+        .setStartDateMonth(shard.startDate.getMonthValue())
+        .setStartDateDay(shard.startDate.getDayOfMonth());
+    request.setEndDateYear(shard.endDate.getYear())
+        .setEndDateMonth(shard.endDate.getMonthValue())
+        .setEndDateDay(shard.endDate.getDayOfMonth());
+    request.setDimensions(template.getDimensions());
+    request.setMetrics(metrics);
+    List<String> filters = new ArrayList<String>(nonNull(template.getFilters()));
+    if (shard.adClientId != null) {
+      filters.add("AD_CLIENT_ID==" + GenerateReport.escapeFilterParameter(shard.adClientId));
+    }
+    if (!filters.isEmpty()) {
+      request.setFilters(filters);
+    }
+    request.setCurrencyCode(template.getCurrencyCode());
+    request.setLanguageCode(template.getLanguageCode());
+    request.setReportingTimeZone(template.getReportingTimeZone());
+
+    ShardResult result = new ShardResult();
+    result.warnings = ReportStreamReader.execute(request, result).getWarnings();
+    return result;
+  }
+
+  /** A set of rows with the same dimension values, and the sums of their additive metrics. */
+  private static final class Group {
+    final String[] first;
+    final BigDecimal[] sums;
+    int count;
+
+    Group(String[] first, boolean[] additive) {
+      this.first = first;
+      this.sums = new BigDecimal[first.length];
+      for (int i = 0; i < sums.length; i++) {
+        if (additive[i]) {
+          sums[i] = BigDecimal.ZERO;
+        }
+      }
+    }
+
+    void add(String[] row) {
+      for (int i = 0; i < sums.length; i++) {
+        if (sums[i] != null && row[i] != null && !row[i].isEmpty()) {
+          sums[i] = sums[i].add(new BigDecimal(row[i]));
+        }
+      }
+      count++;
+    }
+  }
+
+  private static ReportResult merge(Generate request, int dimensionCount, List<String> metrics,
+      List<ShardResult> results, boolean combinable) {
+    List<Header> shardHeaders = null;
+    for (ShardResult result : results) {
+      if (result.headers != null && !result.headers.isEmpty()) {
+        shardHeaders = result.headers;
+        break;
+      }
+    }
+    ReportResult merged = new ReportResult();
+    merged.setStartDate(new Date().setYear(request.getStartDateYear())
+        .setMonth(request.getStartDateMonth()).setDay(request.getStartDateDay()));
+    merged.setEndDate(new Date().setYear(request.getEndDateYear())
+        .setMonth(request.getEndDateMonth()).setDay(request.getEndDateDay()));
+    List<String> warnings = new ArrayList<String>();
+    for (ShardResult result : results) {
+      if (result.warnings != null) {
+        warnings.addAll(result.warnings);
+      }
+    }
+    merged.setWarnings(warnings);
+    if (shardHeaders == null) {
+      merged.setHeaders(Collections.<Header>emptyList());
+      merged.setRows(Collections.<Row>emptyList());
+      merged.setTotalMatchedRows(0L);
+      return merged;
+    }
+
+    Map<String, Integer> columns = new LinkedHashMap<String, Integer>();
+    boolean[] additive = new boolean[shardHeaders.size()];
+    for (int i = 0; i < shardHeaders.size(); i++) {
+      String name = shardHeaders.get(i).getName();
+      columns.put(name, i);
+      additive[i] = i >= dimensionCount && ReportMetrics.isAdditive(name);
+    }
+
+    // Group rows by their dimension values.
+    Map<String, Group> groups = new LinkedHashMap<String, Group>();
+    Group totals = new Group(new String[shardHeaders.size()], additive);
+    StringBuilder key = new StringBuilder();
+    for (ShardResult result : results) {
+      for (String[] row : result.rows) {
+        key.setLength(0);
+        for (int i = 0; i < dimensionCount; i++) {
+          key.append(row[i]).append('\u0000');
+        }
+        Group group = groups.get(key.toString());
+        if (group == null) {
+          group = new Group(row, additive);
+          groups.put(key.toString(), group);
+        }
+        group.add(row);
+        totals.add(row);
+      }
+    }
+
+    // Output the requested dimensions and metrics only, in the requested order.
+    List<Header> headers = new ArrayList<Header>(shardHeaders.subList(0, dimensionCount));
+    int[] outputColumns = new int[dimensionCount + metrics.size()];
+    for (int i = 0; i < dimensionCount; i++) {
+      outputColumns[i] = i;
+    }
+    for (int i = 0; i < metrics.size(); i++) {
+      outputColumns[dimensionCount + i] = columns.get(metrics.get(i));
+      headers.add(shardHeaders.get(outputColumns[dimensionCount + i]));
+    }
+
+    List<String[]> rows = new ArrayList<String[]>(groups.size());
+    for (Group group : groups.values()) {
+      rows.add(combine(group, group.count == 1, shardHeaders, outputColumns, dimensionCount,
+          columns));
+    }
+    Collections.sort(rows, comparator(headers, dimensionCount, nonNull(request.getOrderBy())));
+    if (request.getLimit() != null && rows.size() > request.getLimit()) {
+      rows = rows.subList(0, request.getLimit());
+    }
+
+    merged.setHeaders(headers);
+    merged.setRows(toRows(rows));
+    merged.setTotalMatchedRows((long) groups.size());
+    if (combinable) {
+      merged.setTotals(toRow(combine(totals, false, shardHeaders, outputColumns, dimensionCount,
+          columns)));
+    }
+    return merged;
+  }
+
+  /**
+   * Returns the output cells of a group. A group of a single row is passed through as returned by
+   * the API; otherwise its metrics are summed or recomputed.
+   */
+  private static String[] combine(Group group, boolean passThrough, List<Header> shardHeaders,
+      int[] outputColumns, int dimensionCount, Map<String, Integer> columns) {
+    String[] cells = new String[outputColumns.length];
+    for (int i = 0; i < outputColumns.length; i++) {
+      int column = outputColumns[i];
+      if (i < dimensionCount || passThrough) {
+        cells[i] = group.first[column];
+        continue;
+      }
+      String metric = shardHeaders.get(column).getName();
+      ReportMetrics.Ratio ratio = ReportMetrics.getRatio(metric);
+      if (group.sums[column] != null) {
+        cells[i] = group.sums[column].toPlainString();
+      } else if (ratio != null) {
+        BigDecimal value = ratio.compute(group.sums[columns.get(ratio.getNumerator())],
+            group.sums[columns.get(ratio.getDenominator())]);
+        cells[i] = value.stripTrailingZeros().toPlainString();
+      } else {
+        throw new IllegalStateException(metric + " cannot be combined across shards");
+      }
+    }
+    return cells;
+  }
+
+  static Comparator<String[]> comparator(List<Header> headers, final int dimensionCount,
+      List<String> orderBy) {
+    Comparator<String[]> result = (a, b) -> 0;
+    for (String order : orderBy) {
+      final boolean descending = order.startsWith("-");
+      String name = order.startsWith("-") || order.startsWith("+") ? order.substring(1) : order;
+      int index = -1;
+      for (int i = 0; i < headers.size(); i++) {
+        if (headers.get(i).getName().equals(name)) {
+          index = i;
+        }
+      }
+      if (index < 0) {
+        continue;
+      }
+      final int column = index;
+      Comparator<String[]> byColumn = (a, b) -> {
+        int compare = column < dimensionCount
+            ? compareStrings(a[column], b[column]) : toDecimal(a[column]).compareTo(
+                toDecimal(b[column]));
+        return descending ? -compare : compare;
+      };
+      result = result.thenComparing(byColumn);
+    }
+    return result;
+  }
+
+  private static int compareStrings(String a, String b) {
+    if (a == null || b == null) {
+      return a == null ? (b == null ? 0 : -1) : 1;
+    }
+    return a.compareTo(b);
+  }
+
+  private static BigDecimal toDecimal(String value) {
+    return value == null || value.isEmpty() ? BigDecimal.ZERO : new BigDecimal(value);
+  }
+
+  static List<Row> toRows(List<String[]> rows) {
+    List<Row> result = new ArrayList<Row>(rows.size());
+    for (String[] row : rows) {
+      result.add(toRow(row));
+    }
+    return result;
+  }
+
+  static Row toRow(String[] cells) {
+    List<Cell> result = new ArrayList<Cell>(cells.length);
+    for (String value : cells) {
+      result.add(new Cell().setValue(value));
+    }
+    return new Row().setCells(result);
+  }
+
+  private static List<String> nonNull(List<String> values) {
+    return values != null ? values : Collections.<String>emptyList();
+  }
+}
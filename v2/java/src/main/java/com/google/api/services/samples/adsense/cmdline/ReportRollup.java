@@ -0,0 +1,546 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.Date;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.DateTimeException;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Answers report requests from one fine-grained report held in memory, instead of asking the API
+ * each time.
+ *
+ * <p>The base report is run once, for example with the {@code DATE} and {@code AD_UNIT_ID}
+ * dimensions and the additive metrics a dashboard needs. A later request can then be answered
+ * locally if:
+ * <ul>
+ * <li>it is for the same account, currency and reporting time zone;</li>
+ * <li>its {@code CUSTOM} date range lies within the base range, and the base has a {@code DATE}
+ * dimension unless the ranges are the same;</li>
+ * <li>each of its dimensions is a base dimension, or {@code WEEK} or {@code MONTH}, which are
+ * derived from {@code DATE};</li>
+ * <li>its filters only use base dimensions;</li>
+ * <li>each of its metrics is an additive base metric, or a ratio whose numerator and denominator
+ * are additive base metrics.</li>
+ * </ul>
+ * Additive metrics are summed and ratios, such as {@code AD_REQUESTS_RPM} or
+ * {@code COST_PER_CLICK}, are recomputed from the sums of their parts. {@link #execute} sends any
+ * other request to the API.
+ */
+public final class ReportRollup {
+
+  private static final String DATE = "DATE";
+  private static final String WEEK = "WEEK";
+  private static final String MONTH = "MONTH";
+
+  private final ReportTable table;
+  private final String accountId;
+  private final LocalDate startDate;
+  private final LocalDate endDate;
+  private final String currencyCode;
+  private final String reportingTimeZone;
+  private final DayOfWeek firstDayOfWeek;
+  private final int dateColumn;
+  private final LocalDate[] dates;
+  private final AtomicLong localCount = new AtomicLong();
+  private final AtomicLong apiCount = new AtomicLong();
+
+  /**
+   * Creates a rollup over an already fetched base report, with weeks starting on Monday.
+   *
+   * @param base the request the table was fetched with; its date range must be {@code CUSTOM}.
+   * @param table the rows of the base report.
+   */
+  public ReportRollup(Generate base, ReportTable table) {
+    this(base, table, DayOfWeek.MONDAY);
+  }
+
+  /**
+   * Creates a rollup over an already fetched base report.
+   *
+   * @param base the request the table was fetched with; its date range must be {@code CUSTOM}.
+   * @param table the rows of the base report.
+   * @param firstDayOfWeek the day that starts each {@code WEEK}, which is labelled with its date.
+   */
+  public ReportRollup(Generate base, ReportTable table, DayOfWeek firstDayOfWeek) {
+    if (!"CUSTOM".equals(base.getDateRange())) {
+      throw new IllegalArgumentException("The base report must have a CUSTOM date range");
+    }
+    this.table = table;
+    this.accountId = base.getAccount();
+    this.startDate = startDate(base);
+    this.endDate = endDate(base);
+    this.currencyCode = base.getCurrencyCode();
+    this.reportingTimeZone = base.getReportingTimeZone();
+    this.firstDayOfWeek = firstDayOfWeek;
+    int column = table.columnIndex(DATE);
+    this.dateColumn = column >= 0 && table.isDimension(column) ? column : -1;
+    if (dateColumn >= 0) {
+      dates = new LocalDate[table.getDictionarySize(dateColumn)];
+      for (int code = 0; code < dates.length; code++) {
+        dates[code] = LocalDate.parse(table.decode(dateColumn, code));
+      }
+    } else {
+      dates = new LocalDate[0];
+    }
+  }
+
+  /**
+   * Runs the base report and keeps its rows.
+   *
+   * @param base the base request; its date range must be {@code CUSTOM}.
+   * @return the rollup.
+   * @throws IOException if the request fails.
+   */
+  public static ReportRollup load(Generate base) throws IOException {
+    ReportTable table = new ReportTable();
+    ReportStreamReader.execute(base, table);
+    return new ReportRollup(base, table);
+  }
+
+  /** @return the number of requests answered locally. */
+  public long getLocalCount() {
+    return localCount.get();
+  }
+
+  /** @return the number of requests sent to the API. */
+  public long getApiCount() {
+    return apiCount.get();
+  }
+
+  /**
+   * Runs a report, locally if the base report holds what it needs and through the API otherwise.
+   *
+   * @param request the report request.
+   * @return the report. Averages are not computed.
+   * @throws IOException if the request has to be sent to the API and fails.
+   */
+  public ReportResult execute(Generate request) throws IOException {
+    if (explain(request) == null) {
+      return answer(request);
+    }
+    apiCount.incrementAndGet();
+    return request.execute();
+  }
+
+  /** @return whether a request can be answered from the base report. */
+  public boolean canAnswer(Generate request) {
+    return explain(request) == null;
+  }
+
+  /** @return why a request cannot be answered from the base report, or {@code null} if it can. */
+  String explain(Generate request) {
+    if (!Objects.equals(request.getAccount(), accountId)) {
+      return "different account";
+    }
+    if (!"CUSTOM".equals(request.getDateRange())) {
+      return "date range is not CUSTOM";
+    }
+    if (request.getCurrencyCode() != null
+        && !Objects.equals(request.getCurrencyCode(), currencyCode)) {
+      return "different currency";
+    }
+    if (request.getReportingTimeZone() != null
+        && !Objects.equals(request.getReportingTimeZone(), reportingTimeZone)) {
+      return "different reporting time zone";
+    }
+    LocalDate start = startDate(request);
+    LocalDate end = endDate(request);
+    if (start.isBefore(startDate) || end.isAfter(endDate)) {
+      return "date range is outside the base range";
+    }
+    if (dateColumn < 0 && (!start.equals(startDate) || !end.equals(endDate))) {
+      return "the base report has no DATE dimension";
+    }
+    for (String dimension : nonNull(request.getDimensions())) {
+      boolean derived = (WEEK.equals(dimension) || MONTH.equals(dimension)) && dateColumn >= 0;
+      if (!derived && dimensionColumn(dimension) < 0) {
+        return "dimension " + dimension + " is not in the base report";
+      }
+    }
+    try {
+      parseFilters(nonNull(request.getFilters()));
+    } catch (IllegalArgumentException e) {
+      return e.getMessage();
+    }
+    if (nonNull(request.getMetrics()).isEmpty()) {
+      return "no metrics";
+    }
+    for (String metric : nonNull(request.getMetrics())) {
+      ReportMetrics.Ratio ratio = ReportMetrics.getRatio(metric);
+      if (ratio != null) {
+        if (additiveColumn(ratio.getNumerator()) < 0
+            || additiveColumn(ratio.getDenominator()) < 0) {
+          return "metric " + metric + " cannot be recomputed from the base report";
+        }
+      } else if (additiveColumn(metric) < 0) {
+        return "metric " + metric + " is not an additive metric of the base report";
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Answers a request from the base report.
+   *
+   * @param request the report request.
+   * @return the report. Averages are not computed.
+   * @throws IllegalArgumentException if the request cannot be answered locally.
+   */
+  public ReportResult answer(Generate request) {
+    String reason = explain(request);
+    if (reason != null) {
+      throw new IllegalArgumentException("Cannot answer the report locally: " + reason);
+    }
+    localCount.incrementAndGet();
+    LocalDate start = startDate(request);
+    LocalDate end = endDate(request);
+    List<String> dimensions = nonNull(request.getDimensions());
+    List<String> metrics = nonNull(request.getMetrics());
+
+    // Each output dimension maps the codes of a base column to group codes.
+    int[] sourceColumns = new int[dimensions.size()];
+    int[][] codeMaps = new int[dimensions.size()][];
+    List<List<String>> groupValues = new ArrayList<List<String>>();
+    for (int i = 0; i < dimensions.size(); i++) {
+      String dimension = dimensions.get(i);
+      int column = dimensionColumn(dimension);
+      if (column >= 0) {
+        sourceColumns[i] = column;
+        List<String> values = new ArrayList<String>(table.getDictionarySize(column));
+        for (int code = 0; code < table.getDictionarySize(column); code++) {
+          values.add(table.decode(column, code));
+        }
+        groupValues.add(values);
+      } else {
+        sourceColumns[i] = dateColumn;
+        codeMaps[i] = new int[dates.length];
+        Map<String, Integer> buckets = new HashMap<String, Integer>();
+        List<String> values = new ArrayList<String>();
+        for (int code = 0; code < dates.length; code++) {
+          String bucket = WEEK.equals(dimension)
+              ? dates[code].with(TemporalAdjusters.previousOrSame(firstDayOfWeek)).toString()
+              : dates[code].toString().substring(0, 7);
+          Integer id = buckets.get(bucket);
+          if (id == null) {
+            id = values.size();
+            buckets.put(bucket, id);
+            values.add(bucket);
+          }
+          codeMaps[i][code] = id;
+        }
+        groupValues.add(values);
+      }
+    }
+
+    // The additive columns to sum: every plain metric, and both parts of every ratio.
+    List<Integer> sumColumns = new ArrayList<Integer>();
+    int[] metricSums = new int[metrics.size()];
+    int[] numeratorSums = new int[metrics.size()];
+    int[] denominatorSums = new int[metrics.size()];
+    for (int i = 0; i < metrics.size(); i++) {
+      ReportMetrics.Ratio ratio = ReportMetrics.getRatio(metrics.get(i));
+      if (ratio != null) {
+        metricSums[i] = -1;
+        numeratorSums[i] = sumIndex(sumColumns, additiveColumn(ratio.getNumerator()));
+        denominatorSums[i] = sumIndex(sumColumns, additiveColumn(ratio.getDenominator()));
+      } else {
+        metricSums[i] = sumIndex(sumColumns, additiveColumn(metrics.get(i)));
+      }
+    }
+    boolean[] tally = new boolean[sumColumns.size()];
+    for (int s = 0; s < tally.length; s++) {
+      tally[s] = !"METRIC_CURRENCY".equals(table.getHeaders().get(sumColumns.get(s)).getType());
+    }
+
+    boolean[] inRange = new boolean[dates.length];
+    for (int code = 0; code < dates.length; code++) {
+      inRange[code] = !dates[code].isBefore(start) && !dates[code].isAfter(end);
+    }
+    List<Clause> filters = parseFilters(nonNull(request.getFilters()));
+
+    Map<List<Integer>, double[]> groups = new HashMap<List<Integer>, double[]>();
+    List<List<Integer>> order = new ArrayList<List<Integer>>();
+    double[] totals = new double[sumColumns.size()];
+    for (int row = 0; row < table.getRowCount(); row++) {
+      if (dateColumn >= 0 && !inRange[table.getCode(dateColumn, row)]) {
+        continue;
+      }
+      if (!matches(filters, row)) {
+        continue;
+      }
+      Integer[] key = new Integer[dimensions.size()];
+      for (int i = 0; i < key.length; i++) {
+        int code = table.getCode(sourceColumns[i], row);
+        key[i] = codeMaps[i] != null ? codeMaps[i][code] : code;
+      }
+      List<Integer> groupKey = Arrays.asList(key);
+      double[] sums = groups.get(groupKey);
+      if (sums == null) {
+        sums = new double[sumColumns.size()];
+        groups.put(groupKey, sums);
+        order.add(groupKey);
+      }
+      for (int s = 0; s < sums.length; s++) {
+        double value = table.getDouble(sumColumns.get(s), row);
+        sums[s] += value;
+        totals[s] += value;
+      }
+    }
+
+    List<Header> headers = new ArrayList<Header>();
+    for (int i = 0; i < dimensions.size(); i++) {
+      headers.add(new Header().setName(dimensions.get(i)).setType("DIMENSION"));
+    }
+    for (int i = 0; i < metrics.size(); i++) {
+      headers.add(metricHeader(metrics.get(i), metricSums[i] >= 0
+          ? sumColumns.get(metricSums[i]) : -1));
+    }
+    List<String[]> rows = new ArrayList<String[]>(order.size());
+    for (List<Integer> key : order) {
+      String[] cells = new String[headers.size()];
+      for (int i = 0; i < key.size(); i++) {
+        cells[i] = groupValues.get(i).get(key.get(i));
+      }
+      metricCells(metrics, groups.get(key), tally, metricSums, numeratorSums, denominatorSums,
+          cells, dimensions.size());
+      rows.add(cells);
+    }
+    Collections.sort(rows, ReportPlanner.comparator(headers, dimensions.size(),
+        nonNull(request.getOrderBy())));
+    if (request.getLimit() != null && rows.size() > request.getLimit()) {
+      rows = rows.subList(0, request.getLimit());
+    }
+    String[] totalCells = new String[headers.size()];
+    metricCells(metrics, totals, tally, metricSums, numeratorSums, denominatorSums, totalCells,
+        dimensions.size());
+
+    ReportResult result = new ReportResult();
+    result.setHeaders(headers);
+    result.setRows(ReportPlanner.toRows(rows));
+    result.setTotals(ReportPlanner.toRow(totalCells));
+    result.setTotalMatchedRows((long) groups.size());
+    result.setStartDate(new Date().setYear(start.getYear()).setMonth(start.getMonthValue())
+        .setDay(start.getDayOfMonth()));
+    result.setEndDate(new Date().setYear(end.getYear()).setMonth(end.getMonthValue())
+        .setDay(end.getDayOfMonth()));
+    result.setWarnings(Collections.<String>emptyList());
+    return result;
+  }
+
+  private void metricCells(List<String> metrics, double[] sums, boolean[] tally, int[] metricSums,
+      int[] numeratorSums, int[] denominatorSums, String[] cells, int offset) {
+    for (int i = 0; i < metrics.size(); i++) {
+      if (metricSums[i] >= 0) {
+        int s = metricSums[i];
+        cells[offset + i] = tally[s] ? Long.toString(Math.round(sums[s])) : decimal(sums[s]);
+      } else {
+        BigDecimal value = ReportMetrics.getRatio(metrics.get(i)).compute(
+            new BigDecimal(decimal(sums[numeratorSums[i]])),
+            new BigDecimal(decimal(sums[denominatorSums[i]])));
+        cells[offset + i] = value.signum() == 0 ? "0" : value.stripTrailingZeros().toPlainString();
+      }
+    }
+  }
+
+  /** @return a header for an output metric, typed like the API types it. */
+  private Header metricHeader(String metric, int baseColumn) {
+    if (baseColumn >= 0) {
+      Header base = table.getHeaders().get(baseColumn);
+      return new Header().setName(metric).setType(base.getType())
+          .setCurrencyCode(base.getCurrencyCode());
+    }
+    Header header = new Header().setName(metric);
+    if (ReportMetrics.isMonetary(metric)) {
+      header.setType("METRIC_CURRENCY").setCurrencyCode(monetaryCurrency());
+    } else {
+      header.setType("METRIC_RATIO");
+    }
+    return header;
+  }
+
+  private String monetaryCurrency() {
+    for (Header header : table.getHeaders()) {
+      if (header.getCurrencyCode() != null) {
+        return header.getCurrencyCode();
+      }
+    }
+    return currencyCode;
+  }
+
+  /** Rounds away the error of summing binary doubles; currencies have at most 6 decimals. */
+  private static String decimal(double value) {
+    BigDecimal rounded = BigDecimal.valueOf(value).setScale(6, RoundingMode.HALF_EVEN)
+        .stripTrailingZeros();
+    return rounded.signum() == 0 ? "0" : rounded.toPlainString();
+  }
+
+  private static int sumIndex(List<Integer> sumColumns, int column) {
+    int index = sumColumns.indexOf(column);
+    if (index < 0) {
+      sumColumns.add(column);
+      index = sumColumns.size() - 1;
+    }
+    return index;
+  }
+
+  private int dimensionColumn(String name) {
+    int column = table.columnIndex(name);
+    return column >= 0 && table.isDimension(column) ? column : -1;
+  }
+
+  private int additiveColumn(String name) {
+    int column = table.columnIndex(name);
+    return column >= 0 && !table.isDimension(column) && ReportMetrics.isAdditive(name)
+        ? column : -1;
+  }
+
+  /** A set of conditions of which at least one must hold. */
+  private static final class Clause {
+    final List<Integer> columns = new ArrayList<Integer>();
+    final List<boolean[]> allowed = new ArrayList<boolean[]>();
+  }
+
+  private boolean matches(List<Clause> filters, int row) {
+    for (Clause clause : filters) {
+      boolean any = false;
+      for (int i = 0; i < clause.columns.size() && !any; i++) {
+        any = clause.allowed.get(i)[table.getCode(clause.columns.get(i), row)];
+      }
+      if (!any) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Parses filters into clauses: filters and {@code ;} separated parts must all hold, and at least
+   * one of the {@code ,} separated conditions of a part. The operators are {@code ==},
+   * {@code !=}, {@code =@} (contains) and {@code !@} (does not contain).
+   *
+   * @throws IllegalArgumentException if a filter is malformed or uses another dimension.
+   */
+  private List<Clause> parseFilters(List<String> filters) {
+    List<Clause> clauses = new ArrayList<Clause>();
+    for (String filter : filters) {
+      for (String part : split(filter, ';')) {
+        Clause clause = new Clause();
+        for (String condition : split(part, ',')) {
+          addCondition(clause, condition);
+        }
+        clauses.add(clause);
+      }
+    }
+    return clauses;
+  }
+
+  private void addCondition(Clause clause, String condition) {
+    String[] operators = {"==", "!=", "=@", "!@"};
+    for (String operator : operators) {
+      int at = condition.indexOf(operator);
+      if (at <= 0) {
+        continue;
+      }
+      String name = condition.substring(0, at);
+      String value = unescape(condition.substring(at + 2));
+      int column = dimensionColumn(name);
+      if (column < 0) {
+        throw new IllegalArgumentException("filter dimension " + name
+            + " is not in the base report");
+      }
+      boolean[] allowed = new boolean[table.getDictionarySize(column)];
+      for (int code = 0; code < allowed.length; code++) {
+        String cell = table.decode(column, code);
+        boolean equal = value.equals(cell);
+        boolean contains = cell != null && cell.contains(value);
+        allowed[code] = operator.equals("==") ? equal : operator.equals("!=") ? !equal
+            : operator.equals("=@") ? contains : !contains;
+      }
+      clause.columns.add(column);
+      clause.allowed.add(allowed);
+      return;
+    }
+    throw new IllegalArgumentException("unsupported filter " + condition);
+  }
+
+  /** Splits on a separator that is not escaped with a backslash, keeping the escapes. */
+  private static List<String> split(String text, char separator) {
+    List<String> parts = new ArrayList<String>();
+    StringBuilder part = new StringBuilder();
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c == '\\' && i + 1 < text.length()) {
+        part.append(c).append(text.charAt(++i));
+      } else if (c == separator) {
+        parts.add(part.toString());
+        part.setLength(0);
+      } else {
+        part.append(c);
+      }
+    }
+    parts.add(part.toString());
+    return parts;
+  }
+
+  private static String unescape(String value) {
+    StringBuilder result = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      result.append(c == '\\' && i + 1 < value.length() ? value.charAt(++i) : c);
+    }
+    return result.toString();
+  }
+
+  private static LocalDate startDate(Generate request) {
+    return date(request.getStartDateYear(), request.getStartDateMonth(),
+        request.getStartDateDay());
+  }
+
+  private static LocalDate endDate(Generate request) {
+    return date(request.getEndDateYear(), request.getEndDateMonth(), request.getEndDateDay());
+  }
+
+  private static LocalDate date(Integer year, Integer month, Integer day) {
+    if (year == null || month == null || day == null) {
+      throw new IllegalArgumentException("CUSTOM date ranges need a start and an end date");
+    }
+    try {
+      return LocalDate.of(year, month, day);
+    } catch (DateTimeException e) {
+      throw new IllegalArgumentException(e.getMessage(), e);
+    }
+  }
+
+  private static List<String> nonNull(List<String> values) {
+    return values != null ? values : Collections.<String>emptyList();
+  }
+}
@@ -0,0 +1,780 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.AdsenseRequest;
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An append-only local store of report rows, partitioned by account and day and read back through
+ * memory-mapped files.
+ *
+ * <p>Each account has a directory under the store directory, named after the account, holding
+ * one segment file per day and a dictionary shared by all of its segments:
+ *
+ * <pre>
+ * accounts/pub-0000000000000000/dictionary.dat     the UTF-8 bytes of every dimension value
+ * accounts/pub-0000000000000000/dictionary.idx     int64 end offset of each value in .dat
+ * accounts/pub-0000000000000000/2021/2021-06-30.seg
+ * </pre>
+ *
+ * <p>A segment stores the rows of one day column by column, each value at a fixed width, so a
+ * value is read straight from its offset and a query only touches the pages of the columns and
+ * days it reads. All integers are little-endian:
+ *
+ * <pre>
+ * segment    := MAGIC byte(version) int32(rows) int32(columns) column* padding data*
+ * column     := string(name) string(headerType) byte(type) string(currencyCode)
+ * data       := int32 code * rows padding                    (STRING, -1 for null)
+ *             | int64 * rows                                  (INT64, DECIMAL; MIN_VALUE for null)
+ *             | float64 * rows                                (DOUBLE, NaN for null)
+ * string     := int32(length) utf8
+ * </pre>
+ *
+ * <p>Padding aligns each data block to 8 bytes. Column types and decimal scale are those of
+ * {@link ColumnarReportWriter}; the {@code DATE} column is implied by the segment and not stored.
+ *
+ * <p>Opening the store reads nothing, so start-up time does not depend on how much history is
+ * stored. Segments are never modified: writing a day that is already stored replaces its segment
+ * with an atomic rename, and dictionary values are only ever appended. Writes to the same account
+ * must not run concurrently, from this or another process; reads may run alongside them.
+ */
+public final class ReportSegmentStore {
+
+  /** The magic bytes at the start of every segment. */
+  static final byte[] MAGIC = {'A', 'S', 'S', 'G'};
+  static final int VERSION = 1;
+
+  private static final String DATE = "DATE";
+  private static final String SEGMENT_SUFFIX = ".seg";
+  private static final String DICTIONARY_DATA = "dictionary.dat";
+  private static final String DICTIONARY_INDEX = "dictionary.idx";
+  private static final Pattern ACCOUNT_ID = Pattern.compile("[A-Za-z0-9_-]+(/[A-Za-z0-9_-]+)*");
+
+  private final File directory;
+  private final Map<String, Dictionary> dictionaries = new HashMap<String, Dictionary>();
+
+  /**
+   * Opens a store, creating nothing until the first write.
+   *
+   * @param directory the directory that holds the stored accounts.
+   */
+  public ReportSegmentStore(File directory) {
+    this.directory = directory;
+  }
+
+  /** @return the directory that holds the stored accounts. */
+  public File getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Runs a report and stores its rows, one segment per day. Nothing is stored if the request
+   * fails.
+   *
+   * @param accountId the account the report belongs to, for example
+   *     {@code accounts/pub-1234567890123456}.
+   * @param request a report request with {@code DATE} among its dimensions.
+   * @return the number of days written.
+   * @throws IOException if the request fails or the store cannot be written.
+   */
+  public int append(String accountId, AdsenseRequest<ReportResult> request) throws IOException {
+    DayCollector collector = new DayCollector(dictionary(accountId));
+    ReportStreamReader.execute(request, collector);
+    return collector.write(accountDirectory(accountId));
+  }
+
+  /**
+   * Stores the rows of an already fetched report, one segment per day.
+   *
+   * @param accountId the account the report belongs to.
+   * @param report a report with {@code DATE} among its dimensions.
+   * @return the number of days written.
+   * @throws IOException if the store cannot be written.
+   */
+  public int append(String accountId, ReportResult report) throws IOException {
+    DayCollector collector = new DayCollector(dictionary(accountId));
+    List<Header> headers = report.getHeaders() != null ? report.getHeaders()
+        : Collections.<Header>emptyList();
+    collector.headers(headers);
+    if (report.getRows() != null) {
+      String[] cells = new String[headers.size()];
+      for (Row row : report.getRows()) {
+        List<Cell> rowCells = row.getCells();
+        for (int i = 0; i < cells.length; i++) {
+          cells[i] = rowCells.get(i).getValue();
+        }
+        collector.row(cells);
+      }
+    }
+    return collector.write(accountDirectory(accountId));
+  }
+
+  /**
+   * Lists the stored days of an account. This lists the account's directories, so unlike the
+   * other read methods its cost grows with the number of stored days.
+   *
+   * @param accountId the account.
+   * @return the stored days, in date order.
+   */
+  public List<LocalDate> getDays(String accountId) {
+    List<LocalDate> days = new ArrayList<LocalDate>();
+    File[] years = accountDirectory(accountId).listFiles();
+    if (years == null) {
+      return days;
+    }
+    for (File year : years) {
+      String[] names = year.isDirectory() ? year.list() : null;
+      if (names == null) {
+        continue;
+      }
+      for (String name : names) {
+        if (name.endsWith(SEGMENT_SUFFIX)) {
+          try {
+            days.add(LocalDate.parse(name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+          } catch (DateTimeParseException e) {
+            // Not a segment of this store.
+          }
+        }
+      }
+    }
+    Collections.sort(days);
+    return days;
+  }
+
+  /**
+   * Maps the segment of one day.
+   *
+   * @param accountId the account.
+   * @param day the day.
+   * @return the segment, or {@code null} if the day is not stored.
+   * @throws IOException if the segment cannot be read.
+   */
+  public Segment open(String accountId, LocalDate day) throws IOException {
+    File file = segmentFile(accountDirectory(accountId), day);
+    if (!file.isFile()) {
+      return null;
+    }
+    return new Segment(day, map(file), dictionary(accountId));
+  }
+
+  /**
+   * Replays the stored rows of a range of days, in date order, with {@code DATE} as the first
+   * column. Days that are not stored are skipped.
+   *
+   * @param accountId the account.
+   * @param from the first day to read.
+   * @param to the last day to read, inclusive.
+   * @param handler the handler that receives the headers and the rows.
+   * @return the number of rows read.
+   * @throws IOException if a segment cannot be read, or the days have different columns.
+   */
+  public long read(String accountId, LocalDate from, LocalDate to,
+      ReportStreamReader.RowHandler handler) throws IOException {
+    List<Header> headers = null;
+    String[] cells = null;
+    long total = 0;
+    for (LocalDate day = from; !day.isAfter(to); day = day.plusDays(1)) {
+      Segment segment = open(accountId, day);
+      if (segment == null) {
+        continue;
+      }
+      if (headers == null) {
+        headers = new ArrayList<Header>();
+        headers.add(new Header().setName(DATE).setType("DIMENSION"));
+        headers.addAll(segment.getHeaders());
+        handler.headers(Collections.unmodifiableList(headers));
+        cells = new String[headers.size()];
+      } else if (!sameColumns(headers.subList(1, headers.size()), segment.getHeaders())) {
+        throw new IOException("The segment of " + day + " has different columns than "
+            + "the earlier days");
+      }
+      cells[0] = day.toString();
+      int columns = segment.getColumnCount();
+      for (int r = 0; r < segment.getRowCount(); r++) {
+        for (int i = 0; i < columns; i++) {
+          cells[i + 1] = segment.getString(i, r);
+        }
+        handler.row(cells);
+      }
+      total += segment.getRowCount();
+    }
+    if (headers == null) {
+      handler.headers(Collections.<Header>emptyList());
+    }
+    return total;
+  }
+
+  private static boolean sameColumns(List<Header> a, List<Header> b) {
+    if (a.size() != b.size()) {
+      return false;
+    }
+    for (int i = 0; i < a.size(); i++) {
+      if (!a.get(i).getName().equals(b.get(i).getName())
+          || !a.get(i).getType().equals(b.get(i).getType())) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private File accountDirectory(String accountId) {
+    if (accountId == null || !ACCOUNT_ID.matcher(accountId).matches()) {
+      throw new IllegalArgumentException("Invalid account ID: " + accountId);
+    }
+    return new File(directory, accountId);
+  }
+
+  private static File segmentFile(File accountDirectory, LocalDate day) {
+    return new File(new File(accountDirectory, Integer.toString(day.getYear())),
+        day + SEGMENT_SUFFIX);
+  }
+
+  private synchronized Dictionary dictionary(String accountId) {
+    Dictionary dictionary = dictionaries.get(accountId);
+    if (dictionary == null) {
+      dictionary = new Dictionary(accountDirectory(accountId));
+      dictionaries.put(accountId, dictionary);
+    }
+    return dictionary;
+  }
+
+  private static ByteBuffer map(File file) throws IOException {
+    FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      // The mapping stays valid after the channel is closed.
+      return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())
+          .order(ByteOrder.LITTLE_ENDIAN);
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static int align(int offset) {
+    return (offset + 7) & ~7;
+  }
+
+  /** The rows of one stored day, read in place from the mapped segment file. */
+  public static final class Segment {
+    private final LocalDate day;
+    private final ByteBuffer data;
+    private final Dictionary dictionary;
+    private final int rows;
+    private final List<Header> headers;
+    private final byte[] types;
+    private final int[] offsets;
+
+    private Segment(LocalDate day, ByteBuffer data, Dictionary dictionary) throws IOException {
+      this.day = day;
+      this.data = data;
+      this.dictionary = dictionary;
+      if (data.capacity() < MAGIC.length + 9) {
+        throw new IOException("Truncated report segment: " + day);
+      }
+      byte[] magic = new byte[MAGIC.length];
+      for (int i = 0; i < magic.length; i++) {
+        magic[i] = data.get(i);
+      }
+      if (!Arrays.equals(magic, MAGIC) || data.get(MAGIC.length) != VERSION) {
+        throw new IOException("Not a report segment of a supported version: " + day);
+      }
+      int offset = MAGIC.length + 1;
+      rows = data.getInt(offset);
+      int columns = data.getInt(offset + 4);
+      offset += 8;
+      List<Header> headers = new ArrayList<Header>(columns);
+      types = new byte[columns];
+      int[] position = {offset};
+      for (int i = 0; i < columns; i++) {
+        Header header = new Header().setName(getString(data, position))
+            .setType(getString(data, position));
+        types[i] = data.get(position[0]++);
+        String currencyCode = getString(data, position);
+        if (!currencyCode.isEmpty()) {
+          header.setCurrencyCode(currencyCode);
+        }
+        headers.add(header);
+      }
+      this.headers = Collections.unmodifiableList(headers);
+      offsets = new int[columns];
+      offset = align(position[0]);
+      for (int i = 0; i < columns; i++) {
+        offsets[i] = offset;
+        offset = align(offset + rows * (types[i] == ColumnarReportWriter.STRING ? 4 : 8));
+      }
+      if (offset > data.capacity()) {
+        throw new IOException("Truncated report segment: " + day);
+      }
+    }
+
+    /** @return the day of the rows. */
+    public LocalDate getDay() {
+      return day;
+    }
+
+    /** @return the headers of the stored columns, which do not include {@code DATE}. */
+    public List<Header> getHeaders() {
+      return headers;
+    }
+
+    /** @return the number of rows. */
+    public int getRowCount() {
+      return rows;
+    }
+
+    /** @return the number of stored columns. */
+    public int getColumnCount() {
+      return types.length;
+    }
+
+    /** @return the index of the column with the given name, or -1 if there is none. */
+    public int columnIndex(String name) {
+      for (int i = 0; i < headers.size(); i++) {
+        if (headers.get(i).getName().equals(name)) {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    /** @return whether a column holds dimension values. */
+    public boolean isDimension(int column) {
+      return types[column] == ColumnarReportWriter.STRING;
+    }
+
+    /**
+     * @return a metric value as a long; currency metrics are given in millionths, and missing
+     *     values as {@link Long#MIN_VALUE}.
+     */
+    public long getLong(int column, int row) {
+      switch (types[column]) {
+        case ColumnarReportWriter.INT64:
+        case ColumnarReportWriter.DECIMAL:
+          return data.getLong(offsets[column] + 8 * row);
+        case ColumnarReportWriter.DOUBLE:
+          double value = getDouble(column, row);
+          return Double.isNaN(value) ? Long.MIN_VALUE : (long) value;
+        default:
+          throw new IllegalArgumentException("Column " + column + " is not a metric");
+      }
+    }
+
+    /** @return a metric value as a double; missing values are given as NaN. */
+    public double getDouble(int column, int row) {
+      switch (types[column]) {
+        case ColumnarReportWriter.INT64:
+        case ColumnarReportWriter.DECIMAL:
+          long value = data.getLong(offsets[column] + 8 * row);
+          if (value == Long.MIN_VALUE) {
+            return Double.NaN;
+          }
+          return types[column] == ColumnarReportWriter.DECIMAL ? value / 1e6 : value;
+        case ColumnarReportWriter.DOUBLE:
+          return data.getDouble(offsets[column] + 8 * row);
+        default:
+          throw new IllegalArgumentException("Column " + column + " is not a metric");
+      }
+    }
+
+    /**
+     * @return the dictionary code of a dimension value, or -1 if it is missing. Codes are shared
+     *     by all segments of the account, so they can be compared across days.
+     */
+    public int getCode(int column, int row) {
+      if (types[column] != ColumnarReportWriter.STRING) {
+        throw new IllegalArgumentException("Column " + column + " is not a dimension");
+      }
+      return data.getInt(offsets[column] + 4 * row);
+    }
+
+    /** @return a cell as the API formats it, or {@code null} if it is missing. */
+    public String getString(int column, int row) {
+      switch (types[column]) {
+        case ColumnarReportWriter.STRING:
+          int code = getCode(column, row);
+          return code < 0 ? null : dictionary.decode(code);
+        case ColumnarReportWriter.INT64:
+          long count = getLong(column, row);
+          return count == Long.MIN_VALUE ? null : Long.toString(count);
+        case ColumnarReportWriter.DECIMAL:
+          long unscaled = getLong(column, row);
+          if (unscaled == Long.MIN_VALUE) {
+            return null;
+          }
+          BigDecimal value = BigDecimal.valueOf(unscaled, ColumnarReportWriter.DECIMAL_SCALE)
+              .stripTrailingZeros();
+          return value.signum() == 0 ? "0" : value.toPlainString();
+        default:
+          double number = getDouble(column, row);
+          if (Double.isNaN(number)) {
+            return null;
+          }
+          if (Double.isInfinite(number)) {
+            return Double.toString(number);
+          }
+          // Ratios such as 0.0001 would otherwise come back as 1.0E-4.
+          BigDecimal ratio = BigDecimal.valueOf(number).stripTrailingZeros();
+          return ratio.signum() == 0 ? "0" : ratio.toPlainString();
+      }
+    }
+
+    /** @return the sum of a metric column, skipping missing values. */
+    public double sum(int column) {
+      double sum = 0;
+      for (int r = 0; r < rows; r++) {
+        double value = getDouble(column, r);
+        if (!Double.isNaN(value)) {
+          sum += value;
+        }
+      }
+      return sum;
+    }
+
+    private static String getString(ByteBuffer data, int[] position) {
+      int length = data.getInt(position[0]);
+      byte[] bytes = new byte[length];
+      for (int i = 0; i < length; i++) {
+        bytes[i] = data.get(position[0] + 4 + i);
+      }
+      position[0] += 4 + length;
+      return new String(bytes, StandardCharsets.UTF_8);
+    }
+  }
+
+  /**
+   * The dimension values of one account. Values are decoded from the mapped dictionary files,
+   * which are mapped again when they have grown; the reverse index needed to encode values is only
+   * loaded by the first write.
+   */
+  private static final class Dictionary {
+    private final File data;
+    private final File index;
+    private ByteBuffer mappedData;
+    private ByteBuffer mappedIndex;
+    private int mappedCount;
+    private String[] decoded = new String[0];
+
+    private Map<String, Integer> codes;
+    private final List<byte[]> pending = new ArrayList<byte[]>();
+    private long size;
+    private int count;
+
+    Dictionary(File accountDirectory) {
+      this.data = new File(accountDirectory, DICTIONARY_DATA);
+      this.index = new File(accountDirectory, DICTIONARY_INDEX);
+    }
+
+    synchronized String decode(int code) {
+      if (code >= mappedCount) {
+        remap();
+        if (code >= mappedCount) {
+          throw new IllegalStateException("Dictionary code " + code + " is not stored");
+        }
+      }
+      String value = decoded[code];
+      if (value == null) {
+        long start = code == 0 ? 0 : mappedIndex.getLong(8 * (code - 1));
+        long end = mappedIndex.getLong(8 * code);
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+          bytes[i] = mappedData.get((int) start + i);
+        }
+        value = new String(bytes, StandardCharsets.UTF_8);
+        decoded[code] = value;
+      }
+      return value;
+    }
+
+    private void remap() {
+      try {
+        if (!index.isFile()) {
+          return;
+        }
+        ByteBuffer newIndex = map(index);
+        int newCount = newIndex.capacity() / 8;
+        mappedData = map(data);
+        mappedIndex = newIndex;
+        mappedCount = newCount;
+        decoded = Arrays.copyOf(decoded, newCount);
+      } catch (IOException e) {
+        throw new IllegalStateException("Cannot map the dictionary " + data, e);
+      }
+    }
+
+    synchronized int encode(String value) throws IOException {
+      if (codes == null) {
+        load();
+      }
+      Integer code = codes.get(value);
+      if (code == null) {
+        code = count++;
+        codes.put(value, code);
+        pending.add(value.getBytes(StandardCharsets.UTF_8));
+      }
+      return code;
+    }
+
+    /** Reads every stored value, dropping any tail left by an interrupted write. */
+    private void load() throws IOException {
+      codes = new HashMap<String, Integer>();
+      if (!index.isFile()) {
+        return;
+      }
+      ByteBuffer storedIndex = map(index);
+      ByteBuffer storedData = map(data);
+      count = storedIndex.capacity() / 8;
+      long start = 0;
+      for (int code = 0; code < count; code++) {
+        long end = storedIndex.getLong(8 * code);
+        byte[] bytes = new byte[(int) (end - start)];
+        for (int i = 0; i < bytes.length; i++) {
+          bytes[i] = storedData.get((int) start + i);
+        }
+        codes.put(new String(bytes, StandardCharsets.UTF_8), code);
+        start = end;
+      }
+      size = start;
+    }
+
+    /** Appends the new values, values first, so that the index never points past the data. */
+    synchronized void flush() throws IOException {
+      if (pending.isEmpty()) {
+        return;
+      }
+      Files.createDirectories(data.getParentFile().toPath());
+      ByteBuffer offsets = ByteBuffer.allocate(8 * pending.size()).order(ByteOrder.LITTLE_ENDIAN);
+      FileChannel dataChannel = FileChannel.open(data.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      try {
+        dataChannel.truncate(size);
+        long position = size;
+        for (byte[] value : pending) {
+          ByteBuffer bytes = ByteBuffer.wrap(value);
+          while (bytes.hasRemaining()) {
+            position += dataChannel.write(bytes, position);
+          }
+          offsets.putLong(position);
+        }
+        dataChannel.force(false);
+        size = position;
+      } finally {
+        dataChannel.close();
+      }
+      FileChannel indexChannel = FileChannel.open(index.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE);
+      try {
+        long position = 8L * (count - pending.size());
+        indexChannel.truncate(position);
+        // Buffer methods are called through Buffer, as ByteBuffer only overrides them since
+        // Java 9.
+        ((Buffer) offsets).flip();
+        while (offsets.hasRemaining()) {
+          position += indexChannel.write(offsets, position);
+        }
+        indexChannel.force(false);
+      } finally {
+        indexChannel.close();
+      }
+      pending.clear();
+    }
+  }
+
+  /** Buffers the rows of a report by day, and writes a segment per day once all are read. */
+  private static final class DayCollector implements ReportStreamReader.RowHandler {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Dictionary dictionary;
+    private final Map<String, DayBuffer> days = new TreeMap<String, DayBuffer>();
+    private List<Header> headers;
+    private byte[] types;
+    private int dateColumn;
+
+    DayCollector(Dictionary dictionary) {
+      this.dictionary = dictionary;
+    }
+
+    @Override
+    public void headers(List<Header> headers) {
+      dateColumn = -1;
+      for (int i = 0; i < headers.size(); i++) {
+        if (DATE.equals(headers.get(i).getName())) {
+          dateColumn = i;
+        }
+      }
+      if (dateColumn < 0) {
+        throw new IllegalArgumentException("Stored reports need a DATE dimension");
+      }
+      this.headers = new ArrayList<Header>(headers);
+      this.headers.remove(dateColumn);
+      types = new byte[this.headers.size()];
+      for (int i = 0; i < types.length; i++) {
+        types[i] = ColumnarReportWriter.columnType(this.headers.get(i).getType());
+      }
+    }
+
+    @Override
+    public void row(String[] cells) throws IOException {
+      DayBuffer day = days.get(cells[dateColumn]);
+      if (day == null) {
+        day = new DayBuffer(types.length);
+        days.put(cells[dateColumn], day);
+      }
+      long[][] values = day.grow();
+      int row = day.rows++;
+      for (int i = 0, cell = 0; i < types.length; i++, cell++) {
+        if (cell == dateColumn) {
+          cell++;
+        }
+        values[i][row] = encode(types[i], cells[cell]);
+      }
+    }
+
+    private long encode(byte type, String value) throws IOException {
+      switch (type) {
+        case ColumnarReportWriter.STRING:
+          return value == null ? -1 : dictionary.encode(value);
+        case ColumnarReportWriter.INT64:
+          return value == null ? Long.MIN_VALUE : Long.parseLong(value);
+        case ColumnarReportWriter.DECIMAL:
+          return value == null ? Long.MIN_VALUE : ColumnarReportWriter.parseDecimal(value);
+        default:
+          return Double.doubleToRawLongBits(value == null ? Double.NaN
+              : Double.parseDouble(value));
+      }
+    }
+
+    /**
+     * Writes each day to a temporary file, and moves it into place once the dictionary values it
+     * refers to are stored.
+     */
+    int write(File accountDirectory) throws IOException {
+      dictionary.flush();
+      for (Map.Entry<String, DayBuffer> entry : days.entrySet()) {
+        LocalDate day = LocalDate.parse(entry.getKey());
+        File file = segmentFile(accountDirectory, day);
+        Files.createDirectories(file.getParentFile().toPath());
+        File temporary = File.createTempFile("segment", ".tmp", file.getParentFile());
+        try {
+          writeSegment(temporary, entry.getValue());
+          Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+              StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+          Files.deleteIfExists(temporary.toPath());
+        }
+      }
+      return days.size();
+    }
+
+    private void writeSegment(File file, DayBuffer day) throws IOException {
+      List<byte[]> strings = new ArrayList<byte[]>();
+      int headerSize = MAGIC.length + 1 + 8;
+      for (Header header : headers) {
+        for (String value : new String[] {header.getName(), header.getType(),
+            header.getCurrencyCode() != null ? header.getCurrencyCode() : ""}) {
+          byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+          strings.add(bytes);
+          headerSize += 4 + bytes.length;
+        }
+        headerSize++;
+      }
+      long size = align(headerSize);
+      for (byte type : types) {
+        size = align((int) size) + (long) day.rows * (type == ColumnarReportWriter.STRING ? 4 : 8);
+        if (size > Integer.MAX_VALUE) {
+          throw new IOException("A day of rows does not fit in one segment");
+        }
+      }
+
+      ByteBuffer buffer = ByteBuffer.allocate(align((int) size)).order(ByteOrder.LITTLE_ENDIAN);
+      buffer.put(MAGIC).put((byte) VERSION).putInt(day.rows).putInt(types.length);
+      for (int i = 0; i < types.length; i++) {
+        buffer.putInt(strings.get(3 * i).length).put(strings.get(3 * i));
+        buffer.putInt(strings.get(3 * i + 1).length).put(strings.get(3 * i + 1));
+        buffer.put(types[i]);
+        buffer.putInt(strings.get(3 * i + 2).length).put(strings.get(3 * i + 2));
+      }
+      int offset = align(headerSize);
+      for (int i = 0; i < types.length; i++) {
+        long[] values = day.values[i];
+        if (types[i] == ColumnarReportWriter.STRING) {
+          for (int r = 0; r < day.rows; r++) {
+            buffer.putInt(offset + 4 * r, (int) values[r]);
+          }
+          offset = align(offset + 4 * day.rows);
+        } else {
+          for (int r = 0; r < day.rows; r++) {
+            buffer.putLong(offset + 8 * r, values[r]);
+          }
+          offset = align(offset + 8 * day.rows);
+        }
+      }
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE,
+          StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        long position = 0;
+        ByteBuffer whole = ByteBuffer.wrap(buffer.array(), 0, offset);
+        while (whole.hasRemaining()) {
+          position += channel.write(whole, position);
+        }
+        channel.force(false);
+      } finally {
+        channel.close();
+      }
+    }
+  }
+
+  /** The rows of one day, as raw values: codes, longs, or the bits of doubles. */
+  private static final class DayBuffer {
+    long[][] values;
+    int rows;
+
+    DayBuffer(int columns) {
+      values = new long[columns][DayCollector.INITIAL_CAPACITY];
+    }
+
+    long[][] grow() {
+      if (values.length > 0 && rows == values[0].length) {
+        for (int i = 0; i < values.length; i++) {
+          values[i] = Arrays.copyOf(values[i], 2 * rows);
+        }
+      }
+      return values;
+    }
+  }
+}
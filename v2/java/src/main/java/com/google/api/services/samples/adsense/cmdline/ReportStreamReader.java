@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.services.adsense.v2.AdsenseRequest;
+import com.google.api.services.adsense.v2.model.Date;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Reads a {@link ReportResult} from the raw response stream, handing each row to a callback as it
+ * is parsed instead of building the whole {@code List<Row>} in memory.
+ *
+ * <p>Headers are delivered first, then every row through one reused {@code String[]} buffer, so
+ * peak heap does not grow with the number of rows. Everything else in the response (totals,
+ * averages, dates, warnings) is small and is returned as a {@link ReportResult} without rows.
+ */
+public final class ReportStreamReader {
+
+  /** Receives the parts of a report as they are read from the response. */
+  public interface RowHandler {
+
+    /**
+     * Called once, before any rows.
+     *
+     * @param headers the report headers, one per column.
+     */
+    void headers(List<Header> headers) throws IOException;
+
+    /**
+     * Called once per row, in response order.
+     *
+     * @param cells the cell values of the row, one per header. The array is reused for the next
+     *     row, so it must be copied if it is kept after this method returns.
+     */
+    void row(String[] cells) throws IOException;
+  }
+
+  private ReportStreamReader() {}
+
+  /**
+   * Executes a report request and streams its rows to a handler.
+   *
+   * @param request an accounts.reports.generate or accounts.reports.saved.generate request.
+   * @param handler the handler that receives headers and rows.
+   * @return the rest of the report: headers, totals, averages, dates and warnings, but no rows.
+   * @throws IOException if the request fails or the response cannot be parsed.
+   */
+  public static ReportResult execute(AdsenseRequest<ReportResult> request, RowHandler handler)
+      throws IOException {
+    InputStream content = request.executeAsInputStream();
+    return read(request.getAbstractGoogleClient().getJsonFactory(), content, handler);
+  }
+
+  /**
+   * Reads a JSON encoded report from a stream and closes it.
+   *
+   * @param jsonFactory the JSON factory used to create the streaming parser.
+   * @param content the JSON encoded {@link ReportResult}.
+   * @param handler the handler that receives headers and rows.
+   * @return the rest of the report: headers, totals, averages, dates and warnings, but no rows.
+   * @throws IOException if the content cannot be read or parsed.
+   */
+  public static ReportResult read(JsonFactory jsonFactory, InputStream content,
+      RowHandler handler) throws IOException {
+    JsonParser parser = jsonFactory.createJsonParser(content, StandardCharsets.UTF_8);
+    try {
+      return readReport(parser, handler);
+    } finally {
+      parser.close();
+    }
+  }
+
+  private static ReportResult readReport(JsonParser parser, RowHandler handler)
+      throws IOException {
+    ReportResult summary = new ReportResult();
+    String[] buffer = null;
+    expect(parser.nextToken(), JsonToken.START_OBJECT);
+    while (parser.nextToken() == JsonToken.FIELD_NAME) {
+      String field = parser.getCurrentName();
+      JsonToken value = parser.nextToken();
+      if (value == JsonToken.VALUE_NULL) {
+        continue;
+      }
+      if ("headers".equals(field)) {
+        List<Header> headers = new ArrayList<Header>(parser.parseArray(List.class, Header.class));
+        summary.setHeaders(headers);
+        buffer = new String[headers.size()];
+        handler.headers(Collections.unmodifiableList(headers));
+      } else if ("rows".equals(field)) {
+        if (buffer == null) {
+          throw new IOException("Report rows appeared before the report headers.");
+        }
+        readRows(parser, buffer, handler);
+      } else if ("totals".equals(field)) {
+        summary.setTotals(parser.parse(Row.class));
+      } else if ("averages".equals(field)) {
+        summary.setAverages(parser.parse(Row.class));
+      } else if ("startDate".equals(field)) {
+        summary.setStartDate(parser.parse(Date.class));
+      } else if ("endDate".equals(field)) {
+        summary.setEndDate(parser.parse(Date.class));
+      } else if ("totalMatchedRows".equals(field)) {
+        summary.setTotalMatchedRows(Long.valueOf(parser.getText()));
+      } else if ("warnings".equals(field)) {
+        summary.setWarnings(new ArrayList<String>(parser.parseArray(List.class, String.class)));
+      } else {
+        parser.skipChildren();
+      }
+    }
+    if (buffer == null) {
+      // A report without headers has no rows either, but the handler still gets its callback.
+      summary.setHeaders(Collections.<Header>emptyList());
+      handler.headers(Collections.<Header>emptyList());
+    }
+    return summary;
+  }
+
+  private static void readRows(JsonParser parser, String[] buffer, RowHandler handler)
+      throws IOException {
+    expect(parser.getCurrentToken(), JsonToken.START_ARRAY);
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      int columns = 0;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("cells".equals(field) && value == JsonToken.START_ARRAY) {
+          columns = readCells(parser, buffer);
+        } else {
+          parser.skipChildren();
+        }
+      }
+      if (columns != buffer.length) {
+        throw new IOException(String.format(
+            "Report row has %d cells but there are %d headers.", columns, buffer.length));
+      }
+      handler.row(buffer);
+    }
+    expect(parser.getCurrentToken(), JsonToken.END_ARRAY);
+  }
+
+  private static int readCells(JsonParser parser, String[] buffer) throws IOException {
+    int column = 0;
+    while (parser.nextToken() == JsonToken.START_OBJECT) {
+      if (column == buffer.length) {
+        throw new IOException("Report row has more cells than there are headers.");
+      }
+      String cellValue = null;
+      while (parser.nextToken() == JsonToken.FIELD_NAME) {
+        String field = parser.getCurrentName();
+        JsonToken value = parser.nextToken();
+        if ("value".equals(field) && value == JsonToken.VALUE_STRING) {
+          cellValue = parser.getText();
+        } else {
+          parser.skipChildren();
+        }
+      }
+      buffer[column++] = cellValue;
+    }
+    return column;
+  }
+
+  private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+    if (actual != expected) {
+      throw new IOException("Malformed report: expected " + expected + " but found " + actual);
+    }
+  }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An in-memory, column-oriented copy of a report.
+ *
+ * <p>Each {@code METRIC_TALLY} and {@code METRIC_MILLISECONDS} column is stored as a
+ * {@code long[]}, each other metric column as a {@code double[]}, and each {@code DIMENSION}
+ * column as {@code int} codes into a per-column dictionary of distinct values. Missing metric
+ * cells are stored as zero.
+ *
+ * <p>A table can be filled from a parsed {@link ReportResult} or directly from a
+ * {@link ReportStreamReader}, in which case no {@link Row} objects are ever created. The
+ * aggregation methods do not allocate per row. Summing is only meaningful for additive metrics;
+ * ratio metrics such as {@code AD_REQUESTS_CTR} are summed as-is.
+ */
+public final class ReportTable implements ReportStreamReader.RowHandler {
+
+  private static final int INITIAL_CAPACITY = 1024;
+
+  private List<Header> headers = Collections.emptyList();
+  private Column[] columns = new Column[0];
+  private int rowCount;
+  private int capacity = INITIAL_CAPACITY;
+
+  /** Creates an empty table; its columns are defined by the first call to {@link #headers}. */
+  public ReportTable() {}
+
+  /**
+   * Creates a table holding the rows of an already parsed report.
+   *
+   * @param report the report to be copied.
+   * @return the new table.
+   */
+  public static ReportTable from(ReportResult report) {
+    ReportTable table = new ReportTable();
+    table.headers(report.getHeaders() != null ? report.getHeaders()
+        : Collections.<Header>emptyList());
+    if (report.getRows() != null) {
+      String[] buffer = new String[table.columns.length];
+      for (Row row : report.getRows()) {
+        List<Cell> cells = row.getCells();
+        for (int i = 0; i < buffer.length; i++) {
+          buffer[i] = cells.get(i).getValue();
+        }
+        table.row(buffer);
+      }
+    }
+    return table;
+  }
+
+  @Override
+  public void headers(List<Header> headers) {
+    this.headers = Collections.unmodifiableList(new ArrayList<Header>(headers));
+    columns = new Column[headers.size()];
+    for (int i = 0; i < columns.length; i++) {
+      columns[i] = newColumn(headers.get(i).getType(), capacity);
+    }
+    rowCount = 0;
+  }
+
+  @Override
+  public void row(String[] cells) {
+    if (rowCount == capacity) {
+      capacity *= 2;
+      for (Column column : columns) {
+        column.grow(capacity);
+      }
+    }
+    for (int i = 0; i < columns.length; i++) {
+      columns[i].set(rowCount, cells[i]);
+    }
+    rowCount++;
+  }
+
+  /** @return the report headers, one per column. */
+  public List<Header> getHeaders() {
+    return headers;
+  }
+
+  /** @return the number of rows in the table. */
+  public int getRowCount() {
+    return rowCount;
+  }
+
+  /** @return the number of columns in the table. */
+  public int getColumnCount() {
+    return columns.length;
+  }
+
+  /**
+   * Finds a column by its header name.
+   *
+   * @param name the header name, for example {@code "CLICKS"}.
+   * @return the index of the column, or {@code -1} if the table has no such column.
+   */
+  public int columnIndex(String name) {
+    for (int i = 0; i < headers.size(); i++) {
+      if (headers.get(i).getName().equals(name)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /** @return whether the column is a dimension column. */
+  public boolean isDimension(int column) {
+    return columns[column] instanceof DimensionColumn;
+  }
+
+  /** @return the value of a metric cell as a {@code long}, truncating fractional metrics. */
+  public long getLong(int column, int row) {
+    return metric(column).getLong(row);
+  }
+
+  /** @return the value of a metric cell as a {@code double}. */
+  public double getDouble(int column, int row) {
+    return metric(column).getDouble(row);
+  }
+
+  /** @return the dictionary code of a dimension cell. */
+  public int getCode(int column, int row) {
+    return dimension(column).codes[row];
+  }
+
+  /** @return the value of a dimension cell. */
+  public String getString(int column, int row) {
+    DimensionColumn dimension = dimension(column);
+    return dimension.values.get(dimension.codes[row]);
+  }
+
+  /** @return the number of distinct values in a dimension column. */
+  public int getDictionarySize(int column) {
+    return dimension(column).values.size();
+  }
+
+  /** @return the dimension value that a dictionary code stands for. */
+  public String decode(int column, int code) {
+    return dimension(column).values.get(code);
+  }
+
+  /**
+   * Looks up the dictionary code of a dimension value.
+   *
+   * @return the code, or {@code -1} if the value does not occur in the column.
+   */
+  public int encode(int column, String value) {
+    Integer code = dimension(column).lookup(value);
+    return code != null ? code : -1;
+  }
+
+  /**
+   * Sums a metric column over all rows.
+   *
+   * @param metricColumn the metric column to be summed.
+   * @return the sum.
+   */
+  public double sum(int metricColumn) {
+    MetricColumn metric = metric(metricColumn);
+    double sum = 0;
+    for (int row = 0; row < rowCount; row++) {
+      sum += metric.getDouble(row);
+    }
+    return sum;
+  }
+
+  /**
+   * Sums a whole-number metric column over all rows without converting to {@code double}.
+   *
+   * @param metricColumn a {@code METRIC_TALLY} or {@code METRIC_MILLISECONDS} column.
+   * @return the sum.
+   */
+  public long sumLong(int metricColumn) {
+    MetricColumn metric = metric(metricColumn);
+    if (!(metric instanceof LongColumn)) {
+      throw new IllegalArgumentException(headers.get(metricColumn).getName()
+          + " is not a whole-number metric.");
+    }
+    long[] values = ((LongColumn) metric).values;
+    long sum = 0;
+    for (int row = 0; row < rowCount; row++) {
+      sum += values[row];
+    }
+    return sum;
+  }
+
+  /**
+   * Sums a metric column for each distinct value of a dimension column.
+   *
+   * @param dimensionColumn the dimension column to group by.
+   * @param metricColumn the metric column to be summed.
+   * @return the sums, indexed by dictionary code of the dimension column.
+   */
+  public double[] groupBySum(int dimensionColumn, int metricColumn) {
+    DimensionColumn dimension = dimension(dimensionColumn);
+    MetricColumn metric = metric(metricColumn);
+    double[] sums = new double[dimension.values.size()];
+    int[] codes = dimension.codes;
+    for (int row = 0; row < rowCount; row++) {
+      sums[codes[row]] += metric.getDouble(row);
+    }
+    return sums;
+  }
+
+  /**
+   * Finds the dimension values with the largest summed metric.
+   *
+   * @param dimensionColumn the dimension column to group by.
+   * @param metricColumn the metric column to rank by.
+   * @param n the maximum number of values to return.
+   * @return the dictionary codes of the top values, largest first.
+   */
+  public int[] topN(int dimensionColumn, int metricColumn, int n) {
+    double[] sums = groupBySum(dimensionColumn, metricColumn);
+    int size = Math.min(n, sums.length);
+    // Keep a min-heap of the best codes seen so far, keyed by their sums.
+    int[] heap = new int[size];
+    int heapSize = 0;
+    for (int code = 0; code < sums.length; code++) {
+      if (heapSize < size) {
+        heap[heapSize] = code;
+        siftUp(heap, heapSize++, sums);
+      } else if (size > 0 && sums[code] > sums[heap[0]]) {
+        heap[0] = code;
+        siftDown(heap, heapSize, sums);
+      }
+    }
+    // Drain the heap from the smallest up, filling the result from the back.
+    int[] top = new int[heapSize];
+    for (int i = heapSize - 1; i >= 0; i--) {
+      top[i] = heap[0];
+      heap[0] = heap[--heapSize];
+      siftDown(heap, heapSize, sums);
+    }
+    return top;
+  }
+
+  private static void siftUp(int[] heap, int index, double[] keys) {
+    int code = heap[index];
+    while (index > 0) {
+      int parent = (index - 1) >>> 1;
+      if (keys[heap[parent]] <= keys[code]) {
+        break;
+      }
+      heap[index] = heap[parent];
+      index = parent;
+    }
+    heap[index] = code;
+  }
+
+  private static void siftDown(int[] heap, int size, double[] keys) {
+    if (size == 0) {
+      return;
+    }
+    int code = heap[0];
+    int index = 0;
+    int half = size >>> 1;
+    while (index < half) {
+      int child = 2 * index + 1;
+      if (child + 1 < size && keys[heap[child + 1]] < keys[heap[child]]) {
+        child++;
+      }
+      if (keys[code] <= keys[heap[child]]) {
+        break;
+      }
+      heap[index] = heap[child];
+      index = child;
+    }
+    heap[index] = code;
+  }
+
+  /**
+   * Copies the table, including its headers, so that the copy can be changed on its own.
+   *
+   * @return the copy.
+   */
+  ReportTable copy() {
+    ReportTable copy = new ReportTable();
+    List<Header> copiedHeaders = new ArrayList<Header>(headers.size());
+    for (Header header : headers) {
+      copiedHeaders.add(new Header().setName(header.getName()).setType(header.getType())
+          .setCurrencyCode(header.getCurrencyCode()));
+    }
+    copy.headers = Collections.unmodifiableList(copiedHeaders);
+    copy.columns = new Column[columns.length];
+    for (int i = 0; i < columns.length; i++) {
+      copy.columns[i] = columns[i].copy();
+    }
+    copy.rowCount = rowCount;
+    copy.capacity = capacity;
+    return copy;
+  }
+
+  /**
+   * @return the values of a fractional metric column, the first {@link #getRowCount()} of which
+   *     are in use. Changes to the array change the table.
+   */
+  double[] doubleValues(int column) {
+    MetricColumn metric = metric(column);
+    if (!(metric instanceof DoubleColumn)) {
+      throw new IllegalArgumentException(headers.get(column).getName()
+          + " is not a fractional metric.");
+    }
+    return ((DoubleColumn) metric).values;
+  }
+
+  /** @return the dictionary codes of a dimension column; the array must not be changed. */
+  int[] codeValues(int column) {
+    return dimension(column).codes;
+  }
+
+  private MetricColumn metric(int column) {
+    if (!(columns[column] instanceof MetricColumn)) {
+      throw new IllegalArgumentException(headers.get(column).getName() + " is not a metric.");
+    }
+    return (MetricColumn) columns[column];
+  }
+
+  private DimensionColumn dimension(int column) {
+    if (!(columns[column] instanceof DimensionColumn)) {
+      throw new IllegalArgumentException(headers.get(column).getName() + " is not a dimension.");
+    }
+    return (DimensionColumn) columns[column];
+  }
+
+  private static Column newColumn(String type, int capacity) {
+    if ("DIMENSION".equals(type)) {
+      return new DimensionColumn(capacity);
+    } else if ("METRIC_TALLY".equals(type) || "METRIC_MILLISECONDS".equals(type)) {
+      return new LongColumn(capacity);
+    } else {
+      return new DoubleColumn(capacity);
+    }
+  }
+
+  /** Storage for the values of one column. */
+  private abstract static class Column {
+    abstract void set(int row, String value);
+
+    abstract void grow(int capacity);
+
+    abstract Column copy();
+  }
+
+  /** A dimension column, stored as codes into a dictionary of distinct values. */
+  private static final class DimensionColumn extends Column {
+    int[] codes;
+    final List<String> values = new ArrayList<String>();
+    final Map<String, Integer> dictionary = new HashMap<String, Integer>();
+
+    DimensionColumn(int capacity) {
+      codes = new int[capacity];
+    }
+
+    Integer lookup(String value) {
+      return dictionary.get(value);
+    }
+
+    @Override
+    void set(int row, String value) {
+      Integer code = dictionary.get(value);
+      if (code == null) {
+        code = values.size();
+        values.add(value);
+        dictionary.put(value, code);
+      }
+      codes[row] = code;
+    }
+
+    @Override
+    void grow(int capacity) {
+      codes = Arrays.copyOf(codes, capacity);
+    }
+
+    @Override
+    Column copy() {
+      DimensionColumn copy = new DimensionColumn(0);
+      copy.codes = codes.clone();
+      copy.values.addAll(values);
+      copy.dictionary.putAll(dictionary);
+      return copy;
+    }
+  }
+
+  /** A metric column. */
+  private abstract static class MetricColumn extends Column {
+    abstract long getLong(int row);
+
+    abstract double getDouble(int row);
+  }
+
+  /** A whole-number metric column. */
+  private static final class LongColumn extends MetricColumn {
+    long[] values;
+
+    LongColumn(int capacity) {
+      values = new long[capacity];
+    }
+
+    @Override
+    void set(int row, String value) {
+      values[row] = value == null || value.isEmpty() ? 0L : Long.parseLong(value);
+    }
+
+    @Override
+    void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    Column copy() {
+      LongColumn copy = new LongColumn(0);
+      copy.values = values.clone();
+      return copy;
+    }
+
+    @Override
+    long getLong(int row) {
+      return values[row];
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+  }
+
+  /** A fractional metric column: ratios, decimals and currency amounts. */
+  private static final class DoubleColumn extends MetricColumn {
+    double[] values;
+
+    DoubleColumn(int capacity) {
+      values = new double[capacity];
+    }
+
+    @Override
+    void set(int row, String value) {
+      values[row] = value == null || value.isEmpty() ? 0D : Double.parseDouble(value);
+    }
+
+    @Override
+    void grow(int capacity) {
+      values = Arrays.copyOf(values, capacity);
+    }
+
+    @Override
+    Column copy() {
+      DoubleColumn copy = new DoubleColumn(0);
+      copy.values = values.clone();
+      return copy;
+    }
+
+    @Override
+    long getLong(int row) {
+      return (long) values[row];
+    }
+
+    @Override
+    double getDouble(int row) {
+      return values[row];
+    }
+  }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.model.Header;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Writes streamed report rows as text, as fixed-width columns, CSV or TSV.
+ *
+ * <p>Cells are encoded straight into one reusable buffer, which is only handed to the underlying
+ * channel when it is full, so writing a report costs one write call per buffer rather than a
+ * formatted, synchronized print per cell. Writing to a file goes through a {@link FileChannel}.
+ *
+ * <p>Files are written as UTF-8, encoded by hand, with {@code \n} line breaks. Streams, such as
+ * {@code System.out}, are written in the charset and with the line separator that
+ * {@code System.out} uses, so fixed-width output is the same as the {@code printf} and
+ * {@code println} calls the samples used to make, on any platform.
+ *
+ * <p>Call {@link #finish()} after the report has been read, and {@link #close()} when done.
+ */
+public abstract class ReportWriter implements ReportStreamReader.RowHandler, Closeable {
+
+  /** The output formats. */
+  public enum Format {
+    /** Right-aligned 25 character columns, as the report samples have always printed. */
+    FIXED_WIDTH,
+    /** Comma-separated values, quoted as in RFC 4180. */
+    CSV,
+    /** Tab-separated values, with tabs, line breaks and backslashes escaped. */
+    TSV
+  }
+
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  private final WritableByteChannel channel;
+  private final boolean ownsChannel;
+  private final Charset charset;
+  private final boolean utf8;
+  private final byte[] lineSeparator;
+  private final byte[] bytes = new byte[BUFFER_SIZE];
+  private int position;
+
+  /** The report headers. */
+  protected List<Header> headers;
+
+  /** The number of rows written so far. */
+  protected long rowCount;
+
+  ReportWriter(WritableByteChannel channel, boolean ownsChannel, Charset charset,
+      String lineSeparator) {
+    this.channel = channel;
+    this.ownsChannel = ownsChannel;
+    this.charset = charset;
+    this.utf8 = charset.equals(StandardCharsets.UTF_8);
+    this.lineSeparator = lineSeparator.getBytes(charset);
+  }
+
+  /**
+   * Creates a writer to a stream, in the charset and with the line separator of
+   * {@code System.out}. The stream is flushed by {@link #finish()} but never closed, so this can
+   * be used with {@code System.out}.
+   *
+   * @param format the output format.
+   * @param out the stream to write to.
+   * @return the writer.
+   */
+  public static ReportWriter create(Format format, final OutputStream out) {
+    WritableByteChannel channel = Channels.newChannel(out);
+    return create(format, new WritableByteChannel() {
+      @Override
+      public int write(ByteBuffer source) throws IOException {
+        int written = channel.write(source);
+        out.flush();
+        return written;
+      }
+
+      @Override
+      public boolean isOpen() {
+        return true;
+      }
+
+      @Override
+      public void close() throws IOException {
+        out.flush();
+      }
+    }, false, consoleCharset(), System.lineSeparator());
+  }
+
+  /**
+   * Creates a writer to a file, replacing any previous contents.
+   *
+   * @param format the output format.
+   * @param file the file to write to.
+   * @return the writer; close it to close the file.
+   * @throws IOException if the file cannot be opened.
+   */
+  public static ReportWriter create(Format format, File file) throws IOException {
+    return create(format, FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE), true,
+        StandardCharsets.UTF_8, "\n");
+  }
+
+  private static ReportWriter create(Format format, WritableByteChannel channel,
+      boolean ownsChannel, Charset charset, String lineSeparator) {
+    switch (format) {
+      case FIXED_WIDTH:
+        return new FixedWidthWriter(channel, ownsChannel, charset, lineSeparator);
+      case CSV:
+        return new DelimitedWriter(channel, ownsChannel, charset, lineSeparator, ',');
+      case TSV:
+        return new DelimitedWriter(channel, ownsChannel, charset, lineSeparator, '\t');
+      default:
+        throw new IllegalArgumentException("Unknown format " + format);
+    }
+  }
+
+  /**
+   * Returns the charset of {@code System.out}: the {@code stdout.encoding} property from Java 18,
+   * the {@code sun.stdout.encoding} property on older consoles that set it, or else the default.
+   */
+  private static Charset consoleCharset() {
+    for (String property : new String[] {"stdout.encoding", "sun.stdout.encoding"}) {
+      String encoding = System.getProperty(property);
+      if (encoding != null && Charset.isSupported(encoding)) {
+        return Charset.forName(encoding);
+      }
+    }
+    return Charset.defaultCharset();
+  }
+
+  @Override
+  public void headers(List<Header> headers) throws IOException {
+    this.headers = headers;
+  }
+
+  /**
+   * Finishes the report, writing anything the format needs after the last row, and flushes the
+   * buffer.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  public void finish() throws IOException {
+    flush();
+  }
+
+  /** @return the number of rows written. */
+  public long getRowCount() {
+    return rowCount;
+  }
+
+  /**
+   * Flushes the buffer, and closes the file if this writer opened it.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  @Override
+  public void close() throws IOException {
+    try {
+      flush();
+    } finally {
+      if (ownsChannel) {
+        channel.close();
+      }
+    }
+  }
+
+  /**
+   * Writes the buffered bytes to the channel.
+   *
+   * @throws IOException if the output cannot be written.
+   */
+  protected final void flush() throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, position);
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    position = 0;
+  }
+
+  /** Writes an ASCII character; every charset a console uses encodes it as one byte. */
+  protected final void write(char c) throws IOException {
+    if (position == bytes.length) {
+      flush();
+    }
+    bytes[position++] = (byte) c;
+  }
+
+  /** Writes a number of spaces. */
+  protected final void spaces(int count) throws IOException {
+    while (count > 0) {
+      if (position == bytes.length) {
+        flush();
+      }
+      int n = Math.min(count, bytes.length - position);
+      Arrays.fill(bytes, position, position + n, (byte) ' ');
+      position += n;
+      count -= n;
+    }
+  }
+
+  /** Writes a line break. */
+  protected final void newLine() throws IOException {
+    write(lineSeparator);
+  }
+
+  /** Writes encoded bytes. */
+  private void write(byte[] encoded) throws IOException {
+    for (int offset = 0; offset < encoded.length; ) {
+      if (position == bytes.length) {
+        flush();
+      }
+      int n = Math.min(encoded.length - offset, bytes.length - position);
+      System.arraycopy(encoded, offset, bytes, position, n);
+      position += n;
+      offset += n;
+    }
+  }
+
+  /** Writes a string in the charset of this writer, encoding UTF-8 by hand. */
+  protected final void write(String value) throws IOException {
+    if (!utf8) {
+      write(value.getBytes(charset));
+      return;
+    }
+    int length = value.length();
+    for (int i = 0; i < length; i++) {
+      // Four bytes is the longest encoding of a code point.
+      if (bytes.length - position < 4) {
+        flush();
+      }
+      char c = value.charAt(i);
+      if (c < 0x80) {
+        bytes[position++] = (byte) c;
+      } else if (c < 0x800) {
+        bytes[position++] = (byte) (0xc0 | c >> 6);
+        bytes[position++] = (byte) (0x80 | c & 0x3f);
+      } else if (Character.isHighSurrogate(c) && i + 1 < length
+          && Character.isLowSurrogate(value.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint(c, value.charAt(++i));
+        bytes[position++] = (byte) (0xf0 | codePoint >> 18);
+        bytes[position++] = (byte) (0x80 | codePoint >> 12 & 0x3f);
+        bytes[position++] = (byte) (0x80 | codePoint >> 6 & 0x3f);
+        bytes[position++] = (byte) (0x80 | codePoint & 0x3f);
+      } else if (Character.isSurrogate(c)) {
+        // An unpaired surrogate cannot be encoded.
+        bytes[position++] = '?';
+      } else {
+        bytes[position++] = (byte) (0xe0 | c >> 12);
+        bytes[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+        bytes[position++] = (byte) (0x80 | c & 0x3f);
+      }
+    }
+  }
+
+  /** Right-aligned fixed-width columns; headers are only written once the first row arrives. */
+  private static final class FixedWidthWriter extends ReportWriter {
+    private static final int COLUMN_WIDTH = 25;
+
+    FixedWidthWriter(WritableByteChannel channel, boolean ownsChannel, Charset charset,
+        String lineSeparator) {
+      super(channel, ownsChannel, charset, lineSeparator);
+    }
+
+    @Override
+    public void row(String[] cells) throws IOException {
+      if (rowCount++ == 0) {
+        for (Header header : headers) {
+          cell(header.getName());
+        }
+        newLine();
+      }
+      for (String cell : cells) {
+        cell(cell);
+      }
+      newLine();
+    }
+
+    private void cell(String value) throws IOException {
+      if (value == null) {
+        value = "null";
+      }
+      spaces(COLUMN_WIDTH - value.length());
+      write(value);
+    }
+
+    @Override
+    public void finish() throws IOException {
+      if (rowCount == 0) {
+        write("No rows returned.");
+      }
+      newLine();
+      newLine();
+      super.finish();
+    }
+  }
+
+  /** Delimited values with a header line. */
+  private static final class DelimitedWriter extends ReportWriter {
+    private final char delimiter;
+
+    DelimitedWriter(WritableByteChannel channel, boolean ownsChannel, Charset charset,
+        String lineSeparator, char delimiter) {
+      super(channel, ownsChannel, charset, lineSeparator);
+      this.delimiter = delimiter;
+    }
+
+    @Override
+    public void headers(List<Header> headers) throws IOException {
+      super.headers(headers);
+      for (int i = 0; i < headers.size(); i++) {
+        if (i > 0) {
+          write(delimiter);
+        }
+        cell(headers.get(i).getName());
+      }
+      newLine();
+    }
+
+    @Override
+    public void row(String[] cells) throws IOException {
+      rowCount++;
+      for (int i = 0; i < cells.length; i++) {
+        if (i > 0) {
+          write(delimiter);
+        }
+        cell(cells[i]);
+      }
+      newLine();
+    }
+
+    private void cell(String value) throws IOException {
+      if (value == null) {
+        return;
+      }
+      if (delimiter == '\t') {
+        writeEscaped(value);
+      } else if (needsQuotes(value)) {
+        write('"');
+        int start = 0;
+        for (int quote = value.indexOf('"'); quote >= 0; quote = value.indexOf('"', start)) {
+          write(value.substring(start, quote + 1));
+          write('"');
+          start = quote + 1;
+        }
+        write(value.substring(start));
+        write('"');
+      } else {
+        write(value);
+      }
+    }
+
+    private void writeEscaped(String value) throws IOException {
+      if (!needsEscaping(value)) {
+        write(value);
+        return;
+      }
+      StringBuilder escaped = new StringBuilder(value.length() + 8);
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+          case '\t':
+            escaped.append("\\t");
+            break;
+          case '\n':
+            escaped.append("\\n");
+            break;
+          case '\r':
+            escaped.append("\\r");
+            break;
+          case '\\':
+            escaped.append("\\\\");
+            break;
+          default:
+            escaped.append(c);
+        }
+      }
+      write(escaped.toString());
+    }
+
+    private static boolean needsEscaping(String value) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == '\t' || c == '\n' || c == '\r' || c == '\\') {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    private static boolean needsQuotes(String value) {
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        if (c == ',' || c == '"' || c == '\n' || c == '\r') {
+          return true;
+        }
+      }
+      return false;
+    }
+  }
+}
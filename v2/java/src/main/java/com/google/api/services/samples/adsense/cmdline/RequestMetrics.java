@@ -0,0 +1,674 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.util.ObjectParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Type;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Records request counts, latency histograms, bytes, pages and retries per API method, such as
+ * {@code accounts.reports.generate} or {@code accounts.adclients.adunits.list}.
+ *
+ * <p>Set it on an {@link AdsenseClientFactory} with
+ * {@link AdsenseClientFactory.Builder#setRequestMetrics}, which runs it after every other
+ * initializer, so that it sees the whole request, including rate limiter waits and retries. The
+ * method is worked out from the parsed URL of the request without copying it, all counters are
+ * preallocated atomics, and each thread reuses the same hooks for the requests it sends one after
+ * the other, so recording a request allocates nothing. A request built while the previous one of
+ * its thread is still pending, such as a part of a batch, gets hooks of its own. Requests must be
+ * executed once, as the generated client does.
+ *
+ * <p>Response bytes are the length the server declared. When it declared none, the bytes are
+ * counted as the parser of the request reads them, after any decompression, through a stream each
+ * thread reuses; responses that are read as a stream instead of being parsed are then not counted.
+ *
+ * <p>The statistics can be read through JMX, under
+ * {@code com.google.api.services.samples.adsense:type=RequestMetrics,endpoint=<method>}, or
+ * printed as a compact table by {@link #dump} or {@link #startDump}. Requests sent inside a batch
+ * are timed together, as one {@code batch} request.
+ */
+public final class RequestMetrics implements HttpRequestInitializer {
+
+  /** The JMX domain of the endpoint beans. */
+  public static final String JMX_DOMAIN = "com.google.api.services.samples.adsense";
+
+  /** Latency buckets: bucket {@code i} counts latencies below {@code 2^i} microseconds. */
+  private static final int BUCKETS = 32;
+
+  /** The statistics of one API method, as seen through JMX. */
+  public interface EndpointMXBean {
+    /** @return the API method name. */
+    String getName();
+
+    /** @return the number of requests. */
+    long getRequestCount();
+
+    /** @return the number of requests that failed. */
+    long getErrorCount();
+
+    /** @return the number of retried attempts. */
+    long getRetryCount();
+
+    /** @return the number of list requests that continued from a page token. */
+    long getPageCount();
+
+    /** @return the total request body size. */
+    long getBytesOut();
+
+    /** @return the total size of the response bodies, as declared or else as parsed. */
+    long getBytesIn();
+
+    /** @return the mean latency. */
+    double getMeanLatencyMillis();
+
+    /**
+     * @return the median latency, from the histogram: rounded up to a power of two microseconds,
+     *     but no higher than the highest latency.
+     */
+    double getP50LatencyMillis();
+
+    /** @return the 90th percentile latency, from the histogram. */
+    double getP90LatencyMillis();
+
+    /** @return the 99th percentile latency, from the histogram. */
+    double getP99LatencyMillis();
+
+    /** @return the highest latency. */
+    double getMaxLatencyMillis();
+  }
+
+  /** The statistics of one API method. */
+  public static final class Endpoint implements EndpointMXBean {
+    private final long key;
+    private final String name;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+
+    Endpoint(long key, String name) {
+      this.key = key;
+      this.name = name;
+    }
+
+    void record(long nanos, boolean error) {
+      requests.incrementAndGet();
+      if (error) {
+        errors.incrementAndGet();
+      }
+      totalNanos.addAndGet(nanos);
+      long max;
+      while (nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+        // Retry until the maximum is updated or a higher one is seen.
+      }
+      long micros = Math.max(0, nanos / 1000);
+      histogram.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros)));
+    }
+
+    @Override
+    public String getName() {
+      return name;
+    }
+
+    @Override
+    public long getRequestCount() {
+      return requests.get();
+    }
+
+    @Override
+    public long getErrorCount() {
+      return errors.get();
+    }
+
+    @Override
+    public long getRetryCount() {
+      return retries.get();
+    }
+
+    @Override
+    public long getPageCount() {
+      return pages.get();
+    }
+
+    @Override
+    public long getBytesOut() {
+      return bytesOut.get();
+    }
+
+    @Override
+    public long getBytesIn() {
+      return bytesIn.get();
+    }
+
+    @Override
+    public double getMeanLatencyMillis() {
+      long count = requests.get();
+      return count == 0 ? 0 : totalNanos.get() / 1e6 / count;
+    }
+
+    @Override
+    public double getP50LatencyMillis() {
+      return percentileMillis(0.5);
+    }
+
+    @Override
+    public double getP90LatencyMillis() {
+      return percentileMillis(0.9);
+    }
+
+    @Override
+    public double getP99LatencyMillis() {
+      return percentileMillis(0.99);
+    }
+
+    @Override
+    public double getMaxLatencyMillis() {
+      return maxNanos.get() / 1e6;
+    }
+
+    private double percentileMillis(double fraction) {
+      long[] counts = new long[BUCKETS];
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        counts[i] = histogram.get(i);
+        total += counts[i];
+      }
+      if (total == 0) {
+        return 0;
+      }
+      long rank = (long) Math.ceil(fraction * total);
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+        seen += counts[i];
+        if (seen >= rank) {
+          return Math.min((1L << i) / 1e3, getMaxLatencyMillis());
+        }
+      }
+      return getMaxLatencyMillis();
+    }
+  }
+
+  private final Object lock = new Object();
+  private volatile Endpoint[] endpoints = new Endpoint[0];
+  private final boolean registerMBeans;
+
+  private final ThreadLocal<Exchange> exchanges = new ThreadLocal<Exchange>() {
+    @Override
+    protected Exchange initialValue() {
+      return new Exchange();
+    }
+  };
+
+  private final ThreadLocal<CountingParser> countingParsers = new ThreadLocal<CountingParser>() {
+    @Override
+    protected CountingParser initialValue() {
+      return new CountingParser();
+    }
+  };
+
+  /** Creates metrics that are not registered with JMX. */
+  public RequestMetrics() {
+    this(false);
+  }
+
+  /**
+   * Creates metrics.
+   *
+   * @param registerMBeans whether to register each endpoint with the platform MBean server.
+   */
+  public RequestMetrics(boolean registerMBeans) {
+    this.registerMBeans = registerMBeans;
+  }
+
+  @Override
+  public void initialize(HttpRequest request) {
+    Exchange exchange = exchanges.get();
+    if (exchange.isPending()) {
+      // The last request built on this thread is still pending, such as a part of a batch, so
+      // it keeps its exchange and the thread moves on to a new one.
+      exchange = new Exchange();
+      exchanges.set(exchange);
+    }
+    exchange.bind(request);
+  }
+
+  /** @return the statistics of every API method seen so far, sorted by name. */
+  public List<Endpoint> getEndpoints() {
+    List<Endpoint> sorted = new ArrayList<Endpoint>(Arrays.asList(endpoints));
+    Collections.sort(sorted, (a, b) -> a.name.compareTo(b.name));
+    return sorted;
+  }
+
+  /**
+   * Prints one line per API method.
+   *
+   * @param out the stream to print to.
+   */
+  public void dump(PrintStream out) {
+    StringBuilder text = new StringBuilder();
+    text.append(String.format("%-55s%9s%7s%8s%7s%11s%11s%9s%9s%9s%9s\n", "ENDPOINT", "REQUESTS",
+        "ERRORS", "RETRIES", "PAGES", "BYTES_OUT", "BYTES_IN", "P50_MS", "P90_MS", "P99_MS",
+        "MAX_MS"));
+    for (Endpoint endpoint : getEndpoints()) {
+      text.append(String.format("%-55s%9d%7d%8d%7d%11d%11d%9.1f%9.1f%9.1f%9.1f\n",
+          endpoint.name, endpoint.getRequestCount(), endpoint.getErrorCount(),
+          endpoint.getRetryCount(), endpoint.getPageCount(), endpoint.getBytesOut(),
+          endpoint.getBytesIn(), endpoint.getP50LatencyMillis(), endpoint.getP90LatencyMillis(),
+          endpoint.getP99LatencyMillis(), endpoint.getMaxLatencyMillis()));
+    }
+    out.print(text);
+    out.flush();
+  }
+
+  /**
+   * Prints the table periodically, on a daemon thread.
+   *
+   * @param period the time between dumps.
+   * @param unit the unit of {@code period}.
+   * @param out the stream to print to.
+   * @return the scheduler; shut it down to stop dumping.
+   */
+  public ScheduledExecutorService startDump(long period, TimeUnit unit, final PrintStream out) {
+    ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+        WorkerExecutors.daemonThreadFactory("adsense-metrics-dump"));
+    scheduler.scheduleAtFixedRate(() -> dump(out), period, period, unit);
+    return scheduler;
+  }
+
+  /** Finds the endpoint of a request, creating it the first time its method is seen. */
+  Endpoint endpoint(String method, GenericUrl url) {
+    long key = endpointKey(method, url);
+    Endpoint[] current = endpoints;
+    for (Endpoint endpoint : current) {
+      if (endpoint.key == key) {
+        return endpoint;
+      }
+    }
+    synchronized (lock) {
+      for (Endpoint endpoint : endpoints) {
+        if (endpoint.key == key) {
+          return endpoint;
+        }
+      }
+      Endpoint endpoint = new Endpoint(key, endpointName(url));
+      Endpoint[] grown = Arrays.copyOf(endpoints, endpoints.length + 1);
+      grown[grown.length - 1] = endpoint;
+      endpoints = grown;
+      if (registerMBeans) {
+        register(endpoint);
+      }
+      return endpoint;
+    }
+  }
+
+  private static void register(Endpoint endpoint) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName name = new ObjectName(JMX_DOMAIN + ":type=RequestMetrics,endpoint="
+          + ObjectName.quote(endpoint.name));
+      if (!server.isRegistered(name)) {
+        server.registerMBean(endpoint, name);
+      }
+    } catch (JMException e) {
+      // Metrics are still recorded and dumped; only JMX access is lost.
+    }
+  }
+
+  /**
+   * Hashes the shape of a request path, its collection names and custom verb, skipping resource
+   * IDs, without allocating. For example {@code /v2/accounts/pub-1/adclients/ca-pub-1/adunits}
+   * and {@code /v2/accounts/pub-2/adclients/ca-pub-2/adunits} have the same key.
+   */
+  static long endpointKey(String method, GenericUrl url) {
+    long hash = method.hashCode();
+    List<String> parts = url.getPathParts();
+    int size = parts == null ? 0 : parts.size();
+    int start = firstCollection(parts, size);
+    for (int i = start; i < size; i++) {
+      String part = parts.get(i);
+      boolean collection = (i - start) % 2 == 0;
+      int colon = part.indexOf(':');
+      if (collection) {
+        hash = hash * 0x9e3779b97f4a7c15L + hashRange(part, 0, colon < 0 ? part.length() : colon);
+      } else {
+        hash = hash * 0x9e3779b97f4a7c15L + 1;
+      }
+      if (colon >= 0) {
+        hash = hash * 0x9e3779b97f4a7c15L + hashRange(part, colon, part.length());
+      }
+    }
+    return hash * 31 + size - start;
+  }
+
+  /** @return the API method name of a request path, such as {@code accounts.adclients.list}. */
+  static String endpointName(GenericUrl url) {
+    List<String> parts = url.getPathParts();
+    int size = parts == null ? 0 : parts.size();
+    int start = firstCollection(parts, size);
+    StringBuilder name = new StringBuilder();
+    String verb = null;
+    for (int i = start; i < size; i++) {
+      String part = parts.get(i);
+      int colon = part.indexOf(':');
+      if (colon >= 0) {
+        verb = part.substring(colon + 1);
+        part = part.substring(0, colon);
+      }
+      if ((i - start) % 2 == 0) {
+        if (name.length() > 0) {
+          name.append('.');
+        }
+        name.append(part);
+      }
+    }
+    if (name.length() == 0) {
+      return size > 1 ? parts.get(1) : "unknown";
+    }
+    if (verb == null) {
+      verb = (size - start) % 2 == 0 ? "get" : "list";
+    }
+    return name.append('.').append(verb).toString();
+  }
+
+  /**
+   * Path parts start with an empty part for the leading slash, then the API version. Batch
+   * requests, such as {@code /batch/adsense/v2}, are all counted as one endpoint.
+   */
+  private static int firstCollection(List<String> parts, int size) {
+    return size > 1 && "batch".equals(parts.get(1)) ? size : Math.min(size, 2);
+  }
+
+  private static long hashRange(String value, int from, int to) {
+    long hash = 0;
+    for (int i = from; i < to; i++) {
+      hash = hash * 31 + value.charAt(i);
+    }
+    return hash;
+  }
+
+  /**
+   * The hooks of a request: they time it from its first attempt to its final response or failure,
+   * and chain to the handlers installed before them. Each thread reuses one exchange for the
+   * requests it builds and sends in turn.
+   */
+  private final class Exchange implements HttpExecuteInterceptor, HttpResponseInterceptor,
+      HttpUnsuccessfulResponseHandler, HttpIOExceptionHandler {
+    /** The request being recorded, or {@code null} once it is finished. */
+    private volatile HttpRequest request;
+    private HttpExecuteInterceptor interceptor;
+    private HttpResponseInterceptor responseInterceptor;
+    private HttpUnsuccessfulResponseHandler unsuccessfulResponseHandler;
+    private HttpIOExceptionHandler ioExceptionHandler;
+    private Endpoint endpoint;
+    private long startNanos;
+    private int attempts;
+
+    /** @return whether a request is bound to this exchange and not finished yet. */
+    boolean isPending() {
+      return request != null;
+    }
+
+    void bind(HttpRequest request) {
+      interceptor = request.getInterceptor();
+      responseInterceptor = request.getResponseInterceptor();
+      unsuccessfulResponseHandler = request.getUnsuccessfulResponseHandler();
+      ioExceptionHandler = request.getIOExceptionHandler();
+      attempts = 0;
+      this.request = request;
+      request.setInterceptor(this);
+      request.setResponseInterceptor(this);
+      request.setUnsuccessfulResponseHandler(this);
+      request.setIOExceptionHandler(this);
+    }
+
+    @Override
+    public void intercept(HttpRequest request) throws IOException {
+      if (attempts++ == 0) {
+        startNanos = System.nanoTime();
+        endpoint = endpoint(request.getRequestMethod(), request.getUrl());
+        if (request.getUrl().getFirst("pageToken") != null) {
+          endpoint.pages.incrementAndGet();
+        }
+      } else {
+        endpoint.retries.incrementAndGet();
+      }
+      if (interceptor != null) {
+        try {
+          interceptor.intercept(request);
+        } catch (IOException | RuntimeException e) {
+          // The request is not sent, nor retried.
+          finish(true);
+          throw e;
+        }
+      }
+      HttpContent content = request.getContent();
+      if (content != null && content.getLength() > 0) {
+        endpoint.bytesOut.addAndGet(content.getLength());
+      }
+    }
+
+    @Override
+    public void interceptResponse(HttpResponse response) throws IOException {
+      // Called once, for the final response.
+      Long length = response.getHeaders().getContentLength();
+      if (length != null) {
+        endpoint.bytesIn.addAndGet(length);
+      } else {
+        countParsedBytes(response.getRequest(), endpoint);
+      }
+      HttpResponseInterceptor next = responseInterceptor;
+      finish(!response.isSuccessStatusCode());
+      if (next != null) {
+        next.interceptResponse(response);
+      }
+    }
+
+    @Override
+    public boolean handleResponse(HttpRequest request, HttpResponse response,
+        boolean supportsRetry) throws IOException {
+      try {
+        return unsuccessfulResponseHandler != null
+            && unsuccessfulResponseHandler.handleResponse(request, response, supportsRetry);
+      } catch (IOException | RuntimeException e) {
+        finish(true);
+        throw e;
+      }
+    }
+
+    @Override
+    public boolean handleIOException(HttpRequest request, boolean supportsRetry)
+        throws IOException {
+      boolean retry;
+      try {
+        retry = ioExceptionHandler != null
+            && ioExceptionHandler.handleIOException(request, supportsRetry);
+      } catch (IOException | RuntimeException e) {
+        finish(true);
+        throw e;
+      }
+      if (!retry || !supportsRetry) {
+        // The request fails with this exception.
+        finish(true);
+      }
+      return retry;
+    }
+
+    /** Records the request and frees the exchange for the next request of its thread. */
+    private void finish(boolean error) {
+      endpoint.record(System.nanoTime() - startNanos, error);
+      endpoint = null;
+      interceptor = null;
+      responseInterceptor = null;
+      unsuccessfulResponseHandler = null;
+      ioExceptionHandler = null;
+      request = null;
+    }
+  }
+
+  /**
+   * Counts the bytes of a response body as the parser of its request reads them, for responses
+   * that do not declare their length.
+   */
+  private void countParsedBytes(HttpRequest request, Endpoint endpoint) {
+    ObjectParser parser = request.getParser();
+    if (parser == null) {
+      return;
+    }
+    CountingParser counting = countingParsers.get();
+    if (counting.isPending()) {
+      // The last response of this thread was read as a stream, not parsed.
+      counting = new CountingParser();
+      countingParsers.set(counting);
+    }
+    counting.bind(parser, endpoint);
+    request.setParser(counting);
+  }
+
+  /**
+   * A parser that reads the response of a request through a counting stream and hands it to the
+   * parser the request had. Each thread reuses one, along with its stream.
+   */
+  private static final class CountingParser implements ObjectParser {
+    private final CountingInputStream stream = new CountingInputStream();
+    private ObjectParser parser;
+    private Endpoint endpoint;
+
+    /** @return whether a response is waiting to be parsed. */
+    boolean isPending() {
+      return parser != null;
+    }
+
+    void bind(ObjectParser parser, Endpoint endpoint) {
+      this.parser = parser;
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public <T> T parseAndClose(InputStream in, Charset charset, Class<T> dataClass)
+        throws IOException {
+      return dataClass.cast(parseAndClose(in, charset, (Type) dataClass));
+    }
+
+    @Override
+    public Object parseAndClose(InputStream in, Charset charset, Type dataType)
+        throws IOException {
+      ObjectParser parser = this.parser;
+      stream.reset(in, endpoint);
+      release();
+      try {
+        return parser.parseAndClose(stream, charset, dataType);
+      } finally {
+        stream.reset(null, null);
+      }
+    }
+
+    @Override
+    public <T> T parseAndClose(Reader reader, Class<T> dataClass) throws IOException {
+      ObjectParser parser = this.parser;
+      release();
+      return parser.parseAndClose(reader, dataClass);
+    }
+
+    @Override
+    public Object parseAndClose(Reader reader, Type dataType) throws IOException {
+      ObjectParser parser = this.parser;
+      release();
+      return parser.parseAndClose(reader, dataType);
+    }
+
+    private void release() {
+      parser = null;
+      endpoint = null;
+    }
+  }
+
+  /** A stream that adds the bytes read from it to the bytes in of an endpoint. */
+  private static final class CountingInputStream extends InputStream {
+    private InputStream in;
+    private Endpoint endpoint;
+
+    void reset(InputStream in, Endpoint endpoint) {
+      this.in = in;
+      this.endpoint = endpoint;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = in.read();
+      if (b != -1) {
+        endpoint.bytesIn.incrementAndGet();
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = in.read(b, off, len);
+      if (read > 0) {
+        endpoint.bytesIn.addAndGet(read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(n);
+      endpoint.bytesIn.addAndGet(skipped);
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,438 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpExecuteInterceptor;
+import com.google.api.client.http.HttpIOExceptionHandler;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestInitializer;
+import com.google.api.client.http.HttpResponseInterceptor;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.http.HttpUnsuccessfulResponseHandler;
+import com.google.api.client.http.MultipartContent;
+import com.google.api.client.util.BackOff;
+import com.google.api.client.util.ExponentialBackOff;
+import com.google.api.client.util.Sleeper;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rate limits, retries and adaptively bounds the concurrency of every request it is installed
+ * on. Add it to an {@link AdsenseClientFactory} with
+ * {@link AdsenseClientFactory.Builder#addRequestInitializer} so that all samples use it.
+ *
+ * <ul>
+ * <li>Each request first takes a token from a project-wide token bucket and from the bucket of
+ * the account named in its URL.</li>
+ * <li>Requests answered with {@code 429} or a {@code 5xx} status, and GET requests that fail with
+ * an {@link IOException}, are retried with exponential backoff and jitter, honouring
+ * {@code Retry-After} when the server sends it.</li>
+ * <li>The number of requests in flight is capped by a limit that is halved whenever the server
+ * throttles ({@code 429} or {@code 503}) and grows back slowly as requests succeed.</li>
+ * <li>A batch request holds one place in flight but takes one project token per part. Its parts
+ * must be built without the throttler, as {@link BatchFetcher} does, since the batch never hands
+ * their responses back to it.</li>
+ * </ul>
+ *
+ * <p>The handlers installed by earlier initializers, such as the credential's token refresh on
+ * {@code 401}, keep working: they run first and the throttler only acts when they do not. One
+ * throttler is meant to be shared by all service objects and threads.
+ */
+public final class RequestThrottler implements HttpRequestInitializer {
+
+  private static final Pattern ACCOUNT_PATTERN = Pattern.compile("/accounts/([^/:]+)");
+  private static final String BATCH_PATH = "/batch";
+
+  private final TokenBucket projectBucket;
+  private final double accountRequestsPerSecond;
+  private final int accountBurst;
+  private final ConcurrentMap<String, TokenBucket> accountBuckets =
+      new ConcurrentHashMap<String, TokenBucket>();
+  private final AdaptiveLimit concurrency;
+  private final int maxRetries;
+  private final int initialBackOffMillis;
+  private final int maxBackOffMillis;
+  private final int maxElapsedMillis;
+  private final Sleeper sleeper;
+
+  private final AtomicLong requests = new AtomicLong();
+  private final AtomicLong retries = new AtomicLong();
+  private final AtomicLong throttledResponses = new AtomicLong();
+  private final AtomicLong rateLimitWaitNanos = new AtomicLong();
+  private final AtomicLong concurrencyWaitNanos = new AtomicLong();
+  private final AtomicLong backOffWaitNanos = new AtomicLong();
+
+  private RequestThrottler(Builder builder) {
+    this.projectBucket = builder.projectRequestsPerSecond > 0
+        ? new TokenBucket(builder.projectRequestsPerSecond, builder.projectBurst) : null;
+    this.accountRequestsPerSecond = builder.accountRequestsPerSecond;
+    this.accountBurst = builder.accountBurst;
+    this.concurrency = new AdaptiveLimit(builder.minConcurrency, builder.maxConcurrency);
+    this.maxRetries = builder.maxRetries;
+    this.initialBackOffMillis = builder.initialBackOffMillis;
+    this.maxBackOffMillis = builder.maxBackOffMillis;
+    this.maxElapsedMillis = builder.maxElapsedMillis;
+    this.sleeper = builder.sleeper;
+  }
+
+  @Override
+  public void initialize(HttpRequest request) {
+    request.setNumberOfRetries(maxRetries);
+    final Attempt attempt = new Attempt(new ExponentialBackOff.Builder()
+        .setInitialIntervalMillis(initialBackOffMillis)
+        .setMaxIntervalMillis(maxBackOffMillis)
+        .setMaxElapsedTimeMillis(maxElapsedMillis)
+        .setRandomizationFactor(0.5)
+        .setMultiplier(2)
+        .build());
+
+    final HttpExecuteInterceptor previousInterceptor = request.getInterceptor();
+    request.setInterceptor(new HttpExecuteInterceptor() {
+      @Override
+      public void intercept(HttpRequest request) throws IOException {
+        if (previousInterceptor != null) {
+          previousInterceptor.intercept(request);
+        }
+        acquire(request, attempt);
+      }
+    });
+
+    final HttpUnsuccessfulResponseHandler previousHandler =
+        request.getUnsuccessfulResponseHandler();
+    request.setUnsuccessfulResponseHandler((unsuccessful, response, supportsRetry) -> {
+      int status = response.getStatusCode();
+      boolean throttled = status == HttpStatusCodes.STATUS_CODE_SERVICE_UNAVAILABLE
+          || status == 429;
+      if (throttled) {
+        throttledResponses.incrementAndGet();
+      }
+      attempt.release(throttled);
+      if (previousHandler != null
+          && previousHandler.handleResponse(unsuccessful, response, supportsRetry)) {
+        return true;
+      }
+      if (!supportsRetry || !(status == 429 || status / 100 == 5)) {
+        return false;
+      }
+      return backOff(attempt, retryAfterMillis(response.getHeaders().getRetryAfter()));
+    });
+
+    final HttpIOExceptionHandler previousIoHandler = request.getIOExceptionHandler();
+    request.setIOExceptionHandler((failed, supportsRetry) -> {
+      attempt.release(false);
+      if (previousIoHandler != null && previousIoHandler.handleIOException(failed, supportsRetry)) {
+        return true;
+      }
+      if (!supportsRetry || !"GET".equals(failed.getRequestMethod())) {
+        return false;
+      }
+      return backOff(attempt, 0);
+    });
+
+    final HttpResponseInterceptor previousResponseInterceptor = request.getResponseInterceptor();
+    request.setResponseInterceptor(response -> {
+      attempt.release(false);
+      if (previousResponseInterceptor != null) {
+        previousResponseInterceptor.interceptResponse(response);
+      }
+    });
+  }
+
+  /** @return the number of requests sent, including retries. */
+  public long getRequestCount() {
+    return requests.get();
+  }
+
+  /** @return the number of retries. */
+  public long getRetryCount() {
+    return retries.get();
+  }
+
+  /** @return the number of {@code 429} and {@code 503} responses. */
+  public long getThrottledCount() {
+    return throttledResponses.get();
+  }
+
+  /** @return the total time requests waited for rate limiter tokens. */
+  public long getRateLimitWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(rateLimitWaitNanos.get());
+  }
+
+  /** @return the total time requests waited for the concurrency limit. */
+  public long getConcurrencyWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(concurrencyWaitNanos.get());
+  }
+
+  /** @return the total time spent backing off before retries. */
+  public long getBackOffWaitMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(backOffWaitNanos.get());
+  }
+
+  /** @return the current limit on requests in flight. */
+  public int getConcurrencyLimit() {
+    return concurrency.getLimit();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("RequestThrottler{requests=%d, retries=%d, throttled=%d, "
+        + "rateLimitWaitMs=%d, concurrencyWaitMs=%d, backOffWaitMs=%d, concurrencyLimit=%d}",
+        getRequestCount(), getRetryCount(), getThrottledCount(), getRateLimitWaitMillis(),
+        getConcurrencyWaitMillis(), getBackOffWaitMillis(), getConcurrencyLimit());
+  }
+
+  private void acquire(HttpRequest request, Attempt attempt) throws IOException {
+    try {
+      long start = System.nanoTime();
+      if (projectBucket != null) {
+        sleepNanos(projectBucket.reserve(tokens(request)));
+      }
+      TokenBucket accountBucket = accountBucket(request);
+      if (accountBucket != null) {
+        sleepNanos(accountBucket.reserve(1));
+      }
+      long acquired = System.nanoTime();
+      rateLimitWaitNanos.addAndGet(acquired - start);
+
+      concurrency.acquire();
+      concurrencyWaitNanos.addAndGet(System.nanoTime() - acquired);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting to send a request");
+    }
+    attempt.holding = true;
+    requests.incrementAndGet();
+  }
+
+  /** @return the number of calls a request carries: the parts of a batch, or one. */
+  private static int tokens(HttpRequest request) {
+    HttpContent content = request.getContent();
+    if (content instanceof MultipartContent
+        && request.getUrl().getRawPath().startsWith(BATCH_PATH)) {
+      return Math.max(1, ((MultipartContent) content).getParts().size());
+    }
+    return 1;
+  }
+
+  private TokenBucket accountBucket(HttpRequest request) {
+    if (accountRequestsPerSecond <= 0) {
+      return null;
+    }
+    Matcher matcher = ACCOUNT_PATTERN.matcher(request.getUrl().getRawPath());
+    if (!matcher.find()) {
+      return null;
+    }
+    String account = matcher.group(1);
+    TokenBucket bucket = accountBuckets.get(account);
+    if (bucket == null) {
+      accountBuckets.putIfAbsent(account, new TokenBucket(accountRequestsPerSecond, accountBurst));
+      bucket = accountBuckets.get(account);
+    }
+    return bucket;
+  }
+
+  private boolean backOff(Attempt attempt, long minimumMillis) throws IOException {
+    long millis = attempt.backOff.nextBackOffMillis();
+    if (millis == BackOff.STOP) {
+      return false;
+    }
+    millis = Math.max(millis, minimumMillis);
+    long start = System.nanoTime();
+    try {
+      sleeper.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while backing off");
+    } finally {
+      backOffWaitNanos.addAndGet(System.nanoTime() - start);
+    }
+    retries.incrementAndGet();
+    return true;
+  }
+
+  private void sleepNanos(long nanos) throws InterruptedException {
+    if (nanos > 0) {
+      sleeper.sleep(TimeUnit.NANOSECONDS.toMillis(nanos) + 1);
+    }
+  }
+
+  /** Parses a {@code Retry-After} header given in seconds; HTTP dates are ignored. */
+  private static long retryAfterMillis(String retryAfter) {
+    if (retryAfter == null) {
+      return 0;
+    }
+    try {
+      return TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+
+  /** The per-request state: its backoff and whether it holds a concurrency permit. */
+  private final class Attempt {
+    final BackOff backOff;
+    boolean holding;
+
+    Attempt(BackOff backOff) {
+      this.backOff = backOff;
+    }
+
+    void release(boolean throttled) {
+      if (holding) {
+        holding = false;
+        concurrency.release(throttled);
+      }
+    }
+  }
+
+  /** A token bucket that hands out reservations, so that callers sleep outside of its lock. */
+  private static final class TokenBucket {
+    private final double tokensPerNano;
+    private final double capacity;
+    private double tokens;
+    private long lastRefillNanos = System.nanoTime();
+
+    TokenBucket(double tokensPerSecond, int burst) {
+      this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+      this.capacity = Math.max(1, burst);
+      this.tokens = capacity;
+    }
+
+    /** Takes some tokens, returning how long to wait before they may be used. */
+    synchronized long reserve(int count) {
+      long now = System.nanoTime();
+      tokens = Math.min(capacity, tokens + (now - lastRefillNanos) * tokensPerNano);
+      lastRefillNanos = now;
+      tokens -= count;
+      return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+    }
+  }
+
+  /** An additive-increase, multiplicative-decrease limit on requests in flight. */
+  private static final class AdaptiveLimit {
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int min;
+    private final int max;
+    private double limit;
+    private int inFlight;
+    private long lastDecreaseNanos;
+
+    AdaptiveLimit(int min, int max) {
+      this.min = min;
+      this.max = max;
+      this.limit = max;
+      // The first throttled response always counts, whatever the origin of nanoTime.
+      this.lastDecreaseNanos = System.nanoTime() - DECREASE_INTERVAL_NANOS - 1;
+    }
+
+    synchronized void acquire() throws InterruptedException {
+      while (inFlight >= (int) limit) {
+        wait();
+      }
+      inFlight++;
+    }
+
+    synchronized void release(boolean throttled) {
+      inFlight--;
+      long now = System.nanoTime();
+      if (throttled) {
+        // A burst of throttled responses only counts once.
+        if (now - lastDecreaseNanos > DECREASE_INTERVAL_NANOS) {
+          limit = Math.max(min, limit / 2);
+          lastDecreaseNanos = now;
+        }
+      } else {
+        limit = Math.min(max, limit + 1 / limit);
+      }
+      notifyAll();
+    }
+
+    synchronized int getLimit() {
+      return (int) limit;
+    }
+  }
+
+  /** Builder for {@link RequestThrottler}. */
+  public static final class Builder {
+    private double projectRequestsPerSecond = 10;
+    private int projectBurst = 10;
+    private double accountRequestsPerSecond = 2;
+    private int accountBurst = 5;
+    private int minConcurrency = 1;
+    private int maxConcurrency = 16;
+    private int maxRetries = 6;
+    private int initialBackOffMillis = 500;
+    private int maxBackOffMillis = (int) TimeUnit.SECONDS.toMillis(32);
+    private int maxElapsedMillis = (int) TimeUnit.MINUTES.toMillis(3);
+    private Sleeper sleeper = Sleeper.DEFAULT;
+
+    /** Sets the project-wide request rate; zero or less disables the project limit. */
+    public Builder setProjectRate(double requestsPerSecond, int burst) {
+      this.projectRequestsPerSecond = requestsPerSecond;
+      this.projectBurst = burst;
+      return this;
+    }
+
+    /** Sets the request rate of each account; zero or less disables the account limits. */
+    public Builder setAccountRate(double requestsPerSecond, int burst) {
+      this.accountRequestsPerSecond = requestsPerSecond;
+      this.accountBurst = burst;
+      return this;
+    }
+
+    /** Sets the range within which the limit on requests in flight adapts. */
+    public Builder setConcurrency(int min, int max) {
+      if (min < 1 || max < min) {
+        throw new IllegalArgumentException("Concurrency must satisfy 1 <= min <= max");
+      }
+      this.minConcurrency = min;
+      this.maxConcurrency = max;
+      return this;
+    }
+
+    /** Sets the maximum number of retries of a single request. */
+    public Builder setMaxRetries(int maxRetries) {
+      this.maxRetries = maxRetries;
+      return this;
+    }
+
+    /** Sets the first and the largest backoff interval, and the total time allowed for retries. */
+    public Builder setBackOff(int initialMillis, int maxMillis, int maxElapsedMillis) {
+      this.initialBackOffMillis = initialMillis;
+      this.maxBackOffMillis = maxMillis;
+      this.maxElapsedMillis = maxElapsedMillis;
+      return this;
+    }
+
+    /** Sets the sleeper used for all waits; tests can pass one that does not really sleep. */
+    public Builder setSleeper(Sleeper sleeper) {
+      this.sleeper = sleeper;
+      return this;
+    }
+
+    /** @return the new throttler. */
+    public RequestThrottler build() {
+      return new RequestThrottler(this);
+    }
+  }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ *
+ * This example runs a few jobs for every account the user has access to, in parallel and without
+ * prompting, and prints one consolidated summary.
+ *
+ * Tags: accounts.list, accounts.adclients.list, accounts.reports.saved.list,
+ * accounts.reports.generate
+ *
+ */
+public class RunAllAccounts {
+
+  // Orchestration parameters.
+  private static final int WORKERS = 16;
+
+  /**
+   * Runs this sample.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @throws Exception
+   */
+  public static void run(Adsense adsense, final int maxPageSize) throws Exception {
+    System.out.println("=================================================================");
+    System.out.println("Running jobs for all accounts");
+    System.out.println("=================================================================");
+
+    AccountOrchestrator orchestrator = new AccountOrchestrator.Builder()
+        .addJob("adClients", (service, account) ->
+            Paginator.SINGLE_PARENT.iterate(account, Paginator.adClients(service, maxPageSize))
+                .toList().size())
+        .addJob("savedReports", (service, account) ->
+            Paginator.SINGLE_PARENT.iterate(account, Paginator.savedReports(service, maxPageSize))
+                .toList().size())
+        .addJob("earnings", (service, account) -> {
+          ReportResult report = service.accounts().reports().generate(account)
+              .setDateRange("LAST_7_DAYS")
+              .setMetrics(Arrays.asList("ESTIMATED_EARNINGS"))
+              .execute();
+          return report.getTotals() != null
+              ? report.getTotals().getCells().get(0).getValue() : "0";
+        })
+        .setWorkers(WORKERS)
+        .build();
+    AccountOrchestrator.Result result;
+    long span = Tracer.begin("RunAllAccounts", null);
+    try {
+      result = orchestrator.runAll(adsense, maxPageSize);
+    } finally {
+      Tracer.end(span);
+    }
+
+    Map<String, Object> adClients = result.getValues("adClients");
+    Map<String, Object> savedReports = result.getValues("savedReports");
+    Map<String, Object> earnings = result.getValues("earnings");
+    System.out.printf("%40s%15s%15s%25s\n", "ACCOUNT", "AD_CLIENTS", "SAVED_REPORTS",
+        "EARNINGS_LAST_7_DAYS");
+    Set<String> accounts = new TreeSet<String>();
+    for (AccountOrchestrator.Outcome outcome : result.getOutcomes()) {
+      accounts.add(outcome.getAccount());
+    }
+    for (String account : accounts) {
+      System.out.printf("%40s%15s%15s%25s\n", account, valueOrDash(adClients.get(account)),
+          valueOrDash(savedReports.get(account)), valueOrDash(earnings.get(account)));
+    }
+    for (Map.Entry<String, String> failed : result.getFailedAccounts().entrySet()) {
+      System.out.printf("Account %s failed: %s\n", failed.getKey(), failed.getValue());
+    }
+    for (AccountOrchestrator.Outcome failure : result.getFailures()) {
+      if (!result.getFailedAccounts().containsKey(failure.getAccount())) {
+        System.out.printf("Job %s failed for account %s: %s\n", failure.getJob(),
+            failure.getAccount(), failure.getError().getMessage());
+      }
+    }
+
+    System.out.println();
+  }
+
+  private static Object valueOrDash(Object value) {
+    return value != null ? value : "-";
+  }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.Account;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.SavedReport;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ *
+ * This example runs every saved report of every account the user has access to, in parallel, and
+ * writes each result that changed since the last run to a CSV file.
+ *
+ * Tags: accounts.list, accounts.reports.saved.list, accounts.reports.saved.generate
+ *
+ */
+public class RunAllSavedReports {
+
+  // Runner parameters.
+  private static final int WORKERS = 8;
+  private static final int MAX_REPORTS_PER_ACCOUNT = 2;
+  private static final double ACCOUNT_REPORTS_PER_SECOND = 1;
+
+  /**
+   * Runs this sample.
+   *
+   * @param adsense AdSense service object on which to run the requests.
+   * @param maxPageSize the maximum page size to retrieve.
+   * @param outputDirectory the directory that receives one CSV file per saved report, and the
+   *     hashes of the last results.
+   * @throws Exception
+   */
+  public static void run(Adsense adsense, int maxPageSize, final File outputDirectory)
+      throws Exception {
+    System.out.println("=================================================================");
+    System.out.println("Running all saved reports for all accounts");
+    System.out.println("=================================================================");
+
+    Files.createDirectories(outputDirectory.toPath());
+    List<String> accounts = new ArrayList<String>();
+    for (Account account : Paginator.SINGLE_PARENT.iterate((String) null,
+        Paginator.accounts(adsense, maxPageSize)).toList()) {
+      accounts.add(account.getName());
+    }
+
+    // Plan yesterday once, so every report covers the same day; hashes are kept per report.
+    SavedReportRunner runner = new SavedReportRunner.Builder()
+        .planDateRange("YESTERDAY", LocalDate.now())
+        .setStateFile(new File(outputDirectory, "hashes.tsv"))
+        .setWorkers(WORKERS)
+        .setMaxReportsPerAccount(MAX_REPORTS_PER_ACCOUNT)
+        .setAccountRate(ACCOUNT_REPORTS_PER_SECOND)
+        .build();
+    SavedReportRunner.Result result;
+    long span = Tracer.begin("RunAllSavedReports", null);
+    try {
+      result = runner.runAll(adsense, accounts, maxPageSize, new SavedReportRunner.ResultSink() {
+        @Override
+        public ReportStreamReader.RowHandler open(SavedReport report) throws IOException {
+          String fileName = report.getName().replace('/', '_') + ".csv";
+          return ReportWriter.create(ReportWriter.Format.CSV, new File(outputDirectory, fileName));
+        }
+
+        @Override
+        public void close(SavedReport report, ReportStreamReader.RowHandler handler,
+            ReportResult summary) throws IOException {
+          ReportWriter writer = (ReportWriter) handler;
+          try {
+            if (summary != null) {
+              writer.finish();
+            }
+          } finally {
+            writer.close();
+          }
+        }
+      });
+    } finally {
+      Tracer.end(span);
+    }
+
+    System.out.println(result);
+    for (SavedReportRunner.Outcome failure : result.getFailures()) {
+      System.out.printf("Saved report %s failed: %s\n", failure.getReport().getName(),
+          failure.getError().getMessage());
+    }
+
+    System.out.println();
+  }
+}
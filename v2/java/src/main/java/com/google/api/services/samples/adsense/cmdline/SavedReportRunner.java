@@ -0,0 +1,617 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Saved.Generate;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.SavedReport;
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDate;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs many saved reports, across accounts, in parallel, and hands each result that changed to a
+ * sink.
+ *
+ * <p>Every saved report is run with the same date range. A named range such as
+ * {@code YESTERDAY} can be planned into fixed days once for the whole run with
+ * {@link Builder#planDateRange}, so that the results of all accounts cover the same days even if
+ * the run crosses midnight.
+ *
+ * <p>Reports are handed to a fixed number of workers in round-robin order across accounts. Each
+ * account has a limit on its reports in flight and on how often one of its reports may start, so
+ * a few large accounts cannot hold up the others.
+ *
+ * <p>Each response is spooled to a temporary file while its SHA-256 hash is computed. If the hash
+ * is the one recorded for the report and date range by the last successful run, the report is
+ * skipped; otherwise it is parsed from the file and streamed to the sink, and its hash is
+ * recorded once the sink has accepted it. Hashes are kept in a state file, so that a job run again
+ * only passes on the reports whose data changed. A planned range is recorded under its name, so
+ * the file keeps one hash per saved report however many days a daily job runs; hashes of saved
+ * reports that are gone, and of custom ranges that ended before the current one, are dropped.
+ */
+public final class SavedReportRunner {
+
+  /** Receives the results of changed saved reports. Calls for different reports may overlap. */
+  public interface ResultSink {
+
+    /**
+     * Starts the result of a saved report.
+     *
+     * @param report the saved report.
+     * @return the handler that receives the headers and the rows of the result.
+     * @throws IOException if the result cannot be accepted.
+     */
+    ReportStreamReader.RowHandler open(SavedReport report) throws IOException;
+
+    /**
+     * Ends the result of a saved report.
+     *
+     * @param report the saved report.
+     * @param handler the handler returned by {@link #open} for the report.
+     * @param summary the rest of the result, without rows, or {@code null} if reading the result
+     *     failed part way.
+     * @throws IOException if the result cannot be accepted.
+     */
+    void close(SavedReport report, ReportStreamReader.RowHandler handler, ReportResult summary)
+        throws IOException;
+  }
+
+  /** What happened to a saved report. */
+  public enum Status {
+    /** The result changed and was handed to the sink. */
+    WRITTEN,
+    /** The result had not changed since the last successful run. */
+    UNCHANGED,
+    /** The report could not be run or written. */
+    FAILED
+  }
+
+  /** The outcome of one saved report. */
+  public static final class Outcome {
+    private final SavedReport report;
+    private final Status status;
+    private final Exception error;
+    private final long elapsedMillis;
+
+    Outcome(SavedReport report, Status status, Exception error, long elapsedMillis) {
+      this.report = report;
+      this.status = status;
+      this.error = error;
+      this.elapsedMillis = elapsedMillis;
+    }
+
+    /** @return the saved report. */
+    public SavedReport getReport() {
+      return report;
+    }
+
+    /** @return what happened to the report. */
+    public Status getStatus() {
+      return status;
+    }
+
+    /** @return the failure, or {@code null} if the report did not fail. */
+    public Exception getError() {
+      return error;
+    }
+
+    /** @return how long the report took. */
+    public long getElapsedMillis() {
+      return elapsedMillis;
+    }
+  }
+
+  /** The outcomes of all saved reports of a run. */
+  public static final class Result {
+    private final List<Outcome> outcomes;
+
+    Result(List<Outcome> outcomes) {
+      this.outcomes = Collections.unmodifiableList(outcomes);
+    }
+
+    /** @return every outcome, in the order the reports finished. */
+    public List<Outcome> getOutcomes() {
+      return outcomes;
+    }
+
+    /** @return the number of reports with the given status. */
+    public int getCount(Status status) {
+      int count = 0;
+      for (Outcome outcome : outcomes) {
+        if (outcome.status == status) {
+          count++;
+        }
+      }
+      return count;
+    }
+
+    /** @return the outcomes of the reports that failed. */
+    public List<Outcome> getFailures() {
+      List<Outcome> failures = new ArrayList<Outcome>();
+      for (Outcome outcome : outcomes) {
+        if (outcome.status == Status.FAILED) {
+          failures.add(outcome);
+        }
+      }
+      return failures;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d saved reports: %d written, %d unchanged, %d failed",
+          outcomes.size(), getCount(Status.WRITTEN), getCount(Status.UNCHANGED),
+          getCount(Status.FAILED));
+    }
+  }
+
+  private final String dateRange;
+  private final String rangeLabel;
+  private final LocalDate startDate;
+  private final LocalDate endDate;
+  private final File stateFile;
+  private final int workers;
+  private final int maxReportsPerAccount;
+  private final long accountIntervalNanos;
+
+  private SavedReportRunner(Builder builder) {
+    this.dateRange = builder.dateRange;
+    this.startDate = builder.startDate;
+    this.endDate = builder.endDate;
+    this.rangeLabel = builder.plannedRange != null ? builder.plannedRange
+        : startDate != null ? "CUSTOM " + startDate + " " + endDate : dateRange;
+    this.stateFile = builder.stateFile;
+    this.workers = builder.workers;
+    this.maxReportsPerAccount = builder.maxReportsPerAccount;
+    this.accountIntervalNanos = builder.accountReportsPerSecond > 0
+        ? (long) (TimeUnit.SECONDS.toNanos(1) / builder.accountReportsPerSecond) : 0;
+  }
+
+  /**
+   * Runs every saved report of the given accounts.
+   *
+   * @param adsense the AdSense service object.
+   * @param accounts the resource names of the accounts.
+   * @param maxPageSize the maximum page size used to list the saved reports.
+   * @param sink the sink that receives the changed results.
+   * @return the outcomes.
+   * @throws IOException if the saved reports cannot be listed, or the state file cannot be read
+   *     or written.
+   * @throws InterruptedException if interrupted while waiting for the reports.
+   */
+  public Result runAll(Adsense adsense, List<String> accounts, int maxPageSize, ResultSink sink)
+      throws IOException, InterruptedException {
+    List<SavedReport> reports = new Paginator(Math.max(1, Math.min(workers, accounts.size())), 4)
+        .iterate(accounts, Paginator.savedReports(adsense, maxPageSize)).toList();
+    return run(adsense, reports, sink);
+  }
+
+  /**
+   * Runs the given saved reports, for example those listed by {@link GetAllSavedReports} for
+   * several accounts.
+   *
+   * @param adsense the AdSense service object.
+   * @param reports the saved reports.
+   * @param sink the sink that receives the changed results.
+   * @return the outcomes.
+   * @throws IOException if the state file cannot be read or written.
+   * @throws InterruptedException if interrupted while waiting for the reports.
+   */
+  public Result run(final Adsense adsense, List<SavedReport> reports, final ResultSink sink)
+      throws IOException, InterruptedException {
+    final Map<String, String> previousHashes = readState();
+    final Map<String, String> newHashes = Collections.synchronizedMap(
+        new HashMap<String, String>());
+    final FairQueue queue = new FairQueue(reports);
+    final List<Outcome> outcomes = Collections.synchronizedList(new ArrayList<Outcome>());
+    int workerCount = Math.min(workers, Math.max(1, reports.size()));
+    ExecutorService executor =
+        WorkerExecutors.newWorkerExecutor(workerCount, "adsense-saved-reports");
+    try {
+      for (int i = 0; i < workerCount; i++) {
+        executor.execute(Tracer.wrap(new Runnable() {
+          @Override
+          public void run() {
+            SavedReport report;
+            while ((report = queue.take()) != null) {
+              try {
+                outcomes.add(runReport(adsense, report, sink, previousHashes, newHashes));
+              } finally {
+                queue.done(report);
+              }
+            }
+          }
+        }));
+      }
+      executor.shutdown();
+      while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+        // Keep waiting; every report ends with an outcome.
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    Set<String> names = new HashSet<String>();
+    for (SavedReport report : reports) {
+      names.add(report.getName());
+    }
+    Map<String, String> state = new TreeMap<String, String>();
+    for (Map.Entry<String, String> entry : previousHashes.entrySet()) {
+      if (isCurrent(entry.getKey(), names)) {
+        state.put(entry.getKey(), entry.getValue());
+      }
+    }
+    state.putAll(newHashes);
+    if (!state.equals(previousHashes)) {
+      writeState(state);
+    }
+    return new Result(new ArrayList<Outcome>(outcomes));
+  }
+
+  private Outcome runReport(Adsense adsense, SavedReport report, ResultSink sink,
+      Map<String, String> previousHashes, Map<String, String> newHashes) {
+    long start = System.nanoTime();
+    long span = Tracer.begin("savedReport", report.getName());
+    File spool = null;
+    try {
+      Generate request = adsense.accounts().reports().saved().generate(report.getName());
+      request.setDateRange(dateRange);
+      if (startDate != null) {
+        request.setStartDateYear(startDate.getYear()).setStartDateMonth(startDate.getMonthValue())
+            .setStartDateDay(startDate.getDayOfMonth());
+        request.setEndDateYear(endDate.getYear()).setEndDateMonth(endDate.getMonthValue())
+            .setEndDateDay(endDate.getDayOfMonth());
+      }
+
+      // Spool the response while hashing it, so that unchanged results are never parsed.
+      spool = File.createTempFile("saved-report", ".json");
+      MessageDigest digest = sha256();
+      InputStream content = new DigestInputStream(request.executeAsInputStream(), digest);
+      try {
+        Files.copy(content, spool.toPath(), StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        content.close();
+      }
+      String hash = hex(digest.digest());
+      String key = stateKey(report);
+      if (hash.equals(previousHashes.get(key))) {
+        return new Outcome(report, Status.UNCHANGED, null, elapsedMillis(start));
+      }
+
+      ReportStreamReader.RowHandler handler = sink.open(report);
+      ReportResult summary = null;
+      try {
+        InputStream in = new BufferedInputStream(Files.newInputStream(spool.toPath()));
+        try {
+          summary = ReportStreamReader.read(request.getAbstractGoogleClient().getJsonFactory(),
+              in, handler);
+        } finally {
+          in.close();
+        }
+      } finally {
+        sink.close(report, handler, summary);
+      }
+      newHashes.put(key, hash);
+      return new Outcome(report, Status.WRITTEN, null, elapsedMillis(start));
+    } catch (Exception e) {
+      return new Outcome(report, Status.FAILED, e, elapsedMillis(start));
+    } finally {
+      Tracer.end(span);
+      if (spool != null && !spool.delete()) {
+        spool.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * Hashes are kept per saved report and date range, as either change the result. Planned ranges
+   * are keyed by their name rather than their days, so each run replaces the last one's hash.
+   */
+  private String stateKey(SavedReport report) {
+    return report.getName() + " " + rangeLabel;
+  }
+
+  /**
+   * @return whether a hash of the state file is still worth keeping: those of this run's range
+   *     must be for one of its saved reports, and custom ranges must not end before this run's.
+   */
+  private boolean isCurrent(String key, Set<String> reportNames) {
+    int space = key.indexOf(' ');
+    if (space < 0) {
+      return false;
+    }
+    String label = key.substring(space + 1);
+    if (label.equals(rangeLabel)) {
+      return reportNames.contains(key.substring(0, space));
+    }
+    String[] range = label.split(" ");
+    if (startDate != null && range.length == 3 && range[0].equals("CUSTOM")) {
+      try {
+        return !LocalDate.parse(range[2]).isBefore(startDate);
+      } catch (DateTimeParseException e) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private Map<String, String> readState() throws IOException {
+    Map<String, String> state = new HashMap<String, String>();
+    if (stateFile == null || !stateFile.isFile()) {
+      return state;
+    }
+    for (String line : Files.readAllLines(stateFile.toPath(), StandardCharsets.UTF_8)) {
+      int tab = line.lastIndexOf('\t');
+      if (tab > 0) {
+        state.put(line.substring(0, tab), line.substring(tab + 1));
+      }
+    }
+    return state;
+  }
+
+  private void writeState(Map<String, String> state) throws IOException {
+    if (stateFile == null) {
+      return;
+    }
+    List<String> lines = new ArrayList<String>(state.size());
+    for (Map.Entry<String, String> entry : state.entrySet()) {
+      lines.add(entry.getKey() + "\t" + entry.getValue());
+    }
+    // Write to a temporary file first, so that a failed write keeps the previous state.
+    File directory = stateFile.getAbsoluteFile().getParentFile();
+    Files.createDirectories(directory.toPath());
+    File temporary = File.createTempFile("saved-reports", ".tmp", directory);
+    Files.write(temporary.toPath(), lines, StandardCharsets.UTF_8);
+    Files.move(temporary.toPath(), stateFile.toPath(), StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  private static String hex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder(2 * bytes.length);
+    for (byte b : bytes) {
+      hex.append(String.format("%02x", b));
+    }
+    return hex.toString();
+  }
+
+  private static long elapsedMillis(long startNanos) {
+    return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+  }
+
+  /** @return the resource name of the account that owns a saved report. */
+  static String accountOf(SavedReport report) {
+    String name = report.getName();
+    int reports = name.indexOf("/reports/");
+    return reports >= 0 ? name.substring(0, reports) : name;
+  }
+
+  /**
+   * Hands out saved reports round-robin across accounts, keeping each account under its limit of
+   * reports in flight and its start rate.
+   */
+  private final class FairQueue {
+    private final List<String> accounts;
+    private final Map<String, Deque<SavedReport>> pending =
+        new LinkedHashMap<String, Deque<SavedReport>>();
+    private final Map<String, Integer> inFlight = new HashMap<String, Integer>();
+    private final Map<String, Long> nextStartNanos = new HashMap<String, Long>();
+    private int remaining;
+    private int cursor;
+
+    FairQueue(List<SavedReport> reports) {
+      for (SavedReport report : reports) {
+        String account = accountOf(report);
+        Deque<SavedReport> queued = pending.get(account);
+        if (queued == null) {
+          queued = new ArrayDeque<SavedReport>();
+          pending.put(account, queued);
+          inFlight.put(account, 0);
+          nextStartNanos.put(account, System.nanoTime());
+        }
+        queued.add(report);
+        remaining++;
+      }
+      this.accounts = new ArrayList<String>(pending.keySet());
+    }
+
+    /**
+     * @return the next report, waiting if needed, or {@code null} once every report is handed
+     *     out.
+     */
+    synchronized SavedReport take() {
+      while (remaining > 0) {
+        long now = System.nanoTime();
+        long waitNanos = Long.MAX_VALUE;
+        for (int i = 0; i < accounts.size(); i++) {
+          String account = accounts.get((cursor + i) % accounts.size());
+          Deque<SavedReport> queued = pending.get(account);
+          if (queued.isEmpty() || inFlight.get(account) >= maxReportsPerAccount) {
+            continue;
+          }
+          long next = nextStartNanos.get(account);
+          if (next - now > 0) {
+            waitNanos = Math.min(waitNanos, next - now);
+            continue;
+          }
+          cursor = (cursor + i + 1) % accounts.size();
+          inFlight.put(account, inFlight.get(account) + 1);
+          nextStartNanos.put(account, Math.max(next, now) + accountIntervalNanos);
+          remaining--;
+          return queued.poll();
+        }
+        try {
+          if (waitNanos == Long.MAX_VALUE) {
+            wait();
+          } else {
+            TimeUnit.NANOSECONDS.timedWait(this, waitNanos);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return null;
+        }
+      }
+      return null;
+    }
+
+    synchronized void done(SavedReport report) {
+      String account = accountOf(report);
+      inFlight.put(account, inFlight.get(account) - 1);
+      notifyAll();
+    }
+  }
+
+  /** Builder for {@link SavedReportRunner}. */
+  public static final class Builder {
+    private String dateRange = "LAST_7_DAYS";
+    private String plannedRange;
+    private LocalDate startDate;
+    private LocalDate endDate;
+    private File stateFile;
+    private int workers = 8;
+    private int maxReportsPerAccount = 2;
+    private double accountReportsPerSecond = 1;
+
+    /**
+     * Sets the date range of every report to a named range, such as {@code YESTERDAY}. Defaults
+     * to {@code LAST_7_DAYS}.
+     */
+    public Builder setDateRange(String dateRange) {
+      if ("CUSTOM".equals(dateRange)) {
+        throw new IllegalArgumentException("Use setCustomDateRange for CUSTOM date ranges");
+      }
+      this.dateRange = dateRange;
+      this.plannedRange = null;
+      this.startDate = null;
+      this.endDate = null;
+      return this;
+    }
+
+    /** Sets the date range of every report to the given days, inclusive. */
+    public Builder setCustomDateRange(LocalDate startDate, LocalDate endDate) {
+      if (endDate.isBefore(startDate)) {
+        throw new IllegalArgumentException("The end date is before the start date");
+      }
+      this.dateRange = "CUSTOM";
+      this.plannedRange = null;
+      this.startDate = startDate;
+      this.endDate = endDate;
+      return this;
+    }
+
+    /**
+     * Plans a named date range into fixed days, so that every report covers the same days
+     * however long the run takes. Hashes are still recorded under the name of the range.
+     *
+     * @param dateRange {@code TODAY}, {@code YESTERDAY}, {@code LAST_7_DAYS},
+     *     {@code LAST_30_DAYS}, {@code MONTH_TO_DATE} or {@code YEAR_TO_DATE}.
+     * @param today the current date in the reporting time zone of the accounts.
+     * @return this builder.
+     */
+    public Builder planDateRange(String dateRange, LocalDate today) {
+      switch (dateRange) {
+        case "TODAY":
+          setCustomDateRange(today, today);
+          break;
+        case "YESTERDAY":
+          setCustomDateRange(today.minusDays(1), today.minusDays(1));
+          break;
+        case "LAST_7_DAYS":
+          setCustomDateRange(today.minusDays(7), today.minusDays(1));
+          break;
+        case "LAST_30_DAYS":
+          setCustomDateRange(today.minusDays(30), today.minusDays(1));
+          break;
+        case "MONTH_TO_DATE":
+          setCustomDateRange(today.withDayOfMonth(1), today);
+          break;
+        case "YEAR_TO_DATE":
+          setCustomDateRange(today.withDayOfYear(1), today);
+          break;
+        default:
+          throw new IllegalArgumentException("Cannot plan the date range " + dateRange);
+      }
+      this.plannedRange = dateRange;
+      return this;
+    }
+
+    /**
+     * Sets the file that records the result hashes of successful runs. Without one, every report
+     * is handed to the sink.
+     */
+    public Builder setStateFile(File stateFile) {
+      this.stateFile = stateFile;
+      return this;
+    }
+
+    /** Sets the number of reports run at the same time, across all accounts. */
+    public Builder setWorkers(int workers) {
+      if (workers < 1) {
+        throw new IllegalArgumentException("There must be at least one worker");
+      }
+      this.workers = workers;
+      return this;
+    }
+
+    /** Sets the number of reports of a single account run at the same time. */
+    public Builder setMaxReportsPerAccount(int maxReportsPerAccount) {
+      if (maxReportsPerAccount < 1) {
+        throw new IllegalArgumentException("Accounts must be allowed at least one report");
+      }
+      this.maxReportsPerAccount = maxReportsPerAccount;
+      return this;
+    }
+
+    /** Sets how many reports of an account may start per second; zero or less disables it. */
+    public Builder setAccountRate(double reportsPerSecond) {
+      this.accountReportsPerSecond = reportsPerSecond;
+      return this;
+    }
+
+    /** @return the new runner. */
+    public SavedReportRunner build() {
+      return new SavedReportRunner(this);
+    }
+  }
+}
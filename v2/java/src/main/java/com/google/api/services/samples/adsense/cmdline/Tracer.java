@@ -0,0 +1,394 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Records nested spans, such as run, list, page and child list, into a fixed size ring buffer,
+ * and writes them out in the Chrome trace event format, which chrome://tracing and Perfetto load.
+ *
+ * <p>Tracing is off until {@link #enable} is called, and can be switched on and off at any time.
+ * While it is off, {@link #begin} and {@link #end} only read one volatile field. While it is on,
+ * they allocate nothing: each thread keeps a preallocated stack of open spans, and a finished
+ * span overwrites the oldest one in the ring buffer.
+ *
+ * <p>A span's parent is the innermost span open on the same thread. Work handed to another
+ * thread keeps its parent when the task is wrapped with {@link #wrap}; such links are exported as
+ * flow arrows.
+ *
+ * <pre>
+ * long span = Tracer.begin("page", parent);
+ * try {
+ *   ...
+ * } finally {
+ *   Tracer.end(span);
+ * }
+ * </pre>
+ */
+public final class Tracer {
+
+  /** The default number of spans kept. */
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  /** The deepest nesting of open spans recorded per thread; deeper spans are not recorded. */
+  static final int MAX_DEPTH = 64;
+
+  /** The fields of a finished span, in order, in {@link Ring#fields}. */
+  private static final int ID = 0;
+  private static final int PARENT = 1;
+  private static final int START = 2;
+  private static final int DURATION = 3;
+  private static final int THREAD = 4;
+  private static final int FIELDS = 5;
+
+  private static volatile Ring ring;
+
+  private static final ThreadLocal<Frames> FRAMES = new ThreadLocal<Frames>() {
+    @Override
+    protected Frames initialValue() {
+      Thread thread = Thread.currentThread();
+      THREAD_NAMES.put(thread.getId(), thread.getName());
+      return new Frames();
+    }
+  };
+
+  private static final Map<Long, String> THREAD_NAMES = new ConcurrentHashMap<Long, String>();
+
+  private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+  private static final long EPOCH_NANOS = System.nanoTime();
+
+  private Tracer() {}
+
+  /**
+   * Starts recording, discarding any spans recorded before.
+   *
+   * @param capacity the number of spans kept, rounded up to a power of two.
+   */
+  public static void enable(int capacity) {
+    if (capacity < 1 || capacity > 1 << 24) {
+      throw new IllegalArgumentException("capacity must be between 1 and 2^24");
+    }
+    int size = Integer.highestOneBit(capacity);
+    ring = new Ring(size < capacity ? size << 1 : size);
+  }
+
+  /** Stops recording. Spans already recorded are dropped. */
+  public static void disable() {
+    ring = null;
+  }
+
+  /** @return whether spans are being recorded. */
+  public static boolean isEnabled() {
+    return ring != null;
+  }
+
+  /**
+   * Opens a span on the current thread, as a child of the innermost open span.
+   *
+   * @param name the kind of work, such as {@code "page"}; it should be a constant.
+   * @param detail what the work is about, such as a parent resource name, or {@code null}.
+   * @return the span ID, to pass to {@link #end}; 0 when tracing is off.
+   */
+  public static long begin(String name, String detail) {
+    if (ring == null) {
+      return 0;
+    }
+    return FRAMES.get().push(name, detail);
+  }
+
+  /**
+   * Closes a span opened by {@link #begin} on the current thread, and any span left open inside
+   * it.
+   *
+   * @param span the span ID.
+   */
+  public static void end(long span) {
+    if (span == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    Frames frames = FRAMES.get();
+    int index = frames.depth - 1;
+    while (index >= 0 && frames.ids[index] != span) {
+      index--;
+    }
+    if (index < 0) {
+      // Not open on this thread.
+      return;
+    }
+    Ring current = ring;
+    while (frames.depth > index) {
+      int top = --frames.depth;
+      if (current != null) {
+        current.record(frames, top, now);
+      }
+      frames.names[top] = null;
+      frames.details[top] = null;
+    }
+  }
+
+  /** @return the innermost span open on the current thread, or 0 if there is none. */
+  public static long current() {
+    if (ring == null) {
+      return 0;
+    }
+    Frames frames = FRAMES.get();
+    return frames.depth > 0 ? frames.ids[frames.depth - 1] : frames.inherited;
+  }
+
+  /**
+   * Makes spans opened by a task children of the span that is open now, wherever the task runs.
+   *
+   * @param task the task.
+   * @return the task itself when tracing is off, a wrapper otherwise.
+   */
+  public static Runnable wrap(final Runnable task) {
+    final long parent = current();
+    if (parent == 0) {
+      return task;
+    }
+    return () -> {
+      Frames frames = FRAMES.get();
+      long saved = frames.inherited;
+      frames.inherited = parent;
+      try {
+        task.run();
+      } finally {
+        frames.inherited = saved;
+      }
+    };
+  }
+
+  /**
+   * Writes the recorded spans to a file in the Chrome trace event format.
+   *
+   * @param file the file to write.
+   * @return the number of spans written.
+   * @throws IOException if the file cannot be written.
+   */
+  public static int export(File file) throws IOException {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      return export(out);
+    } finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Writes the recorded spans in the Chrome trace event format. The stream is not closed.
+   *
+   * @param out the stream to write to.
+   * @return the number of spans written.
+   * @throws IOException if the stream cannot be written.
+   */
+  public static int export(OutputStream out) throws IOException {
+    Ring current = ring;
+    Span[] spans = current != null ? current.snapshot() : new Span[0];
+    Map<Long, Span> byId = new HashMap<Long, Span>();
+    for (Span span : spans) {
+      byId.put(span.id, span);
+    }
+    Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    writer.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+    boolean first = true;
+    for (Map.Entry<Long, String> thread : THREAD_NAMES.entrySet()) {
+      writer.write(first ? "\n" : ",\n");
+      first = false;
+      writer.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getKey()
+          + ",\"args\":{\"name\":");
+      writeString(writer, thread.getValue());
+      writer.write("}}");
+    }
+    for (Span span : spans) {
+      writer.write(first ? "\n" : ",\n");
+      first = false;
+      writer.write("{\"name\":");
+      writeString(writer, span.name);
+      writer.write(",\"cat\":\"adsense\",\"ph\":\"X\",\"pid\":1,\"tid\":" + span.thread
+          + ",\"ts\":" + micros(span.start) + ",\"dur\":" + micros(span.duration)
+          + ",\"args\":{\"span\":" + span.id + ",\"parent\":" + span.parent);
+      if (span.detail != null) {
+        writer.write(",\"detail\":");
+        writeString(writer, span.detail);
+      }
+      writer.write("}}");
+      Span parent = byId.get(span.parent);
+      if (parent != null && parent.thread != span.thread) {
+        // A flow arrow from the parent, on its thread, to the child that another thread ran.
+        writer.write(",\n{\"name\":\"handoff\",\"cat\":\"adsense\",\"ph\":\"s\",\"pid\":1,\"tid\":"
+            + parent.thread + ",\"id\":" + span.id + ",\"ts\":" + micros(span.start) + "}");
+        writer.write(",\n{\"name\":\"handoff\",\"cat\":\"adsense\",\"ph\":\"f\",\"bp\":\"e\","
+            + "\"pid\":1,\"tid\":" + span.thread + ",\"id\":" + span.id + ",\"ts\":"
+            + micros(span.start) + "}");
+      }
+    }
+    writer.write("\n]}\n");
+    writer.flush();
+    return spans.length;
+  }
+
+  /** @return the number of spans that were overwritten before they could be exported. */
+  public static long getDroppedCount() {
+    Ring current = ring;
+    return current != null ? Math.max(0, current.cursor.get() - current.capacity) : 0;
+  }
+
+  private static String micros(long nanos) {
+    return Long.toString(nanos / 1000) + '.' + (char) ('0' + nanos / 100 % 10);
+  }
+
+  private static void writeString(Writer writer, String value) throws IOException {
+    writer.write('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\') {
+        writer.write('\\');
+        writer.write(c);
+      } else if (c < 0x20) {
+        writer.write(String.format("\\u%04x", (int) c));
+      } else {
+        writer.write(c);
+      }
+    }
+    writer.write('"');
+  }
+
+  /** The spans open on one thread, innermost last. */
+  private static final class Frames {
+    final long[] ids = new long[MAX_DEPTH];
+    final long[] parents = new long[MAX_DEPTH];
+    final long[] starts = new long[MAX_DEPTH];
+    final String[] names = new String[MAX_DEPTH];
+    final String[] details = new String[MAX_DEPTH];
+    final long thread = Thread.currentThread().getId();
+    int depth;
+    long inherited;
+
+    long push(String name, String detail) {
+      if (depth == MAX_DEPTH) {
+        return 0;
+      }
+      long id = NEXT_ID.getAndIncrement();
+      ids[depth] = id;
+      parents[depth] = depth > 0 ? ids[depth - 1] : inherited;
+      names[depth] = name;
+      details[depth] = detail;
+      starts[depth] = System.nanoTime();
+      depth++;
+      return id;
+    }
+  }
+
+  /**
+   * The finished spans. Each slot has a sequence number that is cleared while the slot is
+   * written, so that a reader can tell when a slot changed under it.
+   */
+  private static final class Ring {
+    final int capacity;
+    final int mask;
+    final AtomicLong cursor = new AtomicLong();
+    final AtomicLongArray sequences;
+    final AtomicLongArray fields;
+    final AtomicReferenceArray<String> names;
+    final AtomicReferenceArray<String> details;
+
+    Ring(int capacity) {
+      this.capacity = capacity;
+      this.mask = capacity - 1;
+      this.sequences = new AtomicLongArray(capacity);
+      this.fields = new AtomicLongArray(capacity * FIELDS);
+      this.names = new AtomicReferenceArray<String>(capacity);
+      this.details = new AtomicReferenceArray<String>(capacity);
+    }
+
+    void record(Frames frames, int index, long now) {
+      long sequence = cursor.getAndIncrement();
+      int slot = (int) (sequence & mask);
+      int base = slot * FIELDS;
+      sequences.set(slot, 0);
+      fields.set(base + ID, frames.ids[index]);
+      fields.set(base + PARENT, frames.parents[index]);
+      fields.set(base + START, frames.starts[index] - EPOCH_NANOS);
+      fields.set(base + DURATION, now - frames.starts[index]);
+      fields.set(base + THREAD, frames.thread);
+      names.set(slot, frames.names[index]);
+      details.set(slot, frames.details[index]);
+      sequences.set(slot, sequence + 1);
+    }
+
+    /** @return the spans in the buffer, skipping slots being written, oldest first. */
+    Span[] snapshot() {
+      long end = cursor.get();
+      long start = Math.max(0, end - capacity);
+      Span[] spans = new Span[(int) (end - start)];
+      int count = 0;
+      for (long sequence = start; sequence < end; sequence++) {
+        int slot = (int) (sequence & mask);
+        int base = slot * FIELDS;
+        long before = sequences.get(slot);
+        if (before != sequence + 1) {
+          continue;
+        }
+        Span span = new Span(fields.get(base + ID), fields.get(base + PARENT),
+            fields.get(base + START), fields.get(base + DURATION), fields.get(base + THREAD),
+            names.get(slot), details.get(slot));
+        if (sequences.get(slot) == before) {
+          spans[count++] = span;
+        }
+      }
+      Span[] result = new Span[count];
+      System.arraycopy(spans, 0, result, 0, count);
+      return result;
+    }
+  }
+
+  /** A finished span, copied out of the ring buffer. */
+  private static final class Span {
+    final long id;
+    final long parent;
+    final long start;
+    final long duration;
+    final long thread;
+    final String name;
+    final String detail;
+
+    Span(long id, long parent, long start, long duration, long thread, String name,
+        String detail) {
+      this.id = id;
+      this.parent = parent;
+      this.start = start;
+      this.duration = duration;
+      this.thread = thread;
+      this.name = name;
+      this.detail = detail;
+    }
+  }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates executors for blocking API work: one virtual thread per task on JDKs that have virtual
+ * threads, and a bounded pool of daemon threads otherwise. The samples target Java 8, so virtual
+ * threads are looked up reflectively.
+ */
+final class WorkerExecutors {
+
+  private WorkerExecutors() {}
+
+  /** @return whether tasks get virtual threads on this JDK. */
+  static boolean hasVirtualThreads() {
+    return virtualThreadFactory("probe") != null;
+  }
+
+  /**
+   * Creates an executor.
+   *
+   * @param maxThreads the size of the pool used when virtual threads are not available; callers
+   *     must bound their own concurrency when they are.
+   * @param name the prefix of the thread names.
+   * @return the executor.
+   */
+  static ExecutorService newWorkerExecutor(int maxThreads, String name) {
+    ThreadFactory virtualThreads = virtualThreadFactory(name);
+    if (virtualThreads != null) {
+      try {
+        Method newThreadPerTaskExecutor =
+            Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        return (ExecutorService) newThreadPerTaskExecutor.invoke(null, virtualThreads);
+      } catch (ReflectiveOperationException e) {
+        // Fall back to platform threads.
+      }
+    }
+    return Executors.newFixedThreadPool(maxThreads, daemonThreadFactory(name));
+  }
+
+  /** @return a factory of named daemon platform threads. */
+  static ThreadFactory daemonThreadFactory(final String name) {
+    final AtomicInteger count = new AtomicInteger();
+    return new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, name + "-" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    };
+  }
+
+  private static ThreadFactory virtualThreadFactory(String name) {
+    try {
+      Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+      builder = builderClass.getMethod("name", String.class, long.class)
+          .invoke(builder, name + "-", 1L);
+      return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      // Before Java 21, or a preview feature that is not enabled.
+      return null;
+    }
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/** Tests {@link AccountTreeCrawler} against a paged, slow {@link AdsenseEmulator}. */
+public class AccountTreeCrawlerTest {
+
+  private static final String ROOT = AdsenseEmulator.accountName(0);
+
+  @Test(timeout = 30000)
+  public void crawlsEveryLevelAcrossPages() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setChildAccounts(3, 3)
+        .setMaxPageSize(2)
+        .setLatency(5, 5, TimeUnit.MILLISECONDS)
+        .build();
+
+    AccountTreeCrawler.Node root = new AccountTreeCrawler(newAdsense(emulator), 4, 2).crawl(ROOT);
+
+    assertEquals(1 + 3 + 9 + 27, root.size());
+    assertTree(root, ROOT, 3);
+  }
+
+  @Test(timeout = 30000)
+  public void stopsWhenAChildListingFails() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setChildAccounts(3, 3)
+        .setMaxPageSize(2)
+        .setLatency(5, 5, TimeUnit.MILLISECONDS)
+        .addAccountError(ROOT + "-1", "disapprovedAccount")
+        .build();
+
+    try {
+      new AccountTreeCrawler(newAdsense(emulator), 4, 2).crawl(ROOT);
+      fail("Expected the crawl to fail");
+    } catch (GoogleJsonResponseException e) {
+      assertEquals(403, e.getStatusCode());
+    }
+  }
+
+  /** Checks that a node has the children the emulator derives from its name, level by level. */
+  private static void assertTree(AccountTreeCrawler.Node node, String name, int levels) {
+    assertEquals(name, node.getAccount().getName());
+    if (levels == 0) {
+      assertEquals(0, node.getChildren().size());
+      return;
+    }
+    assertEquals(3, node.getChildren().size());
+    for (int i = 0; i < 3; i++) {
+      assertTree(node.getChildren().get(i), name + "-" + i, levels - 1);
+    }
+  }
+
+  private static Adsense newAdsense(AdsenseEmulator emulator) throws Exception {
+    return new AdsenseClientFactory.Builder(JacksonFactory.getDefaultInstance())
+        .setHttpTransport(emulator)
+        .build()
+        .newAdsense(null);
+  }
+}
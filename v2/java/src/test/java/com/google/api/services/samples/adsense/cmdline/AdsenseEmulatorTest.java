@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.json.JsonObjectParser;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.junit.Test;
+
+/** Tests {@link AdsenseEmulator} through plain HTTP requests. */
+public class AdsenseEmulatorTest {
+
+  private static final String API_URL = "https://adsense.googleapis.com/v2/";
+  private static final String BATCH_URL = "https://adsense.googleapis.com/batch/adsense/v2";
+  private static final Pattern PART_STATUS = Pattern.compile(
+      "Content-ID: <response-(\\d+)>\\r\\n\\r\\nHTTP/1\\.1 (\\d+)");
+
+  @Test
+  public void pagesListsByOffset() throws IOException {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAccounts(5)
+        .build();
+
+    List<String> names = new ArrayList<String>();
+    int pages = 0;
+    String pageToken = null;
+    do {
+      GenericUrl url = new GenericUrl(API_URL + "accounts");
+      url.set("pageSize", 2);
+      url.set("pageToken", pageToken);
+      GenericJson page = get(emulator, url);
+      for (Object account : (List<?>) page.get("accounts")) {
+        names.add((String) ((Map<?, ?>) account).get("name"));
+      }
+      pageToken = (String) page.get("nextPageToken");
+      pages++;
+    } while (pageToken != null);
+
+    assertEquals(3, pages);
+    assertEquals(5, names.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(AdsenseEmulator.accountName(i), names.get(i));
+    }
+  }
+
+  @Test
+  public void capsPagesAtTheMaximumPageSize() throws IOException {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAdUnits(7)
+        .setMaxPageSize(3)
+        .build();
+
+    GenericUrl url = new GenericUrl(API_URL + adClient() + "/adunits");
+    url.set("pageSize", 100);
+    GenericJson page = get(emulator, url);
+
+    assertEquals(3, ((List<?>) page.get("adUnits")).size());
+    assertEquals("3", page.get("nextPageToken"));
+  }
+
+  @Test
+  public void answersBatchPartsInOrder() throws IOException {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAccounts(2)
+        .build();
+    String[] paths = {
+        AdsenseEmulator.accountName(1),
+        AdsenseEmulator.accountName(7),
+        adClient() + "/adunits/3",
+        AdsenseEmulator.accountName(0)};
+    StringBuilder body = new StringBuilder();
+    for (int i = 0; i < paths.length; i++) {
+      body.append("--batch_test\r\nContent-Type: application/http\r\n")
+          .append("Content-ID: <").append(i + 1).append(">\r\n\r\n")
+          .append("GET ").append(API_URL).append(paths[i]).append(" HTTP/1.1\r\n\r\n");
+    }
+    body.append("--batch_test--\r\n");
+
+    HttpResponse response = emulator.createRequestFactory().buildPostRequest(
+        new GenericUrl(BATCH_URL),
+        ByteArrayContent.fromString("multipart/mixed; boundary=batch_test", body.toString()))
+        .execute();
+    assertTrue(response.getContentType().startsWith("multipart/mixed; boundary="));
+    String content = response.parseAsString();
+
+    Matcher part = PART_STATUS.matcher(content);
+    List<String> statuses = new ArrayList<String>();
+    for (int i = 1; part.find(); i++) {
+      assertEquals(Integer.toString(i), part.group(1));
+      statuses.add(part.group(2));
+    }
+    assertEquals(4, statuses.size());
+    assertEquals("200", statuses.get(0));
+    assertEquals("404", statuses.get(1));
+    assertEquals("200", statuses.get(2));
+    assertEquals("200", statuses.get(3));
+    assertTrue(content.contains("\"name\":\"" + adClient() + "/adunits/3\""));
+    assertEquals(4, emulator.getRequestCount());
+    assertEquals(1, emulator.getErrorCount());
+  }
+
+  @Test
+  public void injectsErrorsAtTheConfiguredRates() throws IOException {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setSeed(42)
+        .addErrorRate(429, 0.2)
+        .addErrorRate(503, 0.1)
+        .build();
+
+    int tooManyRequests = 0;
+    int unavailable = 0;
+    for (int i = 0; i < 2000; i++) {
+      HttpResponse response = send(emulator, new GenericUrl(API_URL + "accounts"));
+      if (response.getStatusCode() == 429) {
+        tooManyRequests++;
+        assertTrue(response.parseAsString().contains("\"status\":\"RESOURCE_EXHAUSTED\""));
+      } else if (response.getStatusCode() == 503) {
+        unavailable++;
+        assertTrue(response.parseAsString().contains("\"reason\":\"backendError\""));
+      } else {
+        assertEquals(200, response.getStatusCode());
+        response.disconnect();
+      }
+    }
+
+    assertBetween(320, 480, tooManyRequests);
+    assertBetween(140, 260, unavailable);
+    assertEquals(tooManyRequests + unavailable, emulator.getErrorCount());
+    assertEquals(2000, emulator.getRequestCount());
+  }
+
+  @Test
+  public void failsEveryRequestOfAnAccountWithItsError() throws IOException {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAccounts(2)
+        .addAccountError(AdsenseEmulator.accountName(1), "disapprovedAccount")
+        .build();
+
+    assertEquals(200, send(emulator,
+        new GenericUrl(API_URL + AdsenseEmulator.accountName(0) + "/alerts")).getStatusCode());
+    HttpResponse response = send(emulator,
+        new GenericUrl(API_URL + AdsenseEmulator.accountName(1) + "/alerts"));
+    assertEquals(403, response.getStatusCode());
+    assertTrue(response.parseAsString().contains("\"reason\":\"disapprovedAccount\""));
+  }
+
+  @Test
+  public void reportsTheRowsOfTheRequestedDays() throws IOException {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setReportRows(3)
+        .build();
+
+    GenericUrl url = new GenericUrl(API_URL + AdsenseEmulator.accountName(0)
+        + "/reports:generate");
+    url.set("dateRange", "CUSTOM");
+    url.set("startDate.year", 2021);
+    url.set("startDate.month", 2);
+    url.set("startDate.day", 27);
+    url.set("endDate.year", 2021);
+    url.set("endDate.month", 3);
+    url.set("endDate.day", 1);
+    url.put("dimensions", "DATE");
+    url.put("metrics", "CLICKS");
+    GenericJson report = get(emulator, url);
+
+    List<?> rows = (List<?>) report.get("rows");
+    assertEquals(3, rows.size());
+    assertEquals("3", report.get("totalMatchedRows"));
+    assertEquals("2021-02-27", cell(rows.get(0), 0));
+    assertEquals("2021-03-01", cell(rows.get(2), 0));
+    assertNull(report.get("warnings"));
+  }
+
+  private static String adClient() {
+    String account = AdsenseEmulator.accountName(0);
+    return account + "/adclients/ca-" + account.substring("accounts/".length()) + "-0";
+  }
+
+  private static Object cell(Object row, int column) {
+    return ((Map<?, ?>) ((List<?>) ((Map<?, ?>) row).get("cells")).get(column)).get("value");
+  }
+
+  private static HttpResponse send(AdsenseEmulator emulator, GenericUrl url) throws IOException {
+    HttpRequest request = emulator.createRequestFactory().buildGetRequest(url);
+    request.setThrowExceptionOnExecuteError(false);
+    return request.execute();
+  }
+
+  private static GenericJson get(AdsenseEmulator emulator, GenericUrl url) throws IOException {
+    HttpRequest request = emulator.createRequestFactory().buildGetRequest(url);
+    request.setParser(new JsonObjectParser(JacksonFactory.getDefaultInstance()));
+    return request.execute().parseAs(GenericJson.class);
+  }
+
+  private static void assertBetween(int min, int max, int actual) {
+    assertTrue(actual + " is not between " + min + " and " + max, actual >= min && actual <= max);
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.AdUnit;
+import com.google.api.services.adsense.v2.model.CustomChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.junit.Test;
+
+/** Tests {@link BatchFetcher} against an {@link AdsenseEmulator}. */
+public class BatchFetcherTest {
+
+  private static final String AD_CLIENT = AdsenseEmulator.accountName(0) + "/adclients/ca-"
+      + AdsenseEmulator.accountName(0).substring("accounts/".length()) + "-0";
+  private static final Sleeper NO_SLEEP = millis -> { };
+
+  @Test(timeout = 10000)
+  public void fetchesMoreCallsThanTheConcurrencyLimitInOneBatch() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAdUnits(40)
+        .setCustomChannels(3)
+        .build();
+    RequestThrottler throttler = new RequestThrottler.Builder()
+        .setConcurrency(1, 16)
+        .setSleeper(NO_SLEEP)
+        .build();
+    Adsense adsense = newAdsense(emulator, throttler);
+
+    BatchFetcher fetcher = new BatchFetcher(adsense, 100, 3, NO_SLEEP);
+    BatchFetcher.Result<CustomChannel> result =
+        fetcher.fetchAll(adUnits(40), BatchFetcher.linkedCustomChannels(adsense, 10));
+
+    assertTrue(result.getFailures().isEmpty());
+    assertEquals(40, result.getItems().size());
+    for (int i = 0; i < 40; i++) {
+      List<CustomChannel> channels = result.getItems().get(AD_CLIENT + "/adunits/" + i);
+      assertEquals(1, channels.size());
+      assertEquals(AD_CLIENT + "/customchannels/" + i % 3, channels.get(0).getName());
+    }
+    assertEquals(1, fetcher.getBatchCount());
+    assertEquals(40, emulator.getRequestCount());
+    // The batch is one request to the throttler, and its permit was handed back.
+    assertEquals(1, throttler.getRequestCount());
+    assertEquals(0, throttler.getRetryCount());
+    assertEquals(16, throttler.getConcurrencyLimit());
+  }
+
+  @Test(timeout = 10000)
+  public void retriesFailedCallsWithoutDuplicatingPages() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAdUnits(30)
+        .setCustomChannels(3)
+        .setMaxPageSize(2)
+        .addErrorRate(503, 0.2)
+        .build();
+    Adsense adsense = newAdsense(emulator, new RequestThrottler.Builder()
+        .setSleeper(NO_SLEEP)
+        .build());
+
+    List<String> channels = new ArrayList<String>();
+    for (int i = 0; i < 3; i++) {
+      channels.add(AD_CLIENT + "/customchannels/" + i);
+    }
+    BatchFetcher fetcher = new BatchFetcher(adsense, 20, 20, NO_SLEEP);
+    BatchFetcher.Result<AdUnit> result =
+        fetcher.fetchAll(channels, BatchFetcher.linkedAdUnits(adsense, 2));
+
+    assertTrue(result.getFailures().isEmpty());
+    assertTrue(fetcher.getRetryCount() > 0);
+    for (Map.Entry<String, List<AdUnit>> entry : result.getItems().entrySet()) {
+      Set<String> names = new HashSet<String>();
+      for (AdUnit adUnit : entry.getValue()) {
+        assertTrue("Duplicate " + adUnit.getName(), names.add(adUnit.getName()));
+      }
+      assertEquals(10, names.size());
+    }
+  }
+
+  private static Adsense newAdsense(AdsenseEmulator emulator, RequestThrottler throttler)
+      throws Exception {
+    return new AdsenseClientFactory.Builder(JacksonFactory.getDefaultInstance())
+        .setHttpTransport(emulator)
+        .addRequestInitializer(throttler)
+        .build()
+        .newAdsense(null);
+  }
+
+  private static List<String> adUnits(int count) {
+    List<String> names = new ArrayList<String>();
+    for (int i = 0; i < count; i++) {
+      names.add(AD_CLIENT + "/adunits/" + i);
+    }
+    return names;
+  }
+}
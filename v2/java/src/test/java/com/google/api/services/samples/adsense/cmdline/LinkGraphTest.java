@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Sleeper;
+import com.google.api.services.adsense.v2.Adsense;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests {@link LinkGraph} against an {@link AdsenseEmulator}. */
+public class LinkGraphTest {
+
+  private static final String AD_CLIENT = AdsenseEmulator.accountName(0) + "/adclients/ca-"
+      + AdsenseEmulator.accountName(0).substring("accounts/".length()) + "-0";
+  private static final Sleeper NO_SLEEP = millis -> { };
+
+  /** The emulator puts ad unit {@code n} in custom channel {@code n % 3}. */
+  private static final int AD_UNITS = 12;
+  private static final int CUSTOM_CHANNELS = 3;
+
+  @Test(timeout = 30000)
+  public void looksUpLinksInBothDirections() throws Exception {
+    assertLinks(build());
+  }
+
+  @Test(timeout = 30000)
+  public void keepsBothDirectionsAcrossSaveAndLoad() throws Exception {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    build().save(out);
+
+    assertLinks(LinkGraph.load(new ByteArrayInputStream(out.toByteArray())));
+  }
+
+  private static LinkGraph build() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAdUnits(AD_UNITS)
+        .setCustomChannels(CUSTOM_CHANNELS)
+        .build();
+    Adsense adsense = newAdsense(emulator);
+    return LinkGraph.build(adsense, AD_CLIENT, 5, new BatchFetcher(adsense, 100, 3, NO_SLEEP));
+  }
+
+  private static void assertLinks(LinkGraph graph) {
+    assertEquals(AD_CLIENT, graph.getAdClientId());
+    assertEquals(AD_UNITS, graph.getAdUnitCount());
+    assertEquals(CUSTOM_CHANNELS, graph.getCustomChannelCount());
+    assertEquals(AD_UNITS, graph.getLinkCount());
+
+    // Ordinals follow the resource names, so ad unit 10 sorts before ad unit 2.
+    for (int n = 0; n < AD_UNITS; n++) {
+      int unit = graph.adUnitOrdinal(AD_CLIENT + "/adunits/" + n);
+      int channel = graph.customChannelOrdinal(AD_CLIENT + "/customchannels/" + n % 3);
+      assertEquals(AD_CLIENT + "/adunits/" + n, graph.getAdUnitName(unit));
+      assertEquals(Arrays.asList(channel), toList(graph.customChannelsOf(unit)));
+      assertEquals(1, graph.getCustomChannelCount(unit));
+      assertTrue(graph.isLinked(unit, channel));
+      assertFalse(graph.isLinked(unit, (channel + 1) % CUSTOM_CHANNELS));
+    }
+    for (int c = 0; c < CUSTOM_CHANNELS; c++) {
+      int channel = graph.customChannelOrdinal(AD_CLIENT + "/customchannels/" + c);
+      List<Integer> expected = new ArrayList<Integer>();
+      for (int unit = 0; unit < AD_UNITS; unit++) {
+        String name = graph.getAdUnitName(unit);
+        if (Integer.parseInt(name.substring(name.lastIndexOf('/') + 1)) % 3 == c) {
+          expected.add(unit);
+        }
+      }
+      assertEquals(expected, toList(graph.adUnitsOf(channel)));
+      assertEquals(expected.size(), graph.getAdUnitCount(channel));
+    }
+    assertEquals(-1, graph.adUnitOrdinal(AD_CLIENT + "/adunits/" + AD_UNITS));
+  }
+
+  private static List<Integer> toList(int[] values) {
+    List<Integer> list = new ArrayList<Integer>();
+    for (int value : values) {
+      list.add(value);
+    }
+    return list;
+  }
+
+  private static Adsense newAdsense(AdsenseEmulator emulator) throws Exception {
+    return new AdsenseClientFactory.Builder(JacksonFactory.getDefaultInstance())
+        .setHttpTransport(emulator)
+        .build()
+        .newAdsense(null);
+  }
+}
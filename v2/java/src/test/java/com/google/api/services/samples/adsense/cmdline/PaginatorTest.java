@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.model.Account;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/** Tests {@link Paginator} against a paged {@link AdsenseEmulator}. */
+public class PaginatorTest {
+
+  @Test(timeout = 30000)
+  public void listsAParentlessListingAcrossPages() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAccounts(5)
+        .setMaxPageSize(2)
+        .build();
+
+    List<Account> accounts = Paginator.SINGLE_PARENT
+        .iterate((String) null, Paginator.accounts(newAdsense(emulator), 2))
+        .toList();
+
+    assertEquals(5, accounts.size());
+    for (int i = 0; i < 5; i++) {
+      assertEquals(AdsenseEmulator.accountName(i), accounts.get(i).getName());
+    }
+    assertEquals(3, emulator.getRequestCount());
+  }
+
+  @Test(timeout = 30000)
+  public void keepsTheOrderOfEachParentWhenListingManyParents() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setAccounts(3)
+        .setChildAccounts(5, 1)
+        .setMaxPageSize(2)
+        .build();
+    List<String> parents = Arrays.asList(
+        AdsenseEmulator.accountName(0), AdsenseEmulator.accountName(1),
+        AdsenseEmulator.accountName(2));
+
+    List<Account> children = new Paginator(2, 2)
+        .iterate(parents, Paginator.childAccounts(newAdsense(emulator), 2))
+        .toList();
+
+    Map<String, List<String>> byParent = new HashMap<String, List<String>>();
+    for (Account child : children) {
+      String name = child.getName();
+      String parent = name.substring(0, name.lastIndexOf('-'));
+      if (!byParent.containsKey(parent)) {
+        byParent.put(parent, new ArrayList<String>());
+      }
+      byParent.get(parent).add(name);
+    }
+    assertEquals(3, byParent.size());
+    for (String parent : parents) {
+      List<String> expected = new ArrayList<String>();
+      for (int i = 0; i < 5; i++) {
+        expected.add(parent + "-" + i);
+      }
+      assertEquals(expected, byParent.get(parent));
+    }
+    assertEquals(3 * 3, emulator.getRequestCount());
+  }
+
+  private static Adsense newAdsense(AdsenseEmulator emulator) throws Exception {
+    return new AdsenseClientFactory.Builder(JacksonFactory.getDefaultInstance())
+        .setHttpTransport(emulator)
+        .build()
+        .newAdsense(null);
+  }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.io.File;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests {@link ReportDiff} on in-memory snapshots, with and without spilling to disk. */
+public class ReportDiffTest {
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  /** The day before: the 1st is dropped, the 3rd and 4th move, and the 6th is new. */
+  private static final ReportResult BEFORE = report(
+      row("2021-01-01", "10", "1.00"),
+      row("2021-01-02", "20", "2.00"),
+      row("2021-01-03", "30", "3.00"),
+      row("2021-01-04", "40", "4.00"),
+      row("2021-01-05", "50", "5.00"));
+
+  private static final ReportResult AFTER = report(
+      row("2021-01-02", "20", "2.00"),
+      row("2021-01-03", "35", "3.00"),
+      row("2021-01-04", "40", "4.05"),
+      row("2021-01-05", "50", "5.50"),
+      row("2021-01-06", "60", "6.00"));
+
+  @Test
+  public void findsAddedRemovedAndChangedRowsInMemory() throws Exception {
+    Map<String, ReportDiff.Change> changes = new TreeMap<String, ReportDiff.Change>();
+    ReportDiff.Summary summary = newDiff().build().diff(ReportDiff.fromResult(BEFORE),
+        ReportDiff.fromResult(AFTER), change -> changes.put(date(change), change));
+
+    assertEquals(1, summary.getPartitions());
+    assertChanges(summary, changes);
+  }
+
+  @Test
+  public void findsTheSameRowsWhenSpillingToDisk() throws Exception {
+    File spillDirectory = folder.newFolder();
+    Map<String, ReportDiff.Change> changes = new TreeMap<String, ReportDiff.Change>();
+    ReportDiff.Summary summary = newDiff()
+        .setMaxRowsInMemory(1)
+        .setPartitionCount(3)
+        .setSpillDirectory(spillDirectory)
+        .build()
+        .diff(ReportDiff.fromResult(BEFORE), ReportDiff.fromResult(AFTER),
+            change -> changes.put(date(change), change));
+
+    assertEquals(3, summary.getPartitions());
+    assertChanges(summary, changes);
+    assertEquals(0, spillDirectory.list().length);
+  }
+
+  /** Earnings moves of up to ten cents are ignored; any change of clicks is reported. */
+  private static ReportDiff.Builder newDiff() {
+    return new ReportDiff.Builder().setThreshold("ESTIMATED_EARNINGS", new BigDecimal("0.10"));
+  }
+
+  private static void assertChanges(ReportDiff.Summary summary,
+      Map<String, ReportDiff.Change> changes) {
+    assertEquals(5, summary.getBeforeRows());
+    assertEquals(5, summary.getAfterRows());
+    assertEquals(1, summary.getAdded());
+    assertEquals(1, summary.getRemoved());
+    assertEquals(2, summary.getChanged());
+    assertEquals(Arrays.asList("2021-01-01", "2021-01-03", "2021-01-05", "2021-01-06"),
+        new ArrayList<String>(changes.keySet()));
+
+    ReportDiff.Change removed = changes.get("2021-01-01");
+    assertEquals(ReportDiff.Kind.REMOVED, removed.getKind());
+    assertEquals(new BigDecimal("-10"), removed.getDelta(0));
+
+    ReportDiff.Change clicks = changes.get("2021-01-03");
+    assertEquals(ReportDiff.Kind.CHANGED, clicks.getKind());
+    assertEquals(Arrays.asList("CLICKS", "ESTIMATED_EARNINGS"), clicks.getMetricNames());
+    assertTrue(clicks.isChanged(0));
+    assertFalse(clicks.isChanged(1));
+    assertEquals(new BigDecimal("5"), clicks.getDelta(0));
+
+    ReportDiff.Change earnings = changes.get("2021-01-05");
+    assertEquals(ReportDiff.Kind.CHANGED, earnings.getKind());
+    assertFalse(earnings.isChanged(0));
+    assertTrue(earnings.isChanged(1));
+    assertEquals(new BigDecimal("0.50"), earnings.getDelta(1));
+
+    ReportDiff.Change added = changes.get("2021-01-06");
+    assertEquals(ReportDiff.Kind.ADDED, added.getKind());
+    assertEquals(new BigDecimal("6.00"), added.getAfter(1));
+  }
+
+  private static String date(ReportDiff.Change change) {
+    return change.getDimensionValues().get(0);
+  }
+
+  private static ReportResult report(Row... rows) {
+    return new ReportResult()
+        .setHeaders(Arrays.asList(
+            new Header().setName("DATE").setType("DIMENSION"),
+            new Header().setName("CLICKS").setType("METRIC_TALLY"),
+            new Header().setName("ESTIMATED_EARNINGS").setType("METRIC_CURRENCY")
+                .setCurrencyCode("USD")))
+        .setRows(Arrays.asList(rows));
+  }
+
+  private static Row row(String... values) {
+    List<Cell> cells = new ArrayList<Cell>();
+    for (String value : values) {
+      cells.add(new Cell().setValue(value));
+    }
+    return new Row().setCells(cells);
+  }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/** Tests {@link ReportPlanner} against an {@link AdsenseEmulator}. */
+public class ReportPlannerTest {
+
+  private static final String ACCOUNT = AdsenseEmulator.accountName(0);
+
+  @Test(timeout = 30000)
+  public void recomputesRatiosFromTheSumsOfTheirParts() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder().setReportRows(5).build();
+    Adsense adsense = newAdsense(emulator);
+
+    // Ten days in shards of three days: four shards, whose rows all have the same countries.
+    ReportResult merged = new ReportPlanner(3, 2).execute(adsense,
+        newRequest(adsense, 10).setMetrics(Arrays.asList("AD_REQUESTS_CTR")));
+
+    // The emulator answers every shard with the same values, as they only depend on the report
+    // and the row, so each merged ratio is the ratio of the clicks and ad requests of one shard.
+    ReportResult shard = newRequest(adsense, 3)
+        .setMetrics(Arrays.asList("AD_REQUESTS_CTR", "CLICKS", "AD_REQUESTS"))
+        .execute();
+    assertEquals(4 + 1, emulator.getRequestCount());
+    assertEquals(2, merged.getHeaders().size());
+    assertEquals("AD_REQUESTS_CTR", merged.getHeaders().get(1).getName());
+    assertEquals(5, merged.getRows().size());
+    BigDecimal clicks = BigDecimal.ZERO;
+    BigDecimal adRequests = BigDecimal.ZERO;
+    for (int i = 0; i < 5; i++) {
+      List<String> expected = values(shard.getRows().get(i));
+      List<String> actual = values(merged.getRows().get(i));
+      assertEquals(expected.get(0), actual.get(0));
+      assertRatio(new BigDecimal(expected.get(2)), new BigDecimal(expected.get(3)), actual.get(1));
+      clicks = clicks.add(new BigDecimal(expected.get(2)));
+      adRequests = adRequests.add(new BigDecimal(expected.get(3)));
+    }
+    assertRatio(clicks, adRequests, values(merged.getTotals()).get(1));
+  }
+
+  @Test
+  public void refusesARangeThatEndsBeforeItStarts() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder().build();
+    Adsense adsense = newAdsense(emulator);
+    Generate request = newRequest(adsense, 1)
+        .setStartDateDay(2)
+        .setEndDateDay(1)
+        .setMetrics(Arrays.asList("CLICKS"));
+
+    try {
+      new ReportPlanner(3, 2).execute(adsense, request);
+      fail("Expected the range to be refused");
+    } catch (IllegalArgumentException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("2021-01-01"));
+      assertEquals(0, emulator.getRequestCount());
+    }
+  }
+
+  /** @return a request by country, from the 1st of January 2021, for the given number of days. */
+  private static Generate newRequest(Adsense adsense, int days) throws Exception {
+    return adsense.accounts().reports().generate(ACCOUNT)
+        .setDateRange("CUSTOM")
+        .setStartDateYear(2021).setStartDateMonth(1).setStartDateDay(1)
+        .setEndDateYear(2021).setEndDateMonth(1).setEndDateDay(days)
+        .setDimensions(Arrays.asList("COUNTRY_NAME"));
+  }
+
+  private static void assertRatio(BigDecimal numerator, BigDecimal denominator, String actual) {
+    BigDecimal expected = numerator.divide(denominator, MathContext.DECIMAL64);
+    assertEquals(expected + " != " + actual, 0, expected.compareTo(new BigDecimal(actual)));
+  }
+
+  private static List<String> values(Row row) {
+    String[] values = new String[row.getCells().size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = row.getCells().get(i).getValue();
+    }
+    return Arrays.asList(values);
+  }
+
+  private static Adsense newAdsense(AdsenseEmulator emulator) throws Exception {
+    return new AdsenseClientFactory.Builder(JacksonFactory.getDefaultInstance())
+        .setHttpTransport(emulator)
+        .build()
+        .newAdsense(null);
+  }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.adsense.v2.Adsense;
+import com.google.api.services.adsense.v2.Adsense.Accounts.Reports.Generate;
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+/** Tests {@link ReportRollup} on an in-memory base report. */
+public class ReportRollupTest {
+
+  private static final String ACCOUNT = AdsenseEmulator.accountName(0);
+
+  /**
+   * The base report, with a stored click-through rate per row. Averaging those rates would give
+   * the wrong answer for any group of more than one row.
+   */
+  private static final ReportResult BASE = report(
+      row("2021-01-01", "France", "1", "10", "0.5", "0.1"),
+      row("2021-01-02", "France", "3", "10", "1", "0.3"),
+      row("2021-01-02", "Japan", "0", "20", "0", "0"),
+      row("2021-02-01", "France", "2", "8", "0.3", "0.25"));
+
+  private AdsenseEmulator emulator;
+  private Adsense adsense;
+  private ReportRollup rollup;
+
+  @Before
+  public void setUp() throws Exception {
+    emulator = new AdsenseEmulator.Builder().build();
+    adsense = newAdsense(emulator);
+    rollup = new ReportRollup(newRequest(1, 1, 2, 28)
+        .setDimensions(Arrays.asList("DATE", "COUNTRY_NAME"))
+        .setMetrics(Arrays.asList("CLICKS", "AD_REQUESTS", "ESTIMATED_EARNINGS",
+            "AD_REQUESTS_CTR")),
+        ReportTable.from(BASE));
+  }
+
+  @Test
+  public void recomputesRatiosFromTheSumsOfTheirParts() throws Exception {
+    ReportResult result = rollup.execute(newRequest(1, 1, 2, 28)
+        .setDimensions(Arrays.asList("MONTH"))
+        .setMetrics(Arrays.asList("CLICKS", "AD_REQUESTS_CTR", "COST_PER_CLICK")));
+
+    assertEquals(0, emulator.getRequestCount());
+    assertEquals(1, rollup.getLocalCount());
+    assertEquals("METRIC_RATIO", result.getHeaders().get(2).getType());
+    assertEquals("METRIC_CURRENCY", result.getHeaders().get(3).getType());
+    assertEquals("USD", result.getHeaders().get(3).getCurrencyCode());
+    // January: 4 clicks over 40 ad requests, for 1.50 in earnings.
+    assertEquals(Arrays.asList(
+        Arrays.asList("2021-01", "4", "0.1", "0.375"),
+        Arrays.asList("2021-02", "2", "0.25", "0.15")), rows(result));
+    assertEquals(Arrays.asList(null, "6", "0.125", "0.3"), values(result.getTotals()));
+  }
+
+  @Test
+  public void recomputesRatiosOfASubrangeAndGivesZeroForAZeroDenominator() throws Exception {
+    ReportResult result = rollup.execute(newRequest(1, 1, 1, 31)
+        .setDimensions(Arrays.asList("COUNTRY_NAME"))
+        .setMetrics(Arrays.asList("AD_REQUESTS_CTR", "COST_PER_CLICK"))
+        .setOrderBy(Arrays.asList("+COUNTRY_NAME")));
+
+    assertEquals(0, emulator.getRequestCount());
+    assertEquals(Arrays.asList(
+        Arrays.asList("France", "0.2", "0.375"),
+        Arrays.asList("Japan", "0", "0")), rows(result));
+    assertEquals(Arrays.asList(null, "0.1", "0.375"), values(result.getTotals()));
+  }
+
+  @Test
+  public void sendsARatioWithoutItsPartsToTheApi() throws Exception {
+    Generate request = newRequest(1, 1, 2, 28)
+        .setDimensions(Arrays.asList("MONTH"))
+        .setMetrics(Arrays.asList("PAGE_VIEWS_CTR"));
+
+    assertTrue(rollup.explain(request).contains("PAGE_VIEWS_CTR"));
+    rollup.execute(request);
+    assertEquals(1, rollup.getApiCount());
+    assertEquals(1, emulator.getRequestCount());
+  }
+
+  /** @return a request of the account for a range of days in 2021. */
+  private Generate newRequest(int startMonth, int startDay, int endMonth, int endDay)
+      throws Exception {
+    return adsense.accounts().reports().generate(ACCOUNT)
+        .setDateRange("CUSTOM")
+        .setStartDateYear(2021).setStartDateMonth(startMonth).setStartDateDay(startDay)
+        .setEndDateYear(2021).setEndDateMonth(endMonth).setEndDateDay(endDay);
+  }
+
+  private static List<List<String>> rows(ReportResult result) {
+    List<List<String>> rows = new ArrayList<List<String>>();
+    for (Row row : result.getRows()) {
+      rows.add(values(row));
+    }
+    return rows;
+  }
+
+  private static List<String> values(Row row) {
+    String[] values = new String[row.getCells().size()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = row.getCells().get(i).getValue();
+    }
+    return Arrays.asList(values);
+  }
+
+  private static ReportResult report(Row... rows) {
+    return new ReportResult()
+        .setHeaders(Arrays.asList(
+            new Header().setName("DATE").setType("DIMENSION"),
+            new Header().setName("COUNTRY_NAME").setType("DIMENSION"),
+            new Header().setName("CLICKS").setType("METRIC_TALLY"),
+            new Header().setName("AD_REQUESTS").setType("METRIC_TALLY"),
+            new Header().setName("ESTIMATED_EARNINGS").setType("METRIC_CURRENCY")
+                .setCurrencyCode("USD"),
+            new Header().setName("AD_REQUESTS_CTR").setType("METRIC_RATIO")))
+        .setRows(Arrays.asList(rows));
+  }
+
+  private static Row row(String... values) {
+    List<Cell> cells = new ArrayList<Cell>();
+    for (String value : values) {
+      cells.add(new Cell().setValue(value));
+    }
+    return new Row().setCells(cells);
+  }
+
+  private static Adsense newAdsense(AdsenseEmulator emulator) throws Exception {
+    return new AdsenseClientFactory.Builder(JacksonFactory.getDefaultInstance())
+        .setHttpTransport(emulator)
+        .build()
+        .newAdsense(null);
+  }
+}
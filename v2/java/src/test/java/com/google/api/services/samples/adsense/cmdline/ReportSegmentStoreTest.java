@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import com.google.api.services.adsense.v2.model.Cell;
+import com.google.api.services.adsense.v2.model.Header;
+import com.google.api.services.adsense.v2.model.ReportResult;
+import com.google.api.services.adsense.v2.model.Row;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/** Tests {@link ReportSegmentStore} on an in-memory report, stored in a temporary directory. */
+public class ReportSegmentStoreTest {
+
+  private static final String ACCOUNT = "accounts/pub-0000000000000000";
+
+  @Rule
+  public final TemporaryFolder folder = new TemporaryFolder();
+
+  private ReportSegmentStore store;
+
+  @Before
+  public void setUp() throws Exception {
+    store = new ReportSegmentStore(folder.newFolder());
+    // Three days, the middle one with a missing value in every column but the date.
+    assertEquals(3, store.append(ACCOUNT, report(
+        row("2021-01-01", "France", "10", "1.50", "0.25"),
+        row("2021-01-01", "Japan", "20", "0.00", "0.0001"),
+        row("2021-01-02", null, null, null, null),
+        row("2021-01-03", "France", "30", "12.345678", "1"))));
+  }
+
+  @Test
+  public void listsTheStoredDays() throws Exception {
+    assertEquals(Arrays.asList(LocalDate.of(2021, 1, 1), LocalDate.of(2021, 1, 2),
+        LocalDate.of(2021, 1, 3)), store.getDays(ACCOUNT));
+    assertNull(store.open(ACCOUNT, LocalDate.of(2021, 1, 4)));
+  }
+
+  @Test
+  public void readsARangeBackAsTheApiFormatsIt() throws Exception {
+    List<String> headers = new ArrayList<String>();
+    List<List<String>> rows = new ArrayList<List<String>>();
+    long read = store.read(ACCOUNT, LocalDate.of(2021, 1, 1), LocalDate.of(2021, 1, 2),
+        new ReportStreamReader.RowHandler() {
+          @Override
+          public void headers(List<Header> columns) {
+            for (Header header : columns) {
+              headers.add(header.getName());
+            }
+          }
+
+          @Override
+          public void row(String[] cells) {
+            rows.add(new ArrayList<String>(Arrays.asList(cells)));
+          }
+        });
+
+    assertEquals(3, read);
+    assertEquals(Arrays.asList("DATE", "COUNTRY_NAME", "CLICKS", "ESTIMATED_EARNINGS",
+        "AD_REQUESTS_CTR"), headers);
+    // Decimals come back at their own scale: no trailing zeros and no exponent.
+    assertEquals(Arrays.asList(
+        Arrays.asList("2021-01-01", "France", "10", "1.5", "0.25"),
+        Arrays.asList("2021-01-01", "Japan", "20", "0", "0.0001"),
+        Arrays.asList("2021-01-02", null, null, null, null)), rows);
+  }
+
+  @Test
+  public void readsASegmentInPlace() throws Exception {
+    ReportSegmentStore.Segment segment = store.open(ACCOUNT, LocalDate.of(2021, 1, 3));
+
+    assertEquals(1, segment.getRowCount());
+    assertEquals(4, segment.getColumnCount());
+    assertEquals("France", segment.getString(0, 0));
+    assertEquals(30, segment.getLong(1, 0));
+    assertEquals(12345678, segment.getLong(2, 0));
+    assertEquals("12.345678", segment.getString(2, 0));
+    assertEquals(1.0, segment.getDouble(3, 0), 0);
+    // Dimension codes are shared by the days of the account.
+    assertEquals(store.open(ACCOUNT, LocalDate.of(2021, 1, 1)).getCode(0, 0),
+        segment.getCode(0, 0));
+  }
+
+  private static ReportResult report(Row... rows) {
+    return new ReportResult()
+        .setHeaders(Arrays.asList(
+            new Header().setName("DATE").setType("DIMENSION"),
+            new Header().setName("COUNTRY_NAME").setType("DIMENSION"),
+            new Header().setName("CLICKS").setType("METRIC_TALLY"),
+            new Header().setName("ESTIMATED_EARNINGS").setType("METRIC_CURRENCY")
+                .setCurrencyCode("USD"),
+            new Header().setName("AD_REQUESTS_CTR").setType("METRIC_RATIO")))
+        .setRows(Arrays.asList(rows));
+  }
+
+  private static Row row(String... values) {
+    List<Cell> cells = new ArrayList<Cell>();
+    for (String value : values) {
+      cells.add(new Cell().setValue(value));
+    }
+    return new Row().setCells(cells);
+  }
+}
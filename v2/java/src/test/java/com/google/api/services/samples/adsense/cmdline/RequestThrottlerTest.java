@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2021 Google LLC.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.google.api.services.samples.adsense.cmdline;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpRequestFactory;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.LowLevelHttpRequest;
+import com.google.api.client.http.LowLevelHttpResponse;
+import com.google.api.client.http.MultipartContent;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.client.util.Sleeper;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+/**
+ * Tests {@link RequestThrottler} against scripted responses and an {@link AdsenseEmulator}. The
+ * throttler's waits go to a sleeper that records them instead of sleeping.
+ */
+public class RequestThrottlerTest {
+
+  private static final String ACCOUNTS_URL = "https://adsense.googleapis.com/v2/accounts";
+
+  /** A sleeper that only records how long it was asked to sleep. */
+  private static final class RecordingSleeper implements Sleeper {
+    final List<Long> sleeps = Collections.synchronizedList(new ArrayList<Long>());
+
+    @Override
+    public void sleep(long millis) {
+      sleeps.add(millis);
+    }
+  }
+
+  /**
+   * Answers each request with the next scripted status, then with {@code 200}. A status of
+   * {@code 0} fails the request with an {@link IOException}, and {@code 429} asks the client to
+   * retry after three seconds.
+   */
+  private static final class ScriptedTransport extends MockHttpTransport {
+    private final Deque<Integer> statuses;
+
+    ScriptedTransport(Integer... statuses) {
+      this.statuses = new ArrayDeque<Integer>(Arrays.asList(statuses));
+    }
+
+    @Override
+    public LowLevelHttpRequest buildRequest(String method, String url) {
+      return new MockLowLevelHttpRequest(url) {
+        @Override
+        public LowLevelHttpResponse execute() throws IOException {
+          Integer status;
+          synchronized (statuses) {
+            status = statuses.isEmpty() ? 200 : statuses.poll();
+          }
+          if (status == 0) {
+            throw new IOException("Connection reset");
+          }
+          MockLowLevelHttpResponse response = new MockLowLevelHttpResponse()
+              .setStatusCode(status)
+              .setContent("{}");
+          if (status == 429) {
+            response.addHeader("Retry-After", "3");
+          }
+          return response;
+        }
+      };
+    }
+  }
+
+  @Test
+  public void backsOffExponentiallyBeforeRetries() throws IOException {
+    RecordingSleeper sleeper = new RecordingSleeper();
+    RequestThrottler throttler = unlimited(sleeper)
+        .setBackOff(100, 10000, 60000)
+        .build();
+
+    execute(new ScriptedTransport(503, 500, 503), throttler, "GET");
+
+    assertEquals(3, sleeper.sleeps.size());
+    // Each interval doubles, with up to 50% of jitter either way.
+    assertBetween(50, 150, sleeper.sleeps.get(0));
+    assertBetween(100, 300, sleeper.sleeps.get(1));
+    assertBetween(200, 600, sleeper.sleeps.get(2));
+    assertEquals(3, throttler.getRetryCount());
+    assertEquals(4, throttler.getRequestCount());
+    assertEquals(2, throttler.getThrottledCount());
+  }
+
+  @Test
+  public void honoursRetryAfter() throws IOException {
+    RecordingSleeper sleeper = new RecordingSleeper();
+    RequestThrottler throttler = unlimited(sleeper)
+        .setBackOff(100, 10000, 60000)
+        .build();
+
+    execute(new ScriptedTransport(429), throttler, "GET");
+
+    assertEquals(Arrays.asList(3000L), sleeper.sleeps);
+  }
+
+  @Test
+  public void givesUpAfterTheMaximumRetries() throws IOException {
+    RecordingSleeper sleeper = new RecordingSleeper();
+    RequestThrottler throttler = unlimited(sleeper)
+        .setMaxRetries(2)
+        .build();
+
+    try {
+      execute(new ScriptedTransport(503, 503, 503, 503), throttler, "GET");
+      fail("Expected the request to fail");
+    } catch (HttpResponseException e) {
+      assertEquals(503, e.getStatusCode());
+    }
+    assertEquals(2, throttler.getRetryCount());
+    assertEquals(3, throttler.getRequestCount());
+  }
+
+  @Test
+  public void retriesOnlyGetRequestsAfterIoErrors() throws IOException {
+    RequestThrottler throttler = unlimited(new RecordingSleeper()).build();
+
+    execute(new ScriptedTransport(0), throttler, "GET");
+    assertEquals(1, throttler.getRetryCount());
+
+    try {
+      execute(new ScriptedTransport(0), throttler, "POST");
+      fail("Expected the request to fail");
+    } catch (IOException e) {
+      assertEquals("Connection reset", e.getMessage());
+    }
+    assertEquals(1, throttler.getRetryCount());
+  }
+
+  @Test
+  public void halvesTheLimitWhenThrottledAndGrowsItBackSlowly() throws IOException {
+    RequestThrottler throttler = unlimited(new RecordingSleeper())
+        .setConcurrency(1, 16)
+        .setMaxRetries(0)
+        .build();
+    ScriptedTransport transport = new ScriptedTransport(503, 429);
+
+    for (int i = 0; i < 2; i++) {
+      try {
+        execute(transport, throttler, "GET");
+        fail("Expected the request to fail");
+      } catch (HttpResponseException e) {
+        assertTrue(e.getStatusCode() == 503 || e.getStatusCode() == 429);
+      }
+    }
+    // Both throttled responses came within a second, so the limit was only halved once.
+    assertEquals(8, throttler.getConcurrencyLimit());
+
+    // Each success adds 1 / limit, so it takes about eight of them to add one.
+    execute(transport, throttler, "GET");
+    assertEquals(8, throttler.getConcurrencyLimit());
+    for (int i = 0; i < 8; i++) {
+      execute(transport, throttler, "GET");
+    }
+    assertEquals(9, throttler.getConcurrencyLimit());
+  }
+
+  @Test(timeout = 10000)
+  public void releasesPermitsWhateverTheOutcome() throws IOException {
+    RequestThrottler throttler = unlimited(new RecordingSleeper())
+        .setConcurrency(1, 1)
+        .setMaxRetries(0)
+        .build();
+    ScriptedTransport transport = new ScriptedTransport(200, 503, 404, 0, 429, 200);
+
+    // With a single permit, any request that kept its permit would block the next one forever.
+    int failures = 0;
+    for (int i = 0; i < 6; i++) {
+      try {
+        execute(transport, throttler, "POST");
+      } catch (IOException e) {
+        failures++;
+      }
+    }
+    assertEquals(4, failures);
+    assertEquals(6, throttler.getRequestCount());
+    assertEquals(1, throttler.getConcurrencyLimit());
+  }
+
+  @Test(timeout = 30000)
+  public void keepsPermitsBalancedUnderConcurrentThrottling() throws Exception {
+    AdsenseEmulator emulator = new AdsenseEmulator.Builder()
+        .setLatency(1, 1, TimeUnit.MILLISECONDS)
+        .addErrorRate(429, 0.2)
+        .addErrorRate(503, 0.1)
+        .build();
+    final RequestThrottler throttler = unlimited(new RecordingSleeper())
+        .setConcurrency(1, 4)
+        .setMaxRetries(20)
+        .build();
+    final HttpRequestFactory factory = emulator.createRequestFactory(throttler);
+
+    List<Thread> threads = new ArrayList<Thread>();
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    for (int t = 0; t < 8; t++) {
+      Thread thread = new Thread(() -> {
+        try {
+          for (int i = 0; i < 25; i++) {
+            factory.buildGetRequest(new GenericUrl(ACCOUNTS_URL)).execute().disconnect();
+          }
+        } catch (Throwable e) {
+          errors.add(e);
+        }
+      });
+      threads.add(thread);
+      thread.start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    assertTrue(errors.toString(), errors.isEmpty());
+    assertEquals(emulator.getErrorCount(), throttler.getThrottledCount());
+    assertEquals(emulator.getErrorCount(), throttler.getRetryCount());
+    assertEquals(200 + emulator.getErrorCount(), throttler.getRequestCount());
+    // Every permit was handed back, so another request still goes through.
+    execute(emulator, throttler, "GET");
+  }
+
+  @Test
+  public void waitsForTokensAndChargesBatchesPerPart() throws IOException {
+    RecordingSleeper sleeper = new RecordingSleeper();
+    RequestThrottler throttler = new RequestThrottler.Builder()
+        .setProjectRate(10, 10)
+        .setAccountRate(0, 0)
+        .setSleeper(sleeper)
+        .build();
+    HttpRequestFactory factory = new ScriptedTransport().createRequestFactory(throttler);
+
+    // A batch of 25 parts takes 25 tokens of a bucket that holds 10, at 10 a second.
+    MultipartContent batch = new MultipartContent();
+    for (int i = 0; i < 25; i++) {
+      batch.addPart(new MultipartContent.Part(ByteArrayContent.fromString("text/plain", "")));
+    }
+    factory.buildPostRequest(new GenericUrl("https://adsense.googleapis.com/batch/adsense/v2"),
+        batch).execute();
+    assertEquals(1, sleeper.sleeps.size());
+    assertBetween(1400, 1501, sleeper.sleeps.get(0));
+
+    // Any other request takes a single token.
+    factory.buildGetRequest(new GenericUrl(ACCOUNTS_URL)).execute();
+    assertEquals(2, sleeper.sleeps.size());
+    assertBetween(1500, 1601, sleeper.sleeps.get(1));
+    assertEquals(2, throttler.getRequestCount());
+  }
+
+  /** @return a builder for a throttler without rate limits, so only backoff sleeps. */
+  private static RequestThrottler.Builder unlimited(Sleeper sleeper) {
+    return new RequestThrottler.Builder()
+        .setProjectRate(0, 0)
+        .setAccountRate(0, 0)
+        .setSleeper(sleeper);
+  }
+
+  private static void execute(MockHttpTransport transport, RequestThrottler throttler,
+      String method) throws IOException {
+    HttpRequest request = transport.createRequestFactory(throttler).buildRequest(method,
+        new GenericUrl(ACCOUNTS_URL), method.equals("GET") ? null
+            : ByteArrayContent.fromString("application/json", "{}"));
+    HttpResponse response = request.execute();
+    response.disconnect();
+  }
+
+  private static void assertBetween(long min, long max, long actual) {
+    assertTrue(actual + " is not between " + min + " and " + max, actual >= min && actual <= max);
+  }
+}